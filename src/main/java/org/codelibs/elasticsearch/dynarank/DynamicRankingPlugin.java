@@ -3,24 +3,50 @@ package org.codelibs.elasticsearch.dynarank;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.List;
+import java.util.Map;
+import java.util.function.Supplier;
 
+import org.codelibs.elasticsearch.dynarank.feature.FeatureStoreService;
+import org.codelibs.elasticsearch.dynarank.fetch.RerankKeysExtBuilder;
+import org.codelibs.elasticsearch.dynarank.fetch.RerankKeysFetchSubPhase;
 import org.codelibs.elasticsearch.dynarank.filter.SearchActionFilter;
+import org.codelibs.elasticsearch.dynarank.model.ModelRanker;
+import org.codelibs.elasticsearch.dynarank.ingest.DiversityKeyProcessor;
 import org.codelibs.elasticsearch.dynarank.ranker.DynamicRanker;
+import org.codelibs.elasticsearch.dynarank.ranker.LoadShedder;
+import org.codelibs.elasticsearch.dynarank.ranker.RerankPlanner;
+import org.codelibs.elasticsearch.dynarank.ranker.RerankWarmer;
+import org.codelibs.elasticsearch.dynarank.rest.RestDynaRankStatsAction;
 import org.codelibs.elasticsearch.dynarank.script.DiversitySortScriptEngine;
 import org.codelibs.elasticsearch.dynarank.script.DynaRankScript;
 import org.elasticsearch.action.support.ActionFilter;
+import org.elasticsearch.cluster.metadata.IndexNameExpressionResolver;
+import org.elasticsearch.cluster.node.DiscoveryNodes;
+import org.elasticsearch.common.breaker.CircuitBreaker;
 import org.elasticsearch.common.component.LifecycleComponent;
+import org.elasticsearch.common.settings.ClusterSettings;
+import org.elasticsearch.common.settings.IndexScopedSettings;
 import org.elasticsearch.common.settings.Setting;
 import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.settings.SettingsFilter;
+import org.elasticsearch.indices.breaker.BreakerSettings;
+import org.elasticsearch.ingest.Processor;
 import org.elasticsearch.plugins.ActionPlugin;
+import org.elasticsearch.plugins.CircuitBreakerPlugin;
+import org.elasticsearch.plugins.IngestPlugin;
 import org.elasticsearch.plugins.Plugin;
 import org.elasticsearch.plugins.ScriptPlugin;
+import org.elasticsearch.plugins.SearchPlugin;
+import org.elasticsearch.rest.RestController;
+import org.elasticsearch.rest.RestHandler;
 import org.elasticsearch.rest.RestHeaderDefinition;
 import org.elasticsearch.script.ScriptContext;
 import org.elasticsearch.script.ScriptEngine;
+import org.elasticsearch.search.fetch.FetchSubPhase;
 
-public class DynamicRankingPlugin extends Plugin implements ActionPlugin, ScriptPlugin {
+public class DynamicRankingPlugin extends Plugin implements ActionPlugin, ScriptPlugin, CircuitBreakerPlugin, IngestPlugin, SearchPlugin {
 
     private Settings settings;
 
@@ -33,11 +59,46 @@ public class DynamicRankingPlugin extends Plugin implements ActionPlugin, Script
         return new DiversitySortScriptEngine(settings);
     }
 
+    @Override
+    public Map<String, Processor.Factory> getProcessors(final Processor.Parameters parameters) {
+        return Collections.singletonMap(DiversityKeyProcessor.TYPE, new DiversityKeyProcessor.Factory());
+    }
+
+    @Override
+    public List<FetchSubPhase> getFetchSubPhases(final FetchPhaseConstructionContext context) {
+        return Collections.singletonList(new RerankKeysFetchSubPhase());
+    }
+
+    @Override
+    public List<SearchExtSpec<?>> getSearchExts() {
+        return Collections.singletonList(
+                new SearchExtSpec<>(RerankKeysExtBuilder.NAME, RerankKeysExtBuilder::new, RerankKeysExtBuilder::fromXContent));
+    }
+
+    @Override
+    public BreakerSettings getCircuitBreaker(final Settings settings) {
+        return new BreakerSettings(DynamicRanker.BREAKER_NAME, DynamicRanker.SETTING_BREAKER_DYNARANK_LIMIT.get(settings).getBytes(),
+                DynamicRanker.SETTING_BREAKER_DYNARANK_OVERHEAD.get(settings), CircuitBreaker.Type.MEMORY,
+                CircuitBreaker.Durability.TRANSIENT);
+    }
+
+    @Override
+    public void setCircuitBreaker(final CircuitBreaker circuitBreaker) {
+        // DynamicRanker looks up the breaker from CircuitBreakerService
+    }
+
     @Override
     public List<ActionFilter> getActionFilters() {
         return Arrays.asList(new SearchActionFilter(settings));
     }
 
+    @Override
+    public List<RestHandler> getRestHandlers(final Settings settings, final RestController restController,
+            final ClusterSettings clusterSettings, final IndexScopedSettings indexScopedSettings, final SettingsFilter settingsFilter,
+            final IndexNameExpressionResolver indexNameExpressionResolver, final Supplier<DiscoveryNodes> nodesInCluster) {
+        return Arrays.asList(new RestDynaRankStatsAction());
+    }
+
     @Override
     public Collection<RestHeaderDefinition> getRestHeaders() {
         return Arrays.asList(
@@ -68,8 +129,38 @@ public class DynamicRankingPlugin extends Plugin implements ActionPlugin, Script
                 DynamicRanker.SETTING_INDEX_DYNARANK_PARAMS, //
                 DynamicRanker.SETTING_INDEX_DYNARANK_REORDER_SIZE, //
                 DynamicRanker.SETTING_INDEX_DYNARANK_KEEP_TOPN, //
+                DynamicRanker.SETTING_INDEX_DYNARANK_ADAPTIVE_ENABLED, //
+                DynamicRanker.SETTING_INDEX_DYNARANK_ADAPTIVE_MIN_REORDER_SIZE, //
+                DynamicRanker.SETTING_INDEX_DYNARANK_ADAPTIVE_MAX_REORDER_SIZE, //
+                DynamicRanker.SETTING_INDEX_DYNARANK_ADAPTIVE_OVERHEAD_BUDGET, //
+                DynamicRanker.SETTING_INDEX_DYNARANK_COALESCE_ENABLED, //
+                DynamicRanker.SETTING_INDEX_DYNARANK_RERANK_KEYS_ENABLED, //
+                DynamicRanker.SETTING_INDEX_DYNARANK_RERANK_KEYS_FIELDS, //
+                DynamicRanker.SETTING_INDEX_DYNARANK_COLLAPSE_ENABLED, //
+                DynamicRanker.SETTING_INDEX_DYNARANK_COLLAPSE_INNER_HITS_SIZE, //
+                DynamicRanker.SETTING_INDEX_DYNARANK_SLOWLOG_THRESHOLD_WARN, //
+                DynamicRanker.SETTING_INDEX_DYNARANK_SLOWLOG_THRESHOLD_INFO, //
+                DynamicRanker.SETTING_INDEX_DYNARANK_SLOWLOG_THRESHOLD_DEBUG, //
                 DynamicRanker.SETTING_DYNARANK_CACHE_CLEAN_INTERVAL, //
-                DynamicRanker.SETTING_DYNARANK_CACHE_EXPIRE //
+                DynamicRanker.SETTING_DYNARANK_CACHE_EXPIRE, //
+                DynamicRanker.SETTING_BREAKER_DYNARANK_LIMIT, //
+                DynamicRanker.SETTING_BREAKER_DYNARANK_OVERHEAD, //
+                RerankPlanner.SETTING_DYNARANK_PLANNER_HITS_CACHE_SIZE, //
+                RerankPlanner.SETTING_DYNARANK_PLANNER_HITS_CACHE_EXPIRE, //
+                LoadShedder.SETTING_DYNARANK_LOAD_SHEDDING_ENABLED, //
+                LoadShedder.SETTING_DYNARANK_LOAD_SHEDDING_INTERVAL, //
+                LoadShedder.SETTING_DYNARANK_LOAD_SHEDDING_MAX_IN_FLIGHT, //
+                LoadShedder.SETTING_DYNARANK_LOAD_SHEDDING_MAX_LATENCY, //
+                LoadShedder.SETTING_DYNARANK_LOAD_SHEDDING_MAX_HEAP_USAGE, //
+                LoadShedder.SETTING_DYNARANK_LOAD_SHEDDING_RECOVER_RATIO, //
+                LoadShedder.SETTING_DYNARANK_LOAD_SHEDDING_RECOVER_COUNT, //
+                LoadShedder.SETTING_DYNARANK_LOAD_SHEDDING_WINDOW_RATIO, //
+                RerankWarmer.SETTING_DYNARANK_WARMUP_ENABLED, //
+                RerankWarmer.SETTING_DYNARANK_WARMUP_SYNTHETIC_SIZE, //
+                RerankWarmer.SETTING_DYNARANK_WARMUP_ITERATIONS, //
+                FeatureStoreService.SETTING_DYNARANK_FEATURE_STORE_PATH, //
+                FeatureStoreService.SETTING_DYNARANK_FEATURE_STORE_RELOAD_INTERVAL, //
+                ModelRanker.SETTING_DYNARANK_MODEL_CACHE_EXPIRE //
         );
     }
 }
@@ -0,0 +1,238 @@
+package org.codelibs.elasticsearch.dynarank.feature;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+import org.elasticsearch.common.hash.MurmurHash3;
+
+/**
+ * Read-only feature values of documents in a memory-mapped file.
+ *
+ * <pre>
+ * header: magic(int) version(int) numOfFeatures(int) capacity(int) dataOffset(long)
+ *         feature names (short length + UTF-8 bytes) * numOfFeatures
+ * data:   (key(long) + values(float) * numOfFeatures) * capacity
+ * </pre>
+ *
+ * Records are an open addressing table with linear probing. A key is the
+ * hash of _id and 0 means an empty slot.
+ */
+public class FeatureStore {
+
+    static final int MAGIC = 0x44524653;
+
+    static final int VERSION = 1;
+
+    static final int HEADER_SIZE = 24;
+
+    public static final FeatureStore EMPTY = new FeatureStore();
+
+    private static final ThreadLocal<HashScratch> HASH_SCRATCH = ThreadLocal.withInitial(HashScratch::new);
+
+    private final ByteBuffer buffer;
+
+    private final String[] featureNames;
+
+    private final int capacity;
+
+    private final int mask;
+
+    private final int recordSize;
+
+    private final int dataOffset;
+
+    private final long version;
+
+    private FeatureStore() {
+        buffer = null;
+        featureNames = new String[0];
+        capacity = 0;
+        mask = 0;
+        recordSize = 0;
+        dataOffset = 0;
+        version = 0;
+    }
+
+    FeatureStore(final ByteBuffer buffer, final long version) throws IOException {
+        this.buffer = buffer;
+        this.version = version;
+        if (buffer.capacity() < HEADER_SIZE || buffer.getInt(0) != MAGIC) {
+            throw new IOException("Invalid feature store.");
+        }
+        if (buffer.getInt(4) != VERSION) {
+            throw new IOException("Unsupported feature store version: " + buffer.getInt(4));
+        }
+        final int numOfFeatures = buffer.getInt(8);
+        capacity = buffer.getInt(12);
+        final long offset = buffer.getLong(16);
+        if (numOfFeatures < 0 || capacity <= 0 || Integer.bitCount(capacity) != 1) {
+            throw new IOException("Invalid feature store header: features=" + numOfFeatures + ", capacity=" + capacity);
+        }
+        recordSize = 8 + 4 * numOfFeatures;
+        if (offset < HEADER_SIZE || offset + (long) recordSize * capacity != buffer.capacity()) {
+            throw new IOException("Invalid feature store size: " + buffer.capacity());
+        }
+        dataOffset = (int) offset;
+        mask = capacity - 1;
+        featureNames = new String[numOfFeatures];
+        int pos = HEADER_SIZE;
+        for (int i = 0; i < numOfFeatures; i++) {
+            final int length = buffer.getShort(pos) & 0xffff;
+            final byte[] bytes = new byte[length];
+            for (int j = 0; j < length; j++) {
+                bytes[j] = buffer.get(pos + 2 + j);
+            }
+            featureNames[i] = new String(bytes, StandardCharsets.UTF_8);
+            pos += 2 + length;
+        }
+    }
+
+    public static FeatureStore open(final Path path, final long version) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            final long size = channel.size();
+            if (size > Integer.MAX_VALUE) {
+                throw new IOException("Feature store is too large: " + size);
+            }
+            final MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+            return new FeatureStore(buffer, version);
+        }
+    }
+
+    /**
+     * Returns the key of _id, the murmur3 hash of its UTF-8 bytes. The bytes
+     * are encoded into a scratch buffer of the thread because this is
+     * called for each hit and each feature.
+     */
+    public static long hash(final String id) {
+        final HashScratch scratch = HASH_SCRATCH.get();
+        final int length = scratch.encode(id);
+        final long key = MurmurHash3.hash128(scratch.bytes, 0, length, 0, scratch.hash).h1;
+        return key == 0 ? 1 : key;
+    }
+
+    /**
+     * @return the slot of the document, or -1 if it does not exist
+     */
+    public int find(final String id) {
+        if (capacity == 0 || id == null) {
+            return -1;
+        }
+        final long key = hash(id);
+        int slot = slot(key, mask);
+        for (int i = 0; i < capacity; i++) {
+            final long k = buffer.getLong(dataOffset + slot * recordSize);
+            if (k == key) {
+                return slot;
+            } else if (k == 0) {
+                return -1;
+            }
+            slot = (slot + 1) & mask;
+        }
+        return -1;
+    }
+
+    /**
+     * @param slot the slot returned by {@link #find(String)}
+     */
+    public float getFeature(final int slot, final int feature) {
+        if (slot < 0 || slot >= capacity) {
+            throw new IllegalArgumentException("Invalid slot: " + slot);
+        }
+        if (feature < 0 || feature >= featureNames.length) {
+            throw new IllegalArgumentException("Invalid feature: " + feature);
+        }
+        return buffer.getFloat(dataOffset + slot * recordSize + 8 + feature * 4);
+    }
+
+    public float getFeature(final String id, final int feature, final float missing) {
+        if (feature < 0 || feature >= featureNames.length) {
+            return missing;
+        }
+        final int slot = find(id);
+        return slot < 0 ? missing : getFeature(slot, feature);
+    }
+
+    public float getFeature(final String id, final String name, final float missing) {
+        return getFeature(id, getFeatureIndex(name), missing);
+    }
+
+    /**
+     * @return the index of the feature, or -1 if it does not exist
+     */
+    public int getFeatureIndex(final String name) {
+        for (int i = 0; i < featureNames.length; i++) {
+            if (featureNames[i].equals(name)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    public int getNumOfFeatures() {
+        return featureNames.length;
+    }
+
+    public String[] getFeatureNames() {
+        return featureNames.clone();
+    }
+
+    public int getCapacity() {
+        return capacity;
+    }
+
+    public long getVersion() {
+        return version;
+    }
+
+    static int slot(final long key, final int mask) {
+        return (int) (key ^ (key >>> 32)) & mask;
+    }
+
+    private static class HashScratch {
+
+        private final MurmurHash3.Hash128 hash = new MurmurHash3.Hash128();
+
+        private byte[] bytes = new byte[256];
+
+        /**
+         * Encodes the value as String#getBytes(UTF_8) does, including '?'
+         * for an unpaired surrogate.
+         *
+         * @return the number of bytes
+         */
+        int encode(final String value) {
+            final int length = value.length();
+            if (bytes.length < length * 3) {
+                bytes = new byte[length * 3];
+            }
+            int pos = 0;
+            for (int i = 0; i < length; i++) {
+                final char c = value.charAt(i);
+                if (c < 0x80) {
+                    bytes[pos++] = (byte) c;
+                } else if (c < 0x800) {
+                    bytes[pos++] = (byte) (0xc0 | c >> 6);
+                    bytes[pos++] = (byte) (0x80 | c & 0x3f);
+                } else if (!Character.isSurrogate(c)) {
+                    bytes[pos++] = (byte) (0xe0 | c >> 12);
+                    bytes[pos++] = (byte) (0x80 | c >> 6 & 0x3f);
+                    bytes[pos++] = (byte) (0x80 | c & 0x3f);
+                } else if (Character.isHighSurrogate(c) && i + 1 < length && Character.isLowSurrogate(value.charAt(i + 1))) {
+                    final int codePoint = Character.toCodePoint(c, value.charAt(++i));
+                    bytes[pos++] = (byte) (0xf0 | codePoint >> 18);
+                    bytes[pos++] = (byte) (0x80 | codePoint >> 12 & 0x3f);
+                    bytes[pos++] = (byte) (0x80 | codePoint >> 6 & 0x3f);
+                    bytes[pos++] = (byte) (0x80 | codePoint & 0x3f);
+                } else {
+                    bytes[pos++] = '?';
+                }
+            }
+            return pos;
+        }
+    }
+}
@@ -0,0 +1,116 @@
+package org.codelibs.elasticsearch.dynarank.feature;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.security.AccessController;
+import java.security.PrivilegedActionException;
+import java.security.PrivilegedExceptionAction;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.elasticsearch.common.settings.Setting;
+import org.elasticsearch.common.settings.Setting.Property;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.core.TimeValue;
+import org.elasticsearch.env.Environment;
+import org.elasticsearch.threadpool.ThreadPool;
+
+/**
+ * Keeps the current {@link FeatureStore} of a node and replaces it when the
+ * file is updated. A new file is opened before it is published, so searches
+ * keep using the previous store until the new one is ready.
+ */
+public class FeatureStoreService {
+
+    private static final Logger logger = LogManager.getLogger(FeatureStoreService.class);
+
+    public static final Setting<String> SETTING_DYNARANK_FEATURE_STORE_PATH =
+            Setting.simpleString("dynarank.feature_store.path", Property.NodeScope);
+
+    public static final Setting<TimeValue> SETTING_DYNARANK_FEATURE_STORE_RELOAD_INTERVAL =
+            Setting.timeSetting("dynarank.feature_store.reload_interval", TimeValue.timeValueMinutes(1), Property.NodeScope);
+
+    private final Path path;
+
+    private final TimeValue reloadInterval;
+
+    private final ThreadPool threadPool;
+
+    private volatile FeatureStore featureStore = FeatureStore.EMPTY;
+
+    private volatile boolean closed;
+
+    private long lastModified;
+
+    private long lastSize;
+
+    public FeatureStoreService(final Settings settings, final Environment environment, final ThreadPool threadPool) {
+        this.threadPool = threadPool;
+        this.reloadInterval = SETTING_DYNARANK_FEATURE_STORE_RELOAD_INTERVAL.get(settings);
+        final String value = SETTING_DYNARANK_FEATURE_STORE_PATH.get(settings);
+        if (value.length() == 0) {
+            path = null;
+        } else {
+            final Path configPath = environment.configFile().toAbsolutePath().normalize();
+            path = configPath.resolve(value).normalize();
+            if (!path.startsWith(configPath)) {
+                throw new IllegalArgumentException(
+                        SETTING_DYNARANK_FEATURE_STORE_PATH.getKey() + " is not in the config directory: " + value);
+            }
+        }
+    }
+
+    public void start() {
+        if (path == null) {
+            return;
+        }
+        reload();
+        threadPool.scheduleWithFixedDelay(() -> {
+            if (!closed) {
+                reload();
+            }
+        }, reloadInterval, ThreadPool.Names.GENERIC);
+    }
+
+    public void close() {
+        closed = true;
+        featureStore = FeatureStore.EMPTY;
+    }
+
+    public FeatureStore getFeatureStore() {
+        return featureStore;
+    }
+
+    synchronized void reload() {
+        try {
+            final FeatureStore newFeatureStore = AccessController.doPrivileged((PrivilegedExceptionAction<FeatureStore>) () -> {
+                if (!Files.exists(path)) {
+                    if (lastModified != 0) {
+                        logger.warn("Feature store {} is removed. The loaded features are kept.", path);
+                        lastModified = 0;
+                    }
+                    return null;
+                }
+                final BasicFileAttributes attributes = Files.readAttributes(path, BasicFileAttributes.class);
+                final long modified = attributes.lastModifiedTime().toMillis();
+                if (modified == lastModified && attributes.size() == lastSize) {
+                    return null;
+                }
+                final FeatureStore store = FeatureStore.open(path, featureStore.getVersion() + 1);
+                lastModified = modified;
+                lastSize = attributes.size();
+                return store;
+            });
+            if (newFeatureStore != null) {
+                featureStore = newFeatureStore;
+                logger.info("Loaded feature store {}: features={}, capacity={}, version={}", path, newFeatureStore.getNumOfFeatures(),
+                        newFeatureStore.getCapacity(), newFeatureStore.getVersion());
+            }
+        } catch (final PrivilegedActionException e) {
+            logger.warn("Failed to load feature store " + path, e.getException());
+        } catch (final Exception e) {
+            logger.warn("Failed to load feature store " + path, e);
+        }
+    }
+}
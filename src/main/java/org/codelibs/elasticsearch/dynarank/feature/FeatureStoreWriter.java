@@ -0,0 +1,73 @@
+package org.codelibs.elasticsearch.dynarank.feature;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Map;
+
+/**
+ * Writes a file read by {@link FeatureStore}. The file is written to a
+ * temporary file and moved atomically, so a node never maps a partial file.
+ */
+public class FeatureStoreWriter {
+
+    private final String[] featureNames;
+
+    public FeatureStoreWriter(final String... featureNames) {
+        this.featureNames = featureNames;
+    }
+
+    public void write(final Path path, final Map<String, float[]> features) throws IOException {
+        int capacity = 2;
+        while (capacity < features.size() * 2) {
+            capacity <<= 1;
+        }
+        final int mask = capacity - 1;
+        final long[] keys = new long[capacity];
+        final float[][] values = new float[capacity][];
+        for (final Map.Entry<String, float[]> entry : features.entrySet()) {
+            if (entry.getValue().length != featureNames.length) {
+                throw new IllegalArgumentException("The number of features is not " + featureNames.length + ": " + entry.getKey());
+            }
+            final long key = FeatureStore.hash(entry.getKey());
+            int slot = FeatureStore.slot(key, mask);
+            while (keys[slot] != 0 && keys[slot] != key) {
+                slot = (slot + 1) & mask;
+            }
+            keys[slot] = key;
+            values[slot] = entry.getValue();
+        }
+
+        final byte[][] names = new byte[featureNames.length][];
+        long dataOffset = FeatureStore.HEADER_SIZE;
+        for (int i = 0; i < featureNames.length; i++) {
+            names[i] = featureNames[i].getBytes(StandardCharsets.UTF_8);
+            dataOffset += 2 + names[i].length;
+        }
+
+        final Path tempPath = path.resolveSibling(path.getFileName() + ".tmp");
+        try (OutputStream os = Files.newOutputStream(tempPath); DataOutputStream out = new DataOutputStream(new BufferedOutputStream(os))) {
+            out.writeInt(FeatureStore.MAGIC);
+            out.writeInt(FeatureStore.VERSION);
+            out.writeInt(featureNames.length);
+            out.writeInt(capacity);
+            out.writeLong(dataOffset);
+            for (final byte[] name : names) {
+                out.writeShort(name.length);
+                out.write(name);
+            }
+            for (int i = 0; i < capacity; i++) {
+                out.writeLong(keys[i]);
+                for (int j = 0; j < featureNames.length; j++) {
+                    out.writeFloat(values[i] != null ? values[i][j] : 0f);
+                }
+            }
+        }
+        Files.move(tempPath, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+}
@@ -0,0 +1,201 @@
+package org.codelibs.elasticsearch.dynarank.fetch;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.apache.lucene.util.BytesRef;
+import org.elasticsearch.ElasticsearchException;
+import org.elasticsearch.common.bytes.BytesReference;
+import org.elasticsearch.common.document.DocumentField;
+import org.elasticsearch.common.io.stream.StreamInput;
+import org.elasticsearch.common.io.stream.StreamOutput;
+import org.elasticsearch.search.SearchHit;
+
+/**
+ * Compact binary form of field values attached to a hit by
+ * {@link RerankKeysFetchSubPhase}: a field name and a tagged primitive value
+ * for each field. The keys of a hit are decoded once, on the first lookup,
+ * and the decoded values replace the binary form in the hit until
+ * {@link #strip(SearchHit[])} empties them.
+ */
+public final class RerankKeys {
+
+    public static final String FIELD_NAME = "_dynarank_keys";
+
+    static final byte MISSING = 0;
+
+    static final byte LONG = 1;
+
+    static final byte DOUBLE = 2;
+
+    static final byte BYTES = 3;
+
+    static final byte STRING = 4;
+
+    static final byte FLOAT = 5;
+
+    static final byte DATE = 6;
+
+    static final byte GEO_POINT = 7;
+
+    private RerankKeys() {
+    }
+
+    static void writeLong(final StreamOutput out, final String name, final byte type, final long value) throws IOException {
+        out.writeString(name);
+        out.writeByte(type);
+        out.writeZLong(value);
+    }
+
+    static void writeDouble(final StreamOutput out, final String name, final double value) throws IOException {
+        out.writeString(name);
+        out.writeByte(DOUBLE);
+        out.writeDouble(value);
+    }
+
+    static void writeFloat(final StreamOutput out, final String name, final float value) throws IOException {
+        out.writeString(name);
+        out.writeByte(FLOAT);
+        out.writeFloat(value);
+    }
+
+    static void writeBytes(final StreamOutput out, final String name, final BytesRef value, final boolean string) throws IOException {
+        out.writeString(name);
+        out.writeByte(string ? STRING : BYTES);
+        out.writeBytesRef(value);
+    }
+
+    static void writeMissing(final StreamOutput out, final String name) throws IOException {
+        out.writeString(name);
+        out.writeByte(MISSING);
+    }
+
+    /**
+     * Returns the value of the field in the type that _source would give:
+     * an integral value is an Integer if it fits, otherwise a Long, and a
+     * float value is the Double of its shortest decimal form. Dates and geo
+     * points do not have the same type as _source, so they return null and
+     * the caller reads _source or fields as without rerank keys.
+     *
+     * @return Integer, Long, Double, String or byte[] value of the field, or
+     *         null if the hit does not have the value in its rerank keys
+     */
+    public static Object getValue(final SearchHit hit, final String fieldName) {
+        final Keys keys = getKeys(hit);
+        return keys != null ? keys.get(fieldName, false) : null;
+    }
+
+    /**
+     * Returns the value of the field as read from doc values: a Long for
+     * integral values, epoch millis of dates and encoded geo points, a
+     * Double for floating-point values, or a String or byte[].
+     */
+    public static Object getRawValue(final SearchHit hit, final String fieldName) {
+        final Keys keys = getKeys(hit);
+        return keys != null ? keys.get(fieldName, true) : null;
+    }
+
+    private static Keys getKeys(final SearchHit hit) {
+        final DocumentField field = hit.getDocumentFields().get(FIELD_NAME);
+        if (field == null) {
+            return null;
+        }
+        final Object value = field.getValue();
+        if (value instanceof Keys) {
+            return (Keys) value;
+        } else if (!(value instanceof BytesReference)) {
+            return null;
+        }
+        final Keys keys = decode((BytesReference) value);
+        hit.setDocumentField(FIELD_NAME, new DocumentField(FIELD_NAME, Collections.singletonList(keys)));
+        return keys;
+    }
+
+    static Keys decode(final BytesReference bytes) {
+        final List<String> names = new ArrayList<>();
+        final List<Object> values = new ArrayList<>();
+        final List<Object> rawValues = new ArrayList<>();
+        try (StreamInput in = bytes.streamInput()) {
+            while (in.available() > 0) {
+                names.add(in.readString());
+                final byte type = in.readByte();
+                switch (type) {
+                case MISSING:
+                    values.add(null);
+                    rawValues.add(null);
+                    break;
+                case LONG:
+                    final long longValue = in.readZLong();
+                    // as JSON numbers of _source are parsed
+                    values.add(longValue == (int) longValue ? (Object) Integer.valueOf((int) longValue) : (Object) Long.valueOf(longValue));
+                    rawValues.add(longValue);
+                    break;
+                case DATE:
+                case GEO_POINT:
+                    values.add(null);
+                    rawValues.add(in.readZLong());
+                    break;
+                case DOUBLE:
+                    final Double doubleValue = in.readDouble();
+                    values.add(doubleValue);
+                    rawValues.add(doubleValue);
+                    break;
+                case FLOAT:
+                    final float floatValue = in.readFloat();
+                    values.add(Double.valueOf(Float.toString(floatValue)));
+                    rawValues.add((double) floatValue);
+                    break;
+                case BYTES:
+                case STRING:
+                    final BytesRef bytesValue = in.readBytesRef();
+                    final Object value = type == STRING ? bytesValue.utf8ToString() : BytesRef.deepCopyOf(bytesValue).bytes;
+                    values.add(value);
+                    rawValues.add(value);
+                    break;
+                default:
+                    throw new ElasticsearchException("Unknown type of " + FIELD_NAME + ": " + type);
+                }
+            }
+        } catch (final IOException e) {
+            throw new ElasticsearchException("Failed to read " + FIELD_NAME + ".", e);
+        }
+        return new Keys(names.toArray(new String[names.size()]), values.toArray(), rawValues.toArray());
+    }
+
+    /**
+     * Removes rerank keys from hits returned to a client.
+     */
+    public static void strip(final SearchHit[] hits) {
+        for (final SearchHit hit : hits) {
+            // SearchHit cannot remove a field, but does not render a field without values
+            if (hit.getDocumentFields().containsKey(FIELD_NAME)) {
+                hit.setDocumentField(FIELD_NAME, new DocumentField(FIELD_NAME, Collections.emptyList()));
+            }
+        }
+    }
+
+    static final class Keys {
+        private final String[] names;
+
+        private final Object[] values;
+
+        private final Object[] rawValues;
+
+        Keys(final String[] names, final Object[] values, final Object[] rawValues) {
+            this.names = names;
+            this.values = values;
+            this.rawValues = rawValues;
+        }
+
+        Object get(final String fieldName, final boolean raw) {
+            for (int i = 0; i < names.length; i++) {
+                if (names[i].equals(fieldName)) {
+                    return raw ? rawValues[i] : values[i];
+                }
+            }
+            return null;
+        }
+    }
+}
@@ -0,0 +1,96 @@
+package org.codelibs.elasticsearch.dynarank.fetch;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Objects;
+
+import org.elasticsearch.common.ParsingException;
+import org.elasticsearch.common.io.stream.StreamInput;
+import org.elasticsearch.common.io.stream.StreamOutput;
+import org.elasticsearch.search.SearchExtBuilder;
+import org.elasticsearch.xcontent.XContentBuilder;
+import org.elasticsearch.xcontent.XContentParser;
+
+/**
+ * Asks shards to return values of fields as {@link RerankKeys}. DynamicRanker
+ * adds it to a search request that is inflated for reranking.
+ */
+public class RerankKeysExtBuilder extends SearchExtBuilder {
+
+    public static final String NAME = "dynarank_keys";
+
+    private static final String FIELDS = "fields";
+
+    private final List<String> fields;
+
+    public RerankKeysExtBuilder(final List<String> fields) {
+        this.fields = fields;
+    }
+
+    public RerankKeysExtBuilder(final StreamInput in) throws IOException {
+        fields = in.readStringList();
+    }
+
+    public static RerankKeysExtBuilder fromXContent(final XContentParser parser) throws IOException {
+        final List<String> fields = new ArrayList<>();
+        XContentParser.Token token = parser.currentToken();
+        if (token != XContentParser.Token.START_OBJECT) {
+            token = parser.nextToken();
+        }
+        if (token != XContentParser.Token.START_OBJECT) {
+            throw new ParsingException(parser.getTokenLocation(), "[" + NAME + "] must be an object");
+        }
+        String currentFieldName = null;
+        while ((token = parser.nextToken()) != XContentParser.Token.END_OBJECT) {
+            if (token == XContentParser.Token.FIELD_NAME) {
+                currentFieldName = parser.currentName();
+            } else if (token == XContentParser.Token.START_ARRAY && FIELDS.equals(currentFieldName)) {
+                while (parser.nextToken() != XContentParser.Token.END_ARRAY) {
+                    fields.add(parser.text());
+                }
+            } else {
+                throw new ParsingException(parser.getTokenLocation(), "Unknown key in [" + NAME + "]: " + currentFieldName);
+            }
+        }
+        return new RerankKeysExtBuilder(fields);
+    }
+
+    public List<String> getFields() {
+        return fields;
+    }
+
+    @Override
+    public String getWriteableName() {
+        return NAME;
+    }
+
+    @Override
+    public void writeTo(final StreamOutput out) throws IOException {
+        out.writeStringCollection(fields);
+    }
+
+    @Override
+    public XContentBuilder toXContent(final XContentBuilder builder, final Params params) throws IOException {
+        builder.startObject(NAME);
+        builder.field(FIELDS, fields);
+        builder.endObject();
+        return builder;
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(fields);
+    }
+
+    @Override
+    public boolean equals(final Object obj) {
+        if (this == obj) {
+            return true;
+        }
+        if (obj == null || getClass() != obj.getClass()) {
+            return false;
+        }
+        return Objects.equals(fields, ((RerankKeysExtBuilder) obj).fields);
+    }
+}
@@ -0,0 +1,152 @@
+package org.codelibs.elasticsearch.dynarank.fetch;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.apache.lucene.index.BinaryDocValues;
+import org.apache.lucene.index.DocValues;
+import org.apache.lucene.index.LeafReaderContext;
+import org.apache.lucene.index.SortedNumericDocValues;
+import org.apache.lucene.util.BytesRef;
+import org.elasticsearch.Version;
+import org.elasticsearch.common.bytes.BytesArray;
+import org.elasticsearch.common.bytes.BytesReference;
+import org.elasticsearch.common.document.DocumentField;
+import org.elasticsearch.common.io.stream.BytesStreamOutput;
+import org.elasticsearch.index.fielddata.IndexFieldData;
+import org.elasticsearch.index.fielddata.IndexNumericFieldData;
+import org.elasticsearch.index.fielddata.LeafNumericFieldData;
+import org.elasticsearch.index.fielddata.SortedBinaryDocValues;
+import org.elasticsearch.index.fielddata.SortedNumericDoubleValues;
+import org.elasticsearch.index.mapper.KeywordFieldMapper;
+import org.elasticsearch.index.mapper.MappedFieldType;
+import org.elasticsearch.index.query.SearchExecutionContext;
+import org.elasticsearch.search.SearchExtBuilder;
+import org.elasticsearch.search.fetch.FetchContext;
+import org.elasticsearch.search.fetch.FetchSubPhase;
+import org.elasticsearch.search.fetch.FetchSubPhaseProcessor;
+
+/**
+ * Reads the first doc value of each requested field and attaches them to a
+ * hit as {@link RerankKeys}. Fields without doc values are sent as missing,
+ * and the coordinator reads them from _source or fields. So are boolean,
+ * date_nanos and unsigned_long fields, whose doc values are not comparable
+ * with their _source values. A dense_vector field is sent as big-endian
+ * floats without its magnitude, and a geo_point field as a long of the
+ * encoded latitude and longitude.
+ */
+public class RerankKeysFetchSubPhase implements FetchSubPhase {
+
+    private static final String DENSE_VECTOR_TYPE = "dense_vector";
+
+    private static final String GEO_POINT_TYPE = "geo_point";
+
+    private static final String DATE_TYPE = "date";
+
+    private static final Set<String> FLOAT_TYPES = new HashSet<>(Arrays.asList("float", "half_float"));
+
+    private static final Set<String> SOURCE_TYPES = new HashSet<>(Arrays.asList("boolean", "date_nanos", "unsigned_long"));
+
+    @Override
+    public FetchSubPhaseProcessor getProcessor(final FetchContext context) throws IOException {
+        final SearchExtBuilder ext = context.getSearchExt(RerankKeysExtBuilder.NAME);
+        if (!(ext instanceof RerankKeysExtBuilder)) {
+            return null;
+        }
+        final List<String> fields = ((RerankKeysExtBuilder) ext).getFields();
+        final SearchExecutionContext searchExecutionContext = context.getSearchExecutionContext();
+        final int numOfFields = fields.size();
+        final String[] names = fields.toArray(new String[numOfFields]);
+        final IndexFieldData<?>[] fieldData = new IndexFieldData<?>[numOfFields];
+        final boolean[] strings = new boolean[numOfFields];
+        final byte[] types = new byte[numOfFields];
+        final boolean[] vectors = new boolean[numOfFields];
+        final boolean[] geoPoints = new boolean[numOfFields];
+        final int magnitudeBytes = searchExecutionContext.indexVersionCreated().onOrAfter(Version.V_7_5_0) ? 4 : 0;
+        for (int i = 0; i < numOfFields; i++) {
+            final MappedFieldType fieldType = searchExecutionContext.getFieldType(names[i]);
+            if (fieldType != null && DENSE_VECTOR_TYPE.equals(fieldType.typeName())) {
+                vectors[i] = true;
+            } else if (fieldType != null && fieldType.hasDocValues() && GEO_POINT_TYPE.equals(fieldType.typeName())) {
+                geoPoints[i] = true;
+            } else if (fieldType != null && fieldType.hasDocValues() && !SOURCE_TYPES.contains(fieldType.typeName())) {
+                fieldData[i] = searchExecutionContext.getForField(fieldType);
+                strings[i] = fieldType instanceof KeywordFieldMapper.KeywordFieldType;
+                if (DATE_TYPE.equals(fieldType.typeName())) {
+                    types[i] = RerankKeys.DATE;
+                } else if (FLOAT_TYPES.contains(fieldType.typeName())) {
+                    types[i] = RerankKeys.FLOAT;
+                }
+            }
+        }
+
+        return new FetchSubPhaseProcessor() {
+            private final SortedNumericDocValues[] longValues = new SortedNumericDocValues[numOfFields];
+
+            private final SortedNumericDoubleValues[] doubleValues = new SortedNumericDoubleValues[numOfFields];
+
+            private final SortedBinaryDocValues[] bytesValues = new SortedBinaryDocValues[numOfFields];
+
+            private final BinaryDocValues[] vectorValues = new BinaryDocValues[numOfFields];
+
+            @Override
+            public void setNextReader(final LeafReaderContext readerContext) throws IOException {
+                for (int i = 0; i < numOfFields; i++) {
+                    longValues[i] = null;
+                    doubleValues[i] = null;
+                    bytesValues[i] = null;
+                    vectorValues[i] = null;
+                    if (vectors[i]) {
+                        vectorValues[i] = readerContext.reader().getBinaryDocValues(names[i]);
+                    } else if (geoPoints[i]) {
+                        longValues[i] = DocValues.getSortedNumeric(readerContext.reader(), names[i]);
+                    } else if (fieldData[i] instanceof IndexNumericFieldData) {
+                        final IndexNumericFieldData numericFieldData = (IndexNumericFieldData) fieldData[i];
+                        final LeafNumericFieldData leafFieldData = numericFieldData.load(readerContext);
+                        if (numericFieldData.getNumericType().isFloatingPoint()) {
+                            doubleValues[i] = leafFieldData.getDoubleValues();
+                        } else {
+                            longValues[i] = leafFieldData.getLongValues();
+                        }
+                    } else if (fieldData[i] != null) {
+                        bytesValues[i] = fieldData[i].load(readerContext).getBytesValues();
+                    }
+                }
+            }
+
+            @Override
+            public void process(final HitContext hitContext) throws IOException {
+                final int docId = hitContext.docId();
+                try (BytesStreamOutput out = new BytesStreamOutput()) {
+                    for (int i = 0; i < numOfFields; i++) {
+                        if (longValues[i] != null && longValues[i].advanceExact(docId)) {
+                            RerankKeys.writeLong(out, names[i],
+                                    geoPoints[i] ? RerankKeys.GEO_POINT : types[i] == RerankKeys.DATE ? RerankKeys.DATE : RerankKeys.LONG,
+                                    longValues[i].nextValue());
+                        } else if (doubleValues[i] != null && doubleValues[i].advanceExact(docId)) {
+                            if (types[i] == RerankKeys.FLOAT) {
+                                RerankKeys.writeFloat(out, names[i], (float) doubleValues[i].nextValue());
+                            } else {
+                                RerankKeys.writeDouble(out, names[i], doubleValues[i].nextValue());
+                            }
+                        } else if (bytesValues[i] != null && bytesValues[i].advanceExact(docId)) {
+                            RerankKeys.writeBytes(out, names[i], bytesValues[i].nextValue(), strings[i]);
+                        } else if (vectorValues[i] != null && vectorValues[i].advanceExact(docId)) {
+                            final BytesRef value = vectorValues[i].binaryValue();
+                            RerankKeys.writeBytes(out, names[i],
+                                    new BytesRef(value.bytes, value.offset, Math.max(0, value.length - magnitudeBytes)), false);
+                        } else {
+                            RerankKeys.writeMissing(out, names[i]);
+                        }
+                    }
+                    hitContext.hit().setDocumentField(RerankKeys.FIELD_NAME, new DocumentField(RerankKeys.FIELD_NAME,
+                            Collections.singletonList(new BytesArray(BytesReference.toBytes(out.bytes())))));
+                }
+            }
+        };
+    }
+}
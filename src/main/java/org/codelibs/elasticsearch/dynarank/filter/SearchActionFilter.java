@@ -1,6 +1,7 @@
 package org.codelibs.elasticsearch.dynarank.filter;
 
 import org.codelibs.elasticsearch.dynarank.ranker.DynamicRanker;
+import org.codelibs.elasticsearch.dynarank.ranker.SearchCoalescer;
 import org.elasticsearch.action.ActionListener;
 import org.elasticsearch.action.ActionRequest;
 import org.elasticsearch.action.ActionResponse;
@@ -37,7 +38,12 @@ public class SearchActionFilter implements ActionFilter {
         }
 
         final SearchRequest searchRequest = (SearchRequest) request;
-        final ActionListener<Response> wrappedListener = DynamicRanker.getInstance().wrapActionListener(action, searchRequest, listener);
+        final ActionListener<Response> wrappedListener =
+                DynamicRanker.getInstance().wrapActionListener(task, action, searchRequest, listener);
+        if (SearchCoalescer.isJoined(wrappedListener)) {
+            // the response is sent by an identical in-flight search
+            return;
+        }
         chain.proceed(task, action, request, wrappedListener == null ? listener : wrappedListener);
     }
 }
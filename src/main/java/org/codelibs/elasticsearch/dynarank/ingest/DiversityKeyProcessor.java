@@ -0,0 +1,170 @@
+package org.codelibs.elasticsearch.dynarank.ingest;
+
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+import org.elasticsearch.common.hash.MurmurHash3;
+import org.elasticsearch.ingest.AbstractProcessor;
+import org.elasticsearch.ingest.ConfigurationUtils;
+import org.elasticsearch.ingest.IngestDocument;
+import org.elasticsearch.ingest.Processor;
+
+/**
+ * Hashes normalized values of fields into a long field that is used by the
+ * "key" bucket factory.
+ */
+public class DiversityKeyProcessor extends AbstractProcessor {
+
+    public static final String TYPE = "dynarank_diversity_key";
+
+    public static final String DEFAULT_TARGET_FIELD = "dynarank_diversity_key";
+
+    private static final char FIELD_SEPARATOR = '\u001e';
+
+    private static final char VALUE_SEPARATOR = '\u001f';
+
+    public enum Normalizer {
+        NONE, LOWERCASE, URL_HOST, NUMERIC_BUCKET;
+    }
+
+    private final List<String> fields;
+
+    private final String targetField;
+
+    private final Normalizer normalizer;
+
+    private final double bucketInterval;
+
+    private final boolean ignoreMissing;
+
+    DiversityKeyProcessor(final String tag, final String description, final List<String> fields, final String targetField,
+            final Normalizer normalizer, final double bucketInterval, final boolean ignoreMissing) {
+        super(tag, description);
+        this.fields = fields;
+        this.targetField = targetField;
+        this.normalizer = normalizer;
+        this.bucketInterval = bucketInterval;
+        this.ignoreMissing = ignoreMissing;
+    }
+
+    @Override
+    public IngestDocument execute(final IngestDocument document) {
+        final StringBuilder buf = new StringBuilder(64);
+        boolean found = false;
+        for (final String field : fields) {
+            final Object value = document.getFieldValue(field, Object.class, true);
+            if (value == null) {
+                if (!ignoreMissing) {
+                    throw new IllegalArgumentException("field [" + field + "] not present as part of path [" + field + "]");
+                }
+            } else if (value instanceof List) {
+                for (final Object v : (List<?>) value) {
+                    if (v != null) {
+                        buf.append(normalize(field, v)).append(VALUE_SEPARATOR);
+                    }
+                }
+                found = true;
+            } else {
+                buf.append(normalize(field, value));
+                found = true;
+            }
+            buf.append(FIELD_SEPARATOR);
+        }
+        if (found) {
+            document.setFieldValue(targetField, hash(buf.toString()));
+        }
+        return document;
+    }
+
+    String normalize(final String field, final Object value) {
+        switch (normalizer) {
+        case LOWERCASE:
+            return value.toString().toLowerCase(Locale.ROOT);
+        case URL_HOST:
+            return getHost(value.toString());
+        case NUMERIC_BUCKET:
+            final double number;
+            if (value instanceof Number) {
+                number = ((Number) value).doubleValue();
+            } else {
+                try {
+                    number = Double.parseDouble(value.toString());
+                } catch (final NumberFormatException e) {
+                    throw new IllegalArgumentException("field [" + field + "] of type [" + value.getClass().getName()
+                            + "] cannot be converted to a number: " + value, e);
+                }
+            }
+            return Long.toString((long) Math.floor(number / bucketInterval));
+        default:
+            return value.toString();
+        }
+    }
+
+    static String getHost(final String value) {
+        try {
+            final String host = new URI(value.trim()).getHost();
+            if (host != null) {
+                final String lowerHost = host.toLowerCase(Locale.ROOT);
+                return lowerHost.startsWith("www.") ? lowerHost.substring(4) : lowerHost;
+            }
+        } catch (final URISyntaxException e) {
+            // use the value as is
+        }
+        return value.toLowerCase(Locale.ROOT);
+    }
+
+    static long hash(final String value) {
+        final byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        return MurmurHash3.hash128(bytes, 0, bytes.length, 0, new MurmurHash3.Hash128()).h1;
+    }
+
+    @Override
+    public String getType() {
+        return TYPE;
+    }
+
+    public static final class Factory implements Processor.Factory {
+
+        @Override
+        public DiversityKeyProcessor create(final Map<String, Processor.Factory> registry, final String processorTag,
+                final String description, final Map<String, Object> config) throws Exception {
+            final List<String> fields = new ArrayList<>();
+            final List<String> fieldList = ConfigurationUtils.readOptionalList(TYPE, processorTag, config, "fields");
+            if (fieldList != null) {
+                fields.addAll(fieldList);
+            }
+            final String field = ConfigurationUtils.readOptionalStringProperty(TYPE, processorTag, config, "field");
+            if (field != null) {
+                fields.add(0, field);
+            }
+            if (fields.isEmpty()) {
+                throw ConfigurationUtils.newConfigurationException(TYPE, processorTag, "fields", "requires at least one field");
+            }
+            final String targetField =
+                    ConfigurationUtils.readStringProperty(TYPE, processorTag, config, "target_field", DEFAULT_TARGET_FIELD);
+            final String normalizerName = ConfigurationUtils.readStringProperty(TYPE, processorTag, config, "normalizer", "none");
+            final Normalizer normalizer;
+            try {
+                normalizer = Normalizer.valueOf(normalizerName.toUpperCase(Locale.ROOT));
+            } catch (final IllegalArgumentException e) {
+                throw ConfigurationUtils.newConfigurationException(TYPE, processorTag, "normalizer",
+                        "must be one of none, lowercase, url_host or numeric_bucket: " + normalizerName);
+            }
+            double bucketInterval = 1;
+            if (normalizer == Normalizer.NUMERIC_BUCKET) {
+                final Double interval = ConfigurationUtils.readDoubleProperty(TYPE, processorTag, config, "interval");
+                if (interval == null || !(interval > 0)) {
+                    throw ConfigurationUtils.newConfigurationException(TYPE, processorTag, "interval", "must be a positive number");
+                }
+                bucketInterval = interval;
+            }
+            final boolean ignoreMissing = ConfigurationUtils.readBooleanProperty(TYPE, processorTag, config, "ignore_missing", false);
+            return new DiversityKeyProcessor(processorTag, description, fields, targetField, normalizer, bucketInterval, ignoreMissing);
+        }
+    }
+}
@@ -0,0 +1,54 @@
+package org.codelibs.elasticsearch.dynarank.jfr;
+
+import java.security.AccessController;
+import java.security.PrivilegedAction;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.EventType;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Timespan;
+
+@Name("org.codelibs.dynarank.BucketPass")
+@Label("Bucket Pass")
+@Category(DynaRankEvents.CATEGORY)
+@Description("Bucketing and interleaving of hits by a diversity field")
+@StackTrace(false)
+public class BucketPassEvent extends Event {
+
+    private static final EventType TYPE =
+            AccessController.doPrivileged((PrivilegedAction<EventType>) () -> EventType.getEventType(BucketPassEvent.class));
+
+    @Label("Field")
+    private String field;
+
+    @Label("Window Size")
+    private int windowSize;
+
+    @Label("Bucket Count")
+    private int bucketCount;
+
+    @Label("Build Time")
+    @Timespan(Timespan.NANOSECONDS)
+    private long buildTime;
+
+    /**
+     * Commits an event for a bucket pass that has already finished.
+     */
+    public static void emit(final String field, final int windowSize, final int bucketCount, final long buildTime) {
+        if (!TYPE.isEnabled()) {
+            return;
+        }
+        final BucketPassEvent event = new BucketPassEvent();
+        if (event.shouldCommit()) {
+            event.field = field;
+            event.windowSize = windowSize;
+            event.bucketCount = bucketCount;
+            event.buildTime = buildTime;
+            event.commit();
+        }
+    }
+}
@@ -0,0 +1,41 @@
+package org.codelibs.elasticsearch.dynarank.jfr;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * Checks whether Java Flight Recorder events can be used. Event classes
+ * must be referenced only if {@link #AVAILABLE} is true, so that the plugin
+ * works on a JVM without JFR.
+ */
+public final class DynaRankEvents {
+
+    private static final Logger logger = LogManager.getLogger(DynaRankEvents.class);
+
+    static final String CATEGORY = "DynaRank";
+
+    private static final String[] EVENT_CLASSES = { "org.codelibs.elasticsearch.dynarank.jfr.RerankEvent",
+            "org.codelibs.elasticsearch.dynarank.jfr.ScriptExecuteEvent", "org.codelibs.elasticsearch.dynarank.jfr.BucketPassEvent",
+            "org.codelibs.elasticsearch.dynarank.jfr.ResponseRebuildEvent", "org.codelibs.elasticsearch.dynarank.jfr.RetryEvent" };
+
+    public static final boolean AVAILABLE = initialize();
+
+    private DynaRankEvents() {
+    }
+
+    private static boolean initialize() {
+        try {
+            Class.forName("jdk.jfr.Event");
+            final ClassLoader classLoader = DynaRankEvents.class.getClassLoader();
+            for (final String className : EVENT_CLASSES) {
+                Class.forName(className, true, classLoader);
+            }
+            return true;
+        } catch (final ClassNotFoundException | LinkageError | SecurityException e) {
+            if (logger.isDebugEnabled()) {
+                logger.debug("JFR events are not available.", e);
+            }
+            return false;
+        }
+    }
+}
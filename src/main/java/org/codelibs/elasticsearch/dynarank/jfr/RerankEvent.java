@@ -0,0 +1,60 @@
+package org.codelibs.elasticsearch.dynarank.jfr;
+
+import java.security.AccessController;
+import java.security.PrivilegedAction;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.EventType;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+@Name("org.codelibs.dynarank.Rerank")
+@Label("Rerank")
+@Category(DynaRankEvents.CATEGORY)
+@Description("Reranking of a search response on the coordinating node")
+@StackTrace(false)
+public class RerankEvent extends Event {
+
+    private static final EventType TYPE =
+            AccessController.doPrivileged((PrivilegedAction<EventType>) () -> EventType.getEventType(RerankEvent.class));
+
+    @Label("Index")
+    private String index;
+
+    @Label("Window Size")
+    private int windowSize;
+
+    @Label("Bytes Copied")
+    @DataAmount
+    private long bytesCopied;
+
+    @Label("Fallback")
+    private String fallback;
+
+    /**
+     * @return a started event, or null if it is not recorded
+     */
+    public static RerankEvent start() {
+        if (!TYPE.isEnabled()) {
+            return null;
+        }
+        final RerankEvent event = new RerankEvent();
+        event.begin();
+        return event;
+    }
+
+    public void finish(final String index, final int windowSize, final long bytesCopied, final String fallback) {
+        end();
+        if (shouldCommit()) {
+            this.index = index;
+            this.windowSize = windowSize;
+            this.bytesCopied = bytesCopied;
+            this.fallback = fallback;
+            commit();
+        }
+    }
+}
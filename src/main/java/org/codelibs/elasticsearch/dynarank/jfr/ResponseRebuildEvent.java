@@ -0,0 +1,50 @@
+package org.codelibs.elasticsearch.dynarank.jfr;
+
+import java.security.AccessController;
+import java.security.PrivilegedAction;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.EventType;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+@Name("org.codelibs.dynarank.ResponseRebuild")
+@Label("Response Rebuild")
+@Category(DynaRankEvents.CATEGORY)
+@Description("Rebuild of a search response from reranked hits")
+@StackTrace(false)
+public class ResponseRebuildEvent extends Event {
+
+    private static final EventType TYPE =
+            AccessController.doPrivileged((PrivilegedAction<EventType>) () -> EventType.getEventType(ResponseRebuildEvent.class));
+
+    @Label("Index")
+    private String index;
+
+    @Label("Hits")
+    private int hits;
+
+    /**
+     * @return a started event, or null if it is not recorded
+     */
+    public static ResponseRebuildEvent start() {
+        if (!TYPE.isEnabled()) {
+            return null;
+        }
+        final ResponseRebuildEvent event = new ResponseRebuildEvent();
+        event.begin();
+        return event;
+    }
+
+    public void finish(final String index, final int hits) {
+        end();
+        if (shouldCommit()) {
+            this.index = index;
+            this.hits = hits;
+            commit();
+        }
+    }
+}
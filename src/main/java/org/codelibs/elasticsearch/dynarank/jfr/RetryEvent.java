@@ -0,0 +1,52 @@
+package org.codelibs.elasticsearch.dynarank.jfr;
+
+import java.security.AccessController;
+import java.security.PrivilegedAction;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.EventType;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+@Name("org.codelibs.dynarank.Retry")
+@Label("Retry")
+@Category(DynaRankEvents.CATEGORY)
+@Description("Search executed again without reranking")
+@StackTrace(false)
+public class RetryEvent extends Event {
+
+    private static final EventType TYPE =
+            AccessController.doPrivileged((PrivilegedAction<EventType>) () -> EventType.getEventType(RetryEvent.class));
+
+    @Label("Index")
+    private String index;
+
+    @Label("Reason")
+    private String reason;
+
+    @Label("From")
+    private int from;
+
+    @Label("Size")
+    private int size;
+
+    /**
+     * Commits an event when a retried search is sent.
+     */
+    public static void emit(final String index, final String reason, final int from, final int size) {
+        if (!TYPE.isEnabled()) {
+            return;
+        }
+        final RetryEvent event = new RetryEvent();
+        if (event.shouldCommit()) {
+            event.index = index;
+            event.reason = reason;
+            event.from = from;
+            event.size = size;
+            event.commit();
+        }
+    }
+}
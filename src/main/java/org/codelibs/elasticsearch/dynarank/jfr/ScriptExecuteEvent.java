@@ -0,0 +1,54 @@
+package org.codelibs.elasticsearch.dynarank.jfr;
+
+import java.security.AccessController;
+import java.security.PrivilegedAction;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.EventType;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+@Name("org.codelibs.dynarank.ScriptExecute")
+@Label("Script Execute")
+@Category(DynaRankEvents.CATEGORY)
+@Description("Execution of a rerank script for a window of hits")
+@StackTrace(false)
+public class ScriptExecuteEvent extends Event {
+
+    private static final EventType TYPE =
+            AccessController.doPrivileged((PrivilegedAction<EventType>) () -> EventType.getEventType(ScriptExecuteEvent.class));
+
+    @Label("Lang")
+    private String lang;
+
+    @Label("Script")
+    private String script;
+
+    @Label("Window Size")
+    private int windowSize;
+
+    /**
+     * @return a started event, or null if it is not recorded
+     */
+    public static ScriptExecuteEvent start() {
+        if (!TYPE.isEnabled()) {
+            return null;
+        }
+        final ScriptExecuteEvent event = new ScriptExecuteEvent();
+        event.begin();
+        return event;
+    }
+
+    public void finish(final String lang, final String script, final int windowSize) {
+        end();
+        if (shouldCommit()) {
+            this.lang = lang;
+            this.script = script;
+            this.windowSize = windowSize;
+            commit();
+        }
+    }
+}
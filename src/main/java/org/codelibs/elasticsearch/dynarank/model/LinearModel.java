@@ -0,0 +1,27 @@
+package org.codelibs.elasticsearch.dynarank.model;
+
+public class LinearModel implements RankingModel {
+
+    private final float[] weights;
+
+    private final float bias;
+
+    public LinearModel(final float[] weights, final float bias) {
+        this.weights = weights;
+        this.bias = bias;
+    }
+
+    @Override
+    public float score(final float[] features, final int offset) {
+        float score = bias;
+        for (int i = 0; i < weights.length; i++) {
+            score += weights[i] * features[offset + i];
+        }
+        return score;
+    }
+
+    @Override
+    public int getNumOfFeatures() {
+        return weights.length;
+    }
+}
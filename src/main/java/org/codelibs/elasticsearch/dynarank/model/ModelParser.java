@@ -0,0 +1,120 @@
+package org.codelibs.elasticsearch.dynarank.model;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.List;
+import java.util.Map;
+
+import org.elasticsearch.ElasticsearchException;
+import org.elasticsearch.common.xcontent.XContentHelper;
+import org.elasticsearch.xcontent.XContentType;
+
+/**
+ * Reads a model from JSON.
+ *
+ * <pre>
+ * {"type": "linear", "weights": [0.5, 1.2], "bias": 0.1}
+ * {"type": "gbdt", "num_features": 2, "base_score": 0.5, "learning_rate": 0.1, "trees": [
+ *   {"nodes": [{"feature": 0, "threshold": 1.5, "left": 1, "right": 2}, {"leaf": 0.3}, {"leaf": -0.1}]}
+ * ]}
+ * </pre>
+ *
+ * Nodes are indexed in a tree, and children must come after their parent.
+ * num_features is optional, and split features must be less than it.
+ */
+public final class ModelParser {
+
+    private ModelParser() {
+    }
+
+    public static RankingModel parse(final InputStream in) throws IOException {
+        final Map<String, Object> map = XContentHelper.convertToMap(XContentType.JSON.xContent(), in, false);
+        final Object type = map.get("type");
+        if ("linear".equals(type)) {
+            final List<?> weights = getList(map, "weights");
+            final float[] w = new float[weights.size()];
+            for (int i = 0; i < w.length; i++) {
+                w[i] = toFloat(weights.get(i), "weights");
+            }
+            return new LinearModel(w, map.containsKey("bias") ? toFloat(map.get("bias"), "bias") : 0f);
+        } else if ("gbdt".equals(type)) {
+            return parseTrees(map);
+        }
+        throw new ElasticsearchException("Unknown model type: " + type);
+    }
+
+    private static TreeEnsembleModel parseTrees(final Map<String, Object> map) {
+        final float baseScore = map.containsKey("base_score") ? toFloat(map.get("base_score"), "base_score") : 0f;
+        final float learningRate = map.containsKey("learning_rate") ? toFloat(map.get("learning_rate"), "learning_rate") : 1f;
+        final int maxFeatures = map.containsKey("num_features") ? (int) toFloat(map.get("num_features"), "num_features") : -1;
+        final List<?> trees = getList(map, "trees");
+        int numOfNodes = 0;
+        for (int t = 0; t < trees.size(); t++) {
+            final int size = getList(toMap(trees.get(t), "trees"), "nodes").size();
+            if (size == 0) {
+                throw new ElasticsearchException("No nodes in tree " + t);
+            }
+            numOfNodes += size;
+        }
+
+        final int[] roots = new int[trees.size()];
+        final int[] features = new int[numOfNodes];
+        final float[] thresholds = new float[numOfNodes];
+        final int[] lefts = new int[numOfNodes];
+        final int[] rights = new int[numOfNodes];
+        final float[] values = new float[numOfNodes];
+        int offset = 0;
+        for (int t = 0; t < roots.length; t++) {
+            final List<?> nodes = getList(toMap(trees.get(t), "trees"), "nodes");
+            roots[t] = offset;
+            for (int i = 0; i < nodes.size(); i++) {
+                final Map<?, ?> node = toMap(nodes.get(i), "nodes");
+                final int pos = offset + i;
+                if (node.containsKey("leaf")) {
+                    features[pos] = -1;
+                    values[pos] = toFloat(node.get("leaf"), "leaf") * learningRate;
+                } else {
+                    features[pos] = (int) toFloat(node.get("feature"), "feature");
+                    if (features[pos] < 0 || maxFeatures >= 0 && features[pos] >= maxFeatures) {
+                        throw new ElasticsearchException("Invalid feature in tree " + t + ": " + node);
+                    }
+                    thresholds[pos] = toFloat(node.get("threshold"), "threshold");
+                    final int left = (int) toFloat(node.get("left"), "left");
+                    final int right = (int) toFloat(node.get("right"), "right");
+                    if (left <= i || right <= i || left >= nodes.size() || right >= nodes.size()) {
+                        throw new ElasticsearchException("Invalid child in tree " + t + ": " + node);
+                    }
+                    lefts[pos] = offset + left;
+                    rights[pos] = offset + right;
+                }
+            }
+            offset += nodes.size();
+        }
+        if (maxFeatures >= 0) {
+            return new TreeEnsembleModel(roots, features, thresholds, lefts, rights, values, baseScore, maxFeatures);
+        }
+        return new TreeEnsembleModel(roots, features, thresholds, lefts, rights, values, baseScore);
+    }
+
+    private static List<?> getList(final Map<?, ?> map, final String name) {
+        final Object value = map.get(name);
+        if (!(value instanceof List)) {
+            throw new ElasticsearchException(name + " is not an array.");
+        }
+        return (List<?>) value;
+    }
+
+    private static Map<?, ?> toMap(final Object value, final String name) {
+        if (!(value instanceof Map)) {
+            throw new ElasticsearchException(name + " contains a non-object value: " + value);
+        }
+        return (Map<?, ?>) value;
+    }
+
+    private static float toFloat(final Object value, final String name) {
+        if (!(value instanceof Number)) {
+            throw new ElasticsearchException(name + " is not a number: " + value);
+        }
+        return ((Number) value).floatValue();
+    }
+}
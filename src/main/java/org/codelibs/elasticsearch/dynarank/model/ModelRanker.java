@@ -0,0 +1,193 @@
+package org.codelibs.elasticsearch.dynarank.model;
+
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.AccessController;
+import java.security.PrivilegedActionException;
+import java.security.PrivilegedExceptionAction;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import org.codelibs.elasticsearch.dynarank.feature.FeatureStore;
+import org.codelibs.elasticsearch.dynarank.fetch.RerankKeys;
+import org.elasticsearch.ElasticsearchException;
+import org.elasticsearch.common.document.DocumentField;
+import org.elasticsearch.common.settings.Setting;
+import org.elasticsearch.common.settings.Setting.Property;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.core.TimeValue;
+import org.elasticsearch.env.Environment;
+import org.elasticsearch.search.SearchHit;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.util.concurrent.UncheckedExecutionException;
+
+/**
+ * Reorders hits by scores of a model in config/dynarank. Features are
+ * specified by "features" in the script params:
+ * <ul>
+ * <li>_score: score of the hit</li>
+ * <li>_rank: position in the original order</li>
+ * <li>field:NAME: numeric value of the field</li>
+ * <li>store:NAME: value in the feature store</li>
+ * </ul>
+ * A missing value is NaN.
+ */
+public class ModelRanker {
+
+    public static final String LANG = "dynarank_model";
+
+    public static final Setting<TimeValue> SETTING_DYNARANK_MODEL_CACHE_EXPIRE =
+            Setting.timeSetting("dynarank.model.cache.expire", TimeValue.timeValueMinutes(1), Property.NodeScope);
+
+    private static final int SCORE = 0;
+
+    private static final int RANK = 1;
+
+    private static final int FIELD = 2;
+
+    private static final int STORE = 3;
+
+    private final Path modelPath;
+
+    private final Cache<String, RankingModel> modelCache;
+
+    public ModelRanker(final Settings settings, final Environment environment) {
+        modelPath = environment.configFile().resolve("dynarank").toAbsolutePath().normalize();
+        modelCache = CacheBuilder.newBuilder().concurrencyLevel(16)
+                .expireAfterWrite(SETTING_DYNARANK_MODEL_CACHE_EXPIRE.get(settings).millis(), TimeUnit.MILLISECONDS).build();
+    }
+
+    public SearchHit[] execute(final SearchHit[] searchHits, final String name, final Map<String, Object> params,
+            final FeatureStore featureStore) {
+        final RankingModel model = getModel(name);
+        final String[] featureNames = (String[]) params.get("features");
+        if (featureNames == null) {
+            throw new ElasticsearchException("features is null.");
+        }
+        final int numOfFeatures = featureNames.length;
+        if (model.getNumOfFeatures() > numOfFeatures) {
+            throw new ElasticsearchException("Model " + name + " requires " + model.getNumOfFeatures() + " features: " + numOfFeatures);
+        }
+
+        final int length = searchHits.length;
+        final float[] x = new float[length * numOfFeatures];
+        // slots of hits in the feature store, shared by store features
+        int[] slots = null;
+        for (int j = 0; j < numOfFeatures; j++) {
+            final String featureName = featureNames[j];
+            final int type = getFeatureType(featureName);
+            switch (type) {
+            case SCORE:
+                for (int i = 0; i < length; i++) {
+                    x[i * numOfFeatures + j] = searchHits[i].getScore();
+                }
+                break;
+            case RANK:
+                for (int i = 0; i < length; i++) {
+                    x[i * numOfFeatures + j] = i;
+                }
+                break;
+            case FIELD:
+                final String field = featureName.substring(6);
+                for (int i = 0; i < length; i++) {
+                    x[i * numOfFeatures + j] = getFieldValue(searchHits[i], field);
+                }
+                break;
+            default:
+                final int index = featureStore.getFeatureIndex(featureName.substring(6));
+                if (index < 0) {
+                    for (int i = 0; i < length; i++) {
+                        x[i * numOfFeatures + j] = Float.NaN;
+                    }
+                    break;
+                }
+                if (slots == null) {
+                    slots = new int[length];
+                    for (int i = 0; i < length; i++) {
+                        slots[i] = featureStore.find(searchHits[i].getId());
+                    }
+                }
+                for (int i = 0; i < length; i++) {
+                    x[i * numOfFeatures + j] = slots[i] < 0 ? Float.NaN : featureStore.getFeature(slots[i], index);
+                }
+                break;
+            }
+        }
+
+        // descending score, then ascending position, and NaN is after negative infinity
+        final long[] keys = new long[length];
+        for (int i = 0; i < length; i++) {
+            final float score = model.score(x, i * numOfFeatures);
+            int bits = Integer.MIN_VALUE;
+            if (!Float.isNaN(score)) {
+                bits = Float.floatToIntBits(score);
+                bits ^= (bits >> 31) & 0x7fffffff;
+            }
+            keys[i] = ((long) ~bits << 32) | i;
+        }
+        Arrays.sort(keys);
+        final SearchHit[] hits = new SearchHit[length];
+        for (int i = 0; i < length; i++) {
+            hits[i] = searchHits[(int) keys[i]];
+        }
+        return hits;
+    }
+
+    private int getFeatureType(final String featureName) {
+        if ("_score".equals(featureName)) {
+            return SCORE;
+        } else if ("_rank".equals(featureName)) {
+            return RANK;
+        } else if (featureName.startsWith("field:")) {
+            return FIELD;
+        } else if (featureName.startsWith("store:")) {
+            return STORE;
+        }
+        throw new ElasticsearchException("Unknown feature: " + featureName);
+    }
+
+    private float getFieldValue(final SearchHit hit, final String fieldName) {
+        Object value = RerankKeys.getRawValue(hit, fieldName);
+        if (value == null) {
+            final DocumentField field = hit.getFields().get(fieldName);
+            if (field != null) {
+                value = field.getValue();
+            } else if (hit.hasSource()) {
+                value = hit.getSourceAsMap().get(fieldName);
+            }
+        }
+        return value instanceof Number ? ((Number) value).floatValue() : Float.NaN;
+    }
+
+    /**
+     * Loads a model into the cache before it is used by a search.
+     */
+    public void load(final String name) {
+        getModel(name);
+    }
+
+    RankingModel getModel(final String name) {
+        try {
+            return modelCache.get(name, () -> {
+                final Path path = modelPath.resolve(name).normalize();
+                if (!path.startsWith(modelPath)) {
+                    throw new ElasticsearchException("Model is not in " + modelPath + ": " + name);
+                }
+                return AccessController.doPrivileged((PrivilegedExceptionAction<RankingModel>) () -> {
+                    try (InputStream in = Files.newInputStream(path)) {
+                        return ModelParser.parse(in);
+                    }
+                });
+            });
+        } catch (final ExecutionException | UncheckedExecutionException e) {
+            // a runtime exception of the loader, such as an invalid model, is unchecked
+            final Throwable cause = e.getCause() instanceof PrivilegedActionException ? e.getCause().getCause() : e.getCause();
+            throw new ElasticsearchException("Failed to load model: " + name, cause);
+        }
+    }
+}
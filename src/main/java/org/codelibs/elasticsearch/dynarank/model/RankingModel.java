@@ -0,0 +1,15 @@
+package org.codelibs.elasticsearch.dynarank.model;
+
+/**
+ * Scores a document from its feature values.
+ */
+public interface RankingModel {
+
+    /**
+     * @param features feature values of documents, numOfFeatures values per document
+     * @param offset start of the document in features
+     */
+    float score(float[] features, int offset);
+
+    int getNumOfFeatures();
+}
@@ -0,0 +1,80 @@
+package org.codelibs.elasticsearch.dynarank.model;
+
+/**
+ * Gradient boosted trees in flattened arrays. A node with a negative
+ * feature is a leaf and its value is in values. A split node goes to left
+ * if the feature value is less than or equal to the threshold, and NaN goes
+ * to right.
+ */
+public class TreeEnsembleModel implements RankingModel {
+
+    private final int[] roots;
+
+    private final int[] features;
+
+    private final float[] thresholds;
+
+    private final int[] lefts;
+
+    private final int[] rights;
+
+    private final float[] values;
+
+    private final float baseScore;
+
+    private final int numOfFeatures;
+
+    public TreeEnsembleModel(final int[] roots, final int[] features, final float[] thresholds, final int[] lefts, final int[] rights,
+            final float[] values, final float baseScore) {
+        this(roots, features, thresholds, lefts, rights, values, baseScore, getMaxFeature(features) + 1);
+    }
+
+    /**
+     * @param numOfFeatures the number of features given to the model, which
+     *            is more than the split features
+     */
+    public TreeEnsembleModel(final int[] roots, final int[] features, final float[] thresholds, final int[] lefts, final int[] rights,
+            final float[] values, final float baseScore, final int numOfFeatures) {
+        this.roots = roots;
+        this.features = features;
+        this.thresholds = thresholds;
+        this.lefts = lefts;
+        this.rights = rights;
+        this.values = values;
+        this.baseScore = baseScore;
+        this.numOfFeatures = numOfFeatures;
+    }
+
+    private static int getMaxFeature(final int[] features) {
+        int max = -1;
+        for (final int feature : features) {
+            if (feature > max) {
+                max = feature;
+            }
+        }
+        return max;
+    }
+
+    @Override
+    public float score(final float[] x, final int offset) {
+        float score = baseScore;
+        for (final int root : roots) {
+            int node = root;
+            int feature;
+            while ((feature = features[node]) >= 0) {
+                node = x[offset + feature] <= thresholds[node] ? lefts[node] : rights[node];
+            }
+            score += values[node];
+        }
+        return score;
+    }
+
+    @Override
+    public int getNumOfFeatures() {
+        return numOfFeatures;
+    }
+
+    public int getNumOfTrees() {
+        return roots.length;
+    }
+}
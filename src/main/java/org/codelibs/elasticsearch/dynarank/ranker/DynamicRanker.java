@@ -2,21 +2,40 @@ package org.codelibs.elasticsearch.dynarank.ranker;
 
 import static org.elasticsearch.action.search.ShardSearchFailure.readShardSearchFailure;
 
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
 import java.util.function.Function;
+import java.util.stream.Collectors;
 import java.util.Objects;
 
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
+import org.codelibs.elasticsearch.dynarank.feature.FeatureStore;
+import org.codelibs.elasticsearch.dynarank.feature.FeatureStoreService;
+import org.codelibs.elasticsearch.dynarank.jfr.DynaRankEvents;
+import org.codelibs.elasticsearch.dynarank.jfr.RerankEvent;
+import org.codelibs.elasticsearch.dynarank.jfr.ResponseRebuildEvent;
+import org.codelibs.elasticsearch.dynarank.jfr.RetryEvent;
+import org.codelibs.elasticsearch.dynarank.jfr.ScriptExecuteEvent;
+import org.codelibs.elasticsearch.dynarank.fetch.RerankKeys;
+import org.codelibs.elasticsearch.dynarank.fetch.RerankKeysExtBuilder;
+import org.codelibs.elasticsearch.dynarank.model.ModelRanker;
 import org.codelibs.elasticsearch.dynarank.script.DiversitySortScriptEngine;
 import org.codelibs.elasticsearch.dynarank.script.DynaRankScript;
 import org.codelibs.elasticsearch.dynarank.script.DynaRankScript.Factory;
 import org.elasticsearch.ElasticsearchException;
+import org.elasticsearch.ExceptionsHelper;
 import org.elasticsearch.Version;
 import org.elasticsearch.action.ActionListener;
 import org.elasticsearch.action.ActionResponse;
@@ -26,39 +45,74 @@ import org.elasticsearch.action.search.SearchResponse.Clusters;
 import org.elasticsearch.action.search.SearchResponseSections;
 import org.elasticsearch.action.search.ShardSearchFailure;
 import org.elasticsearch.action.support.ActionFilters;
+import org.elasticsearch.action.support.ContextPreservingActionListener;
 import org.elasticsearch.client.Client;
+import org.elasticsearch.cluster.ClusterChangedEvent;
+import org.elasticsearch.cluster.ClusterStateListener;
 import org.elasticsearch.cluster.metadata.IndexAbstraction;
 import org.elasticsearch.cluster.metadata.IndexMetadata;
 import org.elasticsearch.cluster.metadata.MappingMetadata;
 import org.elasticsearch.cluster.metadata.Metadata;
 import org.elasticsearch.cluster.service.ClusterService;
+import org.elasticsearch.common.breaker.CircuitBreaker;
+import org.elasticsearch.common.breaker.CircuitBreakingException;
+import org.elasticsearch.common.bytes.BytesReference;
 import org.elasticsearch.common.component.AbstractLifecycleComponent;
 import org.elasticsearch.common.inject.Inject;
 import org.elasticsearch.common.io.stream.BytesStreamOutput;
 import org.elasticsearch.common.io.stream.NamedWriteableAwareStreamInput;
 import org.elasticsearch.common.io.stream.NamedWriteableRegistry;
 import org.elasticsearch.common.io.stream.StreamInput;
+import org.elasticsearch.common.settings.ClusterSettings;
 import org.elasticsearch.common.settings.Setting;
 import org.elasticsearch.common.settings.Setting.Property;
 import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.unit.ByteSizeValue;
 import org.elasticsearch.common.util.concurrent.ThreadContext;
+import org.elasticsearch.common.xcontent.LoggingDeprecationHandler;
+import org.elasticsearch.common.xcontent.XContentHelper;
 import org.elasticsearch.core.TimeValue;
+import org.elasticsearch.env.Environment;
+import org.elasticsearch.index.query.InnerHitBuilder;
+import org.elasticsearch.indices.breaker.CircuitBreakerService;
 import org.elasticsearch.script.Script;
 import org.elasticsearch.script.ScriptService;
 import org.elasticsearch.script.ScriptType;
+import org.elasticsearch.search.DocValueFormat;
+import org.elasticsearch.search.SearchExtBuilder;
 import org.elasticsearch.search.SearchHit;
 import org.elasticsearch.search.SearchHits;
 import org.elasticsearch.search.aggregations.InternalAggregations;
+import org.elasticsearch.search.builder.PointInTimeBuilder;
+import org.elasticsearch.search.collapse.CollapseBuilder;
 import org.elasticsearch.search.builder.SearchSourceBuilder;
 import org.elasticsearch.search.internal.InternalSearchResponse;
 import org.elasticsearch.search.profile.SearchProfileResults;
+import org.elasticsearch.search.profile.SearchProfileShardResult;
+import org.elasticsearch.search.sort.FieldSortBuilder;
+import org.elasticsearch.search.sort.SortBuilder;
+import org.elasticsearch.search.sort.SortBuilders;
 import org.elasticsearch.search.suggest.Suggest;
+import org.elasticsearch.tasks.CancellableTask;
+import org.elasticsearch.tasks.Task;
+import org.elasticsearch.tasks.TaskAwareRequest;
+import org.elasticsearch.tasks.TaskCancelledException;
+import org.elasticsearch.tasks.TaskId;
+import org.elasticsearch.tasks.TaskManager;
 import org.elasticsearch.threadpool.ThreadPool;
-
+import org.elasticsearch.transport.TransportService;
+import org.elasticsearch.xcontent.NamedXContentRegistry;
+import org.elasticsearch.xcontent.ToXContent;
+import org.elasticsearch.xcontent.XContentBuilder;
+import org.elasticsearch.xcontent.XContentFactory;
+import org.elasticsearch.xcontent.XContentParser;
+import org.elasticsearch.xcontent.XContentType;
+
+import com.carrotsearch.hppc.cursors.ObjectCursor;
 import com.google.common.cache.Cache;
 import com.google.common.cache.CacheBuilder;
 
-public class DynamicRanker extends AbstractLifecycleComponent {
+public class DynamicRanker extends AbstractLifecycleComponent implements ClusterStateListener {
 
     private static final Logger logger = LogManager.getLogger(DynamicRanker.class);
 
@@ -86,6 +140,54 @@ public class DynamicRanker extends AbstractLifecycleComponent {
     public static final Setting<Integer> SETTING_INDEX_DYNARANK_KEEP_TOPN =
             Setting.intSetting("index.dynarank.keep_topn", 0, Property.IndexScope, Property.Dynamic);
 
+    public static final Setting<Boolean> SETTING_INDEX_DYNARANK_ADAPTIVE_ENABLED =
+            Setting.boolSetting("index.dynarank.adaptive.enabled", false, Property.IndexScope, Property.Dynamic);
+
+    public static final Setting<Integer> SETTING_INDEX_DYNARANK_ADAPTIVE_MIN_REORDER_SIZE =
+            Setting.intSetting("index.dynarank.adaptive.min_reorder_size", 10, 1, Property.IndexScope, Property.Dynamic);
+
+    public static final Setting<Integer> SETTING_INDEX_DYNARANK_ADAPTIVE_MAX_REORDER_SIZE =
+            Setting.intSetting("index.dynarank.adaptive.max_reorder_size", -1, -1, Property.IndexScope, Property.Dynamic);
+
+    public static final Setting<TimeValue> SETTING_INDEX_DYNARANK_ADAPTIVE_OVERHEAD_BUDGET =
+            Setting.timeSetting("index.dynarank.adaptive.overhead_budget", TimeValue.timeValueMillis(100), Property.IndexScope,
+                    Property.Dynamic);
+
+    public static final Setting<Boolean> SETTING_INDEX_DYNARANK_COALESCE_ENABLED =
+            Setting.boolSetting("index.dynarank.coalesce.enabled", false, Property.IndexScope, Property.Dynamic);
+
+    public static final Setting<Boolean> SETTING_INDEX_DYNARANK_RERANK_KEYS_ENABLED =
+            Setting.boolSetting("index.dynarank.rerank_keys.enabled", false, Property.IndexScope, Property.Dynamic);
+
+    public static final Setting<List<String>> SETTING_INDEX_DYNARANK_RERANK_KEYS_FIELDS = Setting.listSetting(
+            "index.dynarank.rerank_keys.fields", Collections.emptyList(), Function.identity(), Property.IndexScope, Property.Dynamic);
+
+    public static final Setting<Boolean> SETTING_INDEX_DYNARANK_COLLAPSE_ENABLED =
+            Setting.boolSetting("index.dynarank.collapse.enabled", false, Property.IndexScope, Property.Dynamic);
+
+    public static final Setting<Integer> SETTING_INDEX_DYNARANK_COLLAPSE_INNER_HITS_SIZE =
+            Setting.intSetting("index.dynarank.collapse.inner_hits_size", 3, 1, Property.IndexScope, Property.Dynamic);
+
+    public static final Setting<TimeValue> SETTING_INDEX_DYNARANK_SLOWLOG_THRESHOLD_WARN =
+            Setting.timeSetting("index.dynarank.slowlog.threshold.warn", TimeValue.MINUS_ONE, TimeValue.MINUS_ONE, Property.IndexScope,
+                    Property.Dynamic);
+
+    public static final Setting<TimeValue> SETTING_INDEX_DYNARANK_SLOWLOG_THRESHOLD_INFO =
+            Setting.timeSetting("index.dynarank.slowlog.threshold.info", TimeValue.MINUS_ONE, TimeValue.MINUS_ONE, Property.IndexScope,
+                    Property.Dynamic);
+
+    public static final Setting<TimeValue> SETTING_INDEX_DYNARANK_SLOWLOG_THRESHOLD_DEBUG =
+            Setting.timeSetting("index.dynarank.slowlog.threshold.debug", TimeValue.MINUS_ONE, TimeValue.MINUS_ONE, Property.IndexScope,
+                    Property.Dynamic);
+
+    public static final String BREAKER_NAME = "dynarank";
+
+    public static final Setting<ByteSizeValue> SETTING_BREAKER_DYNARANK_LIMIT =
+            Setting.memorySizeSetting("breaker." + BREAKER_NAME + ".limit", "10%", Property.Dynamic, Property.NodeScope);
+
+    public static final Setting<Double> SETTING_BREAKER_DYNARANK_OVERHEAD =
+            Setting.doubleSetting("breaker." + BREAKER_NAME + ".overhead", 1.0, 0.0, Property.Dynamic, Property.NodeScope);
+
     public static final Setting<TimeValue> SETTING_DYNARANK_CACHE_EXPIRE =
             Setting.timeSetting("dynarank.cache.expire", TimeValue.MINUS_ONE, Property.NodeScope);
 
@@ -96,22 +198,56 @@ public class DynamicRanker extends AbstractLifecycleComponent {
 
     public static final String DYNARANK_MIN_TOTAL_HITS = "Dynarank-Min-Total-Hits";
 
+    private static final String DYNARANK_SKIP = "_dynarank_skip";
+
+    private static final long HIT_OVERHEAD_BYTES = 256;
+
+    static final String COLLAPSE_INNER_HITS = "_dynarank";
+
     private final ClusterService clusterService;
 
     private final ScriptService scriptService;
 
     private final Cache<String, ScriptInfo> scriptInfoCache;
 
+    private final Map<String, ReorderSizeController> reorderSizeControllers = new ConcurrentHashMap<>();
+
     private final ThreadPool threadPool;
 
     private final NamedWriteableRegistry namedWriteableRegistry;
 
+    private final NamedXContentRegistry xContentRegistry;
+
     private final TimeValue cleanInterval;
 
     private Reaper reaper;
 
     private final Client client;
 
+    private final CircuitBreakerService circuitBreakerService;
+
+    private final LongAdder breakerSkippedCount = new LongAdder();
+
+    private final LongAdder collapseFallbackCount = new LongAdder();
+
+    private final LongAdder pitRetryFallbackCount = new LongAdder();
+
+    private final RerankPlanner planner;
+
+    private final SearchCoalescer coalescer = new SearchCoalescer();
+
+    private final FeatureStoreService featureStoreService;
+
+    private final ModelRanker modelRanker;
+
+    private final TaskManager taskManager;
+
+    private final LoadShedder loadShedder;
+
+    private final ScriptInfoResolver scriptInfoResolver = new ScriptInfoResolver();
+
+    private final RerankWarmer warmer;
+
     public static DynamicRanker getInstance() {
         return instance;
     }
@@ -119,12 +255,24 @@ public class DynamicRanker extends AbstractLifecycleComponent {
     @Inject
     public DynamicRanker(final Settings settings, final Client client, final ClusterService clusterService,
             final ScriptService scriptService, final ThreadPool threadPool, final ActionFilters filters,
-            final NamedWriteableRegistry namedWriteableRegistry) {
+            final NamedWriteableRegistry namedWriteableRegistry, final NamedXContentRegistry xContentRegistry,
+            final CircuitBreakerService circuitBreakerService, final Environment environment, final TransportService transportService) {
+        this(settings, client, clusterService, scriptService, threadPool, filters, namedWriteableRegistry, xContentRegistry,
+                circuitBreakerService, environment, transportService.getTaskManager());
+    }
+
+    DynamicRanker(final Settings settings, final Client client, final ClusterService clusterService, final ScriptService scriptService,
+            final ThreadPool threadPool, final ActionFilters filters, final NamedWriteableRegistry namedWriteableRegistry,
+            final NamedXContentRegistry xContentRegistry, final CircuitBreakerService circuitBreakerService,
+            final Environment environment, final TaskManager taskManager) {
+        this.xContentRegistry = xContentRegistry;
         this.client = client;
+        this.circuitBreakerService = circuitBreakerService;
         this.clusterService = clusterService;
         this.scriptService = scriptService;
         this.threadPool = threadPool;
         this.namedWriteableRegistry = namedWriteableRegistry;
+        this.taskManager = taskManager;
 
         logger.info("Initializing DynamicRanker");
 
@@ -136,6 +284,11 @@ public class DynamicRanker extends AbstractLifecycleComponent {
             builder.expireAfterAccess(expire.millis(), TimeUnit.MILLISECONDS);
         }
         scriptInfoCache = builder.build();
+        planner = new RerankPlanner(settings);
+        loadShedder = new LoadShedder(settings);
+        warmer = new RerankWarmer(settings, this, threadPool);
+        featureStoreService = new FeatureStoreService(settings, environment, threadPool);
+        modelRanker = new ModelRanker(settings, environment);
     }
 
     @Override
@@ -143,6 +296,19 @@ public class DynamicRanker extends AbstractLifecycleComponent {
         instance = this;
         reaper = new Reaper();
         threadPool.schedule(reaper, cleanInterval, ThreadPool.Names.SAME);
+        clusterService.addListener(this);
+        registerBreakerSettingsUpdater(clusterService.getClusterSettings());
+        featureStoreService.start();
+    }
+
+    void registerBreakerSettingsUpdater(final ClusterSettings clusterSettings) {
+        clusterSettings.addSettingsUpdateConsumer(SETTING_BREAKER_DYNARANK_LIMIT, SETTING_BREAKER_DYNARANK_OVERHEAD, (limit, overhead) -> {
+            final CircuitBreaker breaker = circuitBreakerService.getBreaker(BREAKER_NAME);
+            if (breaker != null) {
+                breaker.setLimitAndOverhead(limit.getBytes(), overhead);
+                logger.info("Updated {} breaker: limit={}, overhead={}", BREAKER_NAME, limit, overhead);
+            }
+        });
     }
 
     @Override
@@ -152,11 +318,15 @@ public class DynamicRanker extends AbstractLifecycleComponent {
     @Override
     protected void doClose() throws ElasticsearchException {
         reaper.close();
+        clusterService.removeListener(this);
+        featureStoreService.close();
         scriptInfoCache.invalidateAll();
+        scriptInfoResolver.clear();
+        reorderSizeControllers.clear();
     }
 
-    public <Response extends ActionResponse> ActionListener<Response> wrapActionListener(final String action, final SearchRequest request,
-            final ActionListener<Response> listener) {
+    public <Response extends ActionResponse> ActionListener<Response> wrapActionListener(final Task task, final String action,
+            final SearchRequest request, final ActionListener<Response> listener) {
         switch (request.searchType()) {
         case DFS_QUERY_THEN_FETCH:
         case QUERY_THEN_FETCH:
@@ -174,12 +344,19 @@ public class DynamicRanker extends AbstractLifecycleComponent {
         if (isRerank != null && !Boolean.valueOf(isRerank)) {
             return null;
         }
+        if (threadContext.getTransient(DYNARANK_SKIP) != null) {
+            return null;
+        }
 
         final SearchSourceBuilder source = request.source();
         if (source == null) {
             return null;
         }
 
+        if (source.pointInTimeBuilder() != null) {
+            return wrapPointInTimeListener(task, request, source, listener);
+        }
+
         final String[] indices = request.indices();
         if (indices == null || indices.length != 1) {
             return null;
@@ -199,44 +376,113 @@ public class DynamicRanker extends AbstractLifecycleComponent {
             return null;
         }
 
-        if (from >= scriptInfo.getReorderSize()) {
+        final ReorderSizeController indexController = getReorderSizeController(index, scriptInfo);
+        final LoadShedder.Mode mode = loadShedder.getMode();
+        final int reorderSize = loadShedder.getReorderSize(mode,
+                indexController != null ? indexController.getReorderSize(scriptInfo) : scriptInfo.getReorderSize(), from, size);
+        if (reorderSize < 0) {
+            if (logger.isDebugEnabled()) {
+                logger.debug("Skip reranking by load shedding: {}", index);
+            }
             return null;
         }
+        // a degraded window is not a sample for the adaptive reorder size
+        final ReorderSizeController controller = mode == LoadShedder.Mode.NORMAL ? indexController : null;
+        final Long minTotalHits = parseMinTotalHits(threadContext.getHeader(DYNARANK_MIN_TOTAL_HITS));
+        final RerankPlanner.Key plannerKey = planner.createKey(index, request, threadContext);
+        final boolean collapsible = scriptInfo.getCollapseField() != null && source.collapse() == null && source.searchAfter() == null
+                && (source.rescores() == null || source.rescores().isEmpty());
+        switch (planner.plan(plannerKey, from, size, reorderSize, scriptInfo, minTotalHits, collapsible)) {
+        case RERANK:
+            break;
+        case COLLAPSE:
+            return wrapCollapseListener(task, request, source, listener, from, size, reorderSize, startTime, scriptInfo, controller,
+                    plannerKey, minTotalHits);
+        case SKIP_HITS_ESTIMATE:
+            if (logger.isDebugEnabled()) {
+                logger.debug("Skip reranking by the estimated total hits: {}", index);
+            }
+            return new ActionListener<Response>() {
+                @Override
+                public void onResponse(final Response response) {
+                    planner.onTotalHits(plannerKey, ((SearchResponse) response).getHits().getTotalHits());
+                    listener.onResponse(response);
+                }
+
+                @Override
+                public void onFailure(final Exception e) {
+                    listener.onFailure(e);
+                }
+            };
+        default:
+            return null;
+        }
+
+        final RerankContext rerankContext =
+                source.profile() || scriptInfo.isSlowLogEnabled() ? new RerankContext(index, scriptInfo, from, size, startTime) : null;
+        final long rewriteStartTime = System.nanoTime();
+        final int maxSize = inflateSource(source, from, size, reorderSize, scriptInfo);
+        if (rerankContext != null) {
+            rerankContext.add(RerankContext.Stage.REWRITE, System.nanoTime() - rewriteStartTime);
+        }
 
-        int maxSize = scriptInfo.getReorderSize();
-        if (from + size > scriptInfo.getReorderSize()) {
+        if (scriptInfo.isCoalesce()) {
+            final SearchCoalescer.Key key = coalescer.createKey(index, request, threadContext, scriptInfo, reorderSize);
+            @SuppressWarnings("unchecked")
+            final ActionListener<SearchResponse> searchListener = (ActionListener<SearchResponse>) listener;
+            final SearchCoalescer.Waiter waiter = new SearchCoalescer.Waiter(request, task, from, size, startTime,
+                    ContextPreservingActionListener.wrapPreservingContext(searchListener, threadContext),
+                    threadContext.newStoredContext(false), rerankContext);
+            final SearchCoalescer.InFlight inFlight = coalescer.startOrJoin(key, waiter);
+            if (inFlight == null) {
+                if (logger.isDebugEnabled()) {
+                    logger.debug("Joined an in-flight search: {}", index);
+                }
+                return SearchCoalescer.joinedListener();
+            }
+            return createCoalescedSearchListener(task, request, inFlight, maxSize, reorderSize, startTime, scriptInfo, controller,
+                    plannerKey, minTotalHits, rerankContext);
+        }
+
+        final ActionListener<Response> searchResponseListener =
+                createSearchResponseListener(task, request, listener, from, size, reorderSize, startTime, scriptInfo, controller,
+                        plannerKey, minTotalHits, rerankContext);
+        return createRetryableListener(request, listener, from, size, searchResponseListener, rerankContext);
+    }
+
+    private int inflateSource(final SearchSourceBuilder source, final int from, final int size, final int reorderSize,
+            final ScriptInfo scriptInfo) {
+        int maxSize = reorderSize;
+        if (from + size > reorderSize) {
             maxSize = from + size;
         }
         source.size(maxSize);
         source.from(0);
 
+        if (scriptInfo.getRerankKeyFields() != null) {
+            final List<SearchExtBuilder> exts = new ArrayList<>(source.ext());
+            exts.add(new RerankKeysExtBuilder(scriptInfo.getRerankKeyFields()));
+            source.ext(exts);
+        }
+
         if (logger.isDebugEnabled()) {
             logger.debug("Rewrite query: from:{}->{} size:{}->{}", from, 0, size, maxSize);
         }
+        return maxSize;
+    }
 
-        final ActionListener<Response> searchResponseListener =
-                createSearchResponseListener(request, listener, from, size,  startTime, scriptInfo);
+    private <Response extends ActionResponse> ActionListener<Response> createRetryableListener(final SearchRequest request,
+            final ActionListener<Response> listener, final int from, final int size, final ActionListener<Response> searchResponseListener,
+            final RerankContext rerankContext) {
         return new ActionListener<Response>() {
             @Override
             public void onResponse(final Response response) {
                 try {
                     searchResponseListener.onResponse(response);
                 } catch (final RetrySearchException e) {
-                    threadPool.getThreadContext().putHeader(DYNARANK_RERANK_ENABLE, Boolean.FALSE.toString());
-                    source.size(size);
-                    source.from(from);
-                    source.toString();
-                    final SearchSourceBuilder newSource = e.rewrite(source);
-                    if (newSource == null) {
-                        throw new ElasticsearchException("Failed to rewrite source: " + source);
-                    }
-                    if (logger.isDebugEnabled()) {
-                        logger.debug("Original Query: \n{}\nRewrited Query: \n{}", source, newSource);
-                    }
-                    request.source(newSource);
                     @SuppressWarnings("unchecked")
                     final ActionListener<SearchResponse> actionListener = (ActionListener<SearchResponse>) listener;
-                    client.search(request, actionListener);
+                    retrySearch(request, from, size, e, actionListener, rerankContext);
                 }
             }
 
@@ -247,38 +493,497 @@ public class DynamicRanker extends AbstractLifecycleComponent {
         };
     }
 
-    public ScriptInfo getScriptInfo(final String index) {
-        try {
-            return scriptInfoCache.get(index, () -> {
-                final Metadata metaData = clusterService.state().getMetadata();
-                IndexAbstraction indexAbstraction = metaData.getIndicesLookup().get(index);
-                if (indexAbstraction == null) {
-                    return ScriptInfo.NO_SCRIPT_INFO;
+    private <Response extends ActionResponse> ActionListener<Response> wrapCollapseListener(final Task parentTask,
+            final SearchRequest request, final SearchSourceBuilder source, final ActionListener<Response> listener, final int from,
+            final int size, final int reorderSize, final long startTime, final ScriptInfo scriptInfo,
+            final ReorderSizeController controller, final RerankPlanner.Key plannerKey, final Long minTotalHits) {
+        final InnerHitBuilder innerHit = new InnerHitBuilder(COLLAPSE_INNER_HITS).setFrom(0).setSize(scriptInfo.getCollapseInnerHitsSize())
+                .setFetchSourceContext(source.fetchSource()).setTrackScores(source.trackScores());
+        if (source.sorts() != null) {
+            innerHit.setSorts(source.sorts());
+        }
+        if (source.storedFields() != null && source.storedFields().fieldNames() != null) {
+            innerHit.setStoredFieldNames(source.storedFields().fieldNames());
+        }
+        if (source.docValueFields() != null) {
+            innerHit.setDocValueFields(source.docValueFields());
+        }
+        if (source.fetchFields() != null) {
+            innerHit.setFetchFields(source.fetchFields());
+        }
+        if (source.highlighter() != null) {
+            innerHit.setHighlightBuilder(source.highlighter());
+        }
+        if (source.version() != null) {
+            innerHit.setVersion(source.version());
+        }
+        if (source.seqNoAndPrimaryTerm() != null) {
+            innerHit.setSeqNoAndPrimaryTerm(source.seqNoAndPrimaryTerm());
+        }
+        source.collapse(new CollapseBuilder(scriptInfo.getCollapseField()).setInnerHits(innerHit));
+        source.size(from + size);
+        source.from(0);
+
+        if (logger.isDebugEnabled()) {
+            logger.debug("Rewrite query with collapse: field:{} from:{}->{} size:{}->{}", scriptInfo.getCollapseField(), from, 0, size,
+                    from + size);
+        }
+
+        return new ActionListener<Response>() {
+            @Override
+            public void onResponse(final Response response) {
+                final SearchResponse searchResponse = (SearchResponse) response;
+                final SearchHits hits = searchResponse.getHits();
+                planner.onTotalHits(plannerKey, hits.getTotalHits());
+                final List<SearchHit> list = interleaveCollapsedHits(hits, from + size);
+
+                if (list == null
+                        || (list.size() < from + size && hits.getTotalHits() != null && hits.getTotalHits().value > list.size())) {
+                    if (logger.isDebugEnabled()) {
+                        logger.debug("Collapsed results are not enough or have no value: {} < {}. Retry without collapse.",
+                                list != null ? list.size() : 0, from + size);
+                    }
+                    collapseFallbackCount.increment();
+                    if (DynaRankEvents.AVAILABLE) {
+                        RetryEvent.emit(String.join(",", request.indices()), "collapse", from, size);
+                    }
+                    source.collapse(null);
+                    inflateSource(source, from, size, reorderSize, scriptInfo);
+                    final ActionListener<Response> searchResponseListener = createSearchResponseListener(parentTask, request, listener,
+                            from, size, reorderSize, startTime, scriptInfo, controller, plannerKey, minTotalHits, null);
+                    @SuppressWarnings("unchecked")
+                    final ActionListener<SearchResponse> retryListener = (ActionListener<SearchResponse>) createRetryableListener(request,
+                            listener, from, size, searchResponseListener, null);
+                    final ThreadContext threadContext = threadPool.getThreadContext();
+                    final ThreadContext.StoredContext context = threadContext.newStoredContext(false);
+                    try {
+                        if (threadContext.getTransient(DYNARANK_SKIP) == null) {
+                            threadContext.putTransient(DYNARANK_SKIP, Boolean.TRUE);
+                        }
+                        client.search(request, retryListener);
+                    } finally {
+                        context.restore();
+                    }
+                    return;
                 }
 
-                final ScriptInfo[] scriptInfos = indexAbstraction.getIndices().stream()
-                        .map(metaData::index)
-                        .filter(idx -> SETTING_INDEX_DYNARANK_LANG.get(idx.getSettings()).length() > 0)
-                        .map(idx ->
-                            new ScriptInfo(SETTING_INDEX_DYNARANK_SCRIPT.get(idx.getSettings()), SETTING_INDEX_DYNARANK_LANG.get(idx.getSettings()),
-                                    SETTING_INDEX_DYNARANK_TYPE.get(idx.getSettings()), SETTING_INDEX_DYNARANK_PARAMS.get(idx.getSettings()),
-                                    SETTING_INDEX_DYNARANK_REORDER_SIZE.get(idx.getSettings()), SETTING_INDEX_DYNARANK_KEEP_TOPN.get(idx.getSettings()),
-                                    idx.mapping())
-                        )
-                        .toArray(n -> new ScriptInfo[n]);
-
-                if (scriptInfos.length == 0) {
-                    return ScriptInfo.NO_SCRIPT_INFO;
-                } else if (scriptInfos.length == 1) {
-                    return scriptInfos[0];
+                final SearchHit[] newSearchHits;
+                if (from >= list.size()) {
+                    newSearchHits = new SearchHit[0];
                 } else {
-                    for (final ScriptInfo scriptInfo : scriptInfos) {
-                        if (!scriptInfo.getLang().equals(DiversitySortScriptEngine.SCRIPT_NAME)) {
-                            return ScriptInfo.NO_SCRIPT_INFO;
+                    newSearchHits = list.subList(from, list.size()).toArray(new SearchHit[list.size() - from]);
+                }
+                final SearchHits newHits = new SearchHits(newSearchHits, hits.getTotalHits(), hits.getMaxScore());
+                @SuppressWarnings("unchecked")
+                final Response newResponse =
+                        (Response) createSearchResponse(searchResponse, newHits, (System.nanoTime() - startTime) / 1000000);
+                listener.onResponse(newResponse);
+            }
+
+            @Override
+            public void onFailure(final Exception e) {
+                listener.onFailure(e);
+            }
+        };
+    }
+
+    /**
+     * Interleaves the inner hits of collapsed groups. A group of hits without
+     * a value of the field is not interleaved, because "standard" buckets keep
+     * the original order if a hit has no value.
+     *
+     * @return at most count hits, or null if a group has no value
+     */
+    static List<SearchHit> interleaveCollapsedHits(final SearchHits hits, final int count) {
+        final SearchHit[] groups = hits.getHits();
+        final Object[] collapseValues = hits.getCollapseValues();
+        final SearchHit[][] buckets = new SearchHit[groups.length][];
+        for (int i = 0; i < groups.length; i++) {
+            if (collapseValues != null && i < collapseValues.length && collapseValues[i] == null) {
+                return null;
+            }
+            final SearchHits innerHits = groups[i].getInnerHits() != null ? groups[i].getInnerHits().get(COLLAPSE_INNER_HITS) : null;
+            buckets[i] = innerHits != null && innerHits.getHits().length > 0 ? innerHits.getHits() : new SearchHit[] { groups[i] };
+        }
+        final List<SearchHit> list = new ArrayList<>(count);
+        for (int pos = 0; list.size() < count; pos++) {
+            boolean added = false;
+            for (final SearchHit[] bucket : buckets) {
+                if (pos < bucket.length && list.size() < count) {
+                    list.add(bucket[pos]);
+                    added = true;
+                }
+            }
+            if (!added) {
+                break;
+            }
+        }
+        return list;
+    }
+
+    private <Response extends ActionResponse> ActionListener<Response> wrapPointInTimeListener(final Task parentTask,
+            final SearchRequest request, final SearchSourceBuilder source, final ActionListener<Response> listener) {
+        final String[] indices = source.pointInTimeBuilder().getSearchContextId(namedWriteableRegistry).getActualIndices();
+        if (indices.length != 1) {
+            return null;
+        }
+        final ScriptInfo scriptInfo = getScriptInfo(indices[0]);
+        if (scriptInfo == null || scriptInfo.getScript() == null) {
+            return null;
+        }
+
+        final long startTime = System.nanoTime();
+
+        final int size = getInt(source.size(), 10);
+        final int from = getInt(source.from(), 0);
+        if (size == 0) {
+            return null;
+        }
+        final Object[] searchAfter = source.searchAfter();
+        final PitCursor cursor;
+        if (searchAfter == null) {
+            cursor = new PitCursor(null, 0, scriptInfo.getReorderSize());
+        } else if (PitCursor.isCursor(searchAfter)) {
+            final PitCursor decoded = PitCursor.decode(searchAfter[0].toString());
+            // reorder_size may be decreased while paginating
+            cursor = decoded.getWindowSize() <= scriptInfo.getReorderSize() ? decoded
+                    : new PitCursor(decoded.getWindowStart(), Math.min(decoded.getOffset(), scriptInfo.getReorderSize()),
+                            scriptInfo.getReorderSize());
+        } else {
+            cursor = new PitCursor(searchAfter, 0, scriptInfo.getReorderSize());
+        }
+
+        final SearchSourceBuilder newSource = copySource(source, "search_after", "from", "size");
+        if (!hasPitTiebreaker(newSource)) {
+            if (newSource.sorts() == null || newSource.sorts().isEmpty()) {
+                newSource.sort(SortBuilders.scoreSort());
+            }
+            newSource.sort(SortBuilders.pitTiebreaker());
+        }
+        if (cursor.getWindowStart() != null) {
+            newSource.searchAfter(cursor.getWindowStart());
+        }
+        newSource.from(0);
+        newSource.size(cursor.getWindowSize());
+        request.source(newSource);
+
+        if (logger.isDebugEnabled()) {
+            logger.debug("Rewrite point-in-time query: offset:{} from:{} size:{} window:{}", cursor.getOffset(), from, size,
+                    cursor.getWindowSize());
+        }
+
+        return new ActionListener<Response>() {
+            @Override
+            public void onResponse(final Response response) {
+                final SearchResponse searchResponse = (SearchResponse) response;
+                @SuppressWarnings("unchecked")
+                final ActionListener<SearchResponse> searchListener = (ActionListener<SearchResponse>) listener;
+                collectPointInTimePage(parentTask, request, searchResponse, searchResponse, cursor, from, new ArrayList<>(size), size,
+                        scriptInfo, startTime, searchListener);
+            }
+
+            @Override
+            public void onFailure(final Exception e) {
+                listener.onFailure(e);
+            }
+        };
+    }
+
+    void collectPointInTimePage(final Task parentTask, final SearchRequest request, final SearchResponse firstResponse,
+            final SearchResponse response, final PitCursor cursor, final int from, final List<SearchHit> page, final int size,
+            final ScriptInfo scriptInfo, final long startTime, final ActionListener<SearchResponse> listener) {
+        final int windowSize = cursor.getWindowSize();
+        final SearchHit[] searchHits = response.getHits().getHits();
+        final boolean hasNextWindow = searchHits.length >= windowSize;
+        final Object[] nextWindowStart = searchHits.length > 0 ? searchHits[searchHits.length - 1].getSortValues() : null;
+        SearchHit[] targets;
+        RerankTask rerankTask = null;
+        try {
+            rerankTask = registerRerankTask(parentTask, request, searchHits.length);
+            rerankTask.checkCancelled();
+            RerankTask.setCurrent(rerankTask);
+            // keep_topn pins the top hits of the search, which are only in the first window
+            final int keepTopN = cursor.getWindowStart() == null ? scriptInfo.getKeepTopN() : 0;
+            targets = onReorder(Arrays.copyOf(searchHits, searchHits.length), scriptInfo, keepTopN);
+        } catch (final RetrySearchException e) {
+            pitRetryFallbackCount.increment();
+            if (logger.isDebugEnabled()) {
+                logger.debug("Retry is not supported with point in time. The original order is used.");
+            }
+            targets = searchHits;
+        } catch (final TaskCancelledException e) {
+            listener.onFailure(e);
+            return;
+        } finally {
+            RerankTask.setCurrent(null);
+            if (rerankTask != null) {
+                taskManager.unregister(rerankTask);
+            }
+        }
+        int skip = from;
+        for (int i = cursor.getOffset(); i < targets.length && page.size() < size; i++) {
+            if (skip > 0) {
+                skip--;
+                continue;
+            }
+            final PitCursor hitCursor;
+            if (i + 1 < targets.length || !hasNextWindow) {
+                hitCursor = new PitCursor(cursor.getWindowStart(), i + 1, windowSize);
+            } else {
+                hitCursor = new PitCursor(nextWindowStart, 0, windowSize);
+            }
+            targets[i].sortValues(new Object[] { hitCursor.encode() }, new DocValueFormat[] { DocValueFormat.RAW });
+            page.add(targets[i]);
+        }
+
+        if (page.size() < size && hasNextWindow) {
+            final SearchSourceBuilder source = copySource(request.source(), "search_after", "aggs", "aggregations", "suggest",
+                    "track_total_hits");
+            source.searchAfter(nextWindowStart);
+            source.trackTotalHits(false);
+            final String pointInTimeId = response.pointInTimeId();
+            if (pointInTimeId != null) {
+                source.pointInTimeBuilder(new PointInTimeBuilder(pointInTimeId)
+                        .setKeepAlive(request.source().pointInTimeBuilder().getKeepAlive()));
+            }
+            final SearchRequest nextRequest = new SearchRequest(request).source(source);
+            final int remaining = skip;
+            final ThreadContext threadContext = threadPool.getThreadContext();
+            final ThreadContext.StoredContext context = threadContext.newStoredContext(false);
+            try {
+                if (threadContext.getTransient(DYNARANK_SKIP) == null) {
+                    threadContext.putTransient(DYNARANK_SKIP, Boolean.TRUE);
+                }
+                client.search(nextRequest, new ActionListener<SearchResponse>() {
+                    @Override
+                    public void onResponse(final SearchResponse nextResponse) {
+                        collectPointInTimePage(parentTask, nextRequest, firstResponse, nextResponse,
+                                new PitCursor(nextWindowStart, 0, windowSize), remaining, page, size, scriptInfo, startTime, listener);
+                    }
+
+                    @Override
+                    public void onFailure(final Exception e) {
+                        listener.onFailure(e);
+                    }
+                });
+            } finally {
+                context.restore();
+            }
+            return;
+        }
+
+        final SearchHits hits = firstResponse.getHits();
+        final SearchHits newHits = new SearchHits(page.toArray(new SearchHit[page.size()]), hits.getTotalHits(), hits.getMaxScore());
+        listener.onResponse(createSearchResponse(firstResponse, newHits, (System.nanoTime() - startTime) / 1000000,
+                response.pointInTimeId()));
+    }
+
+    private boolean hasPitTiebreaker(final SearchSourceBuilder source) {
+        if (source.sorts() == null) {
+            return false;
+        }
+        for (final SortBuilder<?> sort : source.sorts()) {
+            if (sort instanceof FieldSortBuilder && FieldSortBuilder.SHARD_DOC_FIELD_NAME.equals(((FieldSortBuilder) sort).getFieldName())) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private SearchSourceBuilder copySource(final SearchSourceBuilder source, final String... excludes) {
+        try {
+            final Map<String, Object> sourceMap =
+                    XContentHelper.convertToMap(XContentHelper.toXContent(source, XContentType.JSON, false), false, XContentType.JSON).v2();
+            for (final String exclude : excludes) {
+                sourceMap.remove(exclude);
+            }
+            final XContentBuilder builder = XContentFactory.jsonBuilder().map(sourceMap);
+            try (XContentParser parser = XContentType.JSON.xContent().createParser(xContentRegistry, LoggingDeprecationHandler.INSTANCE,
+                    BytesReference.bytes(builder).streamInput())) {
+                return SearchSourceBuilder.fromXContent(parser);
+            }
+        } catch (final IOException e) {
+            throw new ElasticsearchException("Failed to copy source: " + source, e);
+        }
+    }
+
+    private <Response extends ActionResponse> ActionListener<Response> createCoalescedSearchListener(final Task parentTask,
+            final SearchRequest request, final SearchCoalescer.InFlight inFlight, final int maxSize, final int reorderSize,
+            final long startTime, final ScriptInfo scriptInfo, final ReorderSizeController controller, final RerankPlanner.Key plannerKey,
+            final Long minTotalHits, final RerankContext rerankContext) {
+        final ActionListener<SearchResponse> windowListener = new ActionListener<SearchResponse>() {
+            @Override
+            public void onResponse(final SearchResponse response) {
+                for (final SearchCoalescer.Waiter waiter : inFlight.complete()) {
+                    try {
+                        if (isCancelled(waiter.task)) {
+                            waiter.listener.onFailure(createCancelledException(waiter.task));
+                            continue;
+                        }
+                        final SearchResponse slicedResponse = sliceResponse(response, waiter.from, waiter.size, waiter.startTime);
+                        if (waiter.rerankContext == null) {
+                            waiter.listener.onResponse(slicedResponse);
+                        } else if (waiter.rerankContext == rerankContext) {
+                            waiter.listener.onResponse(rerankContext.attachTo(slicedResponse));
+                        } else {
+                            // the stages of the leader, with the request of the waiter
+                            waiter.rerankContext.copyFrom(rerankContext);
+                            waiter.listener.onResponse(waiter.rerankContext.attachTo(slicedResponse));
+                            RerankSlowLog.log(waiter.rerankContext, waiter.request.source());
                         }
+                    } catch (final Exception e) {
+                        logger.warn("Failed to send a coalesced response.", e);
                     }
-                    return scriptInfos[0];
                 }
+            }
+
+            @Override
+            public void onFailure(final Exception e) {
+                final List<SearchCoalescer.Waiter> waiters = inFlight.complete();
+                // the shared search is cancelled with the task of a request, and the others are searched again
+                boolean redispatch = false;
+                if (ExceptionsHelper.unwrap(e, TaskCancelledException.class) != null) {
+                    for (final SearchCoalescer.Waiter waiter : waiters) {
+                        if (isCancelled(waiter.task)) {
+                            redispatch = true;
+                            break;
+                        }
+                    }
+                }
+                for (final SearchCoalescer.Waiter waiter : waiters) {
+                    try {
+                        if (redispatch && !isCancelled(waiter.task)) {
+                            redispatchSearch(waiter);
+                        } else {
+                            waiter.listener.onFailure(e);
+                        }
+                    } catch (final Exception ex) {
+                        logger.warn("Failed to send a coalesced failure.", ex);
+                    }
+                }
+            }
+        };
+        final ActionListener<SearchResponse> searchResponseListener = createSearchResponseListener(parentTask, request, windowListener, 0,
+                maxSize, reorderSize, startTime, scriptInfo, controller, plannerKey, minTotalHits, rerankContext);
+        return new ActionListener<Response>() {
+            @Override
+            public void onResponse(final Response response) {
+                try {
+                    searchResponseListener.onResponse((SearchResponse) response);
+                } catch (final RetrySearchException e) {
+                    final ThreadContext.StoredContext leaderContext = threadPool.getThreadContext().newStoredContext(false);
+                    for (final SearchCoalescer.Waiter waiter : inFlight.complete()) {
+                        try {
+                            if (isCancelled(waiter.task)) {
+                                waiter.listener.onFailure(createCancelledException(waiter.task));
+                                continue;
+                            }
+                            waiter.context.restore();
+                            retrySearch(waiter.request, waiter.from, waiter.size, e, waiter.listener, waiter.rerankContext);
+                        } catch (final Exception ex) {
+                            waiter.listener.onFailure(ex);
+                        } finally {
+                            leaderContext.restore();
+                        }
+                    }
+                } catch (final Exception e) {
+                    windowListener.onFailure(e);
+                }
+            }
+
+            @Override
+            public void onFailure(final Exception e) {
+                windowListener.onFailure(e);
+            }
+        };
+    }
+
+    private static boolean isCancelled(final Task task) {
+        return task instanceof CancellableTask && ((CancellableTask) task).isCancelled();
+    }
+
+    private static TaskCancelledException createCancelledException(final Task task) {
+        return new TaskCancelledException("task cancelled [" + ((CancellableTask) task).getReasonCancelled() + "]");
+    }
+
+    /**
+     * Searches a request of a coalesced search again by itself, as a child
+     * of its own search task and with its own thread context.
+     */
+    private void redispatchSearch(final SearchCoalescer.Waiter waiter) {
+        final SearchSourceBuilder source = waiter.request.source();
+        source.size(waiter.size);
+        source.from(waiter.from);
+        source.ext(source.ext().stream().filter(ext -> !(ext instanceof RerankKeysExtBuilder)).collect(Collectors.toList()));
+        if (waiter.task != null) {
+            waiter.request.setParentTask(new TaskId(clusterService.localNode().getId(), waiter.task.getId()));
+        }
+        if (logger.isDebugEnabled()) {
+            logger.debug("Search again a request of a cancelled coalesced search: {}", source);
+        }
+        coalescer.onRedispatch();
+        final ThreadContext.StoredContext context = threadPool.getThreadContext().newStoredContext(false);
+        try {
+            waiter.context.restore();
+            client.search(waiter.request, waiter.listener);
+        } finally {
+            context.restore();
+        }
+    }
+
+    private void retrySearch(final SearchRequest request, final int from, final int size, final RetrySearchException e,
+            final ActionListener<SearchResponse> listener, final RerankContext rerankContext) {
+        final SearchSourceBuilder source = request.source();
+        source.size(size);
+        source.from(from);
+        source.ext(source.ext().stream().filter(ext -> !(ext instanceof RerankKeysExtBuilder)).collect(Collectors.toList()));
+        final SearchSourceBuilder newSource = e.rewrite(source);
+        if (newSource == null) {
+            throw new ElasticsearchException("Failed to rewrite source: " + source);
+        }
+        if (logger.isDebugEnabled()) {
+            logger.debug("Original Query: \n{}\nRewrited Query: \n{}", source, newSource);
+        }
+        request.source(newSource);
+        if (DynaRankEvents.AVAILABLE) {
+            RetryEvent.emit(String.join(",", request.indices()), "retry", from, size);
+        }
+        final ActionListener<SearchResponse> searchListener;
+        if (rerankContext != null) {
+            rerankContext.setFallback("retry");
+            searchListener = new ActionListener<SearchResponse>() {
+                @Override
+                public void onResponse(final SearchResponse response) {
+                    rerankContext.setSearchTookInMillis(response.getTook().millis());
+                    listener.onResponse(rerankContext.attachTo(response));
+                    RerankSlowLog.log(rerankContext, request.source());
+                }
+
+                @Override
+                public void onFailure(final Exception e) {
+                    listener.onFailure(e);
+                }
+            };
+        } else {
+            searchListener = listener;
+        }
+        final ThreadContext threadContext = threadPool.getThreadContext();
+        final ThreadContext.StoredContext context = threadContext.newStoredContext(false);
+        try {
+            if (threadContext.getTransient(DYNARANK_SKIP) == null) {
+                threadContext.putTransient(DYNARANK_SKIP, Boolean.TRUE);
+            }
+            client.search(request, searchListener);
+        } finally {
+            context.restore();
+        }
+    }
+
+    public ScriptInfo getScriptInfo(final String index) {
+        try {
+            return scriptInfoCache.get(index, () -> {
+                final ScriptInfo scriptInfo = scriptInfoResolver.resolve(clusterService.state().getMetadata(), index);
+                return scriptInfo != null ? scriptInfo : ScriptInfo.NO_SCRIPT_INFO;
             });
         } catch (final Exception e) {
             logger.warn("Failed to load ScriptInfo for {}.", e, index);
@@ -286,39 +991,225 @@ public class DynamicRanker extends AbstractLifecycleComponent {
         }
     }
 
-    private <Response extends ActionResponse> ActionListener<Response> createSearchResponseListener(final SearchRequest request,
-            final ActionListener<Response> listener, final int from, final int size, final long startTime,
-            final ScriptInfo scriptInfo) {
-        return new ActionListener<Response>() {
+    @Override
+    public void clusterChanged(final ClusterChangedEvent event) {
+        if (!event.metadataChanged()) {
+            return;
+        }
+        final Metadata metadata = event.state().getMetadata();
+        if (!event.indicesDeleted().isEmpty()) {
+            scriptInfoResolver.prune(metadata);
+        }
+        // a rollover or settings update only builds configs of changed indices
+        for (final Map.Entry<String, ScriptInfo> entry : scriptInfoCache.asMap().entrySet()) {
+            final ScriptInfo scriptInfo = scriptInfoResolver.resolve(metadata, entry.getKey());
+            if (scriptInfo == null) {
+                scriptInfoCache.invalidate(entry.getKey());
+            } else if (scriptInfo != entry.getValue()) {
+                if (logger.isDebugEnabled()) {
+                    logger.debug("Update cache for {} => {}", entry.getKey(), scriptInfo);
+                }
+                scriptInfoCache.put(entry.getKey(), scriptInfo);
+            }
+        }
+        if (warmer.isEnabled()) {
+            warmer.schedule(getChangedIndices(event.previousState().getMetadata(), metadata));
+        }
+    }
+
+    /**
+     * @return names of indices, aliases and data streams whose reranked
+     *         indices were created or had settings or mappings updated
+     */
+    private Set<String> getChangedIndices(final Metadata previous, final Metadata metadata) {
+        final Set<String> names = new HashSet<>();
+        for (final IndexMetadata indexMetadata : metadata) {
+            final IndexMetadata previousIndexMetadata = previous.index(indexMetadata.getIndex());
+            if (previousIndexMetadata != null && previousIndexMetadata.getSettingsVersion() == indexMetadata.getSettingsVersion()
+                    && previousIndexMetadata.getMappingVersion() == indexMetadata.getMappingVersion()) {
+                continue;
+            }
+            if (SETTING_INDEX_DYNARANK_LANG.get(indexMetadata.getSettings()).length() == 0) {
+                continue;
+            }
+            final IndexAbstraction indexAbstraction = metadata.getIndicesLookup().get(indexMetadata.getIndex().getName());
+            if (indexAbstraction != null && indexAbstraction.getParentDataStream() != null) {
+                names.add(indexAbstraction.getParentDataStream().getName());
+            } else {
+                names.add(indexMetadata.getIndex().getName());
+            }
+            for (final ObjectCursor<String> alias : indexMetadata.getAliases().keys()) {
+                names.add(alias.value);
+            }
+        }
+        return names;
+    }
+
+    ReorderSizeController getReorderSizeController(final String index, final ScriptInfo scriptInfo) {
+        if (!scriptInfo.isAdaptive()) {
+            return null;
+        }
+        return reorderSizeControllers.computeIfAbsent(index, k -> new ReorderSizeController(k, scriptInfo));
+    }
+
+    public FeatureStore getFeatureStore() {
+        return featureStoreService.getFeatureStore();
+    }
+
+    public XContentBuilder toStatsXContent(final XContentBuilder builder, final ToXContent.Params params) throws IOException {
+        builder.startObject("adaptive_reorder_size");
+        for (final Map.Entry<String, ReorderSizeController> entry : reorderSizeControllers.entrySet()) {
+            builder.field(entry.getKey());
+            entry.getValue().toXContent(builder, params);
+        }
+        builder.endObject();
+        builder.field("planner");
+        planner.toXContent(builder, params);
+        builder.field("coalescing");
+        coalescer.toXContent(builder, params);
+        builder.field("load_shedding");
+        loadShedder.toXContent(builder, params);
+        builder.field("warmup");
+        warmer.toXContent(builder, params);
+        builder.startObject("collapse");
+        builder.field("fallback_count", collapseFallbackCount.sum());
+        builder.endObject();
+        builder.startObject("point_in_time");
+        builder.field("retry_fallback_count", pitRetryFallbackCount.sum());
+        builder.endObject();
+        final FeatureStore featureStore = featureStoreService.getFeatureStore();
+        builder.startObject("feature_store");
+        builder.field("version", featureStore.getVersion());
+        builder.field("features", featureStore.getNumOfFeatures());
+        builder.field("capacity", featureStore.getCapacity());
+        builder.endObject();
+        builder.startObject("circuit_breaker");
+        builder.field("skipped_count", breakerSkippedCount.sum());
+        builder.endObject();
+        return builder;
+    }
+
+    private CircuitBreaker getCircuitBreaker() {
+        final CircuitBreaker breaker = circuitBreakerService.getBreaker(BREAKER_NAME);
+        if (breaker != null) {
+            return breaker;
+        }
+        return circuitBreakerService.getBreaker(CircuitBreaker.REQUEST);
+    }
+
+    long estimateRerankBytes(final SearchHits hits) {
+        long bytes = 0;
+        for (final SearchHit hit : hits.getHits()) {
+            final BytesReference source = hit.getSourceRef();
+            bytes += HIT_OVERHEAD_BYTES + (source != null ? source.length() : 0);
+        }
+        // serialized copy + deserialized SearchHits
+        return bytes * 2;
+    }
+
+    private SearchResponse sliceResponse(final SearchResponse searchResponse, final int from, final int size, final long startTime) {
+        final SearchHits hits = searchResponse.getHits();
+        final SearchHit[] searchHits = hits.getHits();
+        final SearchHit[] newSearchHits;
+        if (from >= searchHits.length) {
+            newSearchHits = new SearchHit[0];
+        } else {
+            newSearchHits = Arrays.copyOfRange(searchHits, from, Math.min(from + size, searchHits.length));
+        }
+        RerankKeys.strip(newSearchHits);
+        final SearchHits newHits = new SearchHits(newSearchHits, hits.getTotalHits(), hits.getMaxScore(), hits.getSortFields(),
+                hits.getCollapseField(), hits.getCollapseValues());
+        return createSearchResponse(searchResponse, newHits, (System.nanoTime() - startTime) / 1000000);
+    }
+
+    private SearchResponse createSearchResponse(final SearchResponse searchResponse, final SearchHits hits, final long tookInMillis) {
+        return createSearchResponse(searchResponse, hits, tookInMillis, searchResponse.pointInTimeId());
+    }
+
+    private SearchResponse createSearchResponse(final SearchResponse searchResponse, final SearchHits hits, final long tookInMillis,
+            final String pointInTimeId) {
+        final Map<String, SearchProfileShardResult> profile = searchResponse.getInternalResponse().profile();
+        return createSearchResponse(searchResponse, hits, tookInMillis, pointInTimeId,
+                profile == null ? null : new SearchProfileResults(profile));
+    }
+
+    private SearchResponse createSearchResponse(final SearchResponse searchResponse, final SearchHits hits, final long tookInMillis,
+            final String pointInTimeId, final SearchProfileResults profileResults) {
+        final SearchResponseSections sections = searchResponse.getInternalResponse();
+        final InternalSearchResponse internalResponse = new InternalSearchResponse(hits, (InternalAggregations) sections.aggregations(),
+                sections.suggest(), profileResults, sections.timedOut(), sections.terminatedEarly(), sections.getNumReducePhases());
+        return new SearchResponse(internalResponse, searchResponse.getScrollId(), searchResponse.getTotalShards(),
+                searchResponse.getSuccessfulShards(), searchResponse.getSkippedShards(), tookInMillis, searchResponse.getShardFailures(),
+                searchResponse.getClusters(), pointInTimeId);
+    }
+
+    private <Response extends ActionResponse> ActionListener<Response> createSearchResponseListener(final Task parentTask,
+            final SearchRequest request, final ActionListener<Response> listener, final int from, final int size, final int reorderSize,
+            final long startTime, final ScriptInfo scriptInfo, final ReorderSizeController controller, final RerankPlanner.Key plannerKey,
+            final Long minTotalHits, final RerankContext rerankContext) {
+        return loadShedder.track(new ActionListener<Response>() {
             @Override
             public void onResponse(final Response response) {
+                final long responseStartTime = System.nanoTime();
+                final RerankEvent rerankEvent = DynaRankEvents.AVAILABLE ? RerankEvent.start() : null;
                 final SearchResponse searchResponse = (SearchResponse) response;
+                planner.onTotalHits(plannerKey, searchResponse.getHits().getTotalHits());
                 final long totalHits = searchResponse.getHits().getTotalHits().value;
                 if (totalHits == 0) {
                     if (logger.isDebugEnabled()) {
                         logger.debug("totalHits is {}. No reranking results: {}", totalHits, searchResponse);
                     }
+                    planner.onNoHits();
                     listener.onResponse(response);
                     return;
                 }
 
-                final String minTotalHitsValue = threadPool.getThreadContext().getHeader(DYNARANK_MIN_TOTAL_HITS);
-                if (minTotalHitsValue != null) {
-                    final long minTotalHits = Long.parseLong(minTotalHitsValue);
-                    if (totalHits < minTotalHits) {
-                        if (logger.isDebugEnabled()) {
-                            logger.debug("totalHits is {} < {}. No reranking results: {}", totalHits, minTotalHits, searchResponse);
-                        }
-                        listener.onResponse(response);
-                        return;
+                if (minTotalHits != null && totalHits < minTotalHits.longValue()) {
+                    if (logger.isDebugEnabled()) {
+                        logger.debug("totalHits is {} < {}. No reranking results: {}", totalHits, minTotalHits, searchResponse);
                     }
+                    planner.onMinTotalHits();
+                    @SuppressWarnings("unchecked")
+                    final Response newResponse = (Response) sliceResponse(searchResponse, from, size, startTime);
+                    listener.onResponse(newResponse);
+                    return;
+                }
+
+                final CircuitBreaker breaker = getCircuitBreaker();
+                final long bytes = estimateRerankBytes(searchResponse.getHits());
+                try {
+                    breaker.addEstimateBytesAndMaybeBreak(bytes, "<reranking>");
+                } catch (final CircuitBreakingException e) {
+                    breakerSkippedCount.increment();
+                    if (logger.isDebugEnabled()) {
+                        logger.debug("Reranking is skipped: {}", e.getMessage());
+                    }
+                    SearchResponse slicedResponse = sliceResponse(searchResponse, from, size, startTime);
+                    if (rerankContext != null) {
+                        rerankContext.setSearchTookInMillis(searchResponse.getTook().millis());
+                        rerankContext.setFallback("circuit_breaker");
+                        slicedResponse = rerankContext.attachTo(slicedResponse);
+                    }
+                    @SuppressWarnings("unchecked")
+                    final Response newResponse = (Response) slicedResponse;
+                    listener.onResponse(newResponse);
+                    if (rerankContext != null) {
+                        RerankSlowLog.log(rerankContext, request.source());
+                    }
+                    if (rerankEvent != null) {
+                        rerankEvent.finish(String.join(",", request.indices()), 0, 0, "circuit_breaker");
+                    }
+                    return;
                 }
 
                 if (logger.isDebugEnabled()) {
                     logger.debug("Reranking results: {}", searchResponse);
                 }
 
+                RerankTask rerankTask = null;
                 try {
+                    rerankTask = registerRerankTask(parentTask, request, Math.min(searchResponse.getHits().getHits().length, reorderSize));
+                    rerankTask.checkCancelled();
                     final BytesStreamOutput out = new BytesStreamOutput();
                     searchResponse.writeTo(out);
 
@@ -332,7 +1223,27 @@ public class DynamicRanker extends AbstractLifecycleComponent {
                     // BEGIN: SearchResponse#writeTo
                     // BEGIN: InternalSearchResponse#writeTo
                     final SearchHits hits = new SearchHits(in);
-                    final SearchHits newHits = doReorder(hits, from, size, scriptInfo);
+                    final int[] depth = controller != null ? new int[1] : null;
+                    final SearchHits newHits;
+                    if (rerankContext != null) {
+                        rerankContext.add(RerankContext.Stage.DECODE, System.nanoTime() - responseStartTime);
+                        rerankContext.setWindowSize(Math.min(hits.getHits().length, reorderSize));
+                        rerankContext.setSearchTookInMillis(searchResponse.getTook().millis());
+                        RerankContext.setCurrent(rerankContext);
+                    }
+                    RerankTask.setCurrent(rerankTask);
+                    try {
+                        newHits = doReorder(hits, from, size, reorderSize, scriptInfo, controller, depth);
+                    } finally {
+                        RerankTask.setCurrent(null);
+                        if (rerankContext != null) {
+                            RerankContext.setCurrent(null);
+                        }
+                    }
+                    rerankTask.checkCancelled();
+                    final long rebuildStartTime = System.nanoTime();
+                    final ResponseRebuildEvent rebuildEvent = DynaRankEvents.AVAILABLE ? ResponseRebuildEvent.start() : null;
+                    RerankKeys.strip(newHits.getHits());
                     if (logger.isDebugEnabled()) {
                         logger.debug("Reading aggregations...");
                     }
@@ -343,11 +1254,9 @@ public class DynamicRanker extends AbstractLifecycleComponent {
                     final Suggest suggest = in.readBoolean() ? new Suggest(in) : null;
                     final boolean timedOut = in.readBoolean();
                     final Boolean terminatedEarly = in.readOptionalBoolean();
-                    final SearchProfileResults profileResults = in.readOptionalWriteable(SearchProfileResults::new);
+                    final SearchProfileResults shardProfileResults = in.readOptionalWriteable(SearchProfileResults::new);
                     final int numReducePhases =  in.readVInt();
 
-                    final SearchResponseSections internalResponse = new InternalSearchResponse(newHits, aggregations, suggest,
-                            profileResults, timedOut, terminatedEarly, numReducePhases);
                     // END: InternalSearchResponse
 
                     final int totalShards = in.readVInt();
@@ -373,27 +1282,62 @@ public class DynamicRanker extends AbstractLifecycleComponent {
                     final int skippedShards = in.readVInt();
                     // END: SearchResponse
 
+                    final SearchResponseSections internalResponse = new InternalSearchResponse(newHits, aggregations, suggest,
+                            shardProfileResults, timedOut, terminatedEarly, numReducePhases);
+
                     final long tookInMillis = (System.nanoTime() - startTime) / 1000000;
 
                     if (logger.isDebugEnabled()) {
                         logger.debug("Creating new SearchResponse...");
                     }
-                    @SuppressWarnings("unchecked")
-                    final Response newResponse = (Response) new SearchResponse(internalResponse, scrollId, totalShards, successfulShards,
+                    SearchResponse rebuiltResponse = new SearchResponse(internalResponse, scrollId, totalShards, successfulShards,
                             skippedShards, tookInMillis, shardFailures, clusters);
+                    if (rerankContext != null) {
+                        rerankContext.add(RerankContext.Stage.REBUILD, System.nanoTime() - rebuildStartTime);
+                        rebuiltResponse = rerankContext.attachTo(rebuiltResponse);
+                    }
+                    @SuppressWarnings("unchecked")
+                    final Response newResponse = (Response) rebuiltResponse;
+                    if (rebuildEvent != null) {
+                        rebuildEvent.finish(String.join(",", request.indices()), newHits.getHits().length);
+                    }
+                    // decode, script and rebuild on this node, without the shard phases
+                    final long rerankNanos = System.nanoTime() - responseStartTime;
                     listener.onResponse(newResponse);
 
+                    if (rerankContext != null) {
+                        RerankSlowLog.log(rerankContext, request.source());
+                    }
+                    if (rerankEvent != null) {
+                        rerankEvent.finish(String.join(",", request.indices()), Math.min(hits.getHits().length, reorderSize), out.size(),
+                                null);
+                    }
+
+                    if (controller != null) {
+                        controller.onRerank(scriptInfo, Math.min(hits.getHits().length, reorderSize), depth[0], rerankNanos);
+                    }
+
                     if (logger.isDebugEnabled()) {
                         logger.debug("Rewriting overhead time: {} - {} = {}ms", tookInMillis, searchResponse.getTook().getMillis(),
                                 tookInMillis - searchResponse.getTook().getMillis());
                     }
                 } catch (final RetrySearchException e) {
                     throw e;
+                } catch (final TaskCancelledException e) {
+                    if (logger.isDebugEnabled()) {
+                        logger.debug("Reranking is cancelled: {}", e.getMessage());
+                    }
+                    listener.onFailure(e);
                 } catch (final Exception e) {
                     if (logger.isDebugEnabled()) {
                         logger.debug("Failed to parse a search response.", e);
                     }
                     throw new ElasticsearchException("Failed to parse a search response.", e);
+                } finally {
+                    breaker.addWithoutBreaking(-bytes);
+                    if (rerankTask != null) {
+                        taskManager.unregister(rerankTask);
+                    }
                 }
             }
 
@@ -401,18 +1345,31 @@ public class DynamicRanker extends AbstractLifecycleComponent {
             public void onFailure(final Exception e) {
                 listener.onFailure(e);
             }
-        };
+        }, startTime);
     }
 
-    private SearchHits doReorder(final SearchHits hits, final int from, final int size,
-            final ScriptInfo scriptInfo) {
+    SearchHits doReorder(final SearchHits hits, final int from, final int size, final int reorderSize,
+            final ScriptInfo scriptInfo, final ReorderSizeController controller, final int[] depth) {
         final SearchHit[] searchHits = hits.getHits();
         SearchHit[] newSearchHits;
         if (logger.isDebugEnabled()) {
-            logger.debug("searchHits.length <= reorderSize: {}", searchHits.length <= scriptInfo.getReorderSize());
+            logger.debug("searchHits.length <= reorderSize: {}", searchHits.length <= reorderSize);
+        }
+        final Map<SearchHit, Integer> positions;
+        if (controller != null) {
+            final int length = Math.min(searchHits.length, reorderSize);
+            positions = new IdentityHashMap<>(length);
+            for (int i = 0; i < length; i++) {
+                positions.put(searchHits[i], i);
+            }
+        } else {
+            positions = null;
         }
-        if (searchHits.length <= scriptInfo.getReorderSize()) {
+        if (searchHits.length <= reorderSize) {
             final SearchHit[] targets = onReorder(searchHits, scriptInfo);
+            if (positions != null) {
+                depth[0] = updateDisplacements(targets, from, size, positions, controller);
+            }
             if (from >= targets.length) {
                 newSearchHits = new SearchHit[0];
                 if (logger.isDebugEnabled()) {
@@ -426,8 +1383,11 @@ public class DynamicRanker extends AbstractLifecycleComponent {
                 newSearchHits = Arrays.copyOfRange(targets, from, end);
             }
         } else {
-            SearchHit[] targets = Arrays.copyOfRange(searchHits, 0, scriptInfo.getReorderSize());
+            SearchHit[] targets = Arrays.copyOfRange(searchHits, 0, reorderSize);
             targets = onReorder(targets, scriptInfo);
+            if (positions != null) {
+                depth[0] = updateDisplacements(targets, from, size, positions, controller);
+            }
             final List<SearchHit> list = new ArrayList<>(size);
             for (int i = from; i < targets.length; i++) {
                 list.add(targets[i]);
@@ -440,30 +1400,128 @@ public class DynamicRanker extends AbstractLifecycleComponent {
         return new SearchHits(newSearchHits, hits.getTotalHits(), hits.getMaxScore());
     }
 
+    private int updateDisplacements(final SearchHit[] targets, final int from, final int size, final Map<SearchHit, Integer> positions,
+            final ReorderSizeController controller) {
+        int depth = 0;
+        for (int i = 0; i < targets.length; i++) {
+            final Integer pos = positions.get(targets[i]);
+            if (pos == null) {
+                continue;
+            }
+            controller.addDisplacement(Math.abs(i - pos));
+            if (i >= from && i < from + size && pos + 1 > depth) {
+                depth = pos + 1;
+            }
+        }
+        return depth;
+    }
+
     private SearchHit[] onReorder(final SearchHit[] searchHits,
             final ScriptInfo scriptInfo) {
-        final int keepTopN = scriptInfo.getKeepTopN();
+        return onReorder(searchHits, scriptInfo, scriptInfo.getKeepTopN());
+    }
+
+    private SearchHit[] onReorder(final SearchHit[] searchHits, final ScriptInfo scriptInfo, final int keepTopN) {
         if (searchHits.length <= keepTopN) {
             return searchHits;
         }
-        final Factory factory = scriptService.compile(
-                new Script(scriptInfo.getScriptType(), scriptInfo.getLang(),
-                        scriptInfo.getScript(), scriptInfo.getSettings()),
-                DynaRankScript.CONTEXT);
         if (keepTopN == 0) {
-            return factory.newInstance(scriptInfo.getSettings())
-                    .execute(searchHits);
+            return executeScript(searchHits, scriptInfo);
         }
         final SearchHit[] hits = Arrays.copyOfRange(searchHits, keepTopN,
                 searchHits.length);
-        final SearchHit[] reordered = factory
-                .newInstance(scriptInfo.getSettings()).execute(hits);
+        final SearchHit[] reordered = executeScript(hits, scriptInfo);
         for (int i = keepTopN; i < searchHits.length; i++) {
             searchHits[i] = reordered[i - keepTopN];
         }
         return searchHits;
     }
 
+    SearchHit[] executeScript(final SearchHit[] searchHits, final ScriptInfo scriptInfo) {
+        RerankTask.ensureCurrentNotCancelled();
+        final RerankContext rerankContext = RerankContext.current();
+        final Factory factory;
+        if (ModelRanker.LANG.equals(scriptInfo.getLang())) {
+            factory = null;
+        } else {
+            final long compileStartTime = System.nanoTime();
+            factory = compileScript(scriptInfo);
+            if (rerankContext != null) {
+                rerankContext.add(RerankContext.Stage.SCRIPT_COMPILE, System.nanoTime() - compileStartTime);
+            }
+        }
+        final ScriptExecuteEvent event = DynaRankEvents.AVAILABLE ? ScriptExecuteEvent.start() : null;
+        final long executeStartTime = System.nanoTime();
+        final SearchHit[] reordered;
+        try {
+            if (factory == null) {
+                reordered = modelRanker.execute(searchHits, scriptInfo.getScript(), scriptInfo.getSettings(), getFeatureStore());
+            } else {
+                reordered = factory.newInstance(scriptInfo.getSettings()).execute(searchHits);
+            }
+        } finally {
+            if (rerankContext != null) {
+                rerankContext.add(RerankContext.Stage.SCRIPT_EXECUTE, System.nanoTime() - executeStartTime);
+            }
+            if (event != null) {
+                event.finish(scriptInfo.getLang(), scriptInfo.getScript(), searchHits.length);
+            }
+        }
+        RerankTask.ensureCurrentNotCancelled();
+        return reordered;
+    }
+
+    private Factory compileScript(final ScriptInfo scriptInfo) {
+        return scriptService.compile(new Script(scriptInfo.getScriptType(), scriptInfo.getLang(), scriptInfo.getScript(),
+                scriptInfo.getSettings()), DynaRankScript.CONTEXT);
+    }
+
+    /**
+     * Compiles a script or loads a model of a config.
+     */
+    void prepareScript(final ScriptInfo scriptInfo) {
+        if (ModelRanker.LANG.equals(scriptInfo.getLang())) {
+            modelRanker.load(scriptInfo.getScript());
+        } else {
+            compileScript(scriptInfo);
+        }
+    }
+
+    private RerankTask registerRerankTask(final Task parentTask, final SearchRequest request, final int windowSize) {
+        final TaskId parentTaskId =
+                parentTask != null ? new TaskId(clusterService.localNode().getId(), parentTask.getId()) : TaskId.EMPTY_TASK_ID;
+        final CancellableTask parent = parentTask instanceof CancellableTask ? (CancellableTask) parentTask : null;
+        final String description = "indices[" + String.join(",", request.indices()) + "], window_size[" + windowSize + "]";
+        return (RerankTask) taskManager.register("transport", RerankTask.ACTION, new TaskAwareRequest() {
+            @Override
+            public void setParentTask(final TaskId taskId) {
+                // the parent task is fixed
+            }
+
+            @Override
+            public TaskId getParentTask() {
+                return parentTaskId;
+            }
+
+            @Override
+            public Task createTask(final long id, final String type, final String action, final TaskId parentTaskId,
+                    final Map<String, String> headers) {
+                return new RerankTask(id, type, action, description, parentTaskId, headers, parent);
+            }
+        });
+    }
+
+    static Long parseMinTotalHits(final String value) {
+        if (value == null) {
+            return null;
+        }
+        try {
+            return Long.valueOf(value.trim());
+        } catch (final NumberFormatException e) {
+            throw new IllegalArgumentException("Invalid " + DYNARANK_MIN_TOTAL_HITS + " header: " + value, e);
+        }
+    }
+
     private int getInt(final Object value, final int defaultValue) {
         if (value instanceof Number) {
             final int v = ((Number) value).intValue();
@@ -492,21 +1550,68 @@ public class DynamicRanker extends AbstractLifecycleComponent {
 
         private int keepTopN;
 
+        private boolean adaptive;
+
+        private int minReorderSize;
+
+        private int maxReorderSize;
+
+        private TimeValue overheadBudget;
+
+        private boolean coalesce;
+
+        private List<String> rerankKeyFields;
+
+        private String collapseField;
+
+        private int collapseInnerHitsSize;
+
+        private long slowLogWarnThreshold = -1;
+
+        private long slowLogInfoThreshold = -1;
+
+        private long slowLogDebugThreshold = -1;
+
         ScriptInfo() {
             // nothing
         }
 
-        ScriptInfo(final String script, final String lang, final String scriptType, final Settings settings, final int reorderSize, final int keepTopN, final MappingMetadata mappingMetadata) {
-            this.script = script;
-            this.lang = lang;
-            this.reorderSize = reorderSize;
-            this.keepTopN=keepTopN;
+        ScriptInfo(final Settings indexSettings, final MappingMetadata mappingMetadata) {
+            this.script = SETTING_INDEX_DYNARANK_SCRIPT.get(indexSettings);
+            this.lang = SETTING_INDEX_DYNARANK_LANG.get(indexSettings);
+            this.reorderSize = SETTING_INDEX_DYNARANK_REORDER_SIZE.get(indexSettings);
+            this.keepTopN = SETTING_INDEX_DYNARANK_KEEP_TOPN.get(indexSettings);
+            this.adaptive = SETTING_INDEX_DYNARANK_ADAPTIVE_ENABLED.get(indexSettings);
+            final int maxSize = SETTING_INDEX_DYNARANK_ADAPTIVE_MAX_REORDER_SIZE.get(indexSettings);
+            this.maxReorderSize = maxSize < 0 ? reorderSize : maxSize;
+            this.minReorderSize = Math.min(SETTING_INDEX_DYNARANK_ADAPTIVE_MIN_REORDER_SIZE.get(indexSettings), maxReorderSize);
+            this.overheadBudget = SETTING_INDEX_DYNARANK_ADAPTIVE_OVERHEAD_BUDGET.get(indexSettings);
+            this.coalesce = SETTING_INDEX_DYNARANK_COALESCE_ENABLED.get(indexSettings);
+            this.slowLogWarnThreshold = SETTING_INDEX_DYNARANK_SLOWLOG_THRESHOLD_WARN.get(indexSettings).nanos();
+            this.slowLogInfoThreshold = SETTING_INDEX_DYNARANK_SLOWLOG_THRESHOLD_INFO.get(indexSettings).nanos();
+            this.slowLogDebugThreshold = SETTING_INDEX_DYNARANK_SLOWLOG_THRESHOLD_DEBUG.get(indexSettings).nanos();
+            final Settings settings = SETTING_INDEX_DYNARANK_PARAMS.get(indexSettings);
+            if (SETTING_INDEX_DYNARANK_RERANK_KEYS_ENABLED.get(indexSettings)) {
+                final List<String> fields = SETTING_INDEX_DYNARANK_RERANK_KEYS_FIELDS.get(indexSettings);
+                this.rerankKeyFields = fields.isEmpty() ? settings.getAsList("diversity_fields") : fields;
+                if (this.rerankKeyFields.isEmpty()) {
+                    this.rerankKeyFields = null;
+                }
+            }
+            final String scriptType = SETTING_INDEX_DYNARANK_TYPE.get(indexSettings);
             this.settings = new HashMap<>();
             for (final String name : settings.keySet()) {
                 final List<String> list = settings.getAsList(name);
                 this.settings.put(name, list.toArray(new String[list.size()]));
             }
-            this.settings.put("source_as_map", mappingMetadata.getSourceAsMap());
+            // an index without mappings has no fields to collapse
+            final Map<String, Object> sourceAsMap =
+                    mappingMetadata != null ? mappingMetadata.getSourceAsMap() : Collections.<String, Object> emptyMap();
+            this.settings.put("source_as_map", sourceAsMap);
+            if (SETTING_INDEX_DYNARANK_COLLAPSE_ENABLED.get(indexSettings)) {
+                this.collapseField = getCollapseField(settings, sourceAsMap);
+                this.collapseInnerHitsSize = SETTING_INDEX_DYNARANK_COLLAPSE_INNER_HITS_SIZE.get(indexSettings);
+            }
             if ("STORED".equalsIgnoreCase(scriptType)) {
                 this.scriptType = ScriptType.STORED;
             } else {
@@ -539,10 +1644,95 @@ public class DynamicRanker extends AbstractLifecycleComponent {
             return keepTopN;
         }
 
+        public boolean isAdaptive() {
+            return adaptive;
+        }
+
+        public int getMinReorderSize() {
+            return minReorderSize;
+        }
+
+        public int getMaxReorderSize() {
+            return maxReorderSize;
+        }
+
+        public TimeValue getOverheadBudget() {
+            return overheadBudget;
+        }
+
+        public boolean isCoalesce() {
+            return coalesce;
+        }
+
+        public List<String> getRerankKeyFields() {
+            return rerankKeyFields;
+        }
+
+        public String getCollapseField() {
+            return collapseField;
+        }
+
+        public int getCollapseInnerHitsSize() {
+            return collapseInnerHitsSize;
+        }
+
+        /**
+         * @return the threshold in nanoseconds, or -1 if disabled
+         */
+        public long getSlowLogWarnThreshold() {
+            return slowLogWarnThreshold;
+        }
+
+        public long getSlowLogInfoThreshold() {
+            return slowLogInfoThreshold;
+        }
+
+        public long getSlowLogDebugThreshold() {
+            return slowLogDebugThreshold;
+        }
+
+        public boolean isSlowLogEnabled() {
+            return slowLogWarnThreshold >= 0 || slowLogInfoThreshold >= 0 || slowLogDebugThreshold >= 0;
+        }
+
+        /**
+         * @return the diversity field if round-robin by its exact values is
+         *         what StandardBuckets does, or null
+         */
+        private String getCollapseField(final Settings params, final Map<String, Object> sourceAsMap) {
+            if (!DiversitySortScriptEngine.SCRIPT_NAME.equals(lang) || keepTopN > 0) {
+                return null;
+            }
+            final List<String> bucketFactory = params.getAsList("bucket_factory");
+            if (!bucketFactory.isEmpty() && !"standard".equals(bucketFactory.get(0))) {
+                return null;
+            }
+            final List<String> fields = params.getAsList("diversity_fields");
+            if (fields.size() != 1) {
+                return null;
+            }
+            final String field = fields.get(0);
+            final Set<String> names = params.keySet();
+            if (names.contains(field + "_ignored_objects") || names.contains("min_bucket_threshold")
+                    || names.contains("max_bucket_threshold")) {
+                return null;
+            }
+            final Object properties = sourceAsMap.get("properties");
+            if (properties instanceof Map) {
+                final Object mapping = ((Map<?, ?>) properties).get(field);
+                if (mapping instanceof Map && "keyword".equals(((Map<?, ?>) mapping).get("type"))) {
+                    return field;
+                }
+            }
+            return null;
+        }
+
         @Override
         public String toString() {
             return "ScriptInfo [script=" + script + ", lang=" + lang + ", scriptType=" + scriptType + ", settings=" + settings
-                    + ", reorderSize=" + reorderSize   + ", keepTopN=" + keepTopN + "]";
+                    + ", reorderSize=" + reorderSize + ", keepTopN=" + keepTopN + ", adaptive=" + adaptive + ", minReorderSize="
+                    + minReorderSize + ", maxReorderSize=" + maxReorderSize + ", overheadBudget=" + overheadBudget + ", coalesce="
+                    + coalesce + ", rerankKeyFields=" + rerankKeyFields + ", collapseField=" + collapseField + "]";
         }
     }
 
@@ -560,21 +1750,11 @@ public class DynamicRanker extends AbstractLifecycleComponent {
             }
 
             try {
+                final Metadata metadata = clusterService.state().getMetadata();
                 for (final Map.Entry<String, ScriptInfo> entry : scriptInfoCache.asMap().entrySet()) {
                     final String index = entry.getKey();
-
-                    final IndexMetadata indexMD = clusterService.state().getMetadata().index(index);
-                    if (indexMD == null) {
-                        scriptInfoCache.invalidate(index);
-                        if (logger.isDebugEnabled()) {
-                            logger.debug("Invalidate cache for {}", index);
-                        }
-                        continue;
-                    }
-
-                    final Settings indexSettings = indexMD.getSettings();
-                    final String script = SETTING_INDEX_DYNARANK_SCRIPT.get(indexSettings);
-                    if (script == null || script.length() == 0) {
+                    final ScriptInfo scriptInfo = scriptInfoResolver.resolve(metadata, index);
+                    if (scriptInfo == null || scriptInfo.getScript() == null || scriptInfo.getScript().length() == 0) {
                         scriptInfoCache.invalidate(index);
                         if (logger.isDebugEnabled()) {
                             logger.debug("Invalidate cache for {}", index);
@@ -582,15 +1762,13 @@ public class DynamicRanker extends AbstractLifecycleComponent {
                         continue;
                     }
 
-                    final ScriptInfo scriptInfo = new ScriptInfo(script, SETTING_INDEX_DYNARANK_LANG.get(indexSettings),
-                            SETTING_INDEX_DYNARANK_TYPE.get(indexSettings), SETTING_INDEX_DYNARANK_PARAMS.get(indexSettings),
-                            SETTING_INDEX_DYNARANK_REORDER_SIZE.get(indexSettings),   SETTING_INDEX_DYNARANK_KEEP_TOPN.get(indexSettings),
-                            indexMD.mapping());
                     if (logger.isDebugEnabled()) {
                         logger.debug("Reload cache for {} => {}", index, scriptInfo);
                     }
                     scriptInfoCache.put(index, scriptInfo);
                 }
+                scriptInfoResolver.prune(metadata);
+                reorderSizeControllers.keySet().removeIf(index -> scriptInfoCache.getIfPresent(index) == null);
             } catch (final Exception e) {
                 logger.warn("Failed to update a cache for ScriptInfo.", e);
             } finally {
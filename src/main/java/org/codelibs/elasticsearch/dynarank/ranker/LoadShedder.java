@@ -0,0 +1,318 @@
+package org.codelibs.elasticsearch.dynarank.ranker;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.lang.management.MemoryUsage;
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.elasticsearch.action.ActionListener;
+import org.elasticsearch.common.settings.Setting;
+import org.elasticsearch.common.settings.Setting.Property;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.core.TimeValue;
+import org.elasticsearch.xcontent.ToXContent;
+import org.elasticsearch.xcontent.ToXContentObject;
+import org.elasticsearch.xcontent.XContentBuilder;
+
+/**
+ * Degrades reranking on a saturated coordinating node. The pressure is the
+ * highest ratio of in-flight reranked searches, p99 latency of recent
+ * reranked searches and heap usage to their limits. The mode steps up one
+ * level per interval while the pressure is over 1, and steps down after the
+ * pressure stays under the recover ratio for recover_count intervals.
+ */
+public class LoadShedder implements ToXContentObject {
+
+    private static final Logger logger = LogManager.getLogger(LoadShedder.class);
+
+    public static final Setting<Boolean> SETTING_DYNARANK_LOAD_SHEDDING_ENABLED =
+            Setting.boolSetting("dynarank.load_shedding.enabled", false, Property.NodeScope);
+
+    public static final Setting<TimeValue> SETTING_DYNARANK_LOAD_SHEDDING_INTERVAL =
+            Setting.timeSetting("dynarank.load_shedding.interval", TimeValue.timeValueSeconds(1), Property.NodeScope);
+
+    public static final Setting<Integer> SETTING_DYNARANK_LOAD_SHEDDING_MAX_IN_FLIGHT =
+            Setting.intSetting("dynarank.load_shedding.max_in_flight", 100, 1, Property.NodeScope);
+
+    public static final Setting<TimeValue> SETTING_DYNARANK_LOAD_SHEDDING_MAX_LATENCY =
+            Setting.timeSetting("dynarank.load_shedding.max_latency", TimeValue.timeValueMillis(500), Property.NodeScope);
+
+    public static final Setting<Double> SETTING_DYNARANK_LOAD_SHEDDING_MAX_HEAP_USAGE =
+            Setting.doubleSetting("dynarank.load_shedding.max_heap_usage", 0.95, 0.0, Property.NodeScope);
+
+    public static final Setting<Double> SETTING_DYNARANK_LOAD_SHEDDING_RECOVER_RATIO =
+            Setting.doubleSetting("dynarank.load_shedding.recover_ratio", 0.7, 0.0, Property.NodeScope);
+
+    public static final Setting<Integer> SETTING_DYNARANK_LOAD_SHEDDING_RECOVER_COUNT =
+            Setting.intSetting("dynarank.load_shedding.recover_count", 5, 1, Property.NodeScope);
+
+    public static final Setting<Double> SETTING_DYNARANK_LOAD_SHEDDING_WINDOW_RATIO =
+            Setting.doubleSetting("dynarank.load_shedding.window_ratio", 0.5, 0.0, Property.NodeScope);
+
+    public enum Mode {
+        /** reranks with the reorder size */
+        NORMAL,
+        /** reranks with the reorder size multiplied by window_ratio */
+        SMALL_WINDOW,
+        /** reranks hits up to the requested page without inflating the search */
+        PAGE_ONLY,
+        /** does not rerank */
+        BYPASS;
+    }
+
+    static final int LATENCY_SAMPLES = 256;
+
+    private static final MemoryMXBean MEMORY_MX_BEAN = ManagementFactory.getMemoryMXBean();
+
+    private final boolean enabled;
+
+    private final long intervalNanos;
+
+    private final int maxInFlight;
+
+    private final long maxLatencyNanos;
+
+    private final double maxHeapUsage;
+
+    private final double recoverRatio;
+
+    private final int recoverCount;
+
+    private final double windowRatio;
+
+    private final LongAdder inFlight = new LongAdder();
+
+    private final AtomicLongArray latencies = new AtomicLongArray(LATENCY_SAMPLES);
+
+    private final AtomicLong latencyCount = new AtomicLong();
+
+    private final AtomicBoolean evaluating = new AtomicBoolean();
+
+    private final LongAdder[] transitionCounts = new LongAdder[Mode.values().length];
+
+    private final LongAdder[] requestCounts = new LongAdder[Mode.values().length];
+
+    private volatile Mode mode = Mode.NORMAL;
+
+    private volatile long lastEvaluation = System.nanoTime();
+
+    private long lastLatencyCount;
+
+    private int calmCount;
+
+    private volatile double pressure;
+
+    private volatile long lastInFlight;
+
+    private volatile long lastLatencyP99;
+
+    private volatile double lastHeapUsage;
+
+    public LoadShedder(final Settings settings) {
+        enabled = SETTING_DYNARANK_LOAD_SHEDDING_ENABLED.get(settings);
+        intervalNanos = SETTING_DYNARANK_LOAD_SHEDDING_INTERVAL.get(settings).nanos();
+        maxInFlight = SETTING_DYNARANK_LOAD_SHEDDING_MAX_IN_FLIGHT.get(settings);
+        maxLatencyNanos = SETTING_DYNARANK_LOAD_SHEDDING_MAX_LATENCY.get(settings).nanos();
+        maxHeapUsage = SETTING_DYNARANK_LOAD_SHEDDING_MAX_HEAP_USAGE.get(settings);
+        recoverRatio = SETTING_DYNARANK_LOAD_SHEDDING_RECOVER_RATIO.get(settings);
+        recoverCount = SETTING_DYNARANK_LOAD_SHEDDING_RECOVER_COUNT.get(settings);
+        windowRatio = SETTING_DYNARANK_LOAD_SHEDDING_WINDOW_RATIO.get(settings);
+        for (int i = 0; i < transitionCounts.length; i++) {
+            transitionCounts[i] = new LongAdder();
+            requestCounts[i] = new LongAdder();
+        }
+    }
+
+    /**
+     * @return the mode for a new request, evaluated at most once per interval
+     */
+    public Mode getMode() {
+        if (!enabled) {
+            return Mode.NORMAL;
+        }
+        final long now = System.nanoTime();
+        if (now - lastEvaluation >= intervalNanos && evaluating.compareAndSet(false, true)) {
+            try {
+                if (now - lastEvaluation >= intervalNanos) {
+                    evaluate(getInFlight(), getLatencyP99(), getHeapUsage());
+                    lastEvaluation = now;
+                }
+            } finally {
+                evaluating.set(false);
+            }
+        }
+        return mode;
+    }
+
+    /**
+     * @param from from of the request
+     * @param size size of the request
+     * @return the reorder size in the mode, or -1 to skip reranking
+     */
+    public int getReorderSize(final Mode mode, final int reorderSize, final int from, final int size) {
+        requestCounts[mode.ordinal()].increment();
+        switch (mode) {
+        case SMALL_WINDOW:
+            return Math.max(Math.min(reorderSize, from + size), (int) (reorderSize * windowRatio));
+        case PAGE_ONLY:
+            return Math.min(reorderSize, from + size);
+        case BYPASS:
+            return -1;
+        default:
+            return reorderSize;
+        }
+    }
+
+    /**
+     * Counts a reranked search as in flight until the listener is completed,
+     * and records its latency.
+     */
+    public <Response> ActionListener<Response> track(final ActionListener<Response> listener, final long startTime) {
+        if (!enabled) {
+            return listener;
+        }
+        inFlight.increment();
+        final AtomicBoolean completed = new AtomicBoolean();
+        return new ActionListener<Response>() {
+            @Override
+            public void onResponse(final Response response) {
+                try {
+                    listener.onResponse(response);
+                } finally {
+                    onComplete(completed, startTime);
+                }
+            }
+
+            @Override
+            public void onFailure(final Exception e) {
+                try {
+                    listener.onFailure(e);
+                } finally {
+                    onComplete(completed, startTime);
+                }
+            }
+        };
+    }
+
+    private void onComplete(final AtomicBoolean completed, final long startTime) {
+        if (completed.compareAndSet(false, true)) {
+            inFlight.decrement();
+            final long count = latencyCount.getAndIncrement();
+            latencies.set((int) (count % LATENCY_SAMPLES), System.nanoTime() - startTime);
+        }
+    }
+
+    synchronized void evaluate(final long numOfInFlight, final long latencyP99, final double heapUsage) {
+        lastInFlight = numOfInFlight;
+        lastLatencyP99 = latencyP99;
+        lastHeapUsage = heapUsage;
+        double value = (double) numOfInFlight / maxInFlight;
+        if (maxLatencyNanos > 0) {
+            value = Math.max(value, (double) latencyP99 / maxLatencyNanos);
+        }
+        if (maxHeapUsage > 0) {
+            value = Math.max(value, heapUsage / maxHeapUsage);
+        }
+        pressure = value;
+
+        final Mode current = mode;
+        Mode next = current;
+        if (value >= 1) {
+            calmCount = 0;
+            if (current != Mode.BYPASS) {
+                next = Mode.values()[current.ordinal() + 1];
+            }
+        } else if (value < recoverRatio) {
+            if (current != Mode.NORMAL && ++calmCount >= recoverCount) {
+                calmCount = 0;
+                next = Mode.values()[current.ordinal() - 1];
+            }
+        } else {
+            calmCount = 0;
+        }
+        if (next != current) {
+            transitionCounts[next.ordinal()].increment();
+            mode = next;
+            logger.info("Load shedding mode: {} -> {} (in_flight: {}, latency_p99: {}ms, heap_usage: {})",
+                    current.name().toLowerCase(Locale.ROOT), next.name().toLowerCase(Locale.ROOT), numOfInFlight,
+                    TimeUnit.NANOSECONDS.toMillis(latencyP99), heapUsage);
+        }
+    }
+
+    private long getInFlight() {
+        return inFlight.sum();
+    }
+
+    /**
+     * @return p99 latency of reranked searches completed since the last
+     *         evaluation, or 0 if there is none
+     */
+    private synchronized long getLatencyP99() {
+        final long count = latencyCount.get();
+        final int n = (int) Math.min(count - lastLatencyCount, LATENCY_SAMPLES);
+        lastLatencyCount = count;
+        if (n <= 0) {
+            return 0;
+        }
+        final long[] values = new long[n];
+        for (int i = 0; i < n; i++) {
+            values[i] = latencies.get((int) ((count - 1 - i) % LATENCY_SAMPLES));
+        }
+        Arrays.sort(values);
+        return values[(int) Math.ceil(n * 0.99) - 1];
+    }
+
+    /**
+     * @return used heap to the max heap, read from the memory MXBean as the
+     *         real memory circuit breaker does
+     */
+    private double getHeapUsage() {
+        final MemoryUsage usage;
+        try {
+            usage = MEMORY_MX_BEAN.getHeapMemoryUsage();
+        } catch (final IllegalArgumentException e) {
+            // the usage of memory pools can be inconsistent while the JVM determines it
+            if (logger.isDebugEnabled()) {
+                logger.debug("Failed to get the heap usage.", e);
+            }
+            return lastHeapUsage;
+        }
+        final long max = usage.getMax();
+        if (max <= 0) {
+            return 0;
+        }
+        return (double) usage.getUsed() / max;
+    }
+
+    @Override
+    public XContentBuilder toXContent(final XContentBuilder builder, final ToXContent.Params params) throws IOException {
+        builder.startObject();
+        builder.field("enabled", enabled);
+        builder.field("mode", mode.name().toLowerCase(Locale.ROOT));
+        builder.field("pressure", pressure);
+        builder.field("in_flight", lastInFlight);
+        builder.field("latency_p99_in_millis", TimeUnit.NANOSECONDS.toMillis(lastLatencyP99));
+        builder.field("heap_usage", lastHeapUsage);
+        builder.startObject("transitions");
+        for (final Mode m : Mode.values()) {
+            builder.field(m.name().toLowerCase(Locale.ROOT), transitionCounts[m.ordinal()].sum());
+        }
+        builder.endObject();
+        builder.startObject("requests");
+        for (final Mode m : Mode.values()) {
+            builder.field(m.name().toLowerCase(Locale.ROOT), requestCounts[m.ordinal()].sum());
+        }
+        builder.endObject();
+        builder.endObject();
+        return builder;
+    }
+}
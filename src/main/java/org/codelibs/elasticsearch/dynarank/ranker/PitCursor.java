@@ -0,0 +1,173 @@
+package org.codelibs.elasticsearch.dynarank.ranker;
+
+import java.io.IOException;
+import java.util.Base64;
+
+import org.elasticsearch.common.bytes.BytesArray;
+import org.elasticsearch.common.bytes.BytesReference;
+import org.elasticsearch.common.io.stream.BytesStreamOutput;
+import org.elasticsearch.common.io.stream.StreamInput;
+import org.elasticsearch.common.io.stream.StreamOutput;
+
+/**
+ * Position in a reranked point-in-time search: the sort values of the last
+ * hit before a window, the offset in the reordered window and the window
+ * size. It is returned as a sort value of each hit and accepted in
+ * search_after.
+ *
+ * <p>A cursor does not hold the reordered window. The next page searches and
+ * reorders the same window again and skips the offset, so a script has to
+ * return the same order for the same hits.
+ */
+public class PitCursor {
+
+    static final String PREFIX = "dynarank_";
+
+    static final int MAX_SORT_VALUES = 64;
+
+    private static final byte TYPE_NULL = 0;
+
+    private static final byte TYPE_STRING = 1;
+
+    private static final byte TYPE_LONG = 2;
+
+    private static final byte TYPE_INTEGER = 3;
+
+    private static final byte TYPE_DOUBLE = 4;
+
+    private static final byte TYPE_FLOAT = 5;
+
+    private static final byte TYPE_BOOLEAN = 6;
+
+    private final Object[] windowStart;
+
+    private final int offset;
+
+    private final int windowSize;
+
+    public PitCursor(final Object[] windowStart, final int offset, final int windowSize) {
+        this.windowStart = windowStart;
+        this.offset = offset;
+        this.windowSize = windowSize;
+    }
+
+    public static boolean isCursor(final Object[] searchAfter) {
+        return searchAfter != null && searchAfter.length == 1 && searchAfter[0] instanceof String
+                && searchAfter[0].toString().startsWith(PREFIX);
+    }
+
+    public static PitCursor decode(final String value) {
+        try {
+            final byte[] bytes = Base64.getUrlDecoder().decode(value.substring(PREFIX.length()));
+            try (StreamInput in = new BytesArray(bytes).streamInput()) {
+                final int windowSize = in.readVInt();
+                final int offset = in.readVInt();
+                if (windowSize < 1 || offset < 0 || offset >= windowSize) {
+                    throw new IllegalArgumentException("Invalid window: offset=" + offset + ", size=" + windowSize);
+                }
+                final Object[] windowStart = in.readBoolean() ? readSortValues(in) : null;
+                if (in.available() > 0) {
+                    throw new IllegalArgumentException("Unexpected trailing bytes.");
+                }
+                return new PitCursor(windowStart, offset, windowSize);
+            }
+        } catch (final IOException | RuntimeException e) {
+            throw new IllegalArgumentException("Invalid search_after for DynaRank: " + value, e);
+        }
+    }
+
+    public String encode() {
+        try (BytesStreamOutput out = new BytesStreamOutput()) {
+            out.writeVInt(windowSize);
+            out.writeVInt(offset);
+            out.writeBoolean(windowStart != null);
+            if (windowStart != null) {
+                writeSortValues(out, windowStart);
+            }
+            return PREFIX + Base64.getUrlEncoder().withoutPadding().encodeToString(BytesReference.toBytes(out.bytes()));
+        } catch (final IOException e) {
+            throw new IllegalStateException("Failed to encode a cursor.", e);
+        }
+    }
+
+    private static Object[] readSortValues(final StreamInput in) throws IOException {
+        final int length = in.readVInt();
+        if (length > MAX_SORT_VALUES) {
+            throw new IllegalArgumentException("Too many sort values: " + length);
+        }
+        final Object[] values = new Object[length];
+        for (int i = 0; i < length; i++) {
+            final byte type = in.readByte();
+            switch (type) {
+            case TYPE_NULL:
+                values[i] = null;
+                break;
+            case TYPE_STRING:
+                values[i] = in.readString();
+                break;
+            case TYPE_LONG:
+                values[i] = in.readLong();
+                break;
+            case TYPE_INTEGER:
+                values[i] = in.readInt();
+                break;
+            case TYPE_DOUBLE:
+                values[i] = in.readDouble();
+                break;
+            case TYPE_FLOAT:
+                values[i] = in.readFloat();
+                break;
+            case TYPE_BOOLEAN:
+                values[i] = in.readBoolean();
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown sort value type: " + type);
+            }
+        }
+        return values;
+    }
+
+    private static void writeSortValues(final StreamOutput out, final Object[] values) throws IOException {
+        if (values.length > MAX_SORT_VALUES) {
+            throw new IllegalArgumentException("Too many sort values: " + values.length);
+        }
+        out.writeVInt(values.length);
+        for (final Object value : values) {
+            if (value == null) {
+                out.writeByte(TYPE_NULL);
+            } else if (value instanceof String) {
+                out.writeByte(TYPE_STRING);
+                out.writeString((String) value);
+            } else if (value instanceof Long) {
+                out.writeByte(TYPE_LONG);
+                out.writeLong((Long) value);
+            } else if (value instanceof Integer) {
+                out.writeByte(TYPE_INTEGER);
+                out.writeInt((Integer) value);
+            } else if (value instanceof Double) {
+                out.writeByte(TYPE_DOUBLE);
+                out.writeDouble((Double) value);
+            } else if (value instanceof Float) {
+                out.writeByte(TYPE_FLOAT);
+                out.writeFloat((Float) value);
+            } else if (value instanceof Boolean) {
+                out.writeByte(TYPE_BOOLEAN);
+                out.writeBoolean((Boolean) value);
+            } else {
+                throw new IllegalArgumentException("Unsupported sort value: " + value.getClass().getName());
+            }
+        }
+    }
+
+    public Object[] getWindowStart() {
+        return windowStart;
+    }
+
+    public int getOffset() {
+        return offset;
+    }
+
+    public int getWindowSize() {
+        return windowSize;
+    }
+}
@@ -0,0 +1,146 @@
+package org.codelibs.elasticsearch.dynarank.ranker;
+
+import java.io.IOException;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.codelibs.elasticsearch.dynarank.ranker.DynamicRanker.ScriptInfo;
+import org.elasticsearch.xcontent.ToXContent;
+import org.elasticsearch.xcontent.ToXContentObject;
+import org.elasticsearch.xcontent.XContentBuilder;
+
+/**
+ * Adjusts the effective reorder size of an index from the observed rerank
+ * overhead and from how deep in the window the returned hits come from.
+ */
+public class ReorderSizeController implements ToXContentObject {
+
+    private static final Logger logger = LogManager.getLogger(ReorderSizeController.class);
+
+    static final int ADJUST_INTERVAL = 20;
+
+    private static final double ALPHA = 0.2;
+
+    private static final String[] DISPLACEMENT_LABELS = { "0", "1", "2-3", "4-7", "8-15", "16-31", "32-63", "64+" };
+
+    private final String index;
+
+    private volatile int reorderSize;
+
+    private final LongAdder[] displacements = new LongAdder[DISPLACEMENT_LABELS.length];
+
+    private final LongAdder growCount = new LongAdder();
+
+    private final LongAdder shrinkCount = new LongAdder();
+
+    private long samples;
+
+    private int pending;
+
+    private int edgeSamples;
+
+    private double overheadEwma = -1;
+
+    private double depthEwma = -1;
+
+    private volatile int minReorderSize;
+
+    private volatile int maxReorderSize;
+
+    public ReorderSizeController(final String index, final ScriptInfo scriptInfo) {
+        this.index = index;
+        for (int i = 0; i < displacements.length; i++) {
+            displacements[i] = new LongAdder();
+        }
+        minReorderSize = scriptInfo.getMinReorderSize();
+        maxReorderSize = scriptInfo.getMaxReorderSize();
+        reorderSize = maxReorderSize;
+    }
+
+    public int getReorderSize(final ScriptInfo scriptInfo) {
+        final int min = scriptInfo.getMinReorderSize();
+        final int max = scriptInfo.getMaxReorderSize();
+        if (min != minReorderSize || max != maxReorderSize) {
+            synchronized (this) {
+                minReorderSize = min;
+                maxReorderSize = max;
+                reorderSize = Math.max(min, Math.min(max, reorderSize));
+            }
+        }
+        return reorderSize;
+    }
+
+    public void addDisplacement(final int displacement) {
+        int bin = 0;
+        if (displacement > 0) {
+            bin = Math.min(DISPLACEMENT_LABELS.length - 1, 32 - Integer.numberOfLeadingZeros(displacement));
+        }
+        displacements[bin].increment();
+    }
+
+    /**
+     * @param scriptInfo current settings of the index
+     * @param windowSize number of hits that were reordered
+     * @param depth deepest original position (exclusive) of a hit returned in the page
+     * @param overheadNanos time taken to decode, rerank and rebuild the response
+     *        on the coordinating node, without the shard phases
+     */
+    public synchronized void onRerank(final ScriptInfo scriptInfo, final int windowSize, final int depth, final long overheadNanos) {
+        samples++;
+        overheadEwma = overheadEwma < 0 ? overheadNanos : overheadEwma + ALPHA * (overheadNanos - overheadEwma);
+        depthEwma = depthEwma < 0 ? depth : depthEwma + ALPHA * (depth - depthEwma);
+        if (windowSize >= reorderSize && depth * 10 >= windowSize * 9) {
+            edgeSamples++;
+        }
+        pending++;
+        if (pending < ADJUST_INTERVAL) {
+            return;
+        }
+
+        final int min = scriptInfo.getMinReorderSize();
+        final int max = scriptInfo.getMaxReorderSize();
+        final long budget = scriptInfo.getOverheadBudget().nanos();
+        final int current = reorderSize;
+        int size = current;
+        if (budget > 0 && overheadEwma > budget) {
+            size = Math.max(min, current * 3 / 4);
+        } else if (edgeSamples * 4 > pending && (budget <= 0 || overheadEwma < budget * 0.8)) {
+            size = Math.min(max, current * 5 / 4 + 1);
+        } else if (depthEwma * 2 < current) {
+            size = Math.max(min, Math.max((int) Math.ceil(depthEwma * 2), current * 7 / 8));
+        }
+        if (size > current) {
+            growCount.increment();
+        } else if (size < current) {
+            shrinkCount.increment();
+        }
+        if (size != current && logger.isDebugEnabled()) {
+            logger.debug("reorder_size of {}: {} -> {} (overhead: {}ns, depth: {}, edge: {}/{})", index, current, size,
+                    (long) overheadEwma, depthEwma, edgeSamples, pending);
+        }
+        reorderSize = size;
+        pending = 0;
+        edgeSamples = 0;
+    }
+
+    @Override
+    public synchronized XContentBuilder toXContent(final XContentBuilder builder, final ToXContent.Params params) throws IOException {
+        builder.startObject();
+        builder.field("effective_reorder_size", reorderSize);
+        builder.field("min_reorder_size", minReorderSize);
+        builder.field("max_reorder_size", maxReorderSize);
+        builder.field("samples", samples);
+        builder.field("overhead_ewma_in_millis", overheadEwma < 0 ? 0 : overheadEwma / 1000000.0);
+        builder.field("depth_ewma", depthEwma < 0 ? 0 : depthEwma);
+        builder.field("grow_count", growCount.sum());
+        builder.field("shrink_count", shrinkCount.sum());
+        builder.startObject("displacement");
+        for (int i = 0; i < displacements.length; i++) {
+            builder.field(DISPLACEMENT_LABELS[i], displacements[i].sum());
+        }
+        builder.endObject();
+        builder.endObject();
+        return builder;
+    }
+}
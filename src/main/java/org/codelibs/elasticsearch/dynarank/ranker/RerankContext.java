@@ -0,0 +1,255 @@
+package org.codelibs.elasticsearch.dynarank.ranker;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+import org.codelibs.elasticsearch.dynarank.jfr.BucketPassEvent;
+import org.codelibs.elasticsearch.dynarank.jfr.DynaRankEvents;
+import org.codelibs.elasticsearch.dynarank.ranker.DynamicRanker.ScriptInfo;
+import org.elasticsearch.action.search.SearchResponse;
+import org.elasticsearch.search.profile.ProfileResult;
+import org.elasticsearch.xcontent.XContentBuilder;
+
+/**
+ * Time spent by each stage of a reranked search on the coordinating node.
+ * It is created for a request with profile or the slow log enabled, and is
+ * rendered next to the profile results of shards as {@link #PROFILE_FIELD}.
+ */
+public class RerankContext {
+
+    public static final String PROFILE_FIELD = "dynarank_profile";
+
+    private static final ThreadLocal<RerankContext> CURRENT = new ThreadLocal<>();
+
+    public enum Stage {
+        REWRITE, DECODE, SCRIPT_COMPILE, SCRIPT_EXECUTE, REBUILD;
+    }
+
+    private final String index;
+
+    private final ScriptInfo scriptInfo;
+
+    private final int from;
+
+    private final int size;
+
+    private final long startTime;
+
+    private final long[] timings = new long[Stage.values().length];
+
+    private final List<BucketStats> buckets = Collections.synchronizedList(new ArrayList<>());
+
+    private volatile int windowSize;
+
+    private volatile long searchTookInMillis = -1;
+
+    private volatile String fallback;
+
+    private volatile boolean coalesced;
+
+    public RerankContext(final String index, final ScriptInfo scriptInfo, final int from, final int size, final long startTime) {
+        this.index = index;
+        this.scriptInfo = scriptInfo;
+        this.from = from;
+        this.size = size;
+        this.startTime = startTime;
+    }
+
+    /**
+     * @return the context of a reranking on the current thread, or null
+     */
+    public static RerankContext current() {
+        return CURRENT.get();
+    }
+
+    static void setCurrent(final RerankContext context) {
+        if (context == null) {
+            CURRENT.remove();
+        } else {
+            CURRENT.set(context);
+        }
+    }
+
+    /**
+     * Records buckets of a diversity field if the current thread is profiled,
+     * and emits a JFR event if it is recorded.
+     *
+     * @param startTime System.nanoTime() before the buckets were built
+     */
+    public static void onBuckets(final String field, final int numOfHits, final int numOfBuckets, final long startTime) {
+        final RerankContext context = CURRENT.get();
+        if (context == null && !DynaRankEvents.AVAILABLE) {
+            return;
+        }
+        final long time = System.nanoTime() - startTime;
+        if (context != null) {
+            context.buckets.add(new BucketStats(field, numOfHits, numOfBuckets, time));
+        }
+        if (DynaRankEvents.AVAILABLE) {
+            BucketPassEvent.emit(field, numOfHits, numOfBuckets, time);
+        }
+    }
+
+    public synchronized void add(final Stage stage, final long nanos) {
+        timings[stage.ordinal()] += nanos;
+    }
+
+    public void setWindowSize(final int windowSize) {
+        this.windowSize = windowSize;
+    }
+
+    public void setSearchTookInMillis(final long searchTookInMillis) {
+        this.searchTookInMillis = searchTookInMillis;
+    }
+
+    /**
+     * @param fallback a reason why the hits were not reranked as planned
+     */
+    public void setFallback(final String fallback) {
+        this.fallback = fallback;
+    }
+
+    /**
+     * Copies stages of an inflated search and reorder shared with the
+     * request of this context. The rewrite of this request is kept.
+     */
+    public void copyFrom(final RerankContext leader) {
+        for (final Stage stage : Stage.values()) {
+            if (stage != Stage.REWRITE) {
+                add(stage, leader.getTiming(stage));
+            }
+        }
+        buckets.addAll(leader.getBuckets());
+        windowSize = leader.windowSize;
+        searchTookInMillis = leader.searchTookInMillis;
+        fallback = leader.fallback;
+        coalesced = true;
+    }
+
+    public String getIndex() {
+        return index;
+    }
+
+    public ScriptInfo getScriptInfo() {
+        return scriptInfo;
+    }
+
+    public int getFrom() {
+        return from;
+    }
+
+    public int getSize() {
+        return size;
+    }
+
+    public long getStartTime() {
+        return startTime;
+    }
+
+    public int getWindowSize() {
+        return windowSize;
+    }
+
+    public long getSearchTookInMillis() {
+        return searchTookInMillis;
+    }
+
+    public String getFallback() {
+        return fallback;
+    }
+
+    public synchronized long getTiming(final Stage stage) {
+        return timings[stage.ordinal()];
+    }
+
+    public List<BucketStats> getBuckets() {
+        synchronized (buckets) {
+            return new ArrayList<>(buckets);
+        }
+    }
+
+    /**
+     * @return a response rendering the reranking stages, or the response
+     *         itself if shards were not profiled
+     */
+    public SearchResponse attachTo(final SearchResponse response) {
+        if (response.getProfileResults().isEmpty()) {
+            return response;
+        }
+        return new ProfiledSearchResponse(response, toProfileResult());
+    }
+
+    synchronized ProfileResult toProfileResult() {
+        final Map<String, Long> breakdown = new LinkedHashMap<>();
+        long total = 0;
+        for (final Stage stage : Stage.values()) {
+            breakdown.put(stage.name().toLowerCase(Locale.ROOT), timings[stage.ordinal()]);
+            total += timings[stage.ordinal()];
+        }
+        final Map<String, Object> debug = new LinkedHashMap<>();
+        debug.put("window_size", windowSize);
+        debug.put("search_took_in_millis", searchTookInMillis);
+        debug.put("fallback", fallback);
+        debug.put("coalesced", coalesced);
+        final List<ProfileResult> children = new ArrayList<>();
+        for (final BucketStats stats : getBuckets()) {
+            final Map<String, Object> bucketDebug = new HashMap<>();
+            bucketDebug.put("hits", stats.numOfHits);
+            bucketDebug.put("buckets", stats.numOfBuckets);
+            children.add(new ProfileResult("bucket", stats.field, Collections.singletonMap("build_buckets", stats.time), bucketDebug,
+                    stats.time, Collections.emptyList()));
+        }
+        return new ProfileResult("DynaRank", index + " " + scriptInfo.getLang() + ":" + scriptInfo.getScript(), breakdown, debug,
+                total, children);
+    }
+
+    /**
+     * A search response with the reranking stages in its own field, so that
+     * clients parsing shard ids of profile results are not affected. The
+     * field is rendered on the coordinating node and is not serialized.
+     */
+    static class ProfiledSearchResponse extends SearchResponse {
+        private final ProfileResult profileResult;
+
+        ProfiledSearchResponse(final SearchResponse response, final ProfileResult profileResult) {
+            super(response.getInternalResponse(), response.getScrollId(), response.getTotalShards(), response.getSuccessfulShards(),
+                    response.getSkippedShards(), response.getTook().millis(), response.getShardFailures(), response.getClusters(),
+                    response.pointInTimeId());
+            this.profileResult = profileResult;
+        }
+
+        ProfileResult getProfileResult() {
+            return profileResult;
+        }
+
+        @Override
+        public XContentBuilder innerToXContent(final XContentBuilder builder, final Params params) throws IOException {
+            super.innerToXContent(builder, params);
+            builder.field(PROFILE_FIELD, profileResult);
+            return builder;
+        }
+    }
+
+    public static class BucketStats {
+        final String field;
+
+        final int numOfHits;
+
+        final int numOfBuckets;
+
+        final long time;
+
+        BucketStats(final String field, final int numOfHits, final int numOfBuckets, final long time) {
+            this.field = field;
+            this.numOfHits = numOfHits;
+            this.numOfBuckets = numOfBuckets;
+            this.time = time;
+        }
+    }
+}
@@ -0,0 +1,196 @@
+package org.codelibs.elasticsearch.dynarank.ranker;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Objects;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.apache.lucene.search.TotalHits;
+import org.codelibs.elasticsearch.dynarank.ranker.DynamicRanker.ScriptInfo;
+import org.elasticsearch.ElasticsearchException;
+import org.elasticsearch.action.search.SearchRequest;
+import org.elasticsearch.common.bytes.BytesReference;
+import org.elasticsearch.common.io.stream.BytesStreamOutput;
+import org.elasticsearch.common.settings.Setting;
+import org.elasticsearch.common.settings.Setting.Property;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.util.concurrent.ThreadContext;
+import org.elasticsearch.core.TimeValue;
+import org.elasticsearch.search.builder.SearchSourceBuilder;
+import org.elasticsearch.xcontent.ToXContent;
+import org.elasticsearch.xcontent.ToXContentObject;
+import org.elasticsearch.xcontent.XContentBuilder;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+
+/**
+ * Decides whether a search request is worth inflating to the reorder size
+ * before it is sent to shards.
+ */
+public class RerankPlanner implements ToXContentObject {
+
+    public static final Setting<Integer> SETTING_DYNARANK_PLANNER_HITS_CACHE_SIZE =
+            Setting.intSetting("dynarank.planner.hits_cache.size", 1000, 0, Property.NodeScope);
+
+    public static final Setting<TimeValue> SETTING_DYNARANK_PLANNER_HITS_CACHE_EXPIRE =
+            Setting.timeSetting("dynarank.planner.hits_cache.expire", TimeValue.timeValueMinutes(1), Property.NodeScope);
+
+    public enum Decision {
+        RERANK, COLLAPSE, SKIP_EMPTY_PAGE, SKIP_OUT_OF_WINDOW, SKIP_KEEP_TOPN, SKIP_HITS_ESTIMATE;
+    }
+
+    private final Cache<Key, Long> totalHitsCache;
+
+    private final LongAdder[] decisionCounts = new LongAdder[Decision.values().length];
+
+    private final LongAdder noHitsCount = new LongAdder();
+
+    private final LongAdder minTotalHitsCount = new LongAdder();
+
+    public RerankPlanner(final Settings settings) {
+        final int cacheSize = SETTING_DYNARANK_PLANNER_HITS_CACHE_SIZE.get(settings);
+        if (cacheSize > 0) {
+            totalHitsCache = CacheBuilder.newBuilder().concurrencyLevel(16).maximumSize(cacheSize)
+                    .expireAfterWrite(SETTING_DYNARANK_PLANNER_HITS_CACHE_EXPIRE.get(settings).millis(), TimeUnit.MILLISECONDS).build();
+        } else {
+            totalHitsCache = null;
+        }
+        for (int i = 0; i < decisionCounts.length; i++) {
+            decisionCounts[i] = new LongAdder();
+        }
+    }
+
+    /**
+     * Creates a key from a serialized copy of the parts of the request that
+     * change the total hits, or null if the hits cache is disabled. The
+     * authentication and the security headers are a part of the key because
+     * document level security changes the total hits per user.
+     */
+    public Key createKey(final String index, final SearchRequest request, final ThreadContext threadContext) {
+        if (totalHitsCache == null) {
+            return null;
+        }
+        final SearchSourceBuilder source = request.source();
+        try (BytesStreamOutput out = new BytesStreamOutput()) {
+            out.writeOptionalNamedWriteable(source.query());
+            out.writeOptionalNamedWriteable(source.postFilter());
+            out.writeOptionalFloat(source.minScore());
+            out.writeVInt(source.terminateAfter());
+            out.writeOptionalString(request.routing());
+            out.writeOptionalString(request.preference());
+            for (final String name : SearchCoalescer.SECURITY_HEADERS) {
+                out.writeOptionalString(threadContext.getHeader(name));
+            }
+            return new Key(index, BytesReference.toBytes(out.bytes()), threadContext.getTransient(SearchCoalescer.AUTHENTICATION_KEY));
+        } catch (final IOException e) {
+            throw new ElasticsearchException("Failed to create a key of " + index, e);
+        }
+    }
+
+    /**
+     * @param collapsible true if the request can be collapsed on the diversity field
+     */
+    public Decision plan(final Key key, final int from, final int size, final int reorderSize, final ScriptInfo scriptInfo,
+            final Long minTotalHits, final boolean collapsible) {
+        Decision decision = decide(key, from, size, reorderSize, scriptInfo, minTotalHits);
+        if (decision == Decision.RERANK && collapsible) {
+            decision = Decision.COLLAPSE;
+        }
+        decisionCounts[decision.ordinal()].increment();
+        return decision;
+    }
+
+    private Decision decide(final Key key, final int from, final int size, final int reorderSize, final ScriptInfo scriptInfo,
+            final Long minTotalHits) {
+        if (size == 0) {
+            return Decision.SKIP_EMPTY_PAGE;
+        }
+        if (from >= reorderSize) {
+            return Decision.SKIP_OUT_OF_WINDOW;
+        }
+        if (from + size <= scriptInfo.getKeepTopN()) {
+            return Decision.SKIP_KEEP_TOPN;
+        }
+        if (key != null) {
+            final Long estimate = totalHitsCache.getIfPresent(key);
+            if (estimate != null) {
+                if (estimate.longValue() == 0) {
+                    return Decision.SKIP_HITS_ESTIMATE;
+                }
+                if (minTotalHits != null && estimate.longValue() < minTotalHits.longValue()) {
+                    return Decision.SKIP_HITS_ESTIMATE;
+                }
+            }
+        }
+        return Decision.RERANK;
+    }
+
+    public void onTotalHits(final Key key, final TotalHits totalHits) {
+        if (key == null || totalHits == null) {
+            return;
+        }
+        if (totalHits.relation == TotalHits.Relation.EQUAL_TO) {
+            totalHitsCache.put(key, totalHits.value);
+        } else {
+            totalHitsCache.invalidate(key);
+        }
+    }
+
+    public void onNoHits() {
+        noHitsCount.increment();
+    }
+
+    public void onMinTotalHits() {
+        minTotalHitsCount.increment();
+    }
+
+    @Override
+    public XContentBuilder toXContent(final XContentBuilder builder, final ToXContent.Params params) throws IOException {
+        builder.startObject();
+        for (final Decision decision : Decision.values()) {
+            builder.field(decision.name().toLowerCase(), decisionCounts[decision.ordinal()].sum());
+        }
+        builder.field("late_skip_no_hits", noHitsCount.sum());
+        builder.field("late_skip_min_total_hits", minTotalHitsCount.sum());
+        builder.field("hits_cache_size", totalHitsCache != null ? totalHitsCache.size() : 0);
+        builder.endObject();
+        return builder;
+    }
+
+    public static class Key {
+        private final String index;
+
+        private final byte[] request;
+
+        private final Object authentication;
+
+        private final int hashCode;
+
+        Key(final String index, final byte[] request, final Object authentication) {
+            this.index = index;
+            this.request = request;
+            this.authentication = authentication;
+            this.hashCode = 31 * (31 * index.hashCode() + Arrays.hashCode(request)) + Objects.hashCode(authentication);
+        }
+
+        @Override
+        public int hashCode() {
+            return hashCode;
+        }
+
+        @Override
+        public boolean equals(final Object obj) {
+            if (this == obj) {
+                return true;
+            }
+            if (!(obj instanceof Key)) {
+                return false;
+            }
+            final Key other = (Key) obj;
+            return hashCode == other.hashCode && index.equals(other.index) && Arrays.equals(request, other.request)
+                    && Objects.equals(authentication, other.authentication);
+        }
+    }
+}
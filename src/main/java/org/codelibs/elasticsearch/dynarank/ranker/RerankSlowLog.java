@@ -0,0 +1,75 @@
+package org.codelibs.elasticsearch.dynarank.ranker;
+
+import java.util.Locale;
+import java.util.Objects;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.codelibs.elasticsearch.dynarank.ranker.DynamicRanker.ScriptInfo;
+import org.codelibs.elasticsearch.dynarank.ranker.RerankContext.BucketStats;
+import org.elasticsearch.search.builder.SearchSourceBuilder;
+
+/**
+ * Logs reranked searches slower than the thresholds of an index, like the
+ * search slow log. A message is built only if a threshold is exceeded.
+ */
+public final class RerankSlowLog {
+
+    private static final Logger logger = LogManager.getLogger("index.dynarank.slowlog");
+
+    private RerankSlowLog() {
+    }
+
+    /**
+     * @param context stages of the reranked search
+     * @param source source of the search request
+     */
+    public static void log(final RerankContext context, final SearchSourceBuilder source) {
+        final ScriptInfo scriptInfo = context.getScriptInfo();
+        final long tookInNanos = System.nanoTime() - context.getStartTime();
+        if (scriptInfo.getSlowLogWarnThreshold() >= 0 && tookInNanos > scriptInfo.getSlowLogWarnThreshold()) {
+            if (logger.isWarnEnabled()) {
+                logger.warn(createMessage(context, source, tookInNanos));
+            }
+        } else if (scriptInfo.getSlowLogInfoThreshold() >= 0 && tookInNanos > scriptInfo.getSlowLogInfoThreshold()) {
+            if (logger.isInfoEnabled()) {
+                logger.info(createMessage(context, source, tookInNanos));
+            }
+        } else if (scriptInfo.getSlowLogDebugThreshold() >= 0 && tookInNanos > scriptInfo.getSlowLogDebugThreshold()) {
+            if (logger.isDebugEnabled()) {
+                logger.debug(createMessage(context, source, tookInNanos));
+            }
+        }
+    }
+
+    static String createMessage(final RerankContext context, final SearchSourceBuilder source, final long tookInNanos) {
+        final StringBuilder buf = new StringBuilder(256);
+        buf.append('[').append(context.getIndex()).append("] took[").append(TimeUnit.NANOSECONDS.toMillis(tookInNanos))
+                .append("ms], search_took[").append(context.getSearchTookInMillis()).append("ms], query_hash[")
+                .append(source != null ? Objects.hashCode(source.query()) : 0).append("], from[").append(context.getFrom())
+                .append("], size[").append(context.getSize()).append("], window_size[").append(context.getWindowSize())
+                .append("], stages[");
+        boolean first = true;
+        for (final RerankContext.Stage stage : RerankContext.Stage.values()) {
+            if (!first) {
+                buf.append(", ");
+            }
+            first = false;
+            buf.append(stage.name().toLowerCase(Locale.ROOT)).append('=').append(TimeUnit.NANOSECONDS.toMicros(context.getTiming(stage)))
+                    .append("us");
+        }
+        buf.append("], buckets[");
+        first = true;
+        for (final BucketStats stats : context.getBuckets()) {
+            if (!first) {
+                buf.append(", ");
+            }
+            first = false;
+            buf.append(stats.field).append(':').append(stats.numOfHits).append("->").append(stats.numOfBuckets).append('(')
+                    .append(TimeUnit.NANOSECONDS.toMicros(stats.time)).append("us)");
+        }
+        buf.append("], fallback[").append(context.getFallback() != null ? context.getFallback() : "none").append(']');
+        return buf.toString();
+    }
+}
@@ -0,0 +1,71 @@
+package org.codelibs.elasticsearch.dynarank.ranker;
+
+import java.util.Map;
+
+import org.elasticsearch.action.search.SearchAction;
+import org.elasticsearch.tasks.CancellableTask;
+import org.elasticsearch.tasks.TaskCancelledException;
+import org.elasticsearch.tasks.TaskId;
+
+/**
+ * Reranking of a search response on the coordinating node, registered as a
+ * child task of the search. It is stopped when it or the parent search is
+ * cancelled, by checks in loops of buckets and around script execution.
+ */
+public class RerankTask extends CancellableTask {
+
+    public static final String ACTION = SearchAction.NAME + "[dynarank]";
+
+    /** The number of hits between checks in a loop of buckets. */
+    public static final int CHECK_INTERVAL = 64;
+
+    private static final ThreadLocal<RerankTask> CURRENT = new ThreadLocal<>();
+
+    private final CancellableTask parent;
+
+    public RerankTask(final long id, final String type, final String action, final String description, final TaskId parentTaskId,
+            final Map<String, String> headers, final CancellableTask parent) {
+        super(id, type, action, description, parentTaskId, headers);
+        this.parent = parent;
+    }
+
+    /**
+     * @return the reranking task on the current thread, or null
+     */
+    public static RerankTask current() {
+        return CURRENT.get();
+    }
+
+    static void setCurrent(final RerankTask task) {
+        if (task == null) {
+            CURRENT.remove();
+        } else {
+            CURRENT.set(task);
+        }
+    }
+
+    /**
+     * Throws {@link TaskCancelledException} if the reranking task on the
+     * current thread or its parent search is cancelled.
+     */
+    public static void ensureCurrentNotCancelled() {
+        final RerankTask task = CURRENT.get();
+        if (task != null) {
+            task.checkCancelled();
+        }
+    }
+
+    public void checkCancelled() {
+        if (isCancelled()) {
+            throw new TaskCancelledException("reranking cancelled [" + getReasonCancelled() + "]");
+        }
+        if (parent != null && parent.isCancelled()) {
+            throw new TaskCancelledException("parent search cancelled [" + parent.getReasonCancelled() + "]");
+        }
+    }
+
+    @Override
+    public boolean shouldCancelChildrenOnCancellation() {
+        return false;
+    }
+}
@@ -0,0 +1,212 @@
+package org.codelibs.elasticsearch.dynarank.ranker;
+
+import java.io.IOException;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.codelibs.elasticsearch.dynarank.ranker.DynamicRanker.ScriptInfo;
+import org.elasticsearch.common.bytes.BytesReference;
+import org.elasticsearch.common.document.DocumentField;
+import org.elasticsearch.common.settings.Setting;
+import org.elasticsearch.common.settings.Setting.Property;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.search.SearchHit;
+import org.elasticsearch.threadpool.ThreadPool;
+import org.elasticsearch.xcontent.ToXContent;
+import org.elasticsearch.xcontent.ToXContentObject;
+import org.elasticsearch.xcontent.XContentBuilder;
+import org.elasticsearch.xcontent.XContentFactory;
+
+/**
+ * Builds rerank configurations and compiles scripts of changed indices on a
+ * generic thread, so that the first search after a node start or a settings
+ * update does not pay for them. Synthetic hits can be reordered to warm up
+ * the bucket code.
+ */
+public class RerankWarmer implements ToXContentObject {
+
+    private static final Logger logger = LogManager.getLogger(RerankWarmer.class);
+
+    public static final Setting<Boolean> SETTING_DYNARANK_WARMUP_ENABLED =
+            Setting.boolSetting("dynarank.warmup.enabled", false, Property.NodeScope);
+
+    public static final Setting<Integer> SETTING_DYNARANK_WARMUP_SYNTHETIC_SIZE =
+            Setting.intSetting("dynarank.warmup.synthetic_size", 0, 0, Property.NodeScope);
+
+    public static final Setting<Integer> SETTING_DYNARANK_WARMUP_ITERATIONS =
+            Setting.intSetting("dynarank.warmup.iterations", 10, 1, Property.NodeScope);
+
+    private static final String[] NUMERIC_TYPES =
+            { "long", "integer", "short", "byte", "double", "float", "half_float", "scaled_float", "unsigned_long" };
+
+    private final DynamicRanker ranker;
+
+    private final ThreadPool threadPool;
+
+    private final boolean enabled;
+
+    private final int syntheticSize;
+
+    private final int iterations;
+
+    private final Set<String> pending = ConcurrentHashMap.newKeySet();
+
+    private final AtomicBoolean running = new AtomicBoolean();
+
+    private final LongAdder runCount = new LongAdder();
+
+    private final LongAdder warmedCount = new LongAdder();
+
+    private final LongAdder failureCount = new LongAdder();
+
+    private volatile long lastDuration;
+
+    public RerankWarmer(final Settings settings, final DynamicRanker ranker, final ThreadPool threadPool) {
+        this.ranker = ranker;
+        this.threadPool = threadPool;
+        enabled = SETTING_DYNARANK_WARMUP_ENABLED.get(settings);
+        syntheticSize = SETTING_DYNARANK_WARMUP_SYNTHETIC_SIZE.get(settings);
+        iterations = SETTING_DYNARANK_WARMUP_ITERATIONS.get(settings);
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * @param names indices, aliases or data streams to warm up
+     */
+    public void schedule(final Collection<String> names) {
+        if (!enabled || names.isEmpty()) {
+            return;
+        }
+        pending.addAll(names);
+        if (running.compareAndSet(false, true)) {
+            threadPool.executor(ThreadPool.Names.GENERIC).execute(this::run);
+        }
+    }
+
+    private void run() {
+        final long startTime = System.nanoTime();
+        final Set<ScriptInfo> warmed = Collections.newSetFromMap(new IdentityHashMap<>());
+        try {
+            while (!pending.isEmpty()) {
+                for (final String name : pending) {
+                    pending.remove(name);
+                    warm(name, warmed);
+                }
+            }
+        } finally {
+            lastDuration = System.nanoTime() - startTime;
+            runCount.increment();
+            running.set(false);
+            if (logger.isDebugEnabled()) {
+                logger.debug("Warmed up {} configs in {}ms", warmed.size(), TimeUnit.NANOSECONDS.toMillis(lastDuration));
+            }
+            if (!pending.isEmpty() && running.compareAndSet(false, true)) {
+                threadPool.executor(ThreadPool.Names.GENERIC).execute(this::run);
+            }
+        }
+    }
+
+    private void warm(final String name, final Set<ScriptInfo> warmed) {
+        try {
+            final ScriptInfo scriptInfo = ranker.getScriptInfo(name);
+            if (scriptInfo == null || scriptInfo.getScript() == null || !warmed.add(scriptInfo)) {
+                return;
+            }
+            ranker.prepareScript(scriptInfo);
+            if (syntheticSize > 0) {
+                for (int i = 0; i < iterations; i++) {
+                    try {
+                        ranker.executeScript(createSyntheticHits(scriptInfo), scriptInfo);
+                    } catch (final RetrySearchException e) {
+                        // min/max_bucket_threshold only
+                    }
+                }
+            }
+            warmedCount.increment();
+        } catch (final Exception e) {
+            failureCount.increment();
+            logger.warn("Failed to warm up DynaRank for " + name + ".", e);
+        }
+    }
+
+    SearchHit[] createSyntheticHits(final ScriptInfo scriptInfo) throws IOException {
+        final Map<String, Object> params = scriptInfo.getSettings();
+        final String[] fields = params.get("diversity_fields") instanceof String[] ? (String[]) params.get("diversity_fields")
+                : new String[0];
+        final Map<String, String> types = getFieldTypes(params.get("source_as_map"));
+        final SearchHit[] hits = new SearchHit[syntheticSize];
+        for (int i = 0; i < hits.length; i++) {
+            hits[i] = new SearchHit(i, "_dynarank_warmup_" + i, null, new HashMap<String, DocumentField>(),
+                    new HashMap<String, DocumentField>());
+            hits[i].score(hits.length - i);
+            try (XContentBuilder builder = XContentFactory.jsonBuilder()) {
+                builder.startObject();
+                for (final String field : fields) {
+                    if (isNumeric(types.get(field))) {
+                        builder.field(field, i % 10);
+                    } else {
+                        builder.field(field, "warmup" + (i % 10));
+                    }
+                }
+                builder.endObject();
+                hits[i].sourceRef(BytesReference.bytes(builder));
+            }
+        }
+        return hits;
+    }
+
+    @SuppressWarnings("unchecked")
+    private Map<String, String> getFieldTypes(final Object sourceAsMap) {
+        final Map<String, String> types = new HashMap<>();
+        if (sourceAsMap instanceof Map) {
+            final Object properties = ((Map<String, Object>) sourceAsMap).get("properties");
+            if (properties instanceof Map) {
+                for (final Map.Entry<String, Object> entry : ((Map<String, Object>) properties).entrySet()) {
+                    if (entry.getValue() instanceof Map) {
+                        final Object type = ((Map<String, Object>) entry.getValue()).get("type");
+                        if (type != null) {
+                            types.put(entry.getKey(), type.toString());
+                        }
+                    }
+                }
+            }
+        }
+        return types;
+    }
+
+    private boolean isNumeric(final String type) {
+        for (final String numericType : NUMERIC_TYPES) {
+            if (numericType.equals(type)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    @Override
+    public XContentBuilder toXContent(final XContentBuilder builder, final ToXContent.Params params) throws IOException {
+        builder.startObject();
+        builder.field("enabled", enabled);
+        builder.field("completed", runCount.sum() > 0 && !running.get() && pending.isEmpty());
+        builder.field("running", running.get());
+        builder.field("pending", pending.size());
+        builder.field("warmed_count", warmedCount.sum());
+        builder.field("failure_count", failureCount.sum());
+        builder.field("last_duration_in_millis", TimeUnit.NANOSECONDS.toMillis(lastDuration));
+        builder.endObject();
+        return builder;
+    }
+}
@@ -0,0 +1,175 @@
+package org.codelibs.elasticsearch.dynarank.ranker;
+
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.codelibs.elasticsearch.dynarank.ranker.DynamicRanker.ScriptInfo;
+import org.codelibs.elasticsearch.dynarank.script.DiversitySortScriptEngine;
+import org.elasticsearch.cluster.metadata.IndexAbstraction;
+import org.elasticsearch.cluster.metadata.IndexMetadata;
+import org.elasticsearch.cluster.metadata.MappingMetadata;
+import org.elasticsearch.cluster.metadata.Metadata;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.index.Index;
+
+/**
+ * Resolves a rerank configuration of an index, an alias or a data stream.
+ * {@link ScriptInfo} is built once for each distinct pair of dynarank
+ * settings and mapping and is shared by backing indices, and is rebuilt for
+ * an index only when its settings or mapping version changes. Therefore a
+ * rollover builds at most one configuration for the new write index. If
+ * backing indices of a data stream have different configurations, the one
+ * of the write index is used. An alias over indices with different
+ * configurations is reranked only if all of them are diversity sorts.
+ */
+public class ScriptInfoResolver {
+
+    private static final String SETTING_PREFIX = "index.dynarank.";
+
+    private final Map<Index, IndexConfig> indexConfigs = new ConcurrentHashMap<>();
+
+    private final Map<ConfigKey, ScriptInfo> configs = new ConcurrentHashMap<>();
+
+    /**
+     * @param name an index, an alias or a data stream
+     * @return the configuration, {@link ScriptInfo#NO_SCRIPT_INFO} if it is
+     *         not reranked, or null if the name does not exist
+     */
+    public ScriptInfo resolve(final Metadata metadata, final String name) {
+        final IndexAbstraction indexAbstraction = metadata.getIndicesLookup().get(name);
+        if (indexAbstraction == null) {
+            return null;
+        }
+
+        ScriptInfo first = null;
+        boolean distinct = false;
+        boolean diversitySort = true;
+        for (final Index index : indexAbstraction.getIndices()) {
+            final ScriptInfo scriptInfo = getScriptInfo(metadata.index(index));
+            if (scriptInfo == null) {
+                continue;
+            }
+            if (first == null) {
+                first = scriptInfo;
+            } else if (scriptInfo != first) {
+                distinct = true;
+            }
+            if (!DiversitySortScriptEngine.SCRIPT_NAME.equals(scriptInfo.getLang())) {
+                diversitySort = false;
+            }
+        }
+
+        if (first == null) {
+            return ScriptInfo.NO_SCRIPT_INFO;
+        } else if (!distinct) {
+            return first;
+        }
+        // backing indices were created with different settings, and the latest one is used
+        final Index writeIndex = indexAbstraction.getType() == IndexAbstraction.Type.DATA_STREAM ? indexAbstraction.getWriteIndex() : null;
+        if (writeIndex != null) {
+            final ScriptInfo scriptInfo = getScriptInfo(metadata.index(writeIndex));
+            if (scriptInfo != null) {
+                return scriptInfo;
+            }
+        }
+        return diversitySort ? first : ScriptInfo.NO_SCRIPT_INFO;
+    }
+
+    private ScriptInfo getScriptInfo(final IndexMetadata indexMetadata) {
+        if (indexMetadata == null) {
+            return null;
+        }
+        final IndexConfig indexConfig = indexConfigs.get(indexMetadata.getIndex());
+        if (indexConfig != null && indexConfig.settingsVersion == indexMetadata.getSettingsVersion()
+                && indexConfig.mappingVersion == indexMetadata.getMappingVersion()) {
+            return indexConfig.scriptInfo;
+        }
+
+        final Settings indexSettings = indexMetadata.getSettings();
+        final ScriptInfo scriptInfo;
+        if (DynamicRanker.SETTING_INDEX_DYNARANK_LANG.get(indexSettings).length() > 0) {
+            final ConfigKey key = new ConfigKey(indexSettings.getByPrefix(SETTING_PREFIX), indexMetadata.mapping());
+            scriptInfo = configs.computeIfAbsent(key, k -> new ScriptInfo(indexSettings, indexMetadata.mapping()));
+        } else {
+            scriptInfo = null;
+        }
+        indexConfigs.put(indexMetadata.getIndex(),
+                new IndexConfig(indexMetadata.getSettingsVersion(), indexMetadata.getMappingVersion(), scriptInfo));
+        return scriptInfo;
+    }
+
+    /**
+     * Removes configurations of indices that no longer exist.
+     */
+    public void prune(final Metadata metadata) {
+        indexConfigs.keySet().removeIf(index -> {
+            final IndexMetadata indexMetadata = metadata.index(index.getName());
+            return indexMetadata == null || !indexMetadata.getIndexUUID().equals(index.getUUID());
+        });
+        final Set<ScriptInfo> used = Collections.newSetFromMap(new IdentityHashMap<>());
+        for (final IndexConfig indexConfig : indexConfigs.values()) {
+            if (indexConfig.scriptInfo != null) {
+                used.add(indexConfig.scriptInfo);
+            }
+        }
+        configs.values().removeIf(scriptInfo -> !used.contains(scriptInfo));
+    }
+
+    public void clear() {
+        indexConfigs.clear();
+        configs.clear();
+    }
+
+    int getNumOfConfigs() {
+        return configs.size();
+    }
+
+    private static class IndexConfig {
+        private final long settingsVersion;
+
+        private final long mappingVersion;
+
+        private final ScriptInfo scriptInfo;
+
+        IndexConfig(final long settingsVersion, final long mappingVersion, final ScriptInfo scriptInfo) {
+            this.settingsVersion = settingsVersion;
+            this.mappingVersion = mappingVersion;
+            this.scriptInfo = scriptInfo;
+        }
+    }
+
+    private static class ConfigKey {
+        private final Settings settings;
+
+        private final MappingMetadata mapping;
+
+        private final int hashCode;
+
+        ConfigKey(final Settings settings, final MappingMetadata mapping) {
+            this.settings = settings;
+            this.mapping = mapping;
+            this.hashCode = Objects.hash(settings, mapping);
+        }
+
+        @Override
+        public int hashCode() {
+            return hashCode;
+        }
+
+        @Override
+        public boolean equals(final Object obj) {
+            if (this == obj) {
+                return true;
+            }
+            if (!(obj instanceof ConfigKey)) {
+                return false;
+            }
+            final ConfigKey other = (ConfigKey) obj;
+            return hashCode == other.hashCode && settings.equals(other.settings) && Objects.equals(mapping, other.mapping);
+        }
+    }
+}
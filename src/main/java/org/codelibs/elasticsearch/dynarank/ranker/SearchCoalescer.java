@@ -0,0 +1,257 @@
+package org.codelibs.elasticsearch.dynarank.ranker;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.codelibs.elasticsearch.dynarank.ranker.DynamicRanker.ScriptInfo;
+import org.elasticsearch.action.ActionListener;
+import org.elasticsearch.action.search.SearchRequest;
+import org.elasticsearch.action.search.SearchResponse;
+import org.elasticsearch.action.search.SearchType;
+import org.elasticsearch.action.support.IndicesOptions;
+import org.elasticsearch.common.util.concurrent.ThreadContext;
+import org.elasticsearch.tasks.Task;
+import org.elasticsearch.xcontent.ToXContent;
+import org.elasticsearch.xcontent.ToXContentObject;
+import org.elasticsearch.xcontent.XContentBuilder;
+
+/**
+ * Shares one inflated search and reorder between identical concurrent
+ * requests. Requests are identical only if their rewritten source, request
+ * options, authentication and the headers in {@link #KEY_HEADERS} are equal.
+ * Other headers, such as X-Opaque-Id or traceparent, differ per request and
+ * do not change the response.
+ */
+public class SearchCoalescer implements ToXContentObject {
+
+    static final String AUTHENTICATION_KEY = "_xpack_security_authentication";
+
+    /** headers that change the documents a user can see */
+    static final String[] SECURITY_HEADERS = { AUTHENTICATION_KEY, "es-security-runas-user", "Authorization" };
+
+    static final String[] KEY_HEADERS =
+            { AUTHENTICATION_KEY, "es-security-runas-user", "Authorization", DynamicRanker.DYNARANK_MIN_TOTAL_HITS };
+
+    private static final ActionListener<Object> JOINED = new ActionListener<Object>() {
+        @Override
+        public void onResponse(final Object response) {
+            throw new IllegalStateException("A joined request does not receive a response.");
+        }
+
+        @Override
+        public void onFailure(final Exception e) {
+            throw new IllegalStateException("A joined request does not receive a failure.", e);
+        }
+    };
+
+    private final Map<Key, InFlight> inFlights = new ConcurrentHashMap<>();
+
+    private final LongAdder leaderCount = new LongAdder();
+
+    private final LongAdder joinedCount = new LongAdder();
+
+    private final LongAdder redispatchedCount = new LongAdder();
+
+    @SuppressWarnings("unchecked")
+    public static <Response> ActionListener<Response> joinedListener() {
+        return (ActionListener<Response>) (ActionListener<?>) JOINED;
+    }
+
+    public static boolean isJoined(final ActionListener<?> listener) {
+        return listener == JOINED;
+    }
+
+    public Key createKey(final String index, final SearchRequest request, final ThreadContext threadContext, final ScriptInfo scriptInfo,
+            final int reorderSize) {
+        final Map<String, String> headers = new HashMap<>();
+        for (final String name : KEY_HEADERS) {
+            final String value = threadContext.getHeader(name);
+            if (value != null) {
+                headers.put(name, value);
+            }
+        }
+        return new Key(index, request, headers, threadContext.getTransient(AUTHENTICATION_KEY), scriptInfo, reorderSize);
+    }
+
+    /**
+     * @return a new in-flight search if the caller has to execute it, or null
+     *         if the caller joined a running one
+     */
+    public InFlight startOrJoin(final Key key, final Waiter waiter) {
+        while (true) {
+            final InFlight inFlight = new InFlight(key);
+            final InFlight existing = inFlights.putIfAbsent(key, inFlight);
+            if (existing == null) {
+                inFlight.add(waiter);
+                leaderCount.increment();
+                return inFlight;
+            }
+            if (existing.add(waiter)) {
+                joinedCount.increment();
+                return null;
+            }
+            // completed while joining
+            inFlights.remove(key, existing);
+        }
+    }
+
+    /**
+     * Counts a request searched again by itself because the search it joined
+     * was cancelled by another request.
+     */
+    public void onRedispatch() {
+        redispatchedCount.increment();
+    }
+
+    @Override
+    public XContentBuilder toXContent(final XContentBuilder builder, final ToXContent.Params params) throws IOException {
+        builder.startObject();
+        builder.field("executed_count", leaderCount.sum());
+        builder.field("joined_count", joinedCount.sum());
+        builder.field("redispatched_count", redispatchedCount.sum());
+        builder.field("in_flight", inFlights.size());
+        builder.endObject();
+        return builder;
+    }
+
+    public class InFlight {
+        private final Key key;
+
+        private final List<Waiter> waiters = new ArrayList<>();
+
+        private boolean closed;
+
+        InFlight(final Key key) {
+            this.key = key;
+        }
+
+        synchronized boolean add(final Waiter waiter) {
+            if (closed) {
+                return false;
+            }
+            waiters.add(waiter);
+            return true;
+        }
+
+        /**
+         * Stops accepting waiters and returns the ones to be notified.
+         */
+        public List<Waiter> complete() {
+            inFlights.remove(key, this);
+            synchronized (this) {
+                closed = true;
+                return new ArrayList<>(waiters);
+            }
+        }
+    }
+
+    public static class Waiter {
+        final SearchRequest request;
+
+        final Task task;
+
+        final int from;
+
+        final int size;
+
+        final long startTime;
+
+        final ActionListener<SearchResponse> listener;
+
+        final ThreadContext.StoredContext context;
+
+        final RerankContext rerankContext;
+
+        /**
+         * @param task the search task of the request, or null
+         * @param context the thread context of the request, restored when
+         *        the request is searched again by itself
+         */
+        public Waiter(final SearchRequest request, final Task task, final int from, final int size, final long startTime,
+                final ActionListener<SearchResponse> listener, final ThreadContext.StoredContext context,
+                final RerankContext rerankContext) {
+            this.request = request;
+            this.task = task;
+            this.from = from;
+            this.size = size;
+            this.startTime = startTime;
+            this.listener = listener;
+            this.context = context;
+            this.rerankContext = rerankContext;
+        }
+    }
+
+    public static class Key {
+        private final String index;
+
+        private final String source;
+
+        private final SearchType searchType;
+
+        private final String routing;
+
+        private final String preference;
+
+        private final IndicesOptions indicesOptions;
+
+        private final Boolean requestCache;
+
+        private final Boolean allowPartialSearchResults;
+
+        private final Map<String, String> headers;
+
+        private final Object authentication;
+
+        private final ScriptInfo scriptInfo;
+
+        private final int reorderSize;
+
+        private final int hashCode;
+
+        Key(final String index, final SearchRequest request, final Map<String, String> headers, final Object authentication,
+                final ScriptInfo scriptInfo, final int reorderSize) {
+            this.index = index;
+            this.source = request.source().toString();
+            this.searchType = request.searchType();
+            this.routing = request.routing();
+            this.preference = request.preference();
+            this.indicesOptions = request.indicesOptions();
+            this.requestCache = request.requestCache();
+            this.allowPartialSearchResults = request.allowPartialSearchResults();
+            this.headers = headers;
+            this.authentication = authentication;
+            this.scriptInfo = scriptInfo;
+            this.reorderSize = reorderSize;
+            this.hashCode = Objects.hash(index, source, searchType, routing, preference, indicesOptions, requestCache,
+                    allowPartialSearchResults, headers, authentication, reorderSize);
+        }
+
+        @Override
+        public int hashCode() {
+            return hashCode;
+        }
+
+        @Override
+        public boolean equals(final Object obj) {
+            if (this == obj) {
+                return true;
+            }
+            if (!(obj instanceof Key)) {
+                return false;
+            }
+            final Key other = (Key) obj;
+            return hashCode == other.hashCode && reorderSize == other.reorderSize && scriptInfo == other.scriptInfo
+                    && index.equals(other.index) && source.equals(other.source) && searchType == other.searchType
+                    && Objects.equals(routing, other.routing) && Objects.equals(preference, other.preference)
+                    && Objects.equals(indicesOptions, other.indicesOptions) && Objects.equals(requestCache, other.requestCache)
+                    && Objects.equals(allowPartialSearchResults, other.allowPartialSearchResults) && headers.equals(other.headers)
+                    && Objects.equals(authentication, other.authentication);
+        }
+    }
+}
@@ -0,0 +1,40 @@
+package org.codelibs.elasticsearch.dynarank.rest;
+
+import static org.elasticsearch.rest.RestRequest.Method.GET;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.List;
+
+import org.codelibs.elasticsearch.dynarank.ranker.DynamicRanker;
+import org.elasticsearch.client.node.NodeClient;
+import org.elasticsearch.rest.BaseRestHandler;
+import org.elasticsearch.rest.BytesRestResponse;
+import org.elasticsearch.rest.RestRequest;
+import org.elasticsearch.rest.RestStatus;
+import org.elasticsearch.xcontent.XContentBuilder;
+
+public class RestDynaRankStatsAction extends BaseRestHandler {
+
+    @Override
+    public String getName() {
+        return "dynarank_stats_action";
+    }
+
+    @Override
+    public List<Route> routes() {
+        return Collections.singletonList(new Route(GET, "/_dynarank/stats"));
+    }
+
+    @Override
+    protected RestChannelConsumer prepareRequest(final RestRequest request, final NodeClient client) throws IOException {
+        return channel -> {
+            final XContentBuilder builder = channel.newBuilder();
+            builder.startObject();
+            builder.field("node", client.getLocalNodeId());
+            DynamicRanker.getInstance().toStatsXContent(builder, request);
+            builder.endObject();
+            channel.sendResponse(new BytesRestResponse(RestStatus.OK, builder));
+        };
+    }
+}
@@ -13,8 +13,13 @@ import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 import org.codelibs.elasticsearch.dynarank.script.bucket.BucketFactory;
 import org.codelibs.elasticsearch.dynarank.script.bucket.Buckets;
+import org.codelibs.elasticsearch.dynarank.script.bucket.impl.GeoBucketFactory;
+import org.codelibs.elasticsearch.dynarank.script.bucket.impl.KeyBucketFactory;
 import org.codelibs.elasticsearch.dynarank.script.bucket.impl.MinhashBucketFactory;
+import org.codelibs.elasticsearch.dynarank.script.bucket.impl.MmrBucketFactory;
+import org.codelibs.elasticsearch.dynarank.script.bucket.impl.SimhashBucketFactory;
 import org.codelibs.elasticsearch.dynarank.script.bucket.impl.StandardBucketFactory;
+import org.codelibs.elasticsearch.dynarank.script.bucket.impl.TimeBucketFactory;
 import org.elasticsearch.ElasticsearchException;
 import org.elasticsearch.common.settings.Setting;
 import org.elasticsearch.common.settings.Setting.Property;
@@ -32,6 +37,16 @@ public class DiversitySortScriptEngine implements ScriptEngine {
 
     private static final String MINHASH = "minhash";
 
+    private static final String KEY = "key";
+
+    private static final String MMR = "mmr";
+
+    private static final String SIMHASH = "simhash";
+
+    private static final String GEO = "geo";
+
+    private static final String TIME = "time";
+
     public static final Setting<Settings> SETTING_SCRIPT_DYNARANK_BUCKET =
             Setting.groupSetting("script.dynarank.bucket.", Property.NodeScope);
 
@@ -44,6 +59,11 @@ public class DiversitySortScriptEngine implements ScriptEngine {
         bucketFactories = new HashMap<>();
         bucketFactories.put(STANDARD, new StandardBucketFactory(settings));
         bucketFactories.put(MINHASH, new MinhashBucketFactory(settings));
+        bucketFactories.put(KEY, new KeyBucketFactory(settings));
+        bucketFactories.put(MMR, new MmrBucketFactory(settings));
+        bucketFactories.put(SIMHASH, new SimhashBucketFactory(settings));
+        bucketFactories.put(GEO, new GeoBucketFactory(settings));
+        bucketFactories.put(TIME, new TimeBucketFactory(settings));
 
         for (final String name : bucketSettings.names()) {
             try {
@@ -2,6 +2,8 @@ package org.codelibs.elasticsearch.dynarank.script;
 
 import java.util.Map;
 
+import org.codelibs.elasticsearch.dynarank.feature.FeatureStore;
+import org.codelibs.elasticsearch.dynarank.ranker.DynamicRanker;
 import org.elasticsearch.script.ScriptContext;
 import org.elasticsearch.search.SearchHit;
 
@@ -17,6 +19,16 @@ public abstract class DynaRankScript {
         return params;
     }
 
+    /**
+     * Painless scripts read it as featureStore variable.
+     *
+     * @return features of documents on this node, or an empty store
+     */
+    public FeatureStore getFeatureStore() {
+        final DynamicRanker ranker = DynamicRanker.getInstance();
+        return ranker != null ? ranker.getFeatureStore() : FeatureStore.EMPTY;
+    }
+
     public abstract SearchHit[] execute(final SearchHit[] searchHits);
 
     public interface Factory {
@@ -0,0 +1,57 @@
+package org.codelibs.elasticsearch.dynarank.script.bucket.impl;
+
+import org.elasticsearch.search.SearchHit;
+
+/**
+ * Round-robin interleaving of hits grouped by bucket ids, in the same order
+ * as {@link StandardBuckets#createHits(int, java.util.List)}.
+ */
+public final class BucketInterleaver {
+
+    private BucketInterleaver() {
+    }
+
+    /**
+     * @param hits hits in the current order
+     * @param bucketIds bucket id of each hit, numbered by first appearance
+     * @param numOfBuckets number of bucket ids
+     * @return hits taking one from each bucket in turn
+     */
+    public static SearchHit[] interleave(final SearchHit[] hits, final int[] bucketIds, final int numOfBuckets) {
+        final int length = hits.length;
+        final int[] starts = new int[numOfBuckets + 1];
+        for (int i = 0; i < length; i++) {
+            starts[bucketIds[i] + 1]++;
+        }
+        for (int i = 0; i < numOfBuckets; i++) {
+            starts[i + 1] += starts[i];
+        }
+        final int[] positions = new int[numOfBuckets];
+        System.arraycopy(starts, 0, positions, 0, numOfBuckets);
+        final int[] grouped = new int[length];
+        for (int i = 0; i < length; i++) {
+            grouped[positions[bucketIds[i]]++] = i;
+        }
+        System.arraycopy(starts, 0, positions, 0, numOfBuckets);
+
+        final int[] active = new int[numOfBuckets];
+        for (int i = 0; i < numOfBuckets; i++) {
+            active[i] = i;
+        }
+        int numOfActive = numOfBuckets;
+        int pos = 0;
+        final SearchHit[] newHits = new SearchHit[length];
+        while (numOfActive > 0) {
+            int next = 0;
+            for (int i = 0; i < numOfActive; i++) {
+                final int bucket = active[i];
+                newHits[pos++] = hits[grouped[positions[bucket]++]];
+                if (positions[bucket] < starts[bucket + 1]) {
+                    active[next++] = bucket;
+                }
+            }
+            numOfActive = next;
+        }
+        return newHits;
+    }
+}
@@ -0,0 +1,249 @@
+package org.codelibs.elasticsearch.dynarank.script.bucket.impl;
+
+import java.util.Locale;
+import java.util.Map;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.apache.lucene.geo.GeoEncodingUtils;
+import org.codelibs.elasticsearch.dynarank.fetch.RerankKeys;
+import org.codelibs.elasticsearch.dynarank.ranker.RerankContext;
+import org.codelibs.elasticsearch.dynarank.script.bucket.BucketFactory;
+import org.codelibs.elasticsearch.dynarank.script.bucket.Buckets;
+import org.elasticsearch.ElasticsearchException;
+import org.elasticsearch.common.document.DocumentField;
+import org.elasticsearch.common.geo.GeoPoint;
+import org.elasticsearch.common.geo.GeoUtils;
+import org.elasticsearch.common.unit.DistanceUnit;
+import org.elasticsearch.geometry.utils.Geohash;
+import org.elasticsearch.search.SearchHit;
+import org.elasticsearch.search.aggregations.bucket.geogrid.GeoTileUtils;
+
+/**
+ * Groups hits by geohash or geotile cells of a geo_point field. With a
+ * radius, a hit joins the first bucket whose first hit is within the
+ * radius, and only buckets in cells covering the radius around the hit are
+ * compared, or all buckets if they are fewer than the cells.
+ */
+public class GeoBuckets implements Buckets {
+
+    private static final Logger logger = LogManager.getLogger(GeoBuckets.class);
+
+    private static final String GEOHASH = "geohash";
+
+    private static final String GEOTILE = "geotile";
+
+    protected BucketFactory bucketFactory;
+
+    protected Map<String, Object> params;
+
+    public GeoBuckets(final BucketFactory bucketFactory, final Map<String, Object> params) {
+        this.bucketFactory = bucketFactory;
+        this.params = params;
+    }
+
+    @Override
+    public SearchHit[] getHits(final SearchHit[] searchHits) {
+        SearchHit[] hits = searchHits;
+        final int length = hits.length;
+        final String[] diversityFields = (String[]) params.get("diversity_fields");
+        if (diversityFields == null) {
+            throw new ElasticsearchException("diversity_fields is null.");
+        }
+        final double[] radiuses = parseRadiuses((String[]) params.get("diversity_thresholds"), diversityFields.length);
+        final String grid = getParam("geo_grid", GEOHASH).toLowerCase(Locale.ROOT);
+        final int precision;
+        final long xCells;
+        final long yCells;
+        if (GEOHASH.equals(grid)) {
+            precision = getPrecision(5, 1, Geohash.PRECISION);
+            xCells = Math.round(360 / Geohash.lonWidthInDegrees(precision));
+            yCells = Math.round(180 / Geohash.latHeightInDegrees(precision));
+        } else if (GEOTILE.equals(grid)) {
+            precision = getPrecision(12, 0, GeoTileUtils.MAX_ZOOM);
+            xCells = 1L << precision;
+            yCells = xCells;
+        } else {
+            throw new ElasticsearchException("geo_grid must be geohash or geotile: " + grid);
+        }
+
+        if (logger.isDebugEnabled()) {
+            logger.debug("diversity_fields: {}, geo_grid: {}, geo_precision: {}", diversityFields, grid, precision);
+        }
+        final double[] lats = new double[length];
+        final double[] lons = new double[length];
+        final long[] xs = new long[length];
+        final long[] ys = new long[length];
+        final int[] bucketIds = new int[length];
+        final int[] representatives = new int[length];
+        final int[] chains = new int[length];
+        final LongIntHashMap cellMap = new LongIntHashMap(length);
+        for (int i = diversityFields.length - 1; i >= 0; i--) {
+            final String diversityField = diversityFields[i];
+            final long bucketStartTime = System.nanoTime();
+            for (int j = 0; j < length; j++) {
+                final GeoPoint point = getGeoPoint(hits[j], diversityField);
+                if (point == null) {
+                    if (logger.isDebugEnabled()) {
+                        logger.debug("diversityField {} does not exist. Reranking is skipped.", diversityField);
+                    }
+                    return hits;
+                }
+                lats[j] = point.lat();
+                lons[j] = point.lon();
+                if (GEOTILE.equals(grid)) {
+                    xs[j] = GeoTileUtils.getXTile(lons[j], xCells);
+                    ys[j] = GeoTileUtils.getYTile(lats[j], yCells);
+                } else {
+                    xs[j] = Math.min(xCells - 1, (long) Math.floor((lons[j] + 180) / 360 * xCells));
+                    ys[j] = Math.min(yCells - 1, (long) Math.floor((lats[j] + 90) / 180 * yCells));
+                }
+            }
+
+            final double radius = radiuses[i];
+            // in degrees, with a margin for the approximation of arcDistance
+            final double angularRadius = Math.toDegrees(radius * 1.01 / GeoUtils.EARTH_MEAN_RADIUS);
+            cellMap.clear();
+            int numOfBuckets = 0;
+            for (int j = 0; j < length; j++) {
+                final long cell = ys[j] * xCells + xs[j];
+                if (radius <= 0) {
+                    final int bucketId = cellMap.putIfAbsent(cell, numOfBuckets);
+                    if (bucketId == numOfBuckets) {
+                        numOfBuckets++;
+                    }
+                    bucketIds[j] = bucketId;
+                    continue;
+                }
+                // cells of the bounding box of the radius, and one more cell on each side for points on borders
+                final double minLat = lats[j] - angularRadius;
+                final double maxLat = lats[j] + angularRadius;
+                final long minY;
+                final long maxY;
+                if (GEOTILE.equals(grid)) {
+                    minY = Math.max(0, GeoTileUtils.getYTile(Math.min(90, maxLat), yCells) - 1);
+                    maxY = Math.min(yCells - 1, GeoTileUtils.getYTile(Math.max(-90, minLat), yCells) + 1);
+                } else {
+                    minY = Math.max(0, (long) Math.floor((minLat + 90) / 180 * yCells) - 1);
+                    maxY = Math.min(yCells - 1, (long) Math.floor((maxLat + 90) / 180 * yCells) + 1);
+                }
+                long minX = 0;
+                long numOfXs = xCells;
+                if (minLat > -90 && maxLat < 90) {
+                    final double ratio = Math.sin(Math.toRadians(angularRadius)) / Math.cos(Math.toRadians(lats[j]));
+                    if (ratio < 1) {
+                        final double lonRadius = Math.toDegrees(Math.asin(ratio));
+                        minX = (long) Math.floor((lons[j] - lonRadius + 180) / 360 * xCells) - 1;
+                        numOfXs = Math.min(xCells, (long) Math.floor((lons[j] + lonRadius + 180) / 360 * xCells) + 1 - minX + 1);
+                    }
+                }
+                int bucketId = -1;
+                if ((maxY - minY + 1) * numOfXs > numOfBuckets) {
+                    // fewer buckets than cells to look up
+                    for (int candidate = 0; candidate < numOfBuckets && bucketId == -1; candidate++) {
+                        final int r = representatives[candidate];
+                        if (GeoUtils.arcDistance(lats[j], lons[j], lats[r], lons[r]) <= radius) {
+                            bucketId = candidate;
+                        }
+                    }
+                } else {
+                    for (long y = minY; y <= maxY; y++) {
+                        for (long dx = 0; dx < numOfXs; dx++) {
+                            final long x = ((minX + dx) % xCells + xCells) % xCells;
+                            int candidate = cellMap.get(y * xCells + x, -1);
+                            while (candidate != -1) {
+                                if (bucketId == -1 || candidate < bucketId) {
+                                    final int r = representatives[candidate];
+                                    if (GeoUtils.arcDistance(lats[j], lons[j], lats[r], lons[r]) <= radius) {
+                                        bucketId = candidate;
+                                    }
+                                }
+                                candidate = chains[candidate];
+                            }
+                        }
+                    }
+                }
+                if (bucketId == -1) {
+                    bucketId = numOfBuckets++;
+                    representatives[bucketId] = j;
+                    chains[bucketId] = cellMap.put(cell, bucketId, -1);
+                }
+                bucketIds[j] = bucketId;
+            }
+            if (logger.isDebugEnabled()) {
+                logger.debug("{} docs -> {} buckets", length, numOfBuckets);
+            }
+            hits = BucketInterleaver.interleave(hits, bucketIds, numOfBuckets);
+            RerankContext.onBuckets(diversityField, length, numOfBuckets, bucketStartTime);
+        }
+        return hits;
+    }
+
+    private String getParam(final String name, final String defaultValue) {
+        final String[] values = (String[]) params.get(name);
+        if (values == null || values.length == 0) {
+            return defaultValue;
+        }
+        return values[0];
+    }
+
+    private int getPrecision(final int defaultValue, final int min, final int max) {
+        final String value = getParam("geo_precision", null);
+        if (value == null) {
+            return defaultValue;
+        }
+        try {
+            final int precision = Integer.parseInt(value);
+            if (precision >= min && precision <= max) {
+                return precision;
+            }
+        } catch (final NumberFormatException e) {
+            // invalid value
+        }
+        throw new ElasticsearchException("geo_precision must be between " + min + " and " + max + ": " + value);
+    }
+
+    private static double[] parseRadiuses(final String[] thresholds, final int numOfFields) {
+        final double[] radiuses = new double[numOfFields];
+        if (thresholds != null) {
+            for (int i = 0; i < thresholds.length && i < numOfFields; i++) {
+                try {
+                    radiuses[i] = DistanceUnit.parse(thresholds[i], DistanceUnit.METERS, DistanceUnit.METERS);
+                } catch (final IllegalArgumentException e) {
+                    throw new ElasticsearchException("Invalid value of diversity_thresholds: " + thresholds[i], e);
+                }
+            }
+        }
+        return radiuses;
+    }
+
+    /**
+     * @return a point from rerank keys (encoded doc values), fields or
+     *         _source, or null if the hit does not have it
+     */
+    private GeoPoint getGeoPoint(final SearchHit hit, final String fieldName) {
+        final Object key = RerankKeys.getRawValue(hit, fieldName);
+        if (key instanceof Long) {
+            final long encoded = (Long) key;
+            return new GeoPoint(GeoEncodingUtils.decodeLatitude((int) (encoded >>> 32)), GeoEncodingUtils.decodeLongitude((int) encoded));
+        }
+        final Object value;
+        final DocumentField field = hit.getFields().get(fieldName);
+        if (field == null) {
+            value = hit.getSourceAsMap().get(fieldName);
+        } else {
+            value = field.getValue();
+        }
+        if (value == null) {
+            return null;
+        }
+        try {
+            return GeoUtils.parseGeoPoint(value, true);
+        } catch (final RuntimeException e) {
+            if (logger.isDebugEnabled()) {
+                logger.debug("Failed to parse {} of {}: {}", fieldName, hit.getId(), value, e);
+            }
+            return null;
+        }
+    }
+}
@@ -0,0 +1,111 @@
+package org.codelibs.elasticsearch.dynarank.script.bucket.impl;
+
+import java.util.Map;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.codelibs.elasticsearch.dynarank.fetch.RerankKeys;
+import org.codelibs.elasticsearch.dynarank.ranker.RerankContext;
+import org.codelibs.elasticsearch.dynarank.script.bucket.BucketFactory;
+import org.codelibs.elasticsearch.dynarank.script.bucket.Buckets;
+import org.elasticsearch.ElasticsearchException;
+import org.elasticsearch.common.document.DocumentField;
+import org.elasticsearch.search.SearchHit;
+
+/**
+ * Groups hits by long keys precomputed at index time, such as the ones
+ * written by the dynarank_diversity_key ingest processor.
+ */
+public class KeyBuckets implements Buckets {
+
+    private static final Logger logger = LogManager.getLogger(KeyBuckets.class);
+
+    protected BucketFactory bucketFactory;
+
+    protected Map<String, Object> params;
+
+    public KeyBuckets(final BucketFactory bucketFactory, final Map<String, Object> params) {
+        this.bucketFactory = bucketFactory;
+        this.params = params;
+    }
+
+    @Override
+    public SearchHit[] getHits(final SearchHit[] searchHits) {
+        SearchHit[] hits = searchHits;
+        final int length = hits.length;
+        final String[] diversityFields = (String[]) params.get("diversity_fields");
+        if (diversityFields == null) {
+            throw new ElasticsearchException("diversity_fields is null.");
+        }
+
+        if (logger.isDebugEnabled()) {
+            logger.debug("diversity_fields: {}", (Object) diversityFields);
+        }
+        final long[] keys = new long[length];
+        final int[] bucketIds = new int[length];
+        final LongIntHashMap bucketMap = new LongIntHashMap(length);
+        for (int i = diversityFields.length - 1; i >= 0; i--) {
+            final String diversityField = diversityFields[i];
+            final long bucketStartTime = System.nanoTime();
+            for (int j = 0; j < length; j++) {
+                final Object value = getFieldValue(hits[j], diversityField);
+                if (!(value instanceof Number)) {
+                    if (logger.isDebugEnabled()) {
+                        logger.debug("diversityField {} does not exist. Reranking is skipped.", diversityField);
+                    }
+                    return hits;
+                }
+                keys[j] = ((Number) value).longValue();
+            }
+
+            final LongIntHashMap ignoredKeys = getIgnoredKeys(diversityField);
+            bucketMap.clear();
+            int numOfBuckets = 0;
+            for (int j = 0; j < length; j++) {
+                if (ignoredKeys != null && ignoredKeys.get(keys[j], -1) != -1) {
+                    bucketIds[j] = numOfBuckets++;
+                } else {
+                    final int bucketId = bucketMap.putIfAbsent(keys[j], numOfBuckets);
+                    if (bucketId == numOfBuckets) {
+                        numOfBuckets++;
+                    }
+                    bucketIds[j] = bucketId;
+                }
+            }
+            if (logger.isDebugEnabled()) {
+                logger.debug("{} docs -> {} buckets", length, numOfBuckets);
+            }
+            hits = BucketInterleaver.interleave(hits, bucketIds, numOfBuckets);
+            RerankContext.onBuckets(diversityField, length, numOfBuckets, bucketStartTime);
+        }
+        return hits;
+    }
+
+    private LongIntHashMap getIgnoredKeys(final String diversityField) {
+        final String[] ignoredObjs = (String[]) params.get(diversityField + "_ignored_objects");
+        if (ignoredObjs == null || ignoredObjs.length == 0) {
+            return null;
+        }
+        final LongIntHashMap ignoredKeys = new LongIntHashMap(ignoredObjs.length);
+        for (final String ignoredObj : ignoredObjs) {
+            try {
+                ignoredKeys.putIfAbsent(Long.parseLong(ignoredObj), 0);
+            } catch (final NumberFormatException e) {
+                throw new ElasticsearchException("Invalid value of " + diversityField + "_ignored_objects: " + ignoredObj, e);
+            }
+        }
+        return ignoredKeys;
+    }
+
+    private Object getFieldValue(final SearchHit hit, final String fieldName) {
+        final Object key = RerankKeys.getValue(hit, fieldName);
+        if (key != null) {
+            return key;
+        }
+        final DocumentField field = hit.getFields().get(fieldName);
+        if (field == null) {
+            return hit.getSourceAsMap().get(fieldName);
+        }
+        return field.getValue();
+    }
+}
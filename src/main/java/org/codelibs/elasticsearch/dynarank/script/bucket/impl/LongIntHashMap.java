@@ -0,0 +1,124 @@
+package org.codelibs.elasticsearch.dynarank.script.bucket.impl;
+
+import java.util.Arrays;
+
+/**
+ * Open addressing map from long keys to int values without boxing.
+ */
+public class LongIntHashMap {
+
+    private long[] keys;
+
+    private int[] values;
+
+    private boolean[] used;
+
+    private int mask;
+
+    private int size;
+
+    public LongIntHashMap(final int expectedSize) {
+        int capacity = 4;
+        while (capacity < expectedSize * 2) {
+            capacity <<= 1;
+        }
+        keys = new long[capacity];
+        values = new int[capacity];
+        used = new boolean[capacity];
+        mask = capacity - 1;
+    }
+
+    /**
+     * @return the value of the key, or missingValue if the key does not exist
+     */
+    public int get(final long key, final int missingValue) {
+        int slot = slot(key);
+        while (used[slot]) {
+            if (keys[slot] == key) {
+                return values[slot];
+            }
+            slot = (slot + 1) & mask;
+        }
+        return missingValue;
+    }
+
+    /**
+     * @return the current value of the key, or value if the key is added
+     */
+    public int putIfAbsent(final long key, final int value) {
+        int slot = slot(key);
+        while (used[slot]) {
+            if (keys[slot] == key) {
+                return values[slot];
+            }
+            slot = (slot + 1) & mask;
+        }
+        used[slot] = true;
+        keys[slot] = key;
+        values[slot] = value;
+        size++;
+        if (size * 2 > keys.length) {
+            resize();
+        }
+        return value;
+    }
+
+    /**
+     * @return the previous value of the key, or missingValue if the key is added
+     */
+    public int put(final long key, final int value, final int missingValue) {
+        int slot = slot(key);
+        while (used[slot]) {
+            if (keys[slot] == key) {
+                final int previous = values[slot];
+                values[slot] = value;
+                return previous;
+            }
+            slot = (slot + 1) & mask;
+        }
+        used[slot] = true;
+        keys[slot] = key;
+        values[slot] = value;
+        size++;
+        if (size * 2 > keys.length) {
+            resize();
+        }
+        return missingValue;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public void clear() {
+        Arrays.fill(used, false);
+        size = 0;
+    }
+
+    private int slot(final long key) {
+        long h = key * 0x9E3779B97F4A7C15L;
+        h ^= h >>> 32;
+        return (int) h & mask;
+    }
+
+    private void resize() {
+        final long[] oldKeys = keys;
+        final int[] oldValues = values;
+        final boolean[] oldUsed = used;
+        keys = new long[oldKeys.length * 2];
+        values = new int[oldKeys.length * 2];
+        used = new boolean[oldKeys.length * 2];
+        mask = keys.length - 1;
+        for (int i = 0; i < oldKeys.length; i++) {
+            if (oldUsed[i]) {
+                int slot = slot(oldKeys[i]);
+                while (used[slot]) {
+                    slot = (slot + 1) & mask;
+                }
+                used[slot] = true;
+                keys[slot] = oldKeys[i];
+                values[slot] = oldValues[i];
+            }
+        }
+    }
+}
@@ -2,6 +2,9 @@ package org.codelibs.elasticsearch.dynarank.script.bucket.impl;
 
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
+import org.codelibs.elasticsearch.dynarank.fetch.RerankKeys;
+import org.codelibs.elasticsearch.dynarank.ranker.RerankContext;
+import org.codelibs.elasticsearch.dynarank.ranker.RerankTask;
 import org.codelibs.elasticsearch.dynarank.ranker.RetrySearchException;
 import org.codelibs.elasticsearch.dynarank.script.bucket.Bucket;
 import org.codelibs.elasticsearch.dynarank.script.bucket.BucketFactory;
@@ -65,11 +68,16 @@ public class MinhashBuckets implements Buckets {
         int minNumOfBuckets = Integer.MAX_VALUE;
         for (int i = diversityFields.length - 1; i >= 0; i--) {
             final String diversityField = diversityFields[i];
+            final long bucketStartTime = System.nanoTime();
+            RerankTask.ensureCurrentNotCancelled();
             final boolean isMinhash = Arrays.asList(minhashFields).contains(diversityField);
             final float diversityThreshold = diversityThresholds[i];
             final Object[] ignoredObjs = ignoredObjGroups[i];
             final List<Bucket> bucketList = new ArrayList<>();
             for (int j = 0; j < length; j++) {
+                if (j > 0 && j % RerankTask.CHECK_INTERVAL == 0) {
+                    RerankTask.ensureCurrentNotCancelled();
+                }
                 boolean insert = false;
                 final SearchHit hit = hits[j];
                 final Object value = getFieldValue(hit, diversityField);
@@ -108,6 +116,7 @@ public class MinhashBuckets implements Buckets {
                 minNumOfBuckets = bucketList.size();
             }
             hits = createHits(length, bucketList);
+            RerankContext.onBuckets(diversityField, length, bucketList.size(), bucketStartTime);
         }
 
         int minBucketThreshold = 0;
@@ -175,6 +184,10 @@ public class MinhashBuckets implements Buckets {
     }
 
     private Object getFieldValue(final SearchHit hit, final String fieldName) {
+        final Object key = RerankKeys.getValue(hit, fieldName);
+        if (key != null) {
+            return key;
+        }
         final DocumentField field = hit.getFields().get(fieldName);
         if (field == null) {
             final Map<String, Object> source = hit.getSourceAsMap();
@@ -0,0 +1,203 @@
+package org.codelibs.elasticsearch.dynarank.script.bucket.impl;
+
+import java.util.List;
+import java.util.Map;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.codelibs.elasticsearch.dynarank.fetch.RerankKeys;
+import org.codelibs.elasticsearch.dynarank.ranker.RerankTask;
+import org.codelibs.elasticsearch.dynarank.script.bucket.BucketFactory;
+import org.codelibs.elasticsearch.dynarank.script.bucket.Buckets;
+import org.elasticsearch.ElasticsearchException;
+import org.elasticsearch.common.document.DocumentField;
+import org.elasticsearch.search.SearchHit;
+
+/**
+ * Reorders hits by Maximal Marginal Relevance over dense vectors: each step
+ * selects the hit with the best balance of relevance and maximum cosine
+ * similarity to the hits already selected.
+ */
+public class MmrBuckets implements Buckets {
+
+    private static final Logger logger = LogManager.getLogger(MmrBuckets.class);
+
+    protected BucketFactory bucketFactory;
+
+    protected Map<String, Object> params;
+
+    public MmrBuckets(final BucketFactory bucketFactory, final Map<String, Object> params) {
+        this.bucketFactory = bucketFactory;
+        this.params = params;
+    }
+
+    @Override
+    public SearchHit[] getHits(final SearchHit[] searchHits) {
+        final int length = searchHits.length;
+        final String[] diversityFields = (String[]) params.get("diversity_fields");
+        if (diversityFields == null || diversityFields.length == 0) {
+            throw new ElasticsearchException("diversity_fields is null.");
+        }
+        final float lambda = getLambda();
+        final String vectorField = diversityFields[0];
+        if (logger.isDebugEnabled()) {
+            logger.debug("diversity_fields: {}, mmr_lambda: {}", vectorField, lambda);
+        }
+        if (length < 2) {
+            return searchHits;
+        }
+
+        float[] vectors = null;
+        int dims = 0;
+        for (int i = 0; i < length; i++) {
+            final Object value = getFieldValue(searchHits[i], vectorField);
+            final int size = getDims(value);
+            if (size <= 0 || (vectors != null && size != dims)) {
+                if (logger.isDebugEnabled()) {
+                    logger.debug("diversityField {} is not a vector of the same dims. Reranking is skipped.", vectorField);
+                }
+                return searchHits;
+            }
+            if (vectors == null) {
+                dims = size;
+                vectors = new float[length * dims];
+            }
+            readVector(value, vectors, i * dims, dims);
+        }
+
+        final float[] relevances = getRelevances(searchHits);
+        final float[] maxSimilarities = new float[length];
+        final boolean[] selected = new boolean[length];
+        final SearchHit[] newSearchHits = new SearchHit[length];
+        for (int n = 0; n < length; n++) {
+            if (n > 0 && n % RerankTask.CHECK_INTERVAL == 0) {
+                RerankTask.ensureCurrentNotCancelled();
+            }
+            int best = -1;
+            float bestValue = Float.NEGATIVE_INFINITY;
+            for (int i = 0; i < length; i++) {
+                if (!selected[i]) {
+                    final float value = lambda * relevances[i] - (1 - lambda) * maxSimilarities[i];
+                    if (best == -1 || value > bestValue) {
+                        best = i;
+                        bestValue = value;
+                    }
+                }
+            }
+            selected[best] = true;
+            newSearchHits[n] = searchHits[best];
+
+            final int offset = best * dims;
+            for (int i = 0; i < length; i++) {
+                if (!selected[i]) {
+                    final int base = i * dims;
+                    float similarity = 0;
+                    for (int j = 0; j < dims; j++) {
+                        similarity += vectors[offset + j] * vectors[base + j];
+                    }
+                    if (n == 0 || similarity > maxSimilarities[i]) {
+                        maxSimilarities[i] = similarity;
+                    }
+                }
+            }
+        }
+        return newSearchHits;
+    }
+
+    private float getLambda() {
+        final String[] values = (String[]) params.get("mmr_lambda");
+        if (values == null || values.length == 0) {
+            return 0.5f;
+        }
+        try {
+            final float lambda = Float.parseFloat(values[0]);
+            if (lambda >= 0 && lambda <= 1) {
+                return lambda;
+            }
+        } catch (final NumberFormatException e) {
+            // invalid value
+        }
+        throw new ElasticsearchException("mmr_lambda must be between 0 and 1: " + values[0]);
+    }
+
+    /**
+     * Scales scores to [0, 1]. The original order is used if hits are not
+     * scored.
+     */
+    private static float[] getRelevances(final SearchHit[] searchHits) {
+        final int length = searchHits.length;
+        final float[] relevances = new float[length];
+        float min = Float.POSITIVE_INFINITY;
+        float max = Float.NEGATIVE_INFINITY;
+        for (int i = 0; i < length; i++) {
+            final float score = searchHits[i].getScore();
+            if (Float.isNaN(score)) {
+                for (int j = 0; j < length; j++) {
+                    relevances[j] = 1f - (float) j / length;
+                }
+                return relevances;
+            }
+            relevances[i] = score;
+            min = Math.min(min, score);
+            max = Math.max(max, score);
+        }
+        final float range = max - min;
+        for (int i = 0; i < length; i++) {
+            relevances[i] = range > 0 ? (relevances[i] - min) / range : 1f;
+        }
+        return relevances;
+    }
+
+    private static int getDims(final Object value) {
+        if (value instanceof byte[]) {
+            final int size = ((byte[]) value).length;
+            return size % 4 == 0 ? size / 4 : -1;
+        } else if (value instanceof List) {
+            return ((List<?>) value).size();
+        }
+        return -1;
+    }
+
+    /**
+     * Copies a vector normalized to unit length, so that a dot product is
+     * the cosine similarity.
+     */
+    private static void readVector(final Object value, final float[] vectors, final int offset, final int dims) {
+        if (value instanceof byte[]) {
+            final byte[] bytes = (byte[]) value;
+            for (int i = 0; i < dims; i++) {
+                final int p = i * 4;
+                vectors[offset + i] = Float.intBitsToFloat(((bytes[p] & 0xff) << 24) | ((bytes[p + 1] & 0xff) << 16)
+                        | ((bytes[p + 2] & 0xff) << 8) | (bytes[p + 3] & 0xff));
+            }
+        } else {
+            final List<?> list = (List<?>) value;
+            for (int i = 0; i < dims; i++) {
+                final Object v = list.get(i);
+                vectors[offset + i] = v instanceof Number ? ((Number) v).floatValue() : 0f;
+            }
+        }
+        float norm = 0;
+        for (int i = 0; i < dims; i++) {
+            norm += vectors[offset + i] * vectors[offset + i];
+        }
+        if (norm > 0) {
+            final float scale = (float) (1.0 / Math.sqrt(norm));
+            for (int i = 0; i < dims; i++) {
+                vectors[offset + i] *= scale;
+            }
+        }
+    }
+
+    private Object getFieldValue(final SearchHit hit, final String fieldName) {
+        final Object key = RerankKeys.getValue(hit, fieldName);
+        if (key != null) {
+            return key;
+        }
+        final DocumentField field = hit.getFields().get(fieldName);
+        if (field == null) {
+            return hit.getSourceAsMap().get(fieldName);
+        }
+        return field.getValues();
+    }
+}
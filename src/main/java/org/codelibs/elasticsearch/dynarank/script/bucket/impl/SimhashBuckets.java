@@ -0,0 +1,171 @@
+package org.codelibs.elasticsearch.dynarank.script.bucket.impl;
+
+import java.util.Arrays;
+import java.util.Map;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.codelibs.elasticsearch.dynarank.fetch.RerankKeys;
+import org.codelibs.elasticsearch.dynarank.ranker.RerankContext;
+import org.codelibs.elasticsearch.dynarank.script.bucket.BucketFactory;
+import org.codelibs.elasticsearch.dynarank.script.bucket.Buckets;
+import org.elasticsearch.ElasticsearchException;
+import org.elasticsearch.common.document.DocumentField;
+import org.elasticsearch.search.SearchHit;
+
+/**
+ * Groups hits whose 64-bit SimHash fingerprints are within a hamming
+ * distance of the first hit of a bucket. Fingerprints are split into
+ * distance + 1 blocks, and a candidate bucket shares at least one block with
+ * the hit by the pigeonhole principle.
+ */
+public class SimhashBuckets implements Buckets {
+
+    private static final Logger logger = LogManager.getLogger(SimhashBuckets.class);
+
+    protected BucketFactory bucketFactory;
+
+    protected Map<String, Object> params;
+
+    public SimhashBuckets(final BucketFactory bucketFactory, final Map<String, Object> params) {
+        this.bucketFactory = bucketFactory;
+        this.params = params;
+    }
+
+    @Override
+    public SearchHit[] getHits(final SearchHit[] searchHits) {
+        SearchHit[] hits = searchHits;
+        final int length = hits.length;
+        final String[] diversityFields = (String[]) params.get("diversity_fields");
+        if (diversityFields == null) {
+            throw new ElasticsearchException("diversity_fields is null.");
+        }
+        final String[] thresholds = (String[]) params.get("diversity_thresholds");
+        if (thresholds == null) {
+            throw new ElasticsearchException("diversity_thresholds is null.");
+        }
+        final int[] distances = parseDistances(thresholds);
+        if (distances.length < diversityFields.length) {
+            throw new ElasticsearchException("diversity_thresholds is required for each diversity field.");
+        }
+
+        if (logger.isDebugEnabled()) {
+            logger.debug("diversity_fields: {}, : diversity_thresholds{}", diversityFields, thresholds);
+        }
+        final long[] fingerprints = new long[length];
+        final int[] bucketIds = new int[length];
+        final long[] representatives = new long[length];
+        for (int i = diversityFields.length - 1; i >= 0; i--) {
+            final String diversityField = diversityFields[i];
+            final long bucketStartTime = System.nanoTime();
+            for (int j = 0; j < length; j++) {
+                final Object value = getFieldValue(hits[j], diversityField);
+                if (!(value instanceof Number)) {
+                    if (logger.isDebugEnabled()) {
+                        logger.debug("diversityField {} does not exist. Reranking is skipped.", diversityField);
+                    }
+                    return hits;
+                }
+                fingerprints[j] = ((Number) value).longValue();
+            }
+
+            final int distance = distances[i];
+            final int numOfBlocks = distance + 1;
+            final int[] shifts = new int[numOfBlocks];
+            final long[] masks = new long[numOfBlocks];
+            int shift = 0;
+            for (int b = 0; b < numOfBlocks; b++) {
+                final int bits = 64 / numOfBlocks + (b < 64 % numOfBlocks ? 1 : 0);
+                shifts[b] = shift;
+                masks[b] = bits == 64 ? -1L : (1L << bits) - 1;
+                shift += bits;
+            }
+            final LongIntHashMap[] tables = new LongIntHashMap[numOfBlocks];
+            final int[][] chains = new int[numOfBlocks][length];
+            for (int b = 0; b < numOfBlocks; b++) {
+                tables[b] = new LongIntHashMap(length);
+            }
+            final LongIntHashMap ignoredKeys = getIgnoredKeys(diversityField);
+
+            int numOfBuckets = 0;
+            int numOfComparisons = 0;
+            for (int j = 0; j < length; j++) {
+                final long fingerprint = fingerprints[j];
+                // an ignored object has its own bucket, which later hits can join
+                final boolean ignored = ignoredKeys != null && ignoredKeys.get(fingerprint, -1) != -1;
+                int bucketId = -1;
+                for (int b = 0; b < numOfBlocks && !ignored; b++) {
+                    int candidate = tables[b].get((fingerprint >>> shifts[b]) & masks[b], -1);
+                    while (candidate != -1) {
+                        if (bucketId == -1 || candidate < bucketId) {
+                            numOfComparisons++;
+                            if (Long.bitCount(fingerprint ^ representatives[candidate]) <= distance) {
+                                bucketId = candidate;
+                            }
+                        }
+                        candidate = chains[b][candidate];
+                    }
+                }
+                if (bucketId == -1) {
+                    bucketId = numOfBuckets++;
+                    representatives[bucketId] = fingerprint;
+                    for (int b = 0; b < numOfBlocks; b++) {
+                        chains[b][bucketId] = tables[b].put((fingerprint >>> shifts[b]) & masks[b], bucketId, -1);
+                    }
+                }
+                bucketIds[j] = bucketId;
+            }
+            if (logger.isDebugEnabled()) {
+                logger.debug("{} docs -> {} buckets ({} comparisons)", length, numOfBuckets, numOfComparisons);
+            }
+            hits = BucketInterleaver.interleave(hits, bucketIds, numOfBuckets);
+            RerankContext.onBuckets(diversityField, length, numOfBuckets, bucketStartTime);
+        }
+        return hits;
+    }
+
+    private static int[] parseDistances(final String[] thresholds) {
+        final int[] distances = new int[thresholds.length];
+        for (int i = 0; i < thresholds.length; i++) {
+            try {
+                distances[i] = Integer.parseInt(thresholds[i]);
+            } catch (final NumberFormatException e) {
+                throw new ElasticsearchException("diversity_thresholds of simhash must be a number of bits: "
+                        + Arrays.toString(thresholds), e);
+            }
+            if (distances[i] < 0 || distances[i] > 63) {
+                throw new ElasticsearchException("diversity_thresholds of simhash must be between 0 and 63: "
+                        + Arrays.toString(thresholds));
+            }
+        }
+        return distances;
+    }
+
+    private LongIntHashMap getIgnoredKeys(final String diversityField) {
+        final String[] ignoredObjs = (String[]) params.get(diversityField + "_ignored_objects");
+        if (ignoredObjs == null || ignoredObjs.length == 0) {
+            return null;
+        }
+        final LongIntHashMap ignoredKeys = new LongIntHashMap(ignoredObjs.length);
+        for (final String ignoredObj : ignoredObjs) {
+            try {
+                ignoredKeys.putIfAbsent(Long.parseLong(ignoredObj), 0);
+            } catch (final NumberFormatException e) {
+                throw new ElasticsearchException("Invalid value of " + diversityField + "_ignored_objects: " + ignoredObj, e);
+            }
+        }
+        return ignoredKeys;
+    }
+
+    private Object getFieldValue(final SearchHit hit, final String fieldName) {
+        final Object key = RerankKeys.getValue(hit, fieldName);
+        if (key != null) {
+            return key;
+        }
+        final DocumentField field = hit.getFields().get(fieldName);
+        if (field == null) {
+            return hit.getSourceAsMap().get(fieldName);
+        }
+        return field.getValue();
+    }
+}
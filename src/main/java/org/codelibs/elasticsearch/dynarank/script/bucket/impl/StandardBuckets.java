@@ -6,6 +6,9 @@ import java.util.Map;
 
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
+import org.codelibs.elasticsearch.dynarank.fetch.RerankKeys;
+import org.codelibs.elasticsearch.dynarank.ranker.RerankContext;
+import org.codelibs.elasticsearch.dynarank.ranker.RerankTask;
 import org.codelibs.elasticsearch.dynarank.ranker.RetrySearchException;
 import org.codelibs.elasticsearch.dynarank.script.bucket.Bucket;
 import org.codelibs.elasticsearch.dynarank.script.bucket.BucketFactory;
@@ -25,6 +28,8 @@ public class StandardBuckets implements Buckets {
 
     private static final Logger logger = LogManager.getLogger(StandardBuckets.class);
 
+    private static final double MAX_CELL_POSITION = 1L << 52;
+
     protected BucketFactory bucketFactory;
 
     protected Map<String, Object> params;
@@ -57,50 +62,74 @@ public class StandardBuckets implements Buckets {
         }
         int maxNumOfBuckets = 0;
         int minNumOfBuckets = Integer.MAX_VALUE;
+        final Object[] values = new Object[length];
+        final int[] bucketIds = new int[length];
         for (int i = diversityFields.length - 1; i >= 0; i--) {
             final String diversityField = diversityFields[i];
+            final long bucketStartTime = System.nanoTime();
+            RerankTask.ensureCurrentNotCancelled();
             final float diversityThreshold = diversityThresholds[i];
             final Object[] ignoredObjs = ignoredObjGroups[i];
-            final List<Bucket> bucketList = new ArrayList<>();
             for (int j = 0; j < length; j++) {
-                boolean insert = false;
-                final SearchHit hit = hits[j];
-                final Object value = getFieldValue(hit, diversityField);
-                if (value == null) {
+                values[j] = getFieldValue(hits[j], diversityField);
+                if (values[j] == null) {
                     if (logger.isDebugEnabled()) {
                         logger.debug("diversityField {} does not exist. Reranking is skipped.", diversityField);
                     }
                     return hits;
                 }
-                if (ignoredObjs != null) {
-                    for (final Object ignoredObj : ignoredObjs) {
-                        if (ignoredObj.equals(value)) {
-                            bucketList.add(bucketFactory.createBucket(hit, value, diversityThreshold));
-                            insert = true;
-                            break;
-                        }
-                    }
+            }
+
+            int numOfBuckets = -1;
+            if (bucketFactory.getClass() == StandardBucketFactory.class) {
+                numOfBuckets = bucketNumbers(values, diversityThreshold, bucketIds);
+            }
+            if (numOfBuckets >= 0) {
+                if (logger.isDebugEnabled()) {
+                    logger.debug("{} docs -> {} buckets", length, numOfBuckets);
                 }
-                if (!insert) {
-                    for (final Bucket bucket : bucketList) {
-                        if (bucket.contains(value)) {
-                            bucket.add(hit, value);
-                            insert = true;
-                            break;
+                hits = BucketInterleaver.interleave(hits, bucketIds, numOfBuckets);
+            } else {
+                final List<Bucket> bucketList = new ArrayList<>();
+                for (int j = 0; j < length; j++) {
+                    if (j > 0 && j % RerankTask.CHECK_INTERVAL == 0) {
+                        RerankTask.ensureCurrentNotCancelled();
+                    }
+                    boolean insert = false;
+                    final SearchHit hit = hits[j];
+                    final Object value = values[j];
+                    if (ignoredObjs != null) {
+                        for (final Object ignoredObj : ignoredObjs) {
+                            if (ignoredObj.equals(value)) {
+                                bucketList.add(bucketFactory.createBucket(hit, value, diversityThreshold));
+                                insert = true;
+                                break;
+                            }
                         }
                     }
                     if (!insert) {
-                        bucketList.add(bucketFactory.createBucket(hit, value, diversityThreshold));
+                        for (final Bucket bucket : bucketList) {
+                            if (bucket.contains(value)) {
+                                bucket.add(hit, value);
+                                insert = true;
+                                break;
+                            }
+                        }
+                        if (!insert) {
+                            bucketList.add(bucketFactory.createBucket(hit, value, diversityThreshold));
+                        }
                     }
                 }
+                numOfBuckets = bucketList.size();
+                hits = createHits(length, bucketList);
             }
-            if (bucketList.size() > maxNumOfBuckets) {
-                maxNumOfBuckets = bucketList.size();
+            RerankContext.onBuckets(diversityField, length, numOfBuckets, bucketStartTime);
+            if (numOfBuckets > maxNumOfBuckets) {
+                maxNumOfBuckets = numOfBuckets;
             }
-            if (bucketList.size() < minNumOfBuckets) {
-                minNumOfBuckets = bucketList.size();
+            if (numOfBuckets < minNumOfBuckets) {
+                minNumOfBuckets = numOfBuckets;
             }
-            hits = createHits(length, bucketList);
         }
 
         int minBucketThreshold = 0;
@@ -168,6 +197,10 @@ public class StandardBuckets implements Buckets {
     }
 
     private Object getFieldValue(final SearchHit hit, final String fieldName) {
+        final Object key = RerankKeys.getValue(hit, fieldName);
+        if (key != null) {
+            return key;
+        }
         final DocumentField field = hit.getFields().get(fieldName);
         if (field == null) {
             final Map<String, Object> source = hit.getSourceAsMap();
@@ -193,6 +226,71 @@ public class StandardBuckets implements Buckets {
         return null;
     }
 
+    /**
+     * Buckets numbers of the same type in the same way as
+     * {@link StandardBucket#contains(Object)}: a value joins the first bucket
+     * whose first value is closer than the threshold. Leaders are indexed by
+     * floor(value / threshold), so only nearby cells are compared.
+     *
+     * @return the number of buckets, or -1 if values are empty or not
+     *         numbers of the same type
+     */
+    protected int bucketNumbers(final Object[] values, final float threshold, final int[] bucketIds) {
+        final int length = values.length;
+        if (length == 0) {
+            // the bucket list of an empty window has no buckets
+            return -1;
+        }
+        final Class<?> type = values[0].getClass();
+        if (!(values[0] instanceof Number)) {
+            return -1;
+        }
+        final double[] numbers = new double[length];
+        for (int i = 0; i < length; i++) {
+            if (values[i].getClass() != type) {
+                return -1;
+            }
+            numbers[i] = ((Number) values[i]).doubleValue();
+        }
+
+        final double width = threshold;
+        final double[] leaders = new double[length];
+        final int[] chains = new int[length];
+        final LongIntHashMap cellMap = new LongIntHashMap(length);
+        int numOfBuckets = 0;
+        for (int i = 0; i < length; i++) {
+            final double number = numbers[i];
+            final double position = number / width;
+            int bucketId = -1;
+            if (width > 0 && !Double.isNaN(number) && !Double.isInfinite(number)) {
+                if (!(Math.abs(position) < MAX_CELL_POSITION)) {
+                    return -1;
+                }
+                final long cell = (long) Math.floor(position);
+                // a rounding error of the division is less than one cell
+                for (long c = cell - 2; c <= cell + 2; c++) {
+                    int candidate = cellMap.get(c, -1);
+                    while (candidate != -1) {
+                        if ((bucketId == -1 || candidate < bucketId) && Math.abs(number - leaders[candidate]) < width) {
+                            bucketId = candidate;
+                        }
+                        candidate = chains[candidate];
+                    }
+                }
+                if (bucketId == -1) {
+                    bucketId = numOfBuckets++;
+                    leaders[bucketId] = number;
+                    chains[bucketId] = cellMap.put(cell, bucketId, -1);
+                }
+            } else {
+                // never contains other values
+                bucketId = numOfBuckets++;
+            }
+            bucketIds[i] = bucketId;
+        }
+        return numOfBuckets;
+    }
+
     private float[] parseFloats(final String[] strings) {
         final float[] values = new float[strings.length];
         for (int i = 0; i < strings.length; i++) {
@@ -0,0 +1,189 @@
+package org.codelibs.elasticsearch.dynarank.script.bucket.impl;
+
+import java.time.ZoneId;
+import java.time.ZoneOffset;
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.Map;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.codelibs.elasticsearch.dynarank.fetch.RerankKeys;
+import org.codelibs.elasticsearch.dynarank.ranker.RerankContext;
+import org.codelibs.elasticsearch.dynarank.script.bucket.BucketFactory;
+import org.codelibs.elasticsearch.dynarank.script.bucket.Buckets;
+import org.elasticsearch.ElasticsearchException;
+import org.elasticsearch.common.Rounding;
+import org.elasticsearch.common.document.DocumentField;
+import org.elasticsearch.common.time.DateFormatter;
+import org.elasticsearch.core.TimeValue;
+import org.elasticsearch.search.SearchHit;
+import org.elasticsearch.search.aggregations.bucket.histogram.DateHistogramAggregationBuilder;
+
+/**
+ * Groups hits by calendar or fixed time intervals of a date field. Each
+ * value is parsed once into epoch millis and rounded, and buckets are
+ * interleaved in score order or from the newest interval.
+ */
+public class TimeBuckets implements Buckets {
+
+    private static final Logger logger = LogManager.getLogger(TimeBuckets.class);
+
+    private static final String DEFAULT_FORMAT = "strict_date_optional_time||epoch_millis";
+
+    private static final String ORDER_SCORE = "score";
+
+    private static final String ORDER_NEWEST = "newest";
+
+    protected BucketFactory bucketFactory;
+
+    protected Map<String, Object> params;
+
+    public TimeBuckets(final BucketFactory bucketFactory, final Map<String, Object> params) {
+        this.bucketFactory = bucketFactory;
+        this.params = params;
+    }
+
+    @Override
+    public SearchHit[] getHits(final SearchHit[] searchHits) {
+        SearchHit[] hits = searchHits;
+        final int length = hits.length;
+        final String[] diversityFields = (String[]) params.get("diversity_fields");
+        if (diversityFields == null) {
+            throw new ElasticsearchException("diversity_fields is null.");
+        }
+        final String interval = getParam("time_interval", null);
+        if (interval == null) {
+            throw new ElasticsearchException("time_interval is null.");
+        }
+        final ZoneId zone = getTimeZone();
+        final Rounding rounding = createRounding(interval, zone);
+        final DateFormatter formatter = DateFormatter.forPattern(getParam("time_format", DEFAULT_FORMAT)).withZone(zone);
+        final String order = getParam("time_order", ORDER_SCORE).toLowerCase(Locale.ROOT);
+        if (!ORDER_SCORE.equals(order) && !ORDER_NEWEST.equals(order)) {
+            throw new ElasticsearchException("time_order must be score or newest: " + order);
+        }
+
+        if (logger.isDebugEnabled()) {
+            logger.debug("diversity_fields: {}, time_interval: {}, time_zone: {}, time_order: {}", diversityFields, interval, zone,
+                    order);
+        }
+        final long[] times = new long[length];
+        final int[] bucketIds = new int[length];
+        final LongIntHashMap bucketMap = new LongIntHashMap(length);
+        for (int i = diversityFields.length - 1; i >= 0; i--) {
+            final String diversityField = diversityFields[i];
+            final long bucketStartTime = System.nanoTime();
+            long minTime = Long.MAX_VALUE;
+            long maxTime = Long.MIN_VALUE;
+            for (int j = 0; j < length; j++) {
+                final Object value = getFieldValue(hits[j], diversityField);
+                if (value instanceof Number) {
+                    times[j] = ((Number) value).longValue();
+                } else if (value instanceof String) {
+                    try {
+                        times[j] = formatter.parseMillis((String) value);
+                    } catch (final RuntimeException e) {
+                        if (logger.isDebugEnabled()) {
+                            logger.debug("Failed to parse {} of {}: {}", diversityField, hits[j].getId(), value, e);
+                        }
+                        return hits;
+                    }
+                } else {
+                    if (logger.isDebugEnabled()) {
+                        logger.debug("diversityField {} does not exist. Reranking is skipped.", diversityField);
+                    }
+                    return hits;
+                }
+                minTime = Math.min(minTime, times[j]);
+                maxTime = Math.max(maxTime, times[j]);
+            }
+
+            final Rounding.Prepared prepared = rounding.prepare(minTime, maxTime);
+            bucketMap.clear();
+            int numOfBuckets = 0;
+            for (int j = 0; j < length; j++) {
+                times[j] = prepared.round(times[j]);
+                final int bucketId = bucketMap.putIfAbsent(times[j], numOfBuckets);
+                if (bucketId == numOfBuckets) {
+                    numOfBuckets++;
+                }
+                bucketIds[j] = bucketId;
+            }
+            if (ORDER_NEWEST.equals(order)) {
+                sortNewestFirst(times, bucketIds, numOfBuckets);
+            }
+            if (logger.isDebugEnabled()) {
+                logger.debug("{} docs -> {} buckets", length, numOfBuckets);
+            }
+            hits = BucketInterleaver.interleave(hits, bucketIds, numOfBuckets);
+            RerankContext.onBuckets(diversityField, length, numOfBuckets, bucketStartTime);
+        }
+        return hits;
+    }
+
+    /**
+     * Renumbers bucket ids in descending order of rounded times.
+     */
+    private static void sortNewestFirst(final long[] times, final int[] bucketIds, final int numOfBuckets) {
+        final long[] keys = new long[numOfBuckets];
+        for (int i = 0; i < bucketIds.length; i++) {
+            keys[bucketIds[i]] = times[i];
+        }
+        Arrays.sort(keys);
+        final LongIntHashMap ranks = new LongIntHashMap(numOfBuckets);
+        for (int i = 0; i < numOfBuckets; i++) {
+            ranks.putIfAbsent(keys[i], numOfBuckets - 1 - i);
+        }
+        for (int i = 0; i < bucketIds.length; i++) {
+            bucketIds[i] = ranks.get(times[i], -1);
+        }
+    }
+
+    private Rounding createRounding(final String interval, final ZoneId zone) {
+        final Rounding.DateTimeUnit unit = DateHistogramAggregationBuilder.DATE_FIELD_UNITS.get(interval);
+        final Rounding.Builder builder;
+        if (unit != null) {
+            builder = Rounding.builder(unit);
+        } else {
+            try {
+                builder = Rounding.builder(TimeValue.parseTimeValue(interval, "time_interval"));
+            } catch (final IllegalArgumentException e) {
+                throw new ElasticsearchException("Invalid value of time_interval: " + interval, e);
+            }
+        }
+        return builder.timeZone(zone).build();
+    }
+
+    private ZoneId getTimeZone() {
+        final String timeZone = getParam("time_zone", null);
+        if (timeZone == null) {
+            return ZoneOffset.UTC;
+        }
+        try {
+            return ZoneId.of(timeZone);
+        } catch (final RuntimeException e) {
+            throw new ElasticsearchException("Invalid value of time_zone: " + timeZone, e);
+        }
+    }
+
+    private String getParam(final String name, final String defaultValue) {
+        final String[] values = (String[]) params.get(name);
+        if (values == null || values.length == 0) {
+            return defaultValue;
+        }
+        return values[0];
+    }
+
+    private Object getFieldValue(final SearchHit hit, final String fieldName) {
+        final Object key = RerankKeys.getRawValue(hit, fieldName);
+        if (key != null) {
+            return key;
+        }
+        final DocumentField field = hit.getFields().get(fieldName);
+        if (field == null) {
+            return hit.getSourceAsMap().get(fieldName);
+        }
+        return field.getValue();
+    }
+}
@@ -7,6 +7,7 @@ import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
 
+import org.codelibs.elasticsearch.dynarank.feature.FeatureStoreWriter;
 import org.codelibs.elasticsearch.dynarank.ranker.DynamicRanker;
 import org.codelibs.elasticsearch.dynarank.ranker.DynamicRanker.ScriptInfo;
 import org.codelibs.elasticsearch.runner.ElasticsearchClusterRunner;
@@ -31,7 +32,10 @@ import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
 
+import java.nio.file.Path;
 import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
 
 public class DynamicRankingPluginTest {
     ElasticsearchClusterRunner runner;
@@ -49,6 +53,8 @@ public class DynamicRankingPluginTest {
                 settingsBuilder.put("http.cors.enabled", true);
                 settingsBuilder.put("http.cors.allow-origin", "*");
                 settingsBuilder.put("discovery.type", "single-node");
+                settingsBuilder.put("dynarank.feature_store.path", "features.bin");
+                settingsBuilder.put("dynarank.feature_store.reload_interval", "1s");
                 // settingsBuilder.putList("discovery.seed_hosts", "127.0.0.1:9301");
                 // settingsBuilder.putList("cluster.initial_master_nodes", "127.0.0.1:9301");
             }
@@ -1142,6 +1148,23 @@ public class DynamicRankingPluginTest {
             assertEquals("7", hits[9].getSourceAsMap().get("id"));
         }
 
+        {
+            // the page is covered by keep_topn, so it is not inflated
+            final SearchResponse response = runner.client().prepareSearch(index)
+                    .setQuery(QueryBuilders.matchAllQuery())
+                    .addSort(SortBuilders.fieldSort("order")
+                            .order(SortOrder.ASC))
+                    .storedFields("_source", "minhash_value", "category")
+                    .setFrom(0).setSize(5).execute().actionGet();
+            final SearchHits searchHits = response.getHits();
+            assertEquals(100, searchHits.getTotalHits().value);
+            final SearchHit[] hits = searchHits.getHits();
+            assertEquals(5, hits.length);
+            for (int i = 0; i < 5; i++) {
+                assertEquals(String.valueOf(i + 1), hits[i].getSourceAsMap().get("id"));
+            }
+        }
+
         {
             final SearchResponse response = runner.client().prepareSearch(index)
                     .setQuery(QueryBuilders.termQuery("id", "1"))
@@ -1155,4 +1178,44 @@ public class DynamicRankingPluginTest {
             assertEquals("1", hits[0].getSourceAsMap().get("id"));
         }
     }
+
+    @Test
+    public void featureStoreScript() throws Exception {
+        final Path path = runner.getNode(0).getEnvironment().configFile().resolve("features.bin");
+        final Map<String, float[]> features = new HashMap<>();
+        for (int i = 1; i <= 100; i++) {
+            features.put(String.valueOf(i), new float[] { i % 10 });
+        }
+        new FeatureStoreWriter("ctr").write(path, features);
+        for (int i = 0; i < 100 && DynamicRanker.getInstance().getFeatureStore().getNumOfFeatures() == 0; i++) {
+            Thread.sleep(100);
+        }
+        assertEquals(1, DynamicRanker.getInstance().getFeatureStore().getNumOfFeatures());
+
+        final String index = "sample";
+        // the script in README.md
+        runner.createIndex(index,
+                Settings.builder().put(DynamicRanker.SETTING_INDEX_DYNARANK_REORDER_SIZE.getKey(), 100)
+                        .put(DynamicRanker.SETTING_INDEX_DYNARANK_LANG.getKey(), "painless")
+                        .put(DynamicRanker.SETTING_INDEX_DYNARANK_SCRIPT.getKey(), "def store = featureStore;\n"
+                                + "int ctr = store.getFeatureIndex(\"ctr\");\n"
+                                + "Arrays.sort(searchHits, (h1, h2) -> Float.compare(store.getFeature(h2.getId(), ctr, 0f), "
+                                + "store.getFeature(h1.getId(), ctr, 0f)));\n"
+                                + "return searchHits;")
+                        .build());
+        for (int i = 1; i <= 100; i++) {
+            final IndexResponse indexResponse = runner.insert(index, String.valueOf(i),
+                    "{\"id\":\"" + i + "\",\"msg\":\"test " + i + "\",\"counter\":" + i + "}");
+            assertEquals(Result.CREATED, indexResponse.getResult());
+        }
+        runner.refresh();
+
+        final SearchResponse searchResponse = runner.client().prepareSearch(index).setQuery(QueryBuilders.matchAllQuery())
+                .addSort("counter", SortOrder.ASC).execute().actionGet();
+        final SearchHit[] hits = searchResponse.getHits().getHits();
+        assertEquals(10, hits.length);
+        for (int i = 0; i < hits.length; i++) {
+            assertEquals(String.valueOf(i * 10 + 9), hits[i].getId());
+        }
+    }
 }
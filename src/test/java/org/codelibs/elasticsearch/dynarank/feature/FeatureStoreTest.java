@@ -0,0 +1,92 @@
+package org.codelibs.elasticsearch.dynarank.feature;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import org.elasticsearch.common.hash.MurmurHash3;
+import org.junit.Test;
+
+/**
+ * Keys and bounds of {@link FeatureStore}. The keys are stored in files, so
+ * they must stay the murmur3 hash of the UTF-8 bytes of _id. Run with
+ * -Dtests.seed=... to reproduce a failure.
+ */
+public class FeatureStoreTest {
+
+    private static final long SEED = Long.getLong("tests.seed", System.nanoTime());
+
+    @Test
+    public void hashOfUtf8Bytes() {
+        final Random random = new Random(SEED);
+        final char[] chars = { 'a', 'Z', '0', '-', '\u00e9', '\u07ff', '\u0800', '\u3042', '\uffff', '\ud83d', '\ude00' };
+        for (int i = 0; i < 10000; i++) {
+            final StringBuilder buf = new StringBuilder();
+            for (int j = random.nextInt(i < 100 ? 5 : 300); j > 0; j--) {
+                buf.append(chars[random.nextInt(chars.length)]);
+            }
+            final String id = buf.toString();
+            assertEquals("seed: " + SEED + ", id: " + id, expectedHash(id), FeatureStore.hash(id));
+        }
+        assertEquals(expectedHash("\ud83d\ude00"), FeatureStore.hash("\ud83d\ude00"));
+        assertEquals(expectedHash("\ude00\ud83d"), FeatureStore.hash("\ude00\ud83d"));
+    }
+
+    @Test
+    public void find() throws Exception {
+        final Map<String, float[]> features = new HashMap<>();
+        for (int i = 0; i < 100; i++) {
+            features.put("doc" + i + "\u3042", new float[] { i, i * 2f });
+        }
+        final Path dir = Files.createTempDirectory("dynarank-feature");
+        final Path path = dir.resolve("features.bin");
+        new FeatureStoreWriter("ctr", "popularity").write(path, features);
+        final FeatureStore store = FeatureStore.open(path, 1);
+        for (int i = 0; i < 100; i++) {
+            final int slot = store.find("doc" + i + "\u3042");
+            assertEquals(i, store.getFeature(slot, 0), 0f);
+            assertEquals(i * 2f, store.getFeature(slot, 1), 0f);
+            assertEquals(i * 2f, store.getFeature("doc" + i + "\u3042", "popularity", -1f), 0f);
+        }
+        assertEquals(-1, store.find("doc100"));
+        assertEquals(-1f, store.getFeature("doc100", 0, -1f), 0f);
+        assertEquals(-1f, store.getFeature("doc1\u3042", 2, -1f), 0f);
+    }
+
+    @Test
+    public void invalidSlotOrFeature() throws Exception {
+        final Map<String, float[]> features = new HashMap<>();
+        features.put("doc1", new float[] { 1f });
+        final Path dir = Files.createTempDirectory("dynarank-feature");
+        final Path path = dir.resolve("features.bin");
+        new FeatureStoreWriter("ctr").write(path, features);
+        final FeatureStore store = FeatureStore.open(path, 1);
+        final int slot = store.find("doc1");
+        assertInvalid(store, slot, 1, "Invalid feature: 1");
+        assertInvalid(store, slot, -1, "Invalid feature: -1");
+        assertInvalid(store, -1, 0, "Invalid slot: -1");
+        assertInvalid(store, store.getCapacity(), 0, "Invalid slot: " + store.getCapacity());
+        assertInvalid(FeatureStore.EMPTY, 0, 0, "Invalid slot: 0");
+    }
+
+    private static void assertInvalid(final FeatureStore store, final int slot, final int feature, final String message) {
+        try {
+            store.getFeature(slot, feature);
+            fail(message);
+        } catch (final IllegalArgumentException e) {
+            assertEquals(message, e.getMessage());
+        }
+    }
+
+    private static long expectedHash(final String id) {
+        final byte[] bytes = id.getBytes(StandardCharsets.UTF_8);
+        final long key = MurmurHash3.hash128(bytes, 0, bytes.length, 0, new MurmurHash3.Hash128()).h1;
+        return key == 0 ? 1 : key;
+    }
+}
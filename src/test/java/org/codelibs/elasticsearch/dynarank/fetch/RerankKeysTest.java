@@ -0,0 +1,110 @@
+package org.codelibs.elasticsearch.dynarank.fetch;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.apache.lucene.util.BytesRef;
+import org.codelibs.elasticsearch.dynarank.script.bucket.impl.StandardBucketFactory;
+import org.codelibs.elasticsearch.dynarank.script.bucket.impl.StandardBuckets;
+import org.elasticsearch.common.Strings;
+import org.elasticsearch.common.bytes.BytesArray;
+import org.elasticsearch.common.bytes.BytesReference;
+import org.elasticsearch.common.document.DocumentField;
+import org.elasticsearch.common.io.stream.BytesStreamOutput;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.search.SearchHit;
+import org.junit.Test;
+
+public class RerankKeysTest {
+
+    @Test
+    public void sourceTypes() throws Exception {
+        final SearchHit hit = createHit(null, out -> {
+            RerankKeys.writeLong(out, "int", RerankKeys.LONG, 5L);
+            RerankKeys.writeLong(out, "long", RerankKeys.LONG, 3_000_000_000L);
+            RerankKeys.writeFloat(out, "float", 0.1f);
+            RerankKeys.writeDouble(out, "double", 0.1d);
+            RerankKeys.writeLong(out, "date", RerankKeys.DATE, 1_600_000_000_000L);
+            RerankKeys.writeLong(out, "location", RerankKeys.GEO_POINT, 123L);
+            RerankKeys.writeBytes(out, "keyword", new BytesRef("a"), true);
+            RerankKeys.writeBytes(out, "minhash", new BytesRef(new byte[] { 1, 2 }), false);
+            RerankKeys.writeMissing(out, "missing");
+        });
+
+        assertEquals(Integer.valueOf(5), RerankKeys.getValue(hit, "int"));
+        assertEquals(Long.valueOf(3_000_000_000L), RerankKeys.getValue(hit, "long"));
+        assertEquals(Double.valueOf(0.1d), RerankKeys.getValue(hit, "float"));
+        assertEquals(Double.valueOf(0.1d), RerankKeys.getValue(hit, "double"));
+        assertNull(RerankKeys.getValue(hit, "date"));
+        assertNull(RerankKeys.getValue(hit, "location"));
+        assertEquals("a", RerankKeys.getValue(hit, "keyword"));
+        assertArrayEquals(new byte[] { 1, 2 }, (byte[]) RerankKeys.getValue(hit, "minhash"));
+        assertNull(RerankKeys.getValue(hit, "missing"));
+        assertNull(RerankKeys.getValue(hit, "unknown"));
+
+        assertEquals(Long.valueOf(5L), RerankKeys.getRawValue(hit, "int"));
+        assertEquals(Double.valueOf(0.1f), RerankKeys.getRawValue(hit, "float"));
+        assertEquals(Long.valueOf(1_600_000_000_000L), RerankKeys.getRawValue(hit, "date"));
+        assertEquals(Long.valueOf(123L), RerankKeys.getRawValue(hit, "location"));
+    }
+
+    @Test
+    public void decodeOnce() throws Exception {
+        final SearchHit hit = createHit(null, out -> RerankKeys.writeLong(out, "int", RerankKeys.LONG, 1000L));
+        final Object value = RerankKeys.getValue(hit, "int");
+        final Object keys = hit.getDocumentFields().get(RerankKeys.FIELD_NAME).getValue();
+        assertTrue(keys instanceof RerankKeys.Keys);
+        assertSame(value, RerankKeys.getValue(hit, "int"));
+        assertSame(keys, hit.getDocumentFields().get(RerankKeys.FIELD_NAME).getValue());
+
+        RerankKeys.strip(new SearchHit[] { hit });
+        assertTrue(hit.getDocumentFields().get(RerankKeys.FIELD_NAME).getValues().isEmpty());
+        assertFalse(Strings.toString(hit).contains(RerankKeys.FIELD_NAME));
+        assertNull(RerankKeys.getValue(hit, "int"));
+    }
+
+    @Test
+    public void mixedWithSource() throws Exception {
+        // hits 0 and 2 have rerank keys and hits 1 and 3 fall back to _source
+        final SearchHit[] hits = new SearchHit[] { //
+                createHit("{\"price\":10}", out -> RerankKeys.writeLong(out, "price", RerankKeys.LONG, 10L)), //
+                createHit("{\"price\":10}", out -> RerankKeys.writeMissing(out, "price")), //
+                createHit("{\"price\":20.5}", out -> RerankKeys.writeFloat(out, "price", 20.5f)), //
+                createHit("{\"price\":20.5}", null) };
+        final Map<String, Object> params = new HashMap<>();
+        params.put("diversity_fields", new String[] { "price" });
+        params.put("diversity_thresholds", new String[] { "1" });
+        final SearchHit[] reordered = new StandardBuckets(new StandardBucketFactory(Settings.EMPTY), params).getHits(hits);
+        // the same values are in the same bucket
+        assertArrayEquals(new SearchHit[] { hits[0], hits[2], hits[1], hits[3] }, reordered);
+    }
+
+    interface Writer {
+        void write(BytesStreamOutput out) throws Exception;
+    }
+
+    private SearchHit createHit(final String source, final Writer writer) throws Exception {
+        final Map<String, DocumentField> fields = new HashMap<>();
+        if (writer != null) {
+            try (BytesStreamOutput out = new BytesStreamOutput()) {
+                writer.write(out);
+                fields.put(RerankKeys.FIELD_NAME, new DocumentField(RerankKeys.FIELD_NAME,
+                        Collections.singletonList(new BytesArray(BytesReference.toBytes(out.bytes())))));
+            }
+        }
+        final SearchHit hit = new SearchHit(0, "0", null, fields, new HashMap<String, DocumentField>());
+        if (source != null) {
+            hit.sourceRef(new BytesArray(source.getBytes(StandardCharsets.UTF_8)));
+        }
+        return hit;
+    }
+}
@@ -0,0 +1,151 @@
+package org.codelibs.elasticsearch.dynarank.ingest;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.fail;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.codelibs.elasticsearch.dynarank.ingest.DiversityKeyProcessor.Normalizer;
+import org.elasticsearch.ElasticsearchException;
+import org.elasticsearch.ingest.IngestDocument;
+import org.junit.Test;
+
+/**
+ * Configuration and keys of {@link DiversityKeyProcessor}. The keys are
+ * stored in indices, so the hash of a value must not change between
+ * versions.
+ */
+public class DiversityKeyProcessorTest {
+
+    private final DiversityKeyProcessor.Factory factory = new DiversityKeyProcessor.Factory();
+
+    @Test
+    public void config() throws Exception {
+        final DiversityKeyProcessor processor = create("field", "category", "fields", Arrays.asList("brand", "shop"));
+        final IngestDocument document = document("category", "a", "brand", "b", "shop", "c");
+        processor.execute(document);
+        // field comes first
+        assertEquals(DiversityKeyProcessor.hash("a\u001eb\u001ec\u001e"),
+                (long) document.getFieldValue(DiversityKeyProcessor.DEFAULT_TARGET_FIELD, Long.class));
+        assertEquals(DiversityKeyProcessor.TYPE, processor.getType());
+
+        final IngestDocument targetDocument = document("category", "a");
+        create("field", "category", "target_field", "key").execute(targetDocument);
+        assertEquals(DiversityKeyProcessor.hash("a\u001e"), (long) targetDocument.getFieldValue("key", Long.class));
+    }
+
+    @Test
+    public void invalidConfig() throws Exception {
+        assertConfigException("[fields] requires at least one field");
+        assertConfigException("[normalizer] must be one of none, lowercase, url_host or numeric_bucket: unknown", "field", "category",
+                "normalizer", "unknown");
+        assertConfigException("[interval] required property is missing", "field", "price", "normalizer", "numeric_bucket");
+        assertConfigException("[interval] must be a positive number", "field", "price", "normalizer", "numeric_bucket", "interval", 0);
+        assertConfigException("[interval] must be a positive number", "field", "price", "normalizer", "numeric_bucket", "interval",
+                -10);
+    }
+
+    @Test
+    public void ignoreMissing() throws Exception {
+        final IngestDocument document = document("category", "a");
+        try {
+            create("field", "brand").execute(document);
+            fail();
+        } catch (final IllegalArgumentException e) {
+            assertEquals("field [brand] not present as part of path [brand]", e.getMessage());
+        }
+
+        // a missing field is an empty value
+        create("fields", Arrays.asList("brand", "category"), "ignore_missing", true).execute(document);
+        assertEquals(DiversityKeyProcessor.hash("\u001ea\u001e"),
+                (long) document.getFieldValue(DiversityKeyProcessor.DEFAULT_TARGET_FIELD, Long.class));
+
+        // no key without any field
+        final IngestDocument emptyDocument = document("category", "a");
+        create("field", "brand", "ignore_missing", true).execute(emptyDocument);
+        assertFalse(emptyDocument.hasField(DiversityKeyProcessor.DEFAULT_TARGET_FIELD));
+    }
+
+    @Test
+    public void listValues() throws Exception {
+        final DiversityKeyProcessor processor = create("field", "tags", "normalizer", "lowercase");
+        assertEquals(key(processor, "tags", Arrays.asList("a", "b")), key(processor, "tags", Arrays.asList("A", null, "B")));
+        assertNotEquals(key(processor, "tags", Arrays.asList("a", "b")), key(processor, "tags", Arrays.asList("b", "a")));
+        // a list of one value is not the value
+        assertNotEquals(key(processor, "tags", "a"), key(processor, "tags", Arrays.asList("a")));
+    }
+
+    @Test
+    public void urlHost() throws Exception {
+        final DiversityKeyProcessor processor = create("field", "url", "normalizer", "url_host");
+        assertEquals("example.com", processor.normalize("url", "https://www.Example.com/path?q=1"));
+        assertEquals("example.com", processor.normalize("url", " http://example.com:8080/ "));
+        assertEquals("sub.example.com", processor.normalize("url", "http://sub.example.com"));
+        // not a url
+        assertEquals("example.com/a b", processor.normalize("url", "Example.com/a b"));
+        assertEquals(key(processor, "url", "http://example.com/a"), key(processor, "url", "https://www.example.com/b"));
+    }
+
+    @Test
+    public void numericBucket() throws Exception {
+        final DiversityKeyProcessor processor = create("field", "price", "normalizer", "numeric_bucket", "interval", 100);
+        assertEquals("0", processor.normalize("price", 0));
+        assertEquals("0", processor.normalize("price", 99.9));
+        assertEquals("1", processor.normalize("price", 100L));
+        assertEquals("1", processor.normalize("price", "150"));
+        assertEquals("-1", processor.normalize("price", -0.5));
+        try {
+            processor.normalize("price", "abc");
+            fail();
+        } catch (final IllegalArgumentException e) {
+            assertEquals("field [price] of type [java.lang.String] cannot be converted to a number: abc", e.getMessage());
+        }
+        assertEquals(key(processor, "price", 120), key(processor, "price", 180.5));
+        assertNotEquals(key(processor, "price", 120), key(processor, "price", 200));
+    }
+
+    @Test
+    public void hashStability() throws Exception {
+        assertEquals(3748895495310234968L, DiversityKeyProcessor.hash("a\u001e"));
+        assertEquals(-1818101812405303596L, DiversityKeyProcessor.hash("example.com\u001e"));
+        assertEquals(DiversityKeyProcessor.hash("a\u001e"), key(create("field", "category"), "category", "a"));
+        assertEquals(DiversityKeyProcessor.hash("a\u001e"), key(create("field", "category", "normalizer", "lowercase"), "category", "A"));
+        assertEquals(DiversityKeyProcessor.hash("A\u001e"), key(create("field", "category", "normalizer", Normalizer.NONE.name()),
+                "category", "A"));
+    }
+
+    private DiversityKeyProcessor create(final Object... keyValues) throws Exception {
+        final Map<String, Object> config = new HashMap<>();
+        for (int i = 0; i < keyValues.length; i += 2) {
+            config.put((String) keyValues[i], keyValues[i + 1]);
+        }
+        return factory.create(null, "tag", null, config);
+    }
+
+    private void assertConfigException(final String message, final Object... keyValues) throws Exception {
+        try {
+            create(keyValues);
+            fail(message);
+        } catch (final ElasticsearchException e) {
+            assertEquals(message, e.getMessage());
+        }
+    }
+
+    private static long key(final DiversityKeyProcessor processor, final String field, final Object value) {
+        final IngestDocument document = document(field, value);
+        processor.execute(document);
+        return document.getFieldValue(DiversityKeyProcessor.DEFAULT_TARGET_FIELD, Long.class);
+    }
+
+    private static IngestDocument document(final Object... keyValues) {
+        final Map<String, Object> source = new HashMap<>();
+        for (int i = 0; i < keyValues.length; i += 2) {
+            source.put((String) keyValues[i], keyValues[i + 1]);
+        }
+        return new IngestDocument("test", "_doc", "1", null, null, null, source);
+    }
+}
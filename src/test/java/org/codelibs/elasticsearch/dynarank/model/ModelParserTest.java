@@ -0,0 +1,92 @@
+package org.codelibs.elasticsearch.dynarank.model;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+
+import org.elasticsearch.ElasticsearchException;
+import org.junit.Test;
+
+/**
+ * Parsing and validation of model files by {@link ModelParser}.
+ */
+public class ModelParserTest {
+
+    @Test
+    public void linear() throws Exception {
+        final RankingModel model = parse("{\"type\": \"linear\", \"weights\": [0.5, 2], \"bias\": 0.1}");
+        assertTrue(model instanceof LinearModel);
+        assertEquals(2, model.getNumOfFeatures());
+        assertEquals(0.1f + 0.5f * 2f + 2f * 3f, model.score(new float[] { 9f, 2f, 3f }, 1), 1e-6f);
+
+        final RankingModel withoutBias = parse("{\"type\": \"linear\", \"weights\": [1]}");
+        assertEquals(4f, withoutBias.score(new float[] { 4f }, 0), 0f);
+    }
+
+    @Test
+    public void gbdt() throws Exception {
+        final RankingModel model = parse("{\"type\": \"gbdt\", \"base_score\": 0.5, \"learning_rate\": 0.1, \"trees\": ["
+                + "{\"nodes\": [{\"feature\": 0, \"threshold\": 1.5, \"left\": 1, \"right\": 2}, {\"leaf\": 1}, {\"leaf\": -1}]},"
+                + "{\"nodes\": [{\"feature\": 2, \"threshold\": 0, \"left\": 2, \"right\": 1}, {\"leaf\": 3},"
+                + " {\"feature\": 1, \"threshold\": 5, \"left\": 3, \"right\": 4}, {\"leaf\": 10}, {\"leaf\": 20}]},"
+                + "{\"nodes\": [{\"leaf\": 2}]}]}");
+        assertTrue(model instanceof TreeEnsembleModel);
+        assertEquals(3, ((TreeEnsembleModel) model).getNumOfTrees());
+        assertEquals(3, model.getNumOfFeatures());
+        assertEquals(0.5f + 0.1f + 1f + 0.2f, model.score(new float[] { 1f, 5f, 0f }, 0), 1e-6f);
+        assertEquals(0.5f - 0.1f + 2f + 0.2f, model.score(new float[] { 2f, 6f, -1f }, 0), 1e-6f);
+        assertEquals(0.5f - 0.1f + 0.3f + 0.2f, model.score(new float[] { 2f, 6f, 1f }, 0), 1e-6f);
+
+        // num_features is more than the split features
+        final RankingModel withNumOfFeatures = parse("{\"type\": \"gbdt\", \"num_features\": 4, \"trees\": ["
+                + "{\"nodes\": [{\"feature\": 0, \"threshold\": 1.5, \"left\": 1, \"right\": 2}, {\"leaf\": 1}, {\"leaf\": -1}]}]}");
+        assertEquals(4, withNumOfFeatures.getNumOfFeatures());
+        assertEquals(1f, withNumOfFeatures.score(new float[] { 1f, 0f, 0f, 0f }, 0), 0f);
+    }
+
+    @Test
+    public void invalidChild() throws Exception {
+        // a child before its parent, itself, or out of the tree
+        for (final String children : new String[] { "\"left\": 0, \"right\": 2", "\"left\": 1, \"right\": 3",
+                "\"left\": -1, \"right\": 2" }) {
+            assertInvalid("Invalid child in tree 1: ", "{\"type\": \"gbdt\", \"trees\": [{\"nodes\": [{\"leaf\": 1}]},"
+                    + "{\"nodes\": [{\"feature\": 0, \"threshold\": 1, " + children + "}, {\"leaf\": 1}, {\"leaf\": -1}]}]}");
+        }
+    }
+
+    @Test
+    public void invalidFeature() throws Exception {
+        assertInvalid("Invalid feature in tree 0: ", "{\"type\": \"gbdt\", \"trees\": ["
+                + "{\"nodes\": [{\"feature\": -1, \"threshold\": 1, \"left\": 1, \"right\": 2}, {\"leaf\": 1}, {\"leaf\": -1}]}]}");
+        assertInvalid("Invalid feature in tree 0: ", "{\"type\": \"gbdt\", \"num_features\": 2, \"trees\": ["
+                + "{\"nodes\": [{\"feature\": 2, \"threshold\": 1, \"left\": 1, \"right\": 2}, {\"leaf\": 1}, {\"leaf\": -1}]}]}");
+    }
+
+    @Test
+    public void invalidModel() throws Exception {
+        assertInvalid("No nodes in tree 1", "{\"type\": \"gbdt\", \"trees\": [{\"nodes\": [{\"leaf\": 1}]}, {\"nodes\": []}]}");
+        assertInvalid("Unknown model type: svm", "{\"type\": \"svm\"}");
+        assertInvalid("weights is not an array.", "{\"type\": \"linear\", \"weights\": 1}");
+        assertInvalid("weights is not a number: a", "{\"type\": \"linear\", \"weights\": [\"a\"]}");
+        assertInvalid("trees contains a non-object value: 1", "{\"type\": \"gbdt\", \"trees\": [1]}");
+        assertInvalid("threshold is not a number: null", "{\"type\": \"gbdt\", \"trees\": ["
+                + "{\"nodes\": [{\"feature\": 0, \"left\": 1, \"right\": 2}, {\"leaf\": 1}, {\"leaf\": 2}]}]}");
+    }
+
+    private static void assertInvalid(final String message, final String json) throws IOException {
+        try {
+            parse(json);
+            fail(json);
+        } catch (final ElasticsearchException e) {
+            assertTrue(e.getMessage(), e.getMessage().startsWith(message));
+        }
+    }
+
+    private static RankingModel parse(final String json) throws IOException {
+        return ModelParser.parse(new ByteArrayInputStream(json.getBytes(StandardCharsets.UTF_8)));
+    }
+}
@@ -0,0 +1,210 @@
+package org.codelibs.elasticsearch.dynarank.model;
+
+import static org.codelibs.elasticsearch.runner.ElasticsearchClusterRunner.newConfigs;
+
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+
+import org.codelibs.elasticsearch.dynarank.ranker.DynamicRanker;
+import org.codelibs.elasticsearch.runner.ElasticsearchClusterRunner;
+import org.elasticsearch.action.bulk.BulkRequestBuilder;
+import org.elasticsearch.action.support.WriteRequest.RefreshPolicy;
+import org.elasticsearch.common.bytes.BytesReference;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.index.query.QueryBuilders;
+import org.elasticsearch.xcontent.XContentBuilder;
+import org.elasticsearch.xcontent.XContentFactory;
+import org.elasticsearch.xcontent.XContentType;
+
+/**
+ * Compares dynarank_model with an equivalent painless script that evaluates
+ * the same trees, for 500 hits and 200 trees.
+ *
+ * <pre>
+ * java -cp ... org.codelibs.elasticsearch.dynarank.model.ModelRankerBenchmark [iterations]
+ * </pre>
+ */
+public class ModelRankerBenchmark {
+
+    private static final int NUM_OF_DOCS = 500;
+
+    private static final int NUM_OF_TREES = 200;
+
+    private static final int DEPTH = 4;
+
+    private static final String[] FEATURES = { "_score", "_rank", "field:price", "field:popularity" };
+
+    // the trees are parsed by the first search of the warm-up and kept in the
+    // params map, which the ranker reuses while the index settings do not change
+    private static final String PAINLESS_SCRIPT = "def parsed = params.parsed_trees; if (parsed == null) {"
+            + " String[] rf = params.tree_features; String[] rt = params.tree_thresholds;"
+            + " String[] rl = params.tree_lefts; String[] rr = params.tree_rights; String[] rv = params.tree_values;"
+            + " String[] ro = params.tree_roots; int n = rf.length;"
+            + " int[] pf = new int[n]; float[] pt = new float[n]; int[] pl = new int[n]; int[] pr = new int[n]; float[] pv = new float[n];"
+            + " for (int k = 0; k < n; k++) { pf[k] = Integer.parseInt(rf[k]); pt[k] = Float.parseFloat(rt[k]);"
+            + " pl[k] = Integer.parseInt(rl[k]); pr[k] = Integer.parseInt(rr[k]); pv[k] = Float.parseFloat(rv[k]); }"
+            + " int[] proots = new int[ro.length]; for (int k = 0; k < ro.length; k++) { proots[k] = Integer.parseInt(ro[k]); }"
+            + " parsed = [pf, pt, pl, pr, pv, proots]; params.parsed_trees = parsed; }"
+            + " int[] f = parsed[0]; float[] t = parsed[1]; int[] l = parsed[2]; int[] r = parsed[3]; float[] v = parsed[4];"
+            + " int[] roots = parsed[5];"
+            + " int size = searchHits.length; float[] scores = new float[size]; float[] x = new float[4];"
+            + " for (int i = 0; i < size; i++) { def hit = searchHits[i]; Map src = hit.getSourceAsMap();"
+            + " x[0] = hit.getScore(); x[1] = i; x[2] = ((Number) src.get('price')).floatValue();"
+            + " x[3] = ((Number) src.get('popularity')).floatValue(); float s = 0;"
+            + " for (int root : roots) { int node = root; while (f[node] >= 0) { node = x[f[node]] <= t[node] ? l[node] : r[node]; }"
+            + " s += v[node]; } scores[i] = s; }"
+            + " List order = new ArrayList(); for (int i = 0; i < size; i++) { order.add(i); }"
+            + " order.sort((a, b) -> { int c = Float.compare(scores[b], scores[a]); return c != 0 ? c : a - b; });"
+            + " org.elasticsearch.search.SearchHit[] hits = new org.elasticsearch.search.SearchHit[size];"
+            + " for (int i = 0; i < size; i++) { hits[i] = searchHits[order.get(i)]; } return hits;";
+
+    public static void main(final String[] args) throws Exception {
+        final int iterations = args.length > 0 ? Integer.parseInt(args[0]) : 200;
+        final Random random = new Random(0);
+        final Trees trees = new Trees(random);
+
+        final ElasticsearchClusterRunner runner = new ElasticsearchClusterRunner();
+        runner.onBuild((number, settingsBuilder) -> {
+            settingsBuilder.put("discovery.type", "single-node");
+        }).build(newConfigs().numOfNode(1).clusterName("es-dynarank-benchmark-" + System.currentTimeMillis())
+                .pluginTypes("org.codelibs.elasticsearch.dynarank.DynamicRankingPlugin"));
+        try {
+            runner.ensureYellow();
+            final Path modelDir = runner.node().getEnvironment().configFile().resolve("dynarank");
+            Files.createDirectories(modelDir);
+            try (OutputStream out = Files.newOutputStream(modelDir.resolve("benchmark.json"))) {
+                BytesReference.bytes(trees.toModelJson()).writeTo(out);
+            }
+
+            createIndex(runner, "model_index", Settings.builder()
+                    .put(DynamicRanker.SETTING_INDEX_DYNARANK_LANG.getKey(), ModelRanker.LANG)
+                    .put(DynamicRanker.SETTING_INDEX_DYNARANK_SCRIPT.getKey(), "benchmark.json")
+                    .putList(DynamicRanker.SETTING_INDEX_DYNARANK_PARAMS.getKey() + "features", FEATURES).build(), random);
+            createIndex(runner, "painless_index", trees.toPainlessParams(Settings.builder()
+                    .put(DynamicRanker.SETTING_INDEX_DYNARANK_LANG.getKey(), "painless")
+                    .put(DynamicRanker.SETTING_INDEX_DYNARANK_SCRIPT.getKey(), PAINLESS_SCRIPT)).build(), random);
+
+            final long modelNanos = run(runner, "model_index", iterations);
+            final long painlessNanos = run(runner, "painless_index", iterations);
+            System.out.println(String.format(Locale.ROOT, "hits=%d trees=%d iterations=%d", NUM_OF_DOCS, NUM_OF_TREES, iterations));
+            System.out.println(String.format(Locale.ROOT, "dynarank_model: %.3f ms/search", modelNanos / 1000000.0 / iterations));
+            System.out.println(String.format(Locale.ROOT, "painless:       %.3f ms/search", painlessNanos / 1000000.0 / iterations));
+        } finally {
+            runner.close();
+            runner.clean();
+        }
+    }
+
+    private static void createIndex(final ElasticsearchClusterRunner runner, final String index, final Settings dynarankSettings,
+            final Random random) throws Exception {
+        runner.createIndex(index, Settings.builder().put(dynarankSettings)
+                .put(DynamicRanker.SETTING_INDEX_DYNARANK_REORDER_SIZE.getKey(), NUM_OF_DOCS).put("index.number_of_replicas", 0).build());
+        runner.ensureYellow(index);
+        final BulkRequestBuilder bulk = runner.client().prepareBulk().setRefreshPolicy(RefreshPolicy.IMMEDIATE);
+        final Random docRandom = new Random(random.nextLong());
+        for (int i = 0; i < NUM_OF_DOCS; i++) {
+            bulk.add(runner.client().prepareIndex().setIndex(index).setId(Integer.toString(i)).setSource(XContentFactory.jsonBuilder().startObject()
+                    .field("price", docRandom.nextInt(1000)).field("popularity", docRandom.nextFloat()).endObject()));
+        }
+        bulk.execute().actionGet();
+    }
+
+    private static long run(final ElasticsearchClusterRunner runner, final String index, final int iterations) {
+        // warm-up, which also parses the trees of the painless script
+        for (int i = 0; i < iterations; i++) {
+            runner.client().prepareSearch(index).setQuery(QueryBuilders.matchAllQuery()).setSize(10).execute().actionGet();
+        }
+        final long start = System.nanoTime();
+        for (int i = 0; i < iterations; i++) {
+            runner.client().prepareSearch(index).setQuery(QueryBuilders.matchAllQuery()).setSize(10).execute().actionGet();
+        }
+        return System.nanoTime() - start;
+    }
+
+    private static class Trees {
+        private final List<String> features = new ArrayList<>();
+
+        private final List<String> thresholds = new ArrayList<>();
+
+        private final List<String> lefts = new ArrayList<>();
+
+        private final List<String> rights = new ArrayList<>();
+
+        private final List<String> values = new ArrayList<>();
+
+        private final List<String> roots = new ArrayList<>();
+
+        private final int nodesPerTree = (1 << (DEPTH + 1)) - 1;
+
+        Trees(final Random random) {
+            for (int t = 0; t < NUM_OF_TREES; t++) {
+                final int offset = t * nodesPerTree;
+                roots.add(Integer.toString(offset));
+                for (int i = 0; i < nodesPerTree; i++) {
+                    if (2 * i + 1 < nodesPerTree) {
+                        final int feature = random.nextInt(FEATURES.length);
+                        features.add(Integer.toString(feature));
+                        thresholds.add(Float.toString(threshold(feature, random)));
+                        lefts.add(Integer.toString(offset + 2 * i + 1));
+                        rights.add(Integer.toString(offset + 2 * i + 2));
+                        values.add("0");
+                    } else {
+                        features.add("-1");
+                        thresholds.add("0");
+                        lefts.add("-1");
+                        rights.add("-1");
+                        values.add(Float.toString(random.nextFloat() - 0.5f));
+                    }
+                }
+            }
+        }
+
+        private float threshold(final int feature, final Random random) {
+            switch (feature) {
+            case 1:
+                return random.nextInt(NUM_OF_DOCS);
+            case 2:
+                return random.nextInt(1000);
+            default:
+                return random.nextFloat();
+            }
+        }
+
+        Settings.Builder toPainlessParams(final Settings.Builder builder) {
+            final String prefix = DynamicRanker.SETTING_INDEX_DYNARANK_PARAMS.getKey();
+            return builder.putList(prefix + "tree_features", features).putList(prefix + "tree_thresholds", thresholds)
+                    .putList(prefix + "tree_lefts", lefts).putList(prefix + "tree_rights", rights)
+                    .putList(prefix + "tree_values", values).putList(prefix + "tree_roots", roots);
+        }
+
+        XContentBuilder toModelJson() throws Exception {
+            final XContentBuilder builder = XContentFactory.contentBuilder(XContentType.JSON);
+            builder.startObject().field("type", "gbdt").startArray("trees");
+            for (int t = 0; t < NUM_OF_TREES; t++) {
+                final int offset = t * nodesPerTree;
+                builder.startObject().startArray("nodes");
+                for (int i = 0; i < nodesPerTree; i++) {
+                    final int pos = offset + i;
+                    builder.startObject();
+                    if ("-1".equals(features.get(pos))) {
+                        builder.field("leaf", Float.parseFloat(values.get(pos)));
+                    } else {
+                        builder.field("feature", Integer.parseInt(features.get(pos)))
+                                .field("threshold", Float.parseFloat(thresholds.get(pos)))
+                                .field("left", Integer.parseInt(lefts.get(pos)) - offset)
+                                .field("right", Integer.parseInt(rights.get(pos)) - offset);
+                    }
+                    builder.endObject();
+                }
+                builder.endArray().endObject();
+            }
+            builder.endArray().endObject();
+            return builder;
+        }
+    }
+}
@@ -0,0 +1,148 @@
+package org.codelibs.elasticsearch.dynarank.model;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.codelibs.elasticsearch.dynarank.feature.FeatureStore;
+import org.codelibs.elasticsearch.dynarank.feature.FeatureStoreWriter;
+import org.elasticsearch.ElasticsearchException;
+import org.elasticsearch.common.document.DocumentField;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.env.Environment;
+import org.elasticsearch.search.SearchHit;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Order of hits by {@link ModelRanker}: descending score, NaN scores last,
+ * and the original position for equal scores.
+ */
+public class ModelRankerTest {
+
+    private Path home;
+
+    private ModelRanker modelRanker;
+
+    @Before
+    public void setUp() throws Exception {
+        home = Files.createTempDirectory("dynarank-model");
+        Files.createDirectories(home.resolve("config").resolve("dynarank"));
+        final Settings settings = Settings.builder().put(Environment.PATH_HOME_SETTING.getKey(), home.toString()).build();
+        modelRanker = new ModelRanker(settings, new Environment(settings, null));
+        writeModel("score.json", "{\"type\": \"linear\", \"weights\": [1]}");
+        writeModel("field.json", "{\"type\": \"linear\", \"weights\": [1, 1]}");
+    }
+
+    @Test
+    public void descendingScore() throws Exception {
+        final SearchHit[] hits = { hit(0, 1f, null), hit(1, 3f, null), hit(2, -2f, null), hit(3, 0f, null), hit(4, 2.5f, null) };
+        assertEquals("[1, 4, 0, 3, 2]", ids(modelRanker.execute(hits, "score.json", params("_score"), FeatureStore.EMPTY)));
+        // infinities, and -0 plus the bias is 0
+        final SearchHit[] zeros = { hit(0, -0f, null), hit(1, Float.NEGATIVE_INFINITY, null), hit(2, 0f, null),
+                hit(3, Float.POSITIVE_INFINITY, null), hit(4, -Float.MIN_VALUE, null) };
+        assertEquals("[3, 0, 2, 4, 1]", ids(modelRanker.execute(zeros, "score.json", params("_score"), FeatureStore.EMPTY)));
+    }
+
+    @Test
+    public void nanLast() throws Exception {
+        // a missing field is NaN, and NaN is after negative infinity
+        final SearchHit[] hits =
+                { hit(0, 1f, null), hit(1, 1f, 2f), hit(2, Float.NEGATIVE_INFINITY, 0f), hit(3, 1f, -5f), hit(4, 1f, null) };
+        assertEquals("[1, 3, 2, 0, 4]", ids(modelRanker.execute(hits, "field.json", params("_score", "field:x"), FeatureStore.EMPTY)));
+    }
+
+    @Test
+    public void stableByPosition() throws Exception {
+        final SearchHit[] hits = new SearchHit[100];
+        for (int i = 0; i < hits.length; i++) {
+            hits[i] = hit(i, i % 3, null);
+        }
+        final SearchHit[] reordered = modelRanker.execute(hits, "score.json", params("_score"), FeatureStore.EMPTY);
+        for (int i = 1; i < reordered.length; i++) {
+            final int prev = Integer.parseInt(reordered[i - 1].getId());
+            final int id = Integer.parseInt(reordered[i].getId());
+            assertTrue(prev + " " + id, prev % 3 > id % 3 || prev % 3 == id % 3 && prev < id);
+        }
+    }
+
+    @Test
+    public void rankAndStoreFeatures() throws Exception {
+        final Map<String, float[]> features = new HashMap<>();
+        features.put("0", new float[] { 1f, 0f });
+        features.put("1", new float[] { 5f, 1f });
+        features.put("2", new float[] { 0f, 10f });
+        final Path path = home.resolve("features.bin");
+        new FeatureStoreWriter("ctr", "popularity").write(path, features);
+        final FeatureStore featureStore = FeatureStore.open(path, 1);
+        writeModel("store.json", "{\"type\": \"linear\", \"weights\": [-1, 1, 1, 1]}");
+
+        // 3 is not in the store, and the unknown feature is NaN for all hits
+        final SearchHit[] hits = { hit(0, 0f, null), hit(1, 0f, null), hit(2, 0f, null), hit(3, 0f, null) };
+        assertEquals("[2, 1, 0, 3]", ids(modelRanker.execute(hits, "store.json",
+                params("_rank", "store:ctr", "store:popularity", "_score"), featureStore)));
+        assertEquals("[0, 1, 2, 3]", ids(modelRanker.execute(hits, "store.json",
+                params("_rank", "store:ctr", "store:unknown", "_score"), featureStore)));
+    }
+
+    @Test
+    public void invalidParams() throws Exception {
+        final SearchHit[] hits = { hit(0, 0f, null) };
+        assertInvalid("features is null.", hits, "score.json", new HashMap<String, Object>());
+        assertInvalid("Model field.json requires 2 features: 1", hits, "field.json", params("_score"));
+        assertInvalid("Unknown feature: price", hits, "score.json", params("price"));
+        assertInvalid("Failed to load model: missing.json", hits, "missing.json", params("_score"));
+        assertInvalid("Failed to load model: ../score.json", hits, "../score.json", params("_score"));
+
+        // an invalid model is reported as a load failure
+        writeModel("invalid.json", "{\"type\": \"gbdt\", \"trees\": [{\"nodes\": []}]}");
+        try {
+            modelRanker.execute(hits, "invalid.json", params("_score"), FeatureStore.EMPTY);
+            fail();
+        } catch (final ElasticsearchException e) {
+            assertEquals("Failed to load model: invalid.json", e.getMessage());
+            assertEquals("No nodes in tree 0", e.getCause().getMessage());
+        }
+    }
+
+    private void assertInvalid(final String message, final SearchHit[] hits, final String name, final Map<String, Object> params) {
+        try {
+            modelRanker.execute(hits, name, params, FeatureStore.EMPTY);
+            fail(message);
+        } catch (final ElasticsearchException e) {
+            assertEquals(message, e.getMessage());
+        }
+    }
+
+    private void writeModel(final String name, final String json) throws Exception {
+        Files.write(home.resolve("config").resolve("dynarank").resolve(name), json.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static Map<String, Object> params(final String... features) {
+        final Map<String, Object> params = new HashMap<>();
+        params.put("features", features);
+        return params;
+    }
+
+    private static SearchHit hit(final int id, final float score, final Float x) {
+        final Map<String, DocumentField> fields = new HashMap<>();
+        if (x != null) {
+            fields.put("x", new DocumentField("x", Collections.singletonList(x)));
+        }
+        final SearchHit hit = new SearchHit(id, Integer.toString(id), null, fields, Collections.<String, DocumentField> emptyMap());
+        hit.score(score);
+        return hit;
+    }
+
+    private static String ids(final SearchHit[] hits) {
+        return Arrays.toString(Arrays.stream(hits).map(SearchHit::getId).toArray());
+    }
+}
@@ -0,0 +1,49 @@
+package org.codelibs.elasticsearch.dynarank.model;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.ByteArrayInputStream;
+import java.nio.charset.StandardCharsets;
+
+import org.junit.Test;
+
+/**
+ * Scores of {@link TreeEnsembleModel} in flattened arrays.
+ */
+public class TreeEnsembleModelTest {
+
+    // x[1] <= 0.5 ? (x[0] <= 10 ? 1 : 2) : 3, and a single leaf of 0.5
+    private final TreeEnsembleModel model = new TreeEnsembleModel(new int[] { 0, 5 }, new int[] { 1, 0, -1, -1, -1, -1 },
+            new float[] { 0.5f, 10f, 0f, 0f, 0f, 0f }, new int[] { 1, 2, 0, 0, 0, 0 }, new int[] { 4, 3, 0, 0, 0, 0 },
+            new float[] { 0f, 0f, 1f, 2f, 3f, 0.5f }, 0.25f);
+
+    @Test
+    public void score() {
+        assertEquals(2, model.getNumOfTrees());
+        assertEquals(2, model.getNumOfFeatures());
+        assertEquals(0.25f + 1f + 0.5f, model.score(new float[] { 10f, 0.5f }, 0), 0f);
+        assertEquals(0.25f + 2f + 0.5f, model.score(new float[] { 11f, -1f }, 0), 0f);
+        assertEquals(0.25f + 3f + 0.5f, model.score(new float[] { 0f, 0.6f }, 0), 0f);
+        // the offset of the second document
+        assertEquals(0.25f + 2f + 0.5f, model.score(new float[] { 0f, 1f, 11f, 0f }, 2), 0f);
+    }
+
+    @Test
+    public void nanGoesRight() {
+        assertEquals(0.25f + 3f + 0.5f, model.score(new float[] { 0f, Float.NaN }, 0), 0f);
+        assertEquals(0.25f + 2f + 0.5f, model.score(new float[] { Float.NaN, 0f }, 0), 0f);
+    }
+
+    @Test
+    public void learningRateAndBaseScore() throws Exception {
+        final RankingModel parsed = ModelParser.parse(new ByteArrayInputStream(("{\"type\": \"gbdt\", \"base_score\": 0.25,"
+                + " \"learning_rate\": 0.5, \"trees\": [{\"nodes\": [{\"feature\": 1, \"threshold\": 0.5, \"left\": 1, \"right\": 4},"
+                + " {\"feature\": 0, \"threshold\": 10, \"left\": 2, \"right\": 3}, {\"leaf\": 1}, {\"leaf\": 2}, {\"leaf\": 3}]},"
+                + " {\"nodes\": [{\"leaf\": 0.5}]}]}").getBytes(StandardCharsets.UTF_8)));
+        // leaves are multiplied by learning_rate, and base_score is not
+        assertEquals(0.25f + 0.5f + 0.25f, parsed.score(new float[] { 10f, 0.5f }, 0), 0f);
+        assertEquals(0.25f + 1.5f + 0.25f, parsed.score(new float[] { 0f, Float.NaN }, 0), 0f);
+        assertEquals(0.25f, new TreeEnsembleModel(new int[0], new int[0], new float[0], new int[0], new int[0], new float[0], 0.25f)
+                .score(new float[0], 0), 0f);
+    }
+}
@@ -0,0 +1,66 @@
+package org.codelibs.elasticsearch.dynarank.ranker;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.apache.lucene.search.SortField;
+import org.apache.lucene.search.TotalHits;
+import org.elasticsearch.common.document.DocumentField;
+import org.elasticsearch.search.SearchHit;
+import org.elasticsearch.search.SearchHits;
+import org.junit.Test;
+
+public class CollapsePushdownTest {
+
+    @Test
+    public void interleave() {
+        final SearchHits hits = createGroups(new Object[] { "a", "b", "c" }, new String[][] { //
+                { "a1", "a2", "a3" }, { "b1" }, { "c1", "c2" } });
+        assertEquals(Arrays.asList("a1", "b1", "c1", "a2", "c2", "a3"), ids(DynamicRanker.interleaveCollapsedHits(hits, 10)));
+        assertEquals(Arrays.asList("a1", "b1", "c1", "a2"), ids(DynamicRanker.interleaveCollapsedHits(hits, 4)));
+    }
+
+    @Test
+    public void groupWithoutInnerHits() {
+        final SearchHits hits = createGroups(new Object[] { "a", "b" }, new String[][] { { "a1", "a2" }, null });
+        assertEquals(Arrays.asList("a1", "b", "a2"), ids(DynamicRanker.interleaveCollapsedHits(hits, 10)));
+    }
+
+    @Test
+    public void groupWithoutValue() {
+        final SearchHits hits = createGroups(new Object[] { "a", null }, new String[][] { { "a1", "a2" }, { "n1", "n2" } });
+        assertNull(DynamicRanker.interleaveCollapsedHits(hits, 10));
+    }
+
+    private List<String> ids(final List<SearchHit> hits) {
+        final String[] ids = new String[hits.size()];
+        for (int i = 0; i < ids.length; i++) {
+            ids[i] = hits.get(i).getId();
+        }
+        return Arrays.asList(ids);
+    }
+
+    private SearchHits createGroups(final Object[] values, final String[][] innerIds) {
+        final SearchHit[] groups = new SearchHit[values.length];
+        for (int i = 0; i < groups.length; i++) {
+            groups[i] = createHit(innerIds[i] != null ? innerIds[i][0] : String.valueOf(values[i]));
+            if (innerIds[i] != null) {
+                final SearchHit[] innerHits = new SearchHit[innerIds[i].length];
+                for (int j = 0; j < innerHits.length; j++) {
+                    innerHits[j] = createHit(innerIds[i][j]);
+                }
+                groups[i].setInnerHits(Collections.singletonMap(DynamicRanker.COLLAPSE_INNER_HITS,
+                        new SearchHits(innerHits, new TotalHits(innerHits.length, TotalHits.Relation.EQUAL_TO), 1.0f)));
+            }
+        }
+        return new SearchHits(groups, new TotalHits(100, TotalHits.Relation.EQUAL_TO), 1.0f, new SortField[0], "category", values);
+    }
+
+    private SearchHit createHit(final String id) {
+        return new SearchHit(0, id, null, Collections.<String, DocumentField> emptyMap(), Collections.<String, DocumentField> emptyMap());
+    }
+}
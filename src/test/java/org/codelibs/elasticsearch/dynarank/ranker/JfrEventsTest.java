@@ -0,0 +1,162 @@
+package org.codelibs.elasticsearch.dynarank.ranker;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.codelibs.elasticsearch.dynarank.jfr.DynaRankEvents;
+import org.codelibs.elasticsearch.dynarank.jfr.RerankEvent;
+import org.codelibs.elasticsearch.dynarank.jfr.ResponseRebuildEvent;
+import org.codelibs.elasticsearch.dynarank.jfr.RetryEvent;
+import org.codelibs.elasticsearch.dynarank.jfr.ScriptExecuteEvent;
+import org.codelibs.elasticsearch.dynarank.ranker.DynamicRanker.ScriptInfo;
+import org.codelibs.elasticsearch.dynarank.script.DiversitySortScriptEngine;
+import org.codelibs.elasticsearch.dynarank.script.DynaRankScript;
+import org.elasticsearch.cluster.metadata.MappingMetadata;
+import org.elasticsearch.common.bytes.BytesArray;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.env.Environment;
+import org.elasticsearch.node.Node;
+import org.elasticsearch.script.ScriptEngine;
+import org.elasticsearch.script.ScriptService;
+import org.elasticsearch.search.SearchHit;
+import org.elasticsearch.tasks.TaskManager;
+import org.elasticsearch.threadpool.ThreadPool;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import jdk.jfr.Recording;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordingFile;
+
+/**
+ * JFR events of a rerank: events are recorded with their fields while a
+ * recording enables them, and are not created otherwise.
+ */
+public class JfrEventsTest {
+
+    private static final String[] EVENT_NAMES = { "org.codelibs.dynarank.Rerank", "org.codelibs.dynarank.ScriptExecute",
+            "org.codelibs.dynarank.BucketPass", "org.codelibs.dynarank.ResponseRebuild", "org.codelibs.dynarank.Retry" };
+
+    private Path home;
+
+    private ThreadPool threadPool;
+
+    private DynamicRanker ranker;
+
+    @Before
+    public void setUp() throws Exception {
+        home = Files.createTempDirectory("dynarank-jfr");
+        final Settings settings = Settings.builder().put(Environment.PATH_HOME_SETTING.getKey(), home.toString())
+                .put(Node.NODE_NAME_SETTING.getKey(), "test").build();
+        threadPool = new ThreadPool(settings);
+        final ScriptService scriptService = new ScriptService(settings,
+                Collections.<String, ScriptEngine> singletonMap(DiversitySortScriptEngine.SCRIPT_NAME,
+                        new DiversitySortScriptEngine(settings)),
+                Collections.singletonMap(DynaRankScript.CONTEXT.name, DynaRankScript.CONTEXT));
+        ranker = new DynamicRanker(settings, null, null, scriptService, threadPool, null, null, null, null,
+                new Environment(settings, null), new TaskManager(settings, threadPool, Collections.emptySet()));
+    }
+
+    @After
+    public void tearDown() {
+        ThreadPool.terminate(threadPool, 10, TimeUnit.SECONDS);
+    }
+
+    @Test
+    public void recorded() throws Exception {
+        assertTrue(DynaRankEvents.AVAILABLE);
+        final List<RecordedEvent> events = new ArrayList<>();
+        try (Recording recording = new Recording()) {
+            for (final String name : EVENT_NAMES) {
+                recording.enable(name).withoutThreshold();
+            }
+            recording.start();
+
+            final RerankEvent rerankEvent = RerankEvent.start();
+            final SearchHit[] hits = ranker.executeScript(createHits("a", "a", "b", "a", "c"), createScriptInfo());
+            assertEquals(5, hits.length);
+            final ResponseRebuildEvent rebuildEvent = ResponseRebuildEvent.start();
+            rebuildEvent.finish("test", 5);
+            RetryEvent.emit("test", "collapse", 0, 10);
+            rerankEvent.finish("test", 5, 100, null);
+
+            recording.stop();
+            final Path path = home.resolve("dynarank.jfr");
+            recording.dump(path);
+            for (final RecordedEvent event : RecordingFile.readAllEvents(path)) {
+                if (event.getEventType().getCategoryNames().contains("DynaRank")) {
+                    events.add(event);
+                }
+            }
+        }
+        assertEquals(events.toString(), EVENT_NAMES.length, events.size());
+
+        final RecordedEvent scriptEvent = getEvent(events, "org.codelibs.dynarank.ScriptExecute");
+        assertEquals(DiversitySortScriptEngine.SCRIPT_NAME, scriptEvent.getString("lang"));
+        assertEquals(5, scriptEvent.getInt("windowSize"));
+
+        final RecordedEvent bucketEvent = getEvent(events, "org.codelibs.dynarank.BucketPass");
+        assertEquals("category", bucketEvent.getString("field"));
+        assertEquals(5, bucketEvent.getInt("windowSize"));
+        assertEquals(3, bucketEvent.getInt("bucketCount"));
+
+        final RecordedEvent rerankEvent = getEvent(events, "org.codelibs.dynarank.Rerank");
+        assertEquals("test", rerankEvent.getString("index"));
+        assertEquals(100, rerankEvent.getLong("bytesCopied"));
+        assertNull(rerankEvent.getString("fallback"));
+        // the rerank covers the other stages
+        assertTrue(!rerankEvent.getStartTime().isAfter(scriptEvent.getStartTime()));
+
+        assertEquals(5, getEvent(events, "org.codelibs.dynarank.ResponseRebuild").getInt("hits"));
+        final RecordedEvent retryEvent = getEvent(events, "org.codelibs.dynarank.Retry");
+        assertEquals("collapse", retryEvent.getString("reason"));
+        assertEquals(10, retryEvent.getInt("size"));
+    }
+
+    @Test
+    public void notRecorded() throws Exception {
+        assertNull(RerankEvent.start());
+        assertNull(ScriptExecuteEvent.start());
+        assertNull(ResponseRebuildEvent.start());
+        // the ranker works without events
+        assertEquals(3, ranker.executeScript(createHits("a", "a", "b"), createScriptInfo()).length);
+    }
+
+    private static RecordedEvent getEvent(final List<RecordedEvent> events, final String name) {
+        for (final RecordedEvent event : events) {
+            if (name.equals(event.getEventType().getName())) {
+                return event;
+            }
+        }
+        throw new AssertionError(name + " is not in " + events);
+    }
+
+    private static SearchHit[] createHits(final String... categories) {
+        final SearchHit[] hits = new SearchHit[categories.length];
+        for (int i = 0; i < hits.length; i++) {
+            hits[i] = new SearchHit(i, Integer.toString(i), null, null, null);
+            hits[i].sourceRef(new BytesArray(("{\"category\":\"" + categories[i] + "\"}").getBytes(StandardCharsets.UTF_8)));
+        }
+        return hits;
+    }
+
+    private static ScriptInfo createScriptInfo() throws Exception {
+        final Settings indexSettings = Settings.builder()
+                .put(DynamicRanker.SETTING_INDEX_DYNARANK_LANG.getKey(), DiversitySortScriptEngine.SCRIPT_NAME)
+                .put(DynamicRanker.SETTING_INDEX_DYNARANK_SCRIPT.getKey(), "")
+                .putList("index.dynarank.script_sort.params.diversity_fields", "category")
+                .putList("index.dynarank.script_sort.params.diversity_thresholds", "0").build();
+        return new ScriptInfo(indexSettings, new MappingMetadata("_doc", Collections.<String, Object> singletonMap("properties",
+                Collections.singletonMap("category", Collections.singletonMap("type", "keyword")))));
+    }
+}
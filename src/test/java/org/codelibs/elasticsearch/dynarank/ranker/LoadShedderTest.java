@@ -0,0 +1,125 @@
+package org.codelibs.elasticsearch.dynarank.ranker;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.Map;
+
+import org.codelibs.elasticsearch.dynarank.ranker.LoadShedder.Mode;
+import org.elasticsearch.common.Strings;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.xcontent.XContentHelper;
+import org.elasticsearch.xcontent.XContentType;
+import org.junit.Test;
+
+/**
+ * Hysteresis of {@link LoadShedder#evaluate(long, long, double)}: the mode
+ * steps up one level per evaluation over the limits, and steps down one
+ * level after recover_count evaluations under the recover ratio.
+ */
+public class LoadShedderTest {
+
+    private static final long MAX_LATENCY_NANOS = 500_000_000L;
+
+    private final LoadShedder loadShedder = new LoadShedder(Settings.builder().put("dynarank.load_shedding.enabled", true)
+            .put("dynarank.load_shedding.interval", "1h").put("dynarank.load_shedding.max_in_flight", 10)
+            .put("dynarank.load_shedding.recover_ratio", 0.5).put("dynarank.load_shedding.recover_count", 3).build());
+
+    @Test
+    public void stepUpOneLevelPerEvaluation() {
+        assertEquals(Mode.NORMAL, loadShedder.getMode());
+        loadShedder.evaluate(10, 0, 0);
+        assertEquals(Mode.SMALL_WINDOW, loadShedder.getMode());
+        loadShedder.evaluate(0, MAX_LATENCY_NANOS, 0);
+        assertEquals(Mode.PAGE_ONLY, loadShedder.getMode());
+        loadShedder.evaluate(0, 0, 0.95);
+        assertEquals(Mode.BYPASS, loadShedder.getMode());
+        loadShedder.evaluate(100, 0, 0);
+        assertEquals(Mode.BYPASS, loadShedder.getMode());
+    }
+
+    @Test
+    public void stepDownAfterRecoverCount() {
+        loadShedder.evaluate(10, 0, 0);
+        loadShedder.evaluate(10, 0, 0);
+        assertEquals(Mode.PAGE_ONLY, loadShedder.getMode());
+        loadShedder.evaluate(4, 0, 0);
+        loadShedder.evaluate(4, 0, 0);
+        assertEquals(Mode.PAGE_ONLY, loadShedder.getMode());
+        loadShedder.evaluate(4, 0, 0);
+        assertEquals(Mode.SMALL_WINDOW, loadShedder.getMode());
+        // the calm count starts again at the new mode
+        loadShedder.evaluate(0, 0, 0);
+        loadShedder.evaluate(0, 0, 0);
+        assertEquals(Mode.SMALL_WINDOW, loadShedder.getMode());
+        loadShedder.evaluate(0, 0, 0);
+        assertEquals(Mode.NORMAL, loadShedder.getMode());
+        loadShedder.evaluate(0, 0, 0);
+        assertEquals(Mode.NORMAL, loadShedder.getMode());
+    }
+
+    @Test
+    public void pressureBetweenRecoverRatioAndLimitKeepsMode() {
+        loadShedder.evaluate(10, 0, 0);
+        assertEquals(Mode.SMALL_WINDOW, loadShedder.getMode());
+        for (int i = 0; i < 10; i++) {
+            loadShedder.evaluate(5 + i % 5, 0, 0);
+            assertEquals(Mode.SMALL_WINDOW, loadShedder.getMode());
+        }
+        // calm evaluations interrupted by a pressure over the recover ratio are counted again
+        loadShedder.evaluate(0, 0, 0);
+        loadShedder.evaluate(0, 0, 0);
+        loadShedder.evaluate(5, 0, 0);
+        loadShedder.evaluate(0, 0, 0);
+        loadShedder.evaluate(0, 0, 0);
+        assertEquals(Mode.SMALL_WINDOW, loadShedder.getMode());
+        loadShedder.evaluate(0, 0, 0);
+        assertEquals(Mode.NORMAL, loadShedder.getMode());
+    }
+
+    @Test
+    public void overloadResetsCalmCount() {
+        loadShedder.evaluate(10, 0, 0);
+        loadShedder.evaluate(0, 0, 0);
+        loadShedder.evaluate(0, 0, 0);
+        loadShedder.evaluate(10, 0, 0);
+        assertEquals(Mode.PAGE_ONLY, loadShedder.getMode());
+        loadShedder.evaluate(0, 0, 0);
+        loadShedder.evaluate(0, 0, 0);
+        assertEquals(Mode.PAGE_ONLY, loadShedder.getMode());
+        loadShedder.evaluate(0, 0, 0);
+        assertEquals(Mode.SMALL_WINDOW, loadShedder.getMode());
+    }
+
+    @Test
+    public void reorderSize() {
+        assertEquals(100, loadShedder.getReorderSize(Mode.NORMAL, 100, 0, 10));
+        assertEquals(50, loadShedder.getReorderSize(Mode.SMALL_WINDOW, 100, 0, 10));
+        assertEquals(80, loadShedder.getReorderSize(Mode.SMALL_WINDOW, 100, 70, 10));
+        assertEquals(10, loadShedder.getReorderSize(Mode.PAGE_ONLY, 100, 0, 10));
+        assertEquals(-1, loadShedder.getReorderSize(Mode.BYPASS, 100, 0, 10));
+    }
+
+    @Test
+    public void stats() {
+        loadShedder.evaluate(10, MAX_LATENCY_NANOS / 2, 0.5);
+        loadShedder.getReorderSize(loadShedder.getMode(), 100, 0, 10);
+
+        final Map<String, Object> stats =
+                XContentHelper.convertToMap(XContentType.JSON.xContent(), Strings.toString(loadShedder), false);
+        assertEquals("small_window", stats.get("mode"));
+        assertEquals(1.0, stats.get("pressure"));
+        assertEquals(10, stats.get("in_flight"));
+        assertEquals(250, stats.get("latency_p99_in_millis"));
+        assertEquals(0.5, stats.get("heap_usage"));
+        assertEquals(1, ((Map<?, ?>) stats.get("transitions")).get("small_window"));
+        assertEquals(1, ((Map<?, ?>) stats.get("requests")).get("small_window"));
+        assertEquals(0, ((Map<?, ?>) stats.get("requests")).get("normal"));
+    }
+
+    @Test
+    public void disabled() {
+        final LoadShedder disabled = new LoadShedder(Settings.EMPTY);
+        disabled.evaluate(1000, 0, 0);
+        assertEquals(Mode.NORMAL, disabled.getMode());
+    }
+}
@@ -0,0 +1,116 @@
+package org.codelibs.elasticsearch.dynarank.ranker;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.Base64;
+
+import org.elasticsearch.common.bytes.BytesReference;
+import org.elasticsearch.common.io.stream.BytesStreamOutput;
+import org.junit.Test;
+
+public class PitCursorTest {
+
+    @Test
+    public void encodeAndDecode() {
+        final Object[] sortValues = { "a", 1L, 2, 3.0d, 4.0f, true, null };
+        final String value = new PitCursor(sortValues, 5, 100).encode();
+        assertTrue(PitCursor.isCursor(new Object[] { value }));
+
+        final PitCursor cursor = PitCursor.decode(value);
+        assertArrayEquals(sortValues, cursor.getWindowStart());
+        assertEquals(5, cursor.getOffset());
+        assertEquals(100, cursor.getWindowSize());
+
+        final PitCursor first = PitCursor.decode(new PitCursor(null, 0, 10).encode());
+        assertNull(first.getWindowStart());
+        assertEquals(0, first.getOffset());
+        assertEquals(10, first.getWindowSize());
+    }
+
+    @Test
+    public void isCursor() {
+        assertFalse(PitCursor.isCursor(null));
+        assertFalse(PitCursor.isCursor(new Object[] { "abc" }));
+        assertFalse(PitCursor.isCursor(new Object[] { 1L }));
+        assertFalse(PitCursor.isCursor(new Object[] { PitCursor.PREFIX, 1L }));
+    }
+
+    @Test
+    public void unsupportedSortValue() {
+        try {
+            new PitCursor(new Object[] { new Object() }, 0, 10).encode();
+            fail();
+        } catch (final IllegalArgumentException e) {
+            assertEquals("Unsupported sort value: java.lang.Object", e.getMessage());
+        }
+    }
+
+    @Test
+    public void invalidCursor() throws Exception {
+        assertInvalid(PitCursor.PREFIX + "!!!");
+        assertInvalid(PitCursor.PREFIX);
+
+        BytesStreamOutput out = new BytesStreamOutput();
+        out.writeVInt(0);
+        out.writeVInt(0);
+        out.writeBoolean(false);
+        assertInvalid(encode(out));
+
+        out = new BytesStreamOutput();
+        out.writeVInt(10);
+        out.writeVInt(10);
+        out.writeBoolean(false);
+        assertInvalid(encode(out));
+
+        // a generic value such as a map is not a sort value
+        out = new BytesStreamOutput();
+        out.writeVInt(10);
+        out.writeVInt(0);
+        out.writeBoolean(true);
+        out.writeVInt(1);
+        out.writeByte((byte) 10);
+        assertInvalid(encode(out));
+
+        out = new BytesStreamOutput();
+        out.writeVInt(10);
+        out.writeVInt(0);
+        out.writeBoolean(true);
+        out.writeVInt(Integer.MAX_VALUE);
+        assertInvalid(encode(out));
+
+        // a string longer than the cursor
+        out = new BytesStreamOutput();
+        out.writeVInt(10);
+        out.writeVInt(0);
+        out.writeBoolean(true);
+        out.writeVInt(1);
+        out.writeByte((byte) 1);
+        out.writeVInt(Integer.MAX_VALUE / 4);
+        assertInvalid(encode(out));
+
+        out = new BytesStreamOutput();
+        out.writeVInt(10);
+        out.writeVInt(0);
+        out.writeBoolean(false);
+        out.writeByte((byte) 0);
+        assertInvalid(encode(out));
+    }
+
+    private static String encode(final BytesStreamOutput out) {
+        return PitCursor.PREFIX + Base64.getUrlEncoder().withoutPadding().encodeToString(BytesReference.toBytes(out.bytes()));
+    }
+
+    private static void assertInvalid(final String value) {
+        try {
+            PitCursor.decode(value);
+            fail(value);
+        } catch (final IllegalArgumentException e) {
+            assertTrue(e.getMessage().startsWith("Invalid search_after for DynaRank: "));
+        }
+    }
+}
@@ -0,0 +1,167 @@
+package org.codelibs.elasticsearch.dynarank.ranker;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.apache.lucene.search.TotalHits;
+import org.codelibs.elasticsearch.dynarank.ranker.DynamicRanker.ScriptInfo;
+import org.codelibs.elasticsearch.dynarank.script.DiversitySortScriptEngine;
+import org.codelibs.elasticsearch.dynarank.script.DynaRankScript;
+import org.elasticsearch.action.ActionListener;
+import org.elasticsearch.action.ActionRequest;
+import org.elasticsearch.action.ActionResponse;
+import org.elasticsearch.action.ActionType;
+import org.elasticsearch.action.search.SearchRequest;
+import org.elasticsearch.action.search.SearchResponse;
+import org.elasticsearch.action.search.ShardSearchFailure;
+import org.elasticsearch.client.support.AbstractClient;
+import org.elasticsearch.cluster.metadata.MappingMetadata;
+import org.elasticsearch.common.bytes.BytesArray;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.env.Environment;
+import org.elasticsearch.node.Node;
+import org.elasticsearch.script.ScriptEngine;
+import org.elasticsearch.script.ScriptService;
+import org.elasticsearch.search.DocValueFormat;
+import org.elasticsearch.search.SearchHit;
+import org.elasticsearch.search.SearchHits;
+import org.elasticsearch.search.SearchModule;
+import org.elasticsearch.search.builder.SearchSourceBuilder;
+import org.elasticsearch.search.internal.InternalSearchResponse;
+import org.elasticsearch.tasks.TaskManager;
+import org.elasticsearch.threadpool.ThreadPool;
+import org.elasticsearch.xcontent.NamedXContentRegistry;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Point in time pages collected across windows. Each window of 10 hits has
+ * categories a, a, a, b, b, b, c, c, c, c and keep_topn is 2.
+ */
+public class PitPagingTest {
+
+    private static final int WINDOW_SIZE = 10;
+
+    private ThreadPool threadPool;
+
+    private DynamicRanker ranker;
+
+    private final List<SearchRequest> requests = new ArrayList<>();
+
+    @Before
+    public void setUp() throws Exception {
+        final Path home = Files.createTempDirectory("dynarank-pit");
+        final Settings settings = Settings.builder().put(Environment.PATH_HOME_SETTING.getKey(), home.toString())
+                .put(Node.NODE_NAME_SETTING.getKey(), "test").build();
+        threadPool = new ThreadPool(settings);
+        final ScriptService scriptService = new ScriptService(settings,
+                Collections.<String, ScriptEngine> singletonMap(DiversitySortScriptEngine.SCRIPT_NAME,
+                        new DiversitySortScriptEngine(settings)),
+                Collections.singletonMap(DynaRankScript.CONTEXT.name, DynaRankScript.CONTEXT));
+        // returns the second window
+        final AbstractClient client = new AbstractClient(settings, threadPool) {
+            @Override
+            @SuppressWarnings("unchecked")
+            protected <Request extends ActionRequest, Response extends ActionResponse> void doExecute(final ActionType<Response> action,
+                    final Request request, final ActionListener<Response> listener) {
+                requests.add((SearchRequest) request);
+                listener.onResponse((Response) createResponse(WINDOW_SIZE));
+            }
+
+            @Override
+            public void close() {
+            }
+        };
+        ranker = new DynamicRanker(settings, client, null, scriptService, threadPool, null, null,
+                new NamedXContentRegistry(new SearchModule(Settings.EMPTY, false, Collections.emptyList()).getNamedXContents()), null,
+                new Environment(settings, null), new TaskManager(settings, threadPool, Collections.emptySet()));
+    }
+
+    @After
+    public void tearDown() {
+        ThreadPool.terminate(threadPool, 10, TimeUnit.SECONDS);
+    }
+
+    @Test
+    public void keepTopNInFirstWindowOnly() throws Exception {
+        final SearchRequest request = new SearchRequest("test").source(new SearchSourceBuilder().size(WINDOW_SIZE));
+        final SearchResponse response = collect(request, new PitCursor(null, 0, WINDOW_SIZE), 15);
+        // 0 and 1 are kept, and the second window is re-ordered from its first hit
+        assertArrayEquals(new String[] { "0", "1", "2", "3", "6", "4", "7", "5", "8", "9", "10", "13", "16", "11", "14" },
+                ids(response.getHits().getHits()));
+        assertEquals(1, requests.size());
+        assertArrayEquals(new Object[] { 9L }, requests.get(0).source().searchAfter());
+
+        // the next page starts in the second window
+        final Object[] sortValues = response.getHits().getHits()[14].getSortValues();
+        final PitCursor cursor = PitCursor.decode(sortValues[0].toString());
+        assertEquals(5, cursor.getOffset());
+        final SearchResponse nextResponse = collect(request, cursor, 5, WINDOW_SIZE);
+        assertArrayEquals(new String[] { "17", "12", "15", "18", "19" }, ids(nextResponse.getHits().getHits()));
+    }
+
+    @Test
+    public void keepTopNWithSearchAfter() throws Exception {
+        // search_after of the original sort does not start at the top hits
+        final SearchRequest request = new SearchRequest("test").source(new SearchSourceBuilder().size(WINDOW_SIZE));
+        final SearchResponse response = collect(request, new PitCursor(new Object[] { 9L }, 0, WINDOW_SIZE), 5, WINDOW_SIZE);
+        assertArrayEquals(new String[] { "10", "13", "16", "11", "14" }, ids(response.getHits().getHits()));
+    }
+
+    private SearchResponse collect(final SearchRequest request, final PitCursor cursor, final int size) throws Exception {
+        return collect(request, cursor, size, 0);
+    }
+
+    private SearchResponse collect(final SearchRequest request, final PitCursor cursor, final int size, final int start)
+            throws Exception {
+        final AtomicReference<Object> result = new AtomicReference<>();
+        ranker.collectPointInTimePage(null, request, createResponse(start), createResponse(start), cursor, 0, new ArrayList<>(size),
+                size, createScriptInfo(), System.nanoTime(), ActionListener.wrap(result::set, result::set));
+        if (result.get() instanceof Exception) {
+            throw (Exception) result.get();
+        }
+        return (SearchResponse) result.get();
+    }
+
+    private static SearchResponse createResponse(final int start) {
+        final String[] categories = { "a", "a", "a", "b", "b", "b", "c", "c", "c", "c" };
+        final SearchHit[] hits = new SearchHit[WINDOW_SIZE];
+        for (int i = 0; i < hits.length; i++) {
+            final int id = start + i;
+            hits[i] = new SearchHit(id, Integer.toString(id), null, null, null);
+            hits[i].sourceRef(new BytesArray(("{\"category\":\"" + categories[i] + "\"}").getBytes(StandardCharsets.UTF_8)));
+            hits[i].sortValues(new Object[] { (long) id }, new DocValueFormat[] { DocValueFormat.RAW });
+        }
+        final SearchHits searchHits = new SearchHits(hits, new TotalHits(100, TotalHits.Relation.EQUAL_TO), Float.NaN);
+        return new SearchResponse(new InternalSearchResponse(searchHits, null, null, null, false, null, 1), null, 1, 1, 0, 1,
+                ShardSearchFailure.EMPTY_ARRAY, SearchResponse.Clusters.EMPTY);
+    }
+
+    private static ScriptInfo createScriptInfo() throws Exception {
+        final Settings indexSettings = Settings.builder()
+                .put(DynamicRanker.SETTING_INDEX_DYNARANK_LANG.getKey(), DiversitySortScriptEngine.SCRIPT_NAME)
+                .put(DynamicRanker.SETTING_INDEX_DYNARANK_SCRIPT.getKey(), "")
+                .put(DynamicRanker.SETTING_INDEX_DYNARANK_REORDER_SIZE.getKey(), WINDOW_SIZE)
+                .put(DynamicRanker.SETTING_INDEX_DYNARANK_KEEP_TOPN.getKey(), 2)
+                .putList("index.dynarank.script_sort.params.diversity_fields", "category")
+                .putList("index.dynarank.script_sort.params.diversity_thresholds", "0").build();
+        return new ScriptInfo(indexSettings, new MappingMetadata("_doc",
+                Collections.<String, Object> singletonMap("properties",
+                        Collections.singletonMap("category", Collections.singletonMap("type", "keyword")))));
+    }
+
+    private static String[] ids(final SearchHit[] hits) {
+        return Arrays.stream(hits).map(SearchHit::getId).toArray(String[]::new);
+    }
+}
@@ -0,0 +1,143 @@
+package org.codelibs.elasticsearch.dynarank.ranker;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Collections;
+import java.util.Map;
+
+import org.codelibs.elasticsearch.dynarank.ranker.DynamicRanker.ScriptInfo;
+import org.codelibs.elasticsearch.dynarank.script.DiversitySortScriptEngine;
+import org.elasticsearch.cluster.metadata.MappingMetadata;
+import org.elasticsearch.common.Strings;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.xcontent.XContentHelper;
+import org.elasticsearch.env.Environment;
+import org.elasticsearch.tasks.TaskManager;
+import org.elasticsearch.xcontent.XContentType;
+import org.junit.Test;
+
+/**
+ * Feedback of {@link ReorderSizeController}: the reorder size follows the
+ * overhead budget and the depth of returned hits within the min and max
+ * reorder sizes.
+ */
+public class ReorderSizeControllerTest {
+
+    private static final long MILLIS = 1000000L;
+
+    @Test
+    public void convergeToOverheadBudget() throws Exception {
+        // the overhead is 1ms per hit, and every page reaches the end of the window
+        final ScriptInfo scriptInfo = createScriptInfo(true, 10, 200, "100ms");
+        final ReorderSizeController controller = new ReorderSizeController("test", scriptInfo);
+        assertEquals(200, controller.getReorderSize(scriptInfo));
+        for (int i = 0; i < 50; i++) {
+            rerank(controller, scriptInfo, 1, ReorderSizeController.ADJUST_INTERVAL);
+        }
+        final int reorderSize = controller.getReorderSize(scriptInfo);
+        assertTrue(Integer.toString(reorderSize), reorderSize <= 100 && reorderSize >= 75);
+
+        // stays within the budget
+        for (int i = 0; i < 50; i++) {
+            rerank(controller, scriptInfo, 1, ReorderSizeController.ADJUST_INTERVAL);
+            assertEquals(reorderSize, controller.getReorderSize(scriptInfo));
+        }
+
+        final Map<String, Object> stats = XContentHelper.convertToMap(XContentType.JSON.xContent(), Strings.toString(controller), false);
+        assertEquals(reorderSize, stats.get("effective_reorder_size"));
+        assertEquals(3, stats.get("shrink_count"));
+        assertEquals(0, stats.get("grow_count"));
+    }
+
+    @Test
+    public void clampToMinAndMax() throws Exception {
+        final ScriptInfo scriptInfo = createScriptInfo(true, 10, 200, "100ms");
+        final ReorderSizeController controller = new ReorderSizeController("test", scriptInfo);
+        // far over the budget at any size
+        for (int i = 0; i < 30; i++) {
+            rerank(controller, scriptInfo, 1000, ReorderSizeController.ADJUST_INTERVAL);
+        }
+        assertEquals(10, controller.getReorderSize(scriptInfo));
+
+        // no overhead, and pages reach the end of the window
+        for (int i = 0; i < 30; i++) {
+            rerank(controller, scriptInfo, 0, ReorderSizeController.ADJUST_INTERVAL);
+        }
+        assertEquals(200, controller.getReorderSize(scriptInfo));
+    }
+
+    @Test
+    public void shrinkToDepth() throws Exception {
+        // pages never go deeper than 20 hits
+        final ScriptInfo scriptInfo = createScriptInfo(true, 10, 200, "100ms");
+        final ReorderSizeController controller = new ReorderSizeController("test", scriptInfo);
+        for (int i = 0; i < 30 * ReorderSizeController.ADJUST_INTERVAL; i++) {
+            controller.onRerank(scriptInfo, controller.getReorderSize(scriptInfo), 20, 0);
+        }
+        assertEquals(40, controller.getReorderSize(scriptInfo));
+    }
+
+    @Test
+    public void noAdjustmentWithinInterval() throws Exception {
+        final ScriptInfo scriptInfo = createScriptInfo(true, 10, 200, "100ms");
+        final ReorderSizeController controller = new ReorderSizeController("test", scriptInfo);
+        rerank(controller, scriptInfo, 1000, ReorderSizeController.ADJUST_INTERVAL - 1);
+        assertEquals(200, controller.getReorderSize(scriptInfo));
+        rerank(controller, scriptInfo, 1000, 1);
+        assertEquals(150, controller.getReorderSize(scriptInfo));
+    }
+
+    @Test
+    public void updatedSettings() throws Exception {
+        final ScriptInfo scriptInfo = createScriptInfo(true, 10, 200, "100ms");
+        final ReorderSizeController controller = new ReorderSizeController("test", scriptInfo);
+        assertEquals(50, controller.getReorderSize(createScriptInfo(true, 10, 50, "100ms")));
+        assertEquals(60, controller.getReorderSize(createScriptInfo(true, 60, 300, "100ms")));
+    }
+
+    @Test
+    public void disabled() throws Exception {
+        final Path home = Files.createTempDirectory("dynarank-adaptive");
+        final Settings settings = Settings.builder().put(Environment.PATH_HOME_SETTING.getKey(), home.toString()).build();
+        final DynamicRanker ranker = new DynamicRanker(settings, null, null, null, null, null, null, null, null,
+                new Environment(settings, null), new TaskManager(settings, null, Collections.emptySet()));
+
+        final ScriptInfo scriptInfo = createScriptInfo(false, 10, 200, "100ms");
+        assertNull(ranker.getReorderSizeController("test", scriptInfo));
+        assertEquals(150, scriptInfo.getReorderSize());
+
+        // starts at max_reorder_size, or reorder_size if it is not set
+        assertEquals(200, ranker.getReorderSizeController("test", createScriptInfo(true, 10, 200, "100ms"))
+                .getReorderSize(createScriptInfo(true, 10, 200, "100ms")));
+        final ScriptInfo withoutMax = createScriptInfo(true, 10, -1, "100ms");
+        assertEquals(150, ranker.getReorderSizeController("test2", withoutMax).getReorderSize(withoutMax));
+    }
+
+    /**
+     * Reranks full windows whose overhead is the given millis per hit.
+     */
+    private static void rerank(final ReorderSizeController controller, final ScriptInfo scriptInfo, final long millisPerHit,
+            final int count) {
+        for (int i = 0; i < count; i++) {
+            final int windowSize = controller.getReorderSize(scriptInfo);
+            controller.onRerank(scriptInfo, windowSize, windowSize, windowSize * millisPerHit * MILLIS);
+        }
+    }
+
+    private static ScriptInfo createScriptInfo(final boolean adaptive, final int min, final int max, final String budget)
+            throws Exception {
+        final Settings indexSettings = Settings.builder()
+                .put(DynamicRanker.SETTING_INDEX_DYNARANK_LANG.getKey(), DiversitySortScriptEngine.SCRIPT_NAME)
+                .put(DynamicRanker.SETTING_INDEX_DYNARANK_REORDER_SIZE.getKey(), 150)
+                .put(DynamicRanker.SETTING_INDEX_DYNARANK_ADAPTIVE_ENABLED.getKey(), adaptive)
+                .put(DynamicRanker.SETTING_INDEX_DYNARANK_ADAPTIVE_MIN_REORDER_SIZE.getKey(), min)
+                .put(DynamicRanker.SETTING_INDEX_DYNARANK_ADAPTIVE_MAX_REORDER_SIZE.getKey(), max)
+                .put(DynamicRanker.SETTING_INDEX_DYNARANK_ADAPTIVE_OVERHEAD_BUDGET.getKey(), budget).build();
+        return new ScriptInfo(indexSettings,
+                new MappingMetadata("_doc", Collections.<String, Object> singletonMap("properties", Collections.emptyMap())));
+    }
+}
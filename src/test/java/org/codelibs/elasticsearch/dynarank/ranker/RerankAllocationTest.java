@@ -0,0 +1,188 @@
+package org.codelibs.elasticsearch.dynarank.ranker;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+
+import org.apache.lucene.search.TotalHits;
+import org.codelibs.elasticsearch.dynarank.ranker.DynamicRanker.ScriptInfo;
+import org.codelibs.elasticsearch.dynarank.script.DiversitySortScriptEngine;
+import org.codelibs.elasticsearch.dynarank.script.DynaRankScript;
+import org.elasticsearch.cluster.metadata.MappingMetadata;
+import org.elasticsearch.common.bytes.BytesArray;
+import org.elasticsearch.common.document.DocumentField;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.env.Environment;
+import org.elasticsearch.script.ScriptEngine;
+import org.elasticsearch.script.ScriptService;
+import org.elasticsearch.search.SearchHit;
+import org.elasticsearch.search.SearchHits;
+import org.elasticsearch.tasks.TaskManager;
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Allocation budgets of reranking a fixed synthetic window. Bytes allocated
+ * by {@link DynamicRanker#doReorder} on the current thread are measured
+ * after warm-up, and a scenario fails if the smallest measurement exceeds
+ * its budget. Update a budget only with a reason in the commit message.
+ */
+public class RerankAllocationTest {
+
+    private static final int WINDOW_SIZE = 100;
+
+    private static final int PAGE_SIZE = 10;
+
+    private static final int WARMUP_ITERATIONS = 2000;
+
+    private static final int MEASURE_ITERATIONS = 50;
+
+    // bytes per rerank, about 20% over the highest values of repeated runs,
+    // because JIT decisions such as escape analysis vary between runs
+    private static final long STANDARD_BUDGET = 48_000;
+
+    private static final long STANDARD_MULTIPLE_FIELDS_BUDGET = 136_000;
+
+    private static final long MINHASH_BUDGET = 46_000;
+
+    private static final long MINHASH_MULTIPLE_FIELDS_BUDGET = 96_000;
+
+    private static final long KEEP_TOPN_BUDGET = 44_000;
+
+    private com.sun.management.ThreadMXBean threadMXBean;
+
+    private DynamicRanker ranker;
+
+    @Before
+    public void setUp() throws Exception {
+        Assume.assumeTrue(ManagementFactory.getThreadMXBean() instanceof com.sun.management.ThreadMXBean);
+        threadMXBean = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        Assume.assumeTrue(threadMXBean.isThreadAllocatedMemorySupported());
+        threadMXBean.setThreadAllocatedMemoryEnabled(true);
+
+        final Path home = Files.createTempDirectory("dynarank-allocation");
+        final Settings settings = Settings.builder().put(Environment.PATH_HOME_SETTING.getKey(), home.toString()).build();
+        final ScriptService scriptService = new ScriptService(settings,
+                Collections.<String, ScriptEngine> singletonMap(DiversitySortScriptEngine.SCRIPT_NAME,
+                        new DiversitySortScriptEngine(settings)),
+                Collections.singletonMap(DynaRankScript.CONTEXT.name, DynaRankScript.CONTEXT));
+        ranker = new DynamicRanker(settings, null, null, scriptService, null, null, null, null, null, new Environment(settings, null),
+                new TaskManager(settings, null, Collections.emptySet()));
+    }
+
+    @Test
+    public void standard() throws Exception {
+        final ScriptInfo scriptInfo = createScriptInfo(Settings.builder()
+                .putList("index.dynarank.script_sort.params.diversity_fields", "category")
+                .putList("index.dynarank.script_sort.params.diversity_thresholds", "0").build());
+        assertBudget("standard", STANDARD_BUDGET, scriptInfo, createHits(), 0);
+    }
+
+    @Test
+    public void standardMultipleFields() throws Exception {
+        final ScriptInfo scriptInfo = createScriptInfo(Settings.builder()
+                .putList("index.dynarank.script_sort.params.diversity_fields", "category", "brand", "price")
+                .putList("index.dynarank.script_sort.params.diversity_thresholds", "0", "0", "1").build());
+        assertBudget("standard_multiple_fields", STANDARD_MULTIPLE_FIELDS_BUDGET, scriptInfo, createHits(), 0);
+    }
+
+    @Test
+    public void minhash() throws Exception {
+        final ScriptInfo scriptInfo = createScriptInfo(Settings.builder()
+                .putList("index.dynarank.script_sort.params.bucket_factory", "minhash")
+                .putList("index.dynarank.script_sort.params.diversity_fields", "minhash_value")
+                .putList("index.dynarank.script_sort.params.diversity_thresholds", "0.9").build());
+        assertBudget("minhash", MINHASH_BUDGET, scriptInfo, createHits(), 0);
+    }
+
+    @Test
+    public void minhashMultipleFields() throws Exception {
+        final ScriptInfo scriptInfo = createScriptInfo(Settings.builder()
+                .putList("index.dynarank.script_sort.params.bucket_factory", "minhash")
+                .putList("index.dynarank.script_sort.params.diversity_fields", "minhash_value", "category")
+                .putList("index.dynarank.script_sort.params.diversity_thresholds", "0.9", "0").build());
+        assertBudget("minhash_multiple_fields", MINHASH_MULTIPLE_FIELDS_BUDGET, scriptInfo, createHits(), 0);
+    }
+
+    @Test
+    public void keepTopN() throws Exception {
+        final ScriptInfo scriptInfo = createScriptInfo(Settings.builder()
+                .put("index.dynarank.keep_topn", PAGE_SIZE)
+                .putList("index.dynarank.script_sort.params.diversity_fields", "category")
+                .putList("index.dynarank.script_sort.params.diversity_thresholds", "0").build());
+        assertEquals(PAGE_SIZE, scriptInfo.getKeepTopN());
+        // the second page is reranked
+        assertBudget("keep_topn", KEEP_TOPN_BUDGET, scriptInfo, createHits(), PAGE_SIZE);
+    }
+
+    private void assertBudget(final String scenario, final long budget, final ScriptInfo scriptInfo, final SearchHit[] window,
+            final int from) {
+        final long threadId = Thread.currentThread().getId();
+        final TotalHits totalHits = new TotalHits(window.length, TotalHits.Relation.EQUAL_TO);
+        final SearchHit[] page = ranker.doReorder(new SearchHits(Arrays.copyOf(window, window.length), totalHits, window.length), from,
+                PAGE_SIZE, WINDOW_SIZE, scriptInfo, null, null).getHits();
+        assertEquals(PAGE_SIZE, page.length);
+        assertFalse(scenario + " did not rerank hits", Arrays.equals(Arrays.copyOfRange(window, from, from + PAGE_SIZE), page));
+        for (int i = 0; i < WARMUP_ITERATIONS; i++) {
+            final SearchHits hits = new SearchHits(Arrays.copyOf(window, window.length), totalHits, window.length);
+            ranker.doReorder(hits, from, PAGE_SIZE, WINDOW_SIZE, scriptInfo, null, null);
+        }
+        long bytes = Long.MAX_VALUE;
+        for (int i = 0; i < MEASURE_ITERATIONS; i++) {
+            // the window is copied because keep_topn reorders it in place
+            final SearchHits hits = new SearchHits(Arrays.copyOf(window, window.length), totalHits, window.length);
+            final long before = threadMXBean.getThreadAllocatedBytes(threadId);
+            ranker.doReorder(hits, from, PAGE_SIZE, WINDOW_SIZE, scriptInfo, null, null);
+            bytes = Math.min(bytes, threadMXBean.getThreadAllocatedBytes(threadId) - before);
+        }
+        assertTrue(String.format(Locale.ROOT, "%s allocated %d bytes per rerank, over the budget of %d bytes", scenario, bytes, budget),
+                bytes <= budget);
+    }
+
+    private ScriptInfo createScriptInfo(final Settings params) throws IOException {
+        final Settings indexSettings = Settings.builder()
+                .put(DynamicRanker.SETTING_INDEX_DYNARANK_LANG.getKey(), DiversitySortScriptEngine.SCRIPT_NAME)
+                .put(DynamicRanker.SETTING_INDEX_DYNARANK_SCRIPT.getKey(), "")
+                .put(DynamicRanker.SETTING_INDEX_DYNARANK_REORDER_SIZE.getKey(), WINDOW_SIZE).put(params).build();
+        final Map<String, Object> properties = new HashMap<>();
+        properties.put("category", Collections.singletonMap("type", "keyword"));
+        properties.put("brand", Collections.singletonMap("type", "keyword"));
+        properties.put("price", Collections.singletonMap("type", "integer"));
+        properties.put("minhash_value", Collections.singletonMap("type", "minhash"));
+        return new ScriptInfo(indexSettings, new MappingMetadata("_doc", Collections.singletonMap("properties", properties)));
+    }
+
+    /**
+     * Hits with a parsed source for keyword and numeric fields and a fetched
+     * binary field for minhash values. Neighbouring hits share values, so that
+     * every scenario moves hits.
+     */
+    private SearchHit[] createHits() {
+        final SearchHit[] hits = new SearchHit[WINDOW_SIZE];
+        for (int i = 0; i < hits.length; i++) {
+            final byte[] minhash = new byte[16];
+            Arrays.fill(minhash, (byte) (i / 4 % 20 * 13));
+            final Map<String, DocumentField> fields = new HashMap<>();
+            fields.put("minhash_value", new DocumentField("minhash_value", Collections.<Object> singletonList(new BytesArray(minhash))));
+            hits[i] = new SearchHit(i, Integer.toString(i), null, fields, new HashMap<String, DocumentField>());
+            hits[i].score(hits.length - i);
+            final String source = "{\"category\":\"category" + i / 3 % 10 + "\",\"brand\":\"brand" + i / 2 % 7 + "\",\"price\":"
+                    + i / 5 % 13 * 10 + "}";
+            hits[i].sourceRef(new BytesArray(source.getBytes(StandardCharsets.UTF_8)));
+            hits[i].getSourceAsMap();
+        }
+        return hits;
+    }
+}
@@ -0,0 +1,102 @@
+package org.codelibs.elasticsearch.dynarank.ranker;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+
+import org.apache.lucene.search.TotalHits;
+import org.codelibs.elasticsearch.dynarank.DynamicRankingPlugin;
+import org.elasticsearch.common.breaker.CircuitBreaker;
+import org.elasticsearch.common.breaker.CircuitBreakingException;
+import org.elasticsearch.common.bytes.BytesArray;
+import org.elasticsearch.common.document.DocumentField;
+import org.elasticsearch.common.settings.ClusterSettings;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.env.Environment;
+import org.elasticsearch.indices.breaker.HierarchyCircuitBreakerService;
+import org.elasticsearch.search.SearchHit;
+import org.elasticsearch.search.SearchHits;
+import org.elasticsearch.tasks.TaskManager;
+import org.junit.Before;
+import org.junit.Test;
+
+public class RerankBreakerTest {
+
+    private Settings settings;
+
+    private HierarchyCircuitBreakerService circuitBreakerService;
+
+    private DynamicRanker ranker;
+
+    @Before
+    public void setUp() throws Exception {
+        final Path home = Files.createTempDirectory("dynarank-breaker");
+        settings = Settings.builder().put(Environment.PATH_HOME_SETTING.getKey(), home.toString())
+                .put(DynamicRanker.SETTING_BREAKER_DYNARANK_LIMIT.getKey(), "1mb").build();
+        circuitBreakerService = new HierarchyCircuitBreakerService(settings,
+                Collections.singletonList(new DynamicRankingPlugin(settings).getCircuitBreaker(settings)),
+                new ClusterSettings(settings, ClusterSettings.BUILT_IN_CLUSTER_SETTINGS));
+        ranker = new DynamicRanker(settings, null, null, null, null, null, null, null, circuitBreakerService,
+                new Environment(settings, null), new TaskManager(settings, null, Collections.emptySet()));
+    }
+
+    @Test
+    public void trip() {
+        final CircuitBreaker breaker = circuitBreakerService.getBreaker(DynamicRanker.BREAKER_NAME);
+        assertEquals(1024 * 1024, breaker.getLimit());
+
+        final long bytes = ranker.estimateRerankBytes(createHits(100));
+        breaker.addEstimateBytesAndMaybeBreak(bytes, "<reranking>");
+        breaker.addWithoutBreaking(-bytes);
+
+        final long limit = bytes / 2;
+        breaker.setLimitAndOverhead(limit, 1.0);
+        try {
+            breaker.addEstimateBytesAndMaybeBreak(bytes, "<reranking>");
+            fail("breaker did not trip");
+        } catch (final CircuitBreakingException e) {
+            assertEquals(CircuitBreaker.Durability.TRANSIENT, e.getDurability());
+        }
+        assertEquals(0, breaker.getUsed());
+        assertEquals(1, breaker.getTrippedCount());
+    }
+
+    @Test
+    public void updateLimit() {
+        final ClusterSettings clusterSettings = new ClusterSettings(settings,
+                new HashSet<>(Arrays.asList(DynamicRanker.SETTING_BREAKER_DYNARANK_LIMIT, DynamicRanker.SETTING_BREAKER_DYNARANK_OVERHEAD)));
+        ranker.registerBreakerSettingsUpdater(clusterSettings);
+
+        final CircuitBreaker breaker = circuitBreakerService.getBreaker(DynamicRanker.BREAKER_NAME);
+        final long bytes = ranker.estimateRerankBytes(createHits(100));
+        breaker.addEstimateBytesAndMaybeBreak(bytes, "<reranking>");
+        breaker.addWithoutBreaking(-bytes);
+
+        clusterSettings.applySettings(Settings.builder().put(DynamicRanker.SETTING_BREAKER_DYNARANK_LIMIT.getKey(), "1kb")
+                .put(DynamicRanker.SETTING_BREAKER_DYNARANK_OVERHEAD.getKey(), 2.0).build());
+        assertEquals(1024, breaker.getLimit());
+        assertEquals(2.0, breaker.getOverhead(), 0.0);
+        try {
+            breaker.addEstimateBytesAndMaybeBreak(bytes, "<reranking>");
+            fail("breaker did not trip");
+        } catch (final CircuitBreakingException e) {
+            // expected
+        }
+    }
+
+    private SearchHits createHits(final int size) {
+        final SearchHit[] hits = new SearchHit[size];
+        for (int i = 0; i < size; i++) {
+            hits[i] = new SearchHit(i, Integer.toString(i), null, Collections.<String, DocumentField> emptyMap(),
+                    Collections.<String, DocumentField> emptyMap());
+            hits[i].sourceRef(new BytesArray(("{\"category\":\"category" + i + "\"}").getBytes(StandardCharsets.UTF_8)));
+        }
+        return new SearchHits(hits, new TotalHits(size, TotalHits.Relation.EQUAL_TO), size);
+    }
+}
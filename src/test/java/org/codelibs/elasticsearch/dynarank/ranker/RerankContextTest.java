@@ -0,0 +1,97 @@
+package org.codelibs.elasticsearch.dynarank.ranker;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.lucene.search.TotalHits;
+import org.codelibs.elasticsearch.dynarank.ranker.DynamicRanker.ScriptInfo;
+import org.elasticsearch.action.search.SearchResponse;
+import org.elasticsearch.action.search.ShardSearchFailure;
+import org.elasticsearch.common.Strings;
+import org.elasticsearch.common.xcontent.XContentHelper;
+import org.elasticsearch.search.SearchHit;
+import org.elasticsearch.search.SearchHits;
+import org.elasticsearch.search.internal.InternalSearchResponse;
+import org.elasticsearch.search.profile.ProfileResult;
+import org.elasticsearch.search.profile.SearchProfileQueryPhaseResult;
+import org.elasticsearch.search.profile.SearchProfileResults;
+import org.elasticsearch.search.profile.SearchProfileShardResult;
+import org.elasticsearch.search.profile.aggregation.AggregationProfileShardResult;
+import org.elasticsearch.search.profile.query.QueryProfileShardResult;
+import org.elasticsearch.xcontent.XContentType;
+import org.junit.Test;
+
+public class RerankContextTest {
+
+    @Test
+    public void profileField() {
+        final RerankContext context = new RerankContext("test", new ScriptInfo(), 10, 5, System.nanoTime());
+        context.add(RerankContext.Stage.SCRIPT_EXECUTE, 100);
+        context.setWindowSize(50);
+
+        final SearchResponse withoutProfile = createResponse(null);
+        assertSame(withoutProfile, context.attachTo(withoutProfile));
+
+        final SearchProfileShardResult shardResult = new SearchProfileShardResult(new SearchProfileQueryPhaseResult(
+                Collections.<QueryProfileShardResult> emptyList(), new AggregationProfileShardResult(Collections.emptyList())), null);
+        final SearchResponse response = context.attachTo(
+                createResponse(new SearchProfileResults(Collections.singletonMap("[node][index][0]", shardResult))));
+        final Map<String, Object> map = XContentHelper.convertToMap(XContentType.JSON.xContent(), Strings.toString(response), false);
+        // shards of the profile results are not changed
+        final List<?> shards = (List<?>) ((Map<?, ?>) map.get("profile")).get("shards");
+        assertEquals(1, shards.size());
+        assertEquals("[node][index][0]", ((Map<?, ?>) shards.get(0)).get("id"));
+        @SuppressWarnings("unchecked")
+        final Map<String, Object> profile = (Map<String, Object>) map.get(RerankContext.PROFILE_FIELD);
+        assertEquals("DynaRank", profile.get("type"));
+        assertEquals(100, ((Map<?, ?>) profile.get("breakdown")).get("script_execute"));
+        assertEquals(50, ((Map<?, ?>) profile.get("debug")).get("window_size"));
+        assertEquals(Boolean.FALSE, ((Map<?, ?>) profile.get("debug")).get("coalesced"));
+    }
+
+    @Test
+    public void copyFrom() {
+        final ScriptInfo scriptInfo = new ScriptInfo();
+        final RerankContext leader = new RerankContext("test", scriptInfo, 0, 10, System.nanoTime());
+        leader.add(RerankContext.Stage.REWRITE, 1);
+        leader.add(RerankContext.Stage.DECODE, 2);
+        leader.add(RerankContext.Stage.SCRIPT_EXECUTE, 3);
+        leader.setWindowSize(100);
+        leader.setSearchTookInMillis(7);
+        RerankContext.setCurrent(leader);
+        try {
+            RerankContext.onBuckets("category", 100, 10, System.nanoTime());
+        } finally {
+            RerankContext.setCurrent(null);
+        }
+
+        final RerankContext waiter = new RerankContext("test", scriptInfo, 20, 5, System.nanoTime());
+        waiter.add(RerankContext.Stage.REWRITE, 4);
+        waiter.copyFrom(leader);
+        assertEquals(20, waiter.getFrom());
+        assertEquals(5, waiter.getSize());
+        assertEquals(4, waiter.getTiming(RerankContext.Stage.REWRITE));
+        assertEquals(2, waiter.getTiming(RerankContext.Stage.DECODE));
+        assertEquals(3, waiter.getTiming(RerankContext.Stage.SCRIPT_EXECUTE));
+        assertEquals(100, waiter.getWindowSize());
+        assertEquals(7, waiter.getSearchTookInMillis());
+        assertEquals(1, waiter.getBuckets().size());
+
+        final ProfileResult result = waiter.toProfileResult();
+        assertEquals(Boolean.TRUE, result.getDebugInfo().get("coalesced"));
+        assertFalse((Boolean) leader.toProfileResult().getDebugInfo().get("coalesced"));
+        assertTrue(result.getTime() > 0);
+    }
+
+    private static SearchResponse createResponse(final SearchProfileResults profileResults) {
+        final SearchHits hits = new SearchHits(new SearchHit[0], new TotalHits(0, TotalHits.Relation.EQUAL_TO), Float.NaN);
+        return new SearchResponse(new InternalSearchResponse(hits, null, null, profileResults, false, null, 1), null, 1, 1, 0, 1,
+                ShardSearchFailure.EMPTY_ARRAY, SearchResponse.Clusters.EMPTY);
+    }
+}
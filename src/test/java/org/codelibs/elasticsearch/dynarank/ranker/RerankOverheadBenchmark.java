@@ -0,0 +1,397 @@
+package org.codelibs.elasticsearch.dynarank.ranker;
+
+import static org.codelibs.elasticsearch.runner.ElasticsearchClusterRunner.newConfigs;
+
+import java.io.OutputStream;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadInfo;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.codelibs.elasticsearch.dynarank.script.DiversitySortScriptEngine;
+import org.codelibs.elasticsearch.runner.ElasticsearchClusterRunner;
+import org.elasticsearch.action.bulk.BulkRequestBuilder;
+import org.elasticsearch.action.bulk.BulkResponse;
+import org.elasticsearch.client.Client;
+import org.elasticsearch.common.bytes.BytesReference;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.index.query.QueryBuilders;
+import org.elasticsearch.node.Node;
+import org.elasticsearch.xcontent.XContentBuilder;
+import org.elasticsearch.xcontent.XContentFactory;
+
+/**
+ * Measures the cost of reranking per search on a local cluster. A corpus is
+ * generated, and a query log is replayed at a fixed concurrency through the
+ * first node without reranking and with each reorder size. Throughput,
+ * latency percentiles, and CPU time and allocation of the threads of the
+ * coordinating node are written as JSON to the output file or stdout.
+ *
+ * <pre>
+ * java -cp ... [-Dbenchmark.nodes=3] [-Dbenchmark.docs=100000] [-Dbenchmark.source_size=1024]
+ *     [-Dbenchmark.category_cardinality=50] [-Dbenchmark.brand_cardinality=500] [-Dbenchmark.query_log=queries.txt]
+ *     [-Dbenchmark.queries=5000] [-Dbenchmark.warmup_queries=1000] [-Dbenchmark.concurrency=8]
+ *     [-Dbenchmark.reorder_sizes=100,500,1000] [-Dbenchmark.seed=0]
+ *     org.codelibs.elasticsearch.dynarank.ranker.RerankOverheadBenchmark [output.json]
+ * </pre>
+ *
+ * A query log has a query of the query DSL in JSON per line. If it is not
+ * given, match queries with Zipf-distributed terms of the corpus are used.
+ * All nodes run in this JVM, so the heap and GC figures are of the whole
+ * cluster.
+ */
+public class RerankOverheadBenchmark {
+
+    private static final String INDEX = "benchmark";
+
+    private static final int NUM_OF_NODES = Integer.getInteger("benchmark.nodes", 3);
+
+    private static final int NUM_OF_DOCS = Integer.getInteger("benchmark.docs", 100000);
+
+    private static final int SOURCE_SIZE = Integer.getInteger("benchmark.source_size", 1024);
+
+    private static final int CATEGORY_CARDINALITY = Integer.getInteger("benchmark.category_cardinality", 50);
+
+    private static final int BRAND_CARDINALITY = Integer.getInteger("benchmark.brand_cardinality", 500);
+
+    private static final int VOCABULARY_SIZE = Integer.getInteger("benchmark.vocabulary_size", 1000);
+
+    private static final String QUERY_LOG = System.getProperty("benchmark.query_log");
+
+    private static final int NUM_OF_QUERIES = Integer.getInteger("benchmark.queries", 5000);
+
+    private static final int NUM_OF_WARMUP_QUERIES = Integer.getInteger("benchmark.warmup_queries", 1000);
+
+    private static final int CONCURRENCY = Integer.getInteger("benchmark.concurrency", 8);
+
+    private static final int PAGE_SIZE = Integer.getInteger("benchmark.size", 10);
+
+    private static final String REORDER_SIZES = System.getProperty("benchmark.reorder_sizes", "100,500,1000");
+
+    private static final long SEED = Long.getLong("benchmark.seed", 0L);
+
+    private static final int BULK_SIZE = 1000;
+
+    public static void main(final String[] args) throws Exception {
+        final Random random = new Random(SEED);
+        final double[] termWeights = zipf(VOCABULARY_SIZE);
+        final List<String> queries = QUERY_LOG != null ? Files.readAllLines(Paths.get(QUERY_LOG), StandardCharsets.UTF_8)
+                : generateQueries(new Random(random.nextLong()), termWeights);
+        queries.removeIf(String::isEmpty);
+
+        final ElasticsearchClusterRunner runner = new ElasticsearchClusterRunner();
+        runner.onBuild((number, settingsBuilder) -> {
+            if (NUM_OF_NODES == 1) {
+                settingsBuilder.put("discovery.type", "single-node");
+            }
+        }).build(newConfigs().numOfNode(NUM_OF_NODES).clusterName("es-dynarank-benchmark-" + System.currentTimeMillis())
+                .pluginTypes("org.codelibs.elasticsearch.dynarank.DynamicRankingPlugin"));
+        try {
+            runner.ensureYellow();
+            createIndex(runner, new Random(random.nextLong()), termWeights);
+
+            final Node coordinator = runner.getNode(0);
+            final List<Map<String, Object>> results = new ArrayList<>();
+            results.add(run(runner, coordinator, queries, 0));
+            for (final String value : REORDER_SIZES.split(",")) {
+                results.add(run(runner, coordinator, queries, Integer.parseInt(value.trim())));
+            }
+            write(args.length > 0 ? args[0] : null, queries.size(), results);
+        } finally {
+            runner.close();
+            runner.clean();
+        }
+    }
+
+    private static void createIndex(final ElasticsearchClusterRunner runner, final Random random, final double[] termWeights)
+            throws Exception {
+        runner.createIndex(INDEX, Settings.builder().put("index.number_of_shards", NUM_OF_NODES).put("index.number_of_replicas", 0)
+                .put("index.refresh_interval", "-1").build());
+        runner.ensureGreen(INDEX);
+        final XContentBuilder mapping = XContentFactory.jsonBuilder().startObject().startObject("properties") //
+                .startObject("body").field("type", "text").endObject() //
+                .startObject("category").field("type", "keyword").endObject() //
+                .startObject("brand").field("type", "keyword").endObject() //
+                .startObject("price").field("type", "integer").endObject() //
+                .startObject("payload").field("type", "keyword").field("index", false).field("doc_values", false).endObject() //
+                .endObject().endObject();
+        runner.client().admin().indices().preparePutMapping(INDEX).setSource(mapping).execute().actionGet();
+
+        final char[] chars = new char[Math.max(SOURCE_SIZE - 100, 0)];
+        for (int i = 0; i < NUM_OF_DOCS; i += BULK_SIZE) {
+            final BulkRequestBuilder bulk = runner.client().prepareBulk();
+            for (int j = i; j < Math.min(i + BULK_SIZE, NUM_OF_DOCS); j++) {
+                final StringBuilder body = new StringBuilder();
+                for (int k = 5 + random.nextInt(20); k > 0; k--) {
+                    body.append('w').append(sample(random, termWeights)).append(' ');
+                }
+                for (int k = 0; k < chars.length; k++) {
+                    chars[k] = (char) ('a' + random.nextInt(26));
+                }
+                bulk.add(runner.client().prepareIndex().setIndex(INDEX).setId(Integer.toString(j))
+                        .setSource(XContentFactory.jsonBuilder().startObject().field("body", body.toString().trim())
+                                .field("category", "c" + random.nextInt(CATEGORY_CARDINALITY))
+                                .field("brand", "b" + random.nextInt(BRAND_CARDINALITY)).field("price", random.nextInt(10000))
+                                .field("payload", new String(chars)).endObject()));
+            }
+            final BulkResponse response = bulk.execute().actionGet();
+            if (response.hasFailures()) {
+                throw new IllegalStateException(response.buildFailureMessage());
+            }
+        }
+        runner.client().admin().indices().prepareRefresh(INDEX).execute().actionGet();
+        runner.client().admin().indices().prepareForceMerge(INDEX).setMaxNumSegments(1).execute().actionGet();
+    }
+
+    /**
+     * @param reorderSize 0 to search without reranking
+     */
+    private static Map<String, Object> run(final ElasticsearchClusterRunner runner, final Node coordinator, final List<String> queries,
+            final int reorderSize) throws Exception {
+        final Settings.Builder settings = Settings.builder();
+        if (reorderSize > 0) {
+            settings.put(DynamicRanker.SETTING_INDEX_DYNARANK_LANG.getKey(), DiversitySortScriptEngine.SCRIPT_NAME)
+                    .put(DynamicRanker.SETTING_INDEX_DYNARANK_SCRIPT.getKey(), "")
+                    .put(DynamicRanker.SETTING_INDEX_DYNARANK_REORDER_SIZE.getKey(), reorderSize)
+                    .putList(DynamicRanker.SETTING_INDEX_DYNARANK_PARAMS.getKey() + "diversity_fields", "category", "brand")
+                    .putList(DynamicRanker.SETTING_INDEX_DYNARANK_PARAMS.getKey() + "diversity_thresholds", "0", "0");
+        } else {
+            settings.putNull(DynamicRanker.SETTING_INDEX_DYNARANK_LANG.getKey());
+        }
+        runner.client().admin().indices().prepareUpdateSettings(INDEX).setSettings(settings).execute().actionGet();
+
+        final Client client = coordinator.client();
+        replay(client, queries, NUM_OF_WARMUP_QUERIES);
+
+        System.gc();
+        final String nodeName = Node.NODE_NAME_SETTING.get(coordinator.settings());
+        final Map<Long, long[]> threadsBefore = getThreadUsage(nodeName);
+        final long gcCountBefore = getGcCount();
+        final long gcTimeBefore = getGcTime();
+        final HeapSampler heapSampler = new HeapSampler();
+        heapSampler.start();
+        final long startTime = System.nanoTime();
+        final long[] latencies;
+        try {
+            latencies = replay(client, queries, NUM_OF_QUERIES);
+        } finally {
+            heapSampler.interrupt();
+        }
+        final long elapsed = System.nanoTime() - startTime;
+        heapSampler.join();
+        final Map<Long, long[]> threadsAfter = getThreadUsage(nodeName);
+
+        long cpuTime = 0;
+        long allocatedBytes = 0;
+        for (final Map.Entry<Long, long[]> entry : threadsAfter.entrySet()) {
+            final long[] before = threadsBefore.getOrDefault(entry.getKey(), new long[2]);
+            cpuTime += entry.getValue()[0] - before[0];
+            allocatedBytes += entry.getValue()[1] - before[1];
+        }
+        Arrays.sort(latencies);
+
+        final Map<String, Object> result = new LinkedHashMap<>();
+        result.put("name", reorderSize > 0 ? "dynarank" : "baseline");
+        result.put("reorder_size", reorderSize);
+        result.put("queries", latencies.length);
+        result.put("errors", NUM_OF_QUERIES - latencies.length);
+        result.put("throughput", latencies.length / (elapsed / 1000000000.0));
+        result.put("latency_p50_millis", percentile(latencies, 0.5));
+        result.put("latency_p95_millis", percentile(latencies, 0.95));
+        result.put("latency_p99_millis", percentile(latencies, 0.99));
+        result.put("latency_max_millis", percentile(latencies, 1.0));
+        result.put("coordinator_cpu_millis", cpuTime / 1000000.0);
+        result.put("coordinator_cpu_micros_per_query", latencies.length > 0 ? cpuTime / 1000.0 / latencies.length : 0);
+        result.put("coordinator_allocated_bytes_per_query", latencies.length > 0 ? allocatedBytes / latencies.length : 0);
+        result.put("heap_used_max_bytes", heapSampler.maxUsed);
+        result.put("gc_count", getGcCount() - gcCountBefore);
+        result.put("gc_millis", getGcTime() - gcTimeBefore);
+        System.err.println(String.format(Locale.ROOT, "%s reorder_size=%d: %.1f queries/s, p50 %.2f ms, p99 %.2f ms", result.get("name"),
+                reorderSize, result.get("throughput"), result.get("latency_p50_millis"), result.get("latency_p99_millis")));
+        return result;
+    }
+
+    /**
+     * Runs queries of the log in turn on CONCURRENCY threads.
+     *
+     * @return latencies of successful searches in nanoseconds
+     */
+    private static long[] replay(final Client client, final List<String> queries, final int numOfQueries) throws InterruptedException {
+        final AtomicLong counter = new AtomicLong();
+        final long[][] latencies = new long[CONCURRENCY][];
+        final int[] counts = new int[CONCURRENCY];
+        final CountDownLatch latch = new CountDownLatch(CONCURRENCY);
+        for (int i = 0; i < CONCURRENCY; i++) {
+            final int worker = i;
+            latencies[worker] = new long[numOfQueries];
+            final Thread thread = new Thread(() -> {
+                try {
+                    long n;
+                    while ((n = counter.getAndIncrement()) < numOfQueries) {
+                        final String query = queries.get((int) (n % queries.size()));
+                        final long start = System.nanoTime();
+                        try {
+                            client.prepareSearch(INDEX).setQuery(QueryBuilders.wrapperQuery(query)).setSize(PAGE_SIZE).execute()
+                                    .actionGet();
+                            latencies[worker][counts[worker]++] = System.nanoTime() - start;
+                        } catch (final Exception e) {
+                            System.err.println("Failed to search " + query + ": " + e.getMessage());
+                        }
+                    }
+                } finally {
+                    latch.countDown();
+                }
+            }, "benchmark-" + worker);
+            thread.start();
+        }
+        latch.await();
+        final long[] merged = new long[Arrays.stream(counts).sum()];
+        int pos = 0;
+        for (int i = 0; i < CONCURRENCY; i++) {
+            System.arraycopy(latencies[i], 0, merged, pos, counts[i]);
+            pos += counts[i];
+        }
+        return merged;
+    }
+
+    private static List<String> generateQueries(final Random random, final double[] termWeights) {
+        final List<String> queries = new ArrayList<>();
+        for (int i = 0; i < 10000; i++) {
+            final StringBuilder terms = new StringBuilder();
+            for (int k = 1 + random.nextInt(3); k > 0; k--) {
+                terms.append('w').append(sample(random, termWeights)).append(' ');
+            }
+            queries.add("{\"match\":{\"body\":\"" + terms.toString().trim() + "\"}}");
+        }
+        return queries;
+    }
+
+    /**
+     * @return cumulative weights of a Zipf distribution
+     */
+    private static double[] zipf(final int n) {
+        final double[] weights = new double[n];
+        double sum = 0;
+        for (int i = 0; i < n; i++) {
+            sum += 1.0 / (i + 1);
+            weights[i] = sum;
+        }
+        for (int i = 0; i < n; i++) {
+            weights[i] /= sum;
+        }
+        return weights;
+    }
+
+    private static int sample(final Random random, final double[] weights) {
+        final int pos = Arrays.binarySearch(weights, random.nextDouble());
+        return Math.min(pos >= 0 ? pos : -pos - 1, weights.length - 1);
+    }
+
+    private static double percentile(final long[] sorted, final double p) {
+        if (sorted.length == 0) {
+            return 0;
+        }
+        return sorted[Math.max((int) Math.ceil(sorted.length * p) - 1, 0)] / 1000000.0;
+    }
+
+    /**
+     * @return CPU time and allocated bytes of live threads of the node, by
+     *         thread id
+     */
+    private static Map<Long, long[]> getThreadUsage(final String nodeName) {
+        final com.sun.management.ThreadMXBean threadMXBean = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        final Map<Long, long[]> usage = new HashMap<>();
+        for (final ThreadInfo info : threadMXBean.getThreadInfo(threadMXBean.getAllThreadIds())) {
+            if (info != null && info.getThreadName().contains("[" + nodeName + "]")) {
+                final long id = info.getThreadId();
+                usage.put(id, new long[] { threadMXBean.getThreadCpuTime(id), threadMXBean.getThreadAllocatedBytes(id) });
+            }
+        }
+        return usage;
+    }
+
+    private static long getGcCount() {
+        long count = 0;
+        for (final GarbageCollectorMXBean bean : ManagementFactory.getGarbageCollectorMXBeans()) {
+            count += Math.max(bean.getCollectionCount(), 0);
+        }
+        return count;
+    }
+
+    private static long getGcTime() {
+        long time = 0;
+        for (final GarbageCollectorMXBean bean : ManagementFactory.getGarbageCollectorMXBeans()) {
+            time += Math.max(bean.getCollectionTime(), 0);
+        }
+        return time;
+    }
+
+    private static void write(final String path, final int numOfLogQueries, final List<Map<String, Object>> results) throws Exception {
+        final XContentBuilder builder = XContentFactory.jsonBuilder().prettyPrint();
+        builder.startObject();
+        builder.field("benchmark", "rerank_overhead");
+        builder.startObject("settings");
+        builder.field("nodes", NUM_OF_NODES);
+        builder.field("docs", NUM_OF_DOCS);
+        builder.field("source_size", SOURCE_SIZE);
+        builder.field("category_cardinality", CATEGORY_CARDINALITY);
+        builder.field("brand_cardinality", BRAND_CARDINALITY);
+        builder.field("query_log", QUERY_LOG);
+        builder.field("query_log_size", numOfLogQueries);
+        builder.field("queries", NUM_OF_QUERIES);
+        builder.field("warmup_queries", NUM_OF_WARMUP_QUERIES);
+        builder.field("concurrency", CONCURRENCY);
+        builder.field("size", PAGE_SIZE);
+        builder.field("seed", SEED);
+        builder.field("available_processors", Runtime.getRuntime().availableProcessors());
+        builder.field("max_heap_bytes", Runtime.getRuntime().maxMemory());
+        builder.endObject();
+        builder.startArray("results");
+        for (final Map<String, Object> result : results) {
+            builder.map(result);
+        }
+        builder.endArray();
+        builder.endObject();
+        final BytesReference bytes = BytesReference.bytes(builder);
+        if (path == null) {
+            System.out.println(bytes.utf8ToString());
+        } else {
+            try (OutputStream out = Files.newOutputStream(Paths.get(path))) {
+                bytes.writeTo(out);
+            }
+        }
+    }
+
+    private static class HeapSampler extends Thread {
+        private volatile long maxUsed;
+
+        HeapSampler() {
+            super("benchmark-heap-sampler");
+            setDaemon(true);
+        }
+
+        @Override
+        public void run() {
+            while (!isInterrupted()) {
+                maxUsed = Math.max(maxUsed, ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed());
+                try {
+                    Thread.sleep(100);
+                } catch (final InterruptedException e) {
+                    return;
+                }
+            }
+        }
+    }
+}
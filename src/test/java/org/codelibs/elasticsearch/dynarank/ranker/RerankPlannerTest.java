@@ -0,0 +1,121 @@
+package org.codelibs.elasticsearch.dynarank.ranker;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.fail;
+
+import org.apache.lucene.search.TotalHits;
+import org.codelibs.elasticsearch.dynarank.ranker.DynamicRanker.ScriptInfo;
+import org.codelibs.elasticsearch.dynarank.ranker.RerankPlanner.Decision;
+import org.elasticsearch.action.search.SearchRequest;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.util.concurrent.ThreadContext;
+import org.elasticsearch.index.query.BoolQueryBuilder;
+import org.elasticsearch.index.query.QueryBuilders;
+import org.elasticsearch.search.builder.SearchSourceBuilder;
+import org.junit.Test;
+
+public class RerankPlannerTest {
+
+    private final RerankPlanner planner = new RerankPlanner(Settings.EMPTY);
+
+    private final ScriptInfo scriptInfo = new ScriptInfo();
+
+    private final ThreadContext threadContext = new ThreadContext(Settings.EMPTY);
+
+    @Test
+    public void sameQuery() {
+        assertEquals(createKey("test", createRequest()), createKey("test", createRequest()));
+        assertNotEquals(createKey("test", createRequest()), createKey("other", createRequest()));
+    }
+
+    @Test
+    public void mutatedQuery() {
+        final SearchRequest request = createRequest();
+        final RerankPlanner.Key key = createKey("test", request);
+        planner.onTotalHits(key, new TotalHits(0, TotalHits.Relation.EQUAL_TO));
+
+        ((BoolQueryBuilder) request.source().query()).must(QueryBuilders.termQuery("category", "a"));
+        final RerankPlanner.Key mutatedKey = createKey("test", request);
+        assertNotEquals(key, mutatedKey);
+        assertEquals(Decision.RERANK, planner.plan(mutatedKey, 0, 10, 100, scriptInfo, null, false));
+        assertEquals(Decision.SKIP_HITS_ESTIMATE, planner.plan(createKey("test", createRequest()), 0, 10, 100, scriptInfo,
+                null, false));
+    }
+
+    @Test
+    public void totalHitsOptions() {
+        final RerankPlanner.Key key = createKey("test", createRequest());
+        SearchRequest request = createRequest();
+        request.source().minScore(1.0f);
+        assertNotEquals(key, createKey("test", request));
+        request = createRequest();
+        request.source().terminateAfter(100);
+        assertNotEquals(key, createKey("test", request));
+        request = createRequest();
+        request.source().postFilter(QueryBuilders.termQuery("category", "a"));
+        assertNotEquals(key, createKey("test", request));
+        assertNotEquals(key, createKey("test", createRequest().routing("1")));
+        assertNotEquals(key, createKey("test", createRequest().preference("_local")));
+    }
+
+    @Test
+    public void minTotalHits() {
+        final RerankPlanner.Key key = createKey("test", createRequest());
+        planner.onTotalHits(key, new TotalHits(50, TotalHits.Relation.EQUAL_TO));
+        assertEquals(Decision.RERANK, planner.plan(key, 0, 10, 100, scriptInfo, null, false));
+        assertEquals(Decision.RERANK, planner.plan(key, 0, 10, 100, scriptInfo, 50L, false));
+        assertEquals(Decision.SKIP_HITS_ESTIMATE, planner.plan(key, 0, 10, 100, scriptInfo, 51L, false));
+
+        planner.onTotalHits(key, new TotalHits(50, TotalHits.Relation.GREATER_THAN_OR_EQUAL_TO));
+        assertEquals(Decision.RERANK, planner.plan(key, 0, 10, 100, scriptInfo, 51L, false));
+    }
+
+    @Test
+    public void parseMinTotalHits() {
+        assertEquals(null, DynamicRanker.parseMinTotalHits(null));
+        assertEquals(Long.valueOf(10), DynamicRanker.parseMinTotalHits(" 10"));
+        try {
+            DynamicRanker.parseMinTotalHits("ten");
+            fail("invalid header is accepted");
+        } catch (final IllegalArgumentException e) {
+            assertEquals("Invalid Dynarank-Min-Total-Hits header: ten", e.getMessage());
+        }
+    }
+
+    @Test
+    public void security() {
+        final RerankPlanner.Key key = createKey("test", createRequest());
+        planner.onTotalHits(key, new TotalHits(0, TotalHits.Relation.EQUAL_TO));
+        final ThreadContext.StoredContext context = threadContext.stashContext();
+        try {
+            // document level security of another user can give other total hits
+            threadContext.putTransient(SearchCoalescer.AUTHENTICATION_KEY, "user1");
+            final RerankPlanner.Key user1Key = createKey("test", createRequest());
+            assertNotEquals(key, user1Key);
+            assertEquals(Decision.RERANK, planner.plan(user1Key, 0, 10, 100, scriptInfo, null, false));
+            threadContext.stashContext();
+            threadContext.putTransient(SearchCoalescer.AUTHENTICATION_KEY, "user1");
+            assertEquals(user1Key, createKey("test", createRequest()));
+            threadContext.putHeader("es-security-runas-user", "user2");
+            assertNotEquals(user1Key, createKey("test", createRequest()));
+            threadContext.stashContext();
+            threadContext.putHeader("Authorization", "Basic dXNlcjE=");
+            assertNotEquals(key, createKey("test", createRequest()));
+            threadContext.stashContext();
+            threadContext.putHeader("X-Opaque-Id", "1");
+            assertEquals(key, createKey("test", createRequest()));
+        } finally {
+            context.restore();
+        }
+    }
+
+    private RerankPlanner.Key createKey(final String index, final SearchRequest request) {
+        return planner.createKey(index, request, threadContext);
+    }
+
+    private SearchRequest createRequest() {
+        return new SearchRequest("test").source(new SearchSourceBuilder()
+                .query(QueryBuilders.boolQuery().must(QueryBuilders.matchQuery("title", "dynarank"))));
+    }
+}
@@ -0,0 +1,165 @@
+package org.codelibs.elasticsearch.dynarank.ranker;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+
+import org.codelibs.elasticsearch.dynarank.ranker.DynamicRanker.ScriptInfo;
+import org.codelibs.elasticsearch.dynarank.script.DiversitySortScriptEngine;
+import org.codelibs.elasticsearch.dynarank.script.DynaRankScript;
+import org.elasticsearch.cluster.metadata.MappingMetadata;
+import org.elasticsearch.common.Strings;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.xcontent.XContentHelper;
+import org.elasticsearch.env.Environment;
+import org.elasticsearch.node.Node;
+import org.elasticsearch.script.ScriptEngine;
+import org.elasticsearch.script.ScriptService;
+import org.elasticsearch.search.SearchHit;
+import org.elasticsearch.tasks.TaskManager;
+import org.elasticsearch.threadpool.ThreadPool;
+import org.elasticsearch.xcontent.XContentType;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Scheduling and stats of {@link RerankWarmer}: configurations shared by
+ * names are warmed up once, and a failure does not stop other names.
+ */
+public class RerankWarmerTest {
+
+    private ThreadPool threadPool;
+
+    private DynamicRanker ranker;
+
+    private final Map<String, ScriptInfo> scriptInfos = new HashMap<>();
+
+    private final List<Integer> executedSizes = new CopyOnWriteArrayList<>();
+
+    @Before
+    public void setUp() throws Exception {
+        final Path home = Files.createTempDirectory("dynarank-warmup");
+        final Settings settings = Settings.builder().put(Environment.PATH_HOME_SETTING.getKey(), home.toString())
+                .put(Node.NODE_NAME_SETTING.getKey(), "test").build();
+        threadPool = new ThreadPool(settings);
+        final ScriptService scriptService = new ScriptService(settings,
+                Collections.<String, ScriptEngine> singletonMap(DiversitySortScriptEngine.SCRIPT_NAME,
+                        new DiversitySortScriptEngine(settings)),
+                Collections.singletonMap(DynaRankScript.CONTEXT.name, DynaRankScript.CONTEXT));
+        ranker = new DynamicRanker(settings, null, null, scriptService, threadPool, null, null, null, null,
+                new Environment(settings, null), new TaskManager(settings, threadPool, Collections.emptySet())) {
+            @Override
+            public ScriptInfo getScriptInfo(final String index) {
+                return scriptInfos.get(index);
+            }
+
+            @Override
+            SearchHit[] executeScript(final SearchHit[] searchHits, final ScriptInfo scriptInfo) {
+                executedSizes.add(searchHits.length);
+                return super.executeScript(searchHits, scriptInfo);
+            }
+        };
+
+        final ScriptInfo diversitySort = createScriptInfo(DiversitySortScriptEngine.SCRIPT_NAME, "category");
+        scriptInfos.put("test1", diversitySort);
+        scriptInfos.put("alias", diversitySort);
+        scriptInfos.put("test2", createScriptInfo(DiversitySortScriptEngine.SCRIPT_NAME, "price"));
+        scriptInfos.put("noscript", ScriptInfo.NO_SCRIPT_INFO);
+        scriptInfos.put("broken", createScriptInfo("unknown", "category"));
+    }
+
+    @After
+    public void tearDown() {
+        ThreadPool.terminate(threadPool, 10, TimeUnit.SECONDS);
+    }
+
+    @Test
+    public void disabledByDefault() throws Exception {
+        final RerankWarmer warmer = new RerankWarmer(Settings.EMPTY, ranker, threadPool);
+        assertFalse(warmer.isEnabled());
+        warmer.schedule(Arrays.asList("test1", "test2"));
+        final Map<String, Object> stats = getStats(warmer);
+        assertEquals(false, stats.get("enabled"));
+        assertEquals(false, stats.get("completed"));
+        assertEquals(0, stats.get("pending"));
+        assertEquals(0, stats.get("warmed_count"));
+        assertTrue(executedSizes.isEmpty());
+    }
+
+    @Test
+    public void schedule() throws Exception {
+        final RerankWarmer warmer = new RerankWarmer(Settings.builder().put("dynarank.warmup.enabled", true)
+                .put("dynarank.warmup.synthetic_size", 20).put("dynarank.warmup.iterations", 3).build(), ranker, threadPool);
+        assertTrue(warmer.isEnabled());
+        warmer.schedule(Collections.<String> emptyList());
+        assertEquals(false, getStats(warmer).get("completed"));
+
+        // test1 and alias share a configuration
+        warmer.schedule(Arrays.asList("test1", "alias", "missing", "noscript"));
+        Map<String, Object> stats = awaitCompleted(warmer);
+        assertEquals(true, stats.get("enabled"));
+        assertEquals(false, stats.get("running"));
+        assertEquals(0, stats.get("pending"));
+        assertEquals(1, stats.get("warmed_count"));
+        assertEquals(0, stats.get("failure_count"));
+        assertEquals(Arrays.asList(20, 20, 20), executedSizes);
+
+        // a failure is counted, and test2 is warmed up
+        warmer.schedule(Arrays.asList("broken", "test2"));
+        stats = awaitCompleted(warmer);
+        assertEquals(2, stats.get("warmed_count"));
+        assertEquals(1, stats.get("failure_count"));
+        assertEquals(6, executedSizes.size());
+    }
+
+    @Test
+    public void syntheticHits() throws Exception {
+        final RerankWarmer warmer = new RerankWarmer(Settings.builder().put("dynarank.warmup.enabled", true)
+                .put("dynarank.warmup.synthetic_size", 12).build(), ranker, threadPool);
+        final SearchHit[] keywordHits = warmer.createSyntheticHits(scriptInfos.get("test1"));
+        assertEquals(12, keywordHits.length);
+        assertEquals("warmup3", keywordHits[3].getSourceAsMap().get("category"));
+        assertEquals("warmup1", keywordHits[11].getSourceAsMap().get("category"));
+        assertEquals(12f, keywordHits[0].getScore(), 0f);
+        final SearchHit[] numericHits = warmer.createSyntheticHits(scriptInfos.get("test2"));
+        assertEquals(3, numericHits[3].getSourceAsMap().get("price"));
+    }
+
+    private Map<String, Object> awaitCompleted(final RerankWarmer warmer) throws Exception {
+        final long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+        Map<String, Object> stats = getStats(warmer);
+        while (!Boolean.TRUE.equals(stats.get("completed")) && System.nanoTime() < deadline) {
+            Thread.sleep(10);
+            stats = getStats(warmer);
+        }
+        assertEquals(stats.toString(), true, stats.get("completed"));
+        return stats;
+    }
+
+    private static Map<String, Object> getStats(final RerankWarmer warmer) {
+        return XContentHelper.convertToMap(XContentType.JSON.xContent(), Strings.toString(warmer), false);
+    }
+
+    private static ScriptInfo createScriptInfo(final String lang, final String field) throws Exception {
+        final Settings indexSettings = Settings.builder().put(DynamicRanker.SETTING_INDEX_DYNARANK_LANG.getKey(), lang)
+                .put(DynamicRanker.SETTING_INDEX_DYNARANK_SCRIPT.getKey(), "")
+                .putList("index.dynarank.script_sort.params.diversity_fields", field)
+                .putList("index.dynarank.script_sort.params.diversity_thresholds", "0").build();
+        final Map<String, Object> properties = new HashMap<>();
+        properties.put("category", Collections.singletonMap("type", "keyword"));
+        properties.put("price", Collections.singletonMap("type", "integer"));
+        return new ScriptInfo(indexSettings,
+                new MappingMetadata("_doc", Collections.<String, Object> singletonMap("properties", properties)));
+    }
+}
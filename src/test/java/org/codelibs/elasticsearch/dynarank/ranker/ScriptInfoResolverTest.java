@@ -0,0 +1,193 @@
+package org.codelibs.elasticsearch.dynarank.ranker;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.codelibs.elasticsearch.dynarank.ranker.DynamicRanker.ScriptInfo;
+import org.codelibs.elasticsearch.dynarank.script.DiversitySortScriptEngine;
+import org.elasticsearch.Version;
+import org.elasticsearch.cluster.metadata.AliasMetadata;
+import org.elasticsearch.cluster.metadata.DataStream;
+import org.elasticsearch.cluster.metadata.IndexMetadata;
+import org.elasticsearch.cluster.metadata.MappingMetadata;
+import org.elasticsearch.cluster.metadata.Metadata;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.index.Index;
+import org.junit.Test;
+
+/**
+ * Resolution of {@link ScriptInfo} for indices, aliases and data streams,
+ * and how it follows rollovers and settings updates.
+ */
+public class ScriptInfoResolverTest {
+
+    private static final String DATA_STREAM = "logs";
+
+    private static final MappingMetadata MAPPING;
+
+    static {
+        try {
+            MAPPING = new MappingMetadata("_doc", Collections.<String, Object> singletonMap("properties", Collections.emptyMap()));
+        } catch (final IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private final ScriptInfoResolver resolver = new ScriptInfoResolver();
+
+    @Test
+    public void index() {
+        final Metadata metadata = Metadata.builder().put(index("test1", diversitySort("category"), 1), false)
+                .put(index("test2", Settings.EMPTY, 1), false).build();
+        assertEquals("category", diversityFields(resolver.resolve(metadata, "test1")));
+        assertSame(ScriptInfo.NO_SCRIPT_INFO, resolver.resolve(metadata, "test2"));
+        assertNull(resolver.resolve(metadata, "test3"));
+    }
+
+    @Test
+    public void rollover() {
+        final List<IndexMetadata> indices = new ArrayList<>();
+        indices.add(backingIndex(1, diversitySort("category")));
+        indices.add(backingIndex(2, diversitySort("category")));
+        Metadata metadata = dataStream(indices);
+        final ScriptInfo scriptInfo = resolver.resolve(metadata, DATA_STREAM);
+        assertEquals("category", diversityFields(scriptInfo));
+        assertEquals(1, resolver.getNumOfConfigs());
+
+        // a new write index with the same settings shares the configuration
+        indices.add(backingIndex(3, diversitySort("category")));
+        metadata = dataStream(indices);
+        assertSame(scriptInfo, resolver.resolve(metadata, DATA_STREAM));
+        assertEquals(1, resolver.getNumOfConfigs());
+
+        // a new write index with an updated template
+        indices.add(backingIndex(4, diversitySort("brand")));
+        metadata = dataStream(indices);
+        final ScriptInfo rolledOver = resolver.resolve(metadata, DATA_STREAM);
+        assertEquals("brand", diversityFields(rolledOver));
+        assertEquals(2, resolver.getNumOfConfigs());
+        assertSame(scriptInfo, resolver.resolve(metadata, indices.get(0).getIndex().getName()));
+
+        // old backing indices are deleted
+        indices.subList(0, 3).clear();
+        metadata = dataStream(indices);
+        resolver.prune(metadata);
+        assertSame(rolledOver, resolver.resolve(metadata, DATA_STREAM));
+        assertEquals(1, resolver.getNumOfConfigs());
+    }
+
+    @Test
+    public void backingIndicesWithDifferentScripts() {
+        final Metadata metadata = dataStream(Arrays.asList(backingIndex(1, script("painless", "old")),
+                backingIndex(2, diversitySort("category")), backingIndex(3, script("painless", "new"))));
+        assertEquals("new", resolver.resolve(metadata, DATA_STREAM).getScript());
+
+        // the write index is not reranked
+        final Metadata withoutConfig = dataStream(Arrays.asList(backingIndex(4, script("painless", "old")),
+                backingIndex(5, script("painless", "new")), backingIndex(6, Settings.EMPTY)));
+        assertSame(ScriptInfo.NO_SCRIPT_INFO, resolver.resolve(withoutConfig, DATA_STREAM));
+    }
+
+    @Test
+    public void settingsUpdate() {
+        final Metadata metadata = Metadata.builder().put(index("test1", diversitySort("category"), 1), false).build();
+        final ScriptInfo scriptInfo = resolver.resolve(metadata, "test1");
+        assertSame(scriptInfo, resolver.resolve(metadata, "test1"));
+
+        final Metadata updated = Metadata.builder().put(index("test1", diversitySort("brand"), 2), false).build();
+        final ScriptInfo updatedScriptInfo = resolver.resolve(updated, "test1");
+        assertNotSame(scriptInfo, updatedScriptInfo);
+        assertEquals("brand", diversityFields(updatedScriptInfo));
+    }
+
+    @Test
+    public void aliasOverUnrelatedIndices() {
+        // the write index of an alias does not decide the configuration
+        final Metadata metadata = Metadata.builder()
+                .put(aliasedIndex("test1", script("painless", "script1"), "alias", false), false)
+                .put(aliasedIndex("test2", script("painless", "script2"), "alias", true), false).build();
+        assertSame(ScriptInfo.NO_SCRIPT_INFO, resolver.resolve(metadata, "alias"));
+
+        final Metadata diversitySorts = Metadata.builder()
+                .put(aliasedIndex("test3", diversitySort("category"), "alias", false), false)
+                .put(aliasedIndex("test4", diversitySort("brand"), "alias", true), false).build();
+        // one of the diversity sorts, in the order of the indices of the alias
+        final ScriptInfo scriptInfo = resolver.resolve(diversitySorts, "alias");
+        assertEquals(DiversitySortScriptEngine.SCRIPT_NAME, scriptInfo.getLang());
+        assertTrue(Arrays.asList("category", "brand").contains(diversityFields(scriptInfo)));
+
+        final Metadata sameScripts = Metadata.builder()
+                .put(aliasedIndex("test5", script("painless", "script1"), "alias", false), false)
+                .put(aliasedIndex("test6", script("painless", "script1"), "alias", true), false)
+                .put(aliasedIndex("test7", Settings.EMPTY, "alias", false), false).build();
+        assertEquals("script1", resolver.resolve(sameScripts, "alias").getScript());
+    }
+
+    @Test
+    public void indexWithoutMapping() {
+        final Settings settings = Settings.builder().put(diversitySort("category")).put("index.dynarank.collapse.enabled", true).build();
+        final Metadata metadata = Metadata.builder()
+                .put(IndexMetadata.builder("nomapping").settings(indexSettings(settings)).build(), false)
+                .put(index("mapping", settings, 1), false).build();
+        final ScriptInfo scriptInfo = resolver.resolve(metadata, "nomapping");
+        assertEquals("category", diversityFields(scriptInfo));
+        assertEquals(Collections.emptyMap(), scriptInfo.getSettings().get("source_as_map"));
+        assertNull(scriptInfo.getCollapseField());
+        assertNotSame(scriptInfo, resolver.resolve(metadata, "mapping"));
+    }
+
+    private Metadata dataStream(final List<IndexMetadata> indices) {
+        final Metadata.Builder builder = Metadata.builder();
+        final List<Index> backingIndices = new ArrayList<>();
+        for (final IndexMetadata indexMetadata : indices) {
+            builder.put(indexMetadata, false);
+            backingIndices.add(indexMetadata.getIndex());
+        }
+        builder.put(new DataStream(DATA_STREAM, new DataStream.TimestampField("@timestamp"), backingIndices));
+        return builder.build();
+    }
+
+    private static Settings diversitySort(final String field) {
+        return Settings.builder().put("index.dynarank.script_sort.lang", DiversitySortScriptEngine.SCRIPT_NAME)
+                .putList("index.dynarank.script_sort.params.diversity_fields", field)
+                .putList("index.dynarank.script_sort.params.diversity_thresholds", "0").build();
+    }
+
+    private static Settings script(final String lang, final String script) {
+        return Settings.builder().put("index.dynarank.script_sort.lang", lang).put("index.dynarank.script_sort.script", script).build();
+    }
+
+    private static IndexMetadata backingIndex(final int generation, final Settings settings) {
+        return IndexMetadata.builder(DataStream.getDefaultBackingIndexName(DATA_STREAM, generation))
+                .settings(indexSettings(settings).put(IndexMetadata.SETTING_INDEX_HIDDEN, true)).putMapping(MAPPING).build();
+    }
+
+    private static IndexMetadata index(final String name, final Settings settings, final long settingsVersion) {
+        return IndexMetadata.builder(name).settings(indexSettings(settings)).settingsVersion(settingsVersion).putMapping(MAPPING)
+                .build();
+    }
+
+    private static IndexMetadata aliasedIndex(final String name, final Settings settings, final String alias, final boolean writeIndex) {
+        return IndexMetadata.builder(name).settings(indexSettings(settings)).putMapping(MAPPING)
+                .putAlias(AliasMetadata.builder(alias).writeIndex(writeIndex)).build();
+    }
+
+    private static Settings.Builder indexSettings(final Settings settings) {
+        return Settings.builder().put(settings).put(IndexMetadata.SETTING_VERSION_CREATED, Version.CURRENT)
+                .put(IndexMetadata.SETTING_NUMBER_OF_SHARDS, 1).put(IndexMetadata.SETTING_NUMBER_OF_REPLICAS, 0);
+    }
+
+    private static String diversityFields(final ScriptInfo scriptInfo) {
+        return String.join(",", (String[]) scriptInfo.getSettings().get("diversity_fields"));
+    }
+}
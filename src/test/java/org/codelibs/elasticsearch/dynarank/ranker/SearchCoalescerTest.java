@@ -0,0 +1,123 @@
+package org.codelibs.elasticsearch.dynarank.ranker;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+import java.util.List;
+import java.util.Map;
+
+import org.codelibs.elasticsearch.dynarank.ranker.DynamicRanker.ScriptInfo;
+import org.elasticsearch.action.ActionListener;
+import org.elasticsearch.action.search.SearchRequest;
+import org.elasticsearch.action.search.SearchResponse;
+import org.elasticsearch.common.Strings;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.util.concurrent.ThreadContext;
+import org.elasticsearch.common.xcontent.XContentHelper;
+import org.elasticsearch.index.query.QueryBuilders;
+import org.elasticsearch.search.builder.SearchSourceBuilder;
+import org.elasticsearch.xcontent.XContentType;
+import org.junit.Test;
+
+public class SearchCoalescerTest {
+
+    private final SearchCoalescer coalescer = new SearchCoalescer();
+
+    private final ThreadContext threadContext = new ThreadContext(Settings.EMPTY);
+
+    private final ScriptInfo scriptInfo = new ScriptInfo();
+
+    @Test
+    public void requestHeaders() {
+        final SearchCoalescer.Key key = createKey("X-Opaque-Id", "1", "traceparent", "00-1-01");
+        assertEquals(key, createKey("X-Opaque-Id", "2", "traceparent", "00-2-01"));
+        assertEquals(key, createKey());
+        assertNotEquals(key, createKey("es-security-runas-user", "user1"));
+        assertNotEquals(key, createKey(DynamicRanker.DYNARANK_MIN_TOTAL_HITS, "10"));
+        assertNotEquals(createKey("Authorization", "Basic dXNlcjE="), createKey("Authorization", "Basic dXNlcjI="));
+    }
+
+    @Test
+    public void authentication() {
+        final SearchCoalescer.Key key = createKey();
+        final ThreadContext.StoredContext context = threadContext.stashContext();
+        try {
+            threadContext.putTransient(SearchCoalescer.AUTHENTICATION_KEY, "user1");
+            final SearchCoalescer.Key user1Key = createKey();
+            assertNotEquals(key, user1Key);
+            threadContext.stashContext();
+            threadContext.putTransient(SearchCoalescer.AUTHENTICATION_KEY, "user1");
+            assertEquals(user1Key, createKey());
+        } finally {
+            context.restore();
+        }
+    }
+
+    @Test
+    public void request() {
+        final SearchCoalescer.Key key = createKey();
+        assertEquals(key, coalescer.createKey("test", createRequest(), threadContext, scriptInfo, 100));
+        assertNotEquals(key, coalescer.createKey("test", createRequest(), threadContext, scriptInfo, 50));
+        assertNotEquals(key, coalescer.createKey("test", createRequest(), threadContext, new ScriptInfo(), 100));
+        assertNotEquals(key, coalescer.createKey("test", createRequest().routing("1"), threadContext, scriptInfo, 100));
+        final SearchRequest request = createRequest();
+        request.source().size(20);
+        assertNotEquals(key, coalescer.createKey("test", request, threadContext, scriptInfo, 100));
+    }
+
+    @Test
+    public void startOrJoin() {
+        final SearchCoalescer.Key key = createKey();
+        final SearchCoalescer.Waiter leader = createWaiter();
+        final SearchCoalescer.InFlight inFlight = coalescer.startOrJoin(key, leader);
+        assertNotNull(inFlight);
+        final SearchCoalescer.Waiter waiter = createWaiter();
+        assertNull(coalescer.startOrJoin(createKey("X-Opaque-Id", "2"), waiter));
+
+        final List<SearchCoalescer.Waiter> waiters = inFlight.complete();
+        assertEquals(2, waiters.size());
+        assertEquals(leader, waiters.get(0));
+        assertEquals(waiter, waiters.get(1));
+
+        // a completed search is not joined
+        assertNotNull(coalescer.startOrJoin(key, createWaiter()));
+    }
+
+    @Test
+    public void stats() {
+        final SearchCoalescer.InFlight inFlight = coalescer.startOrJoin(createKey(), createWaiter());
+        assertNull(coalescer.startOrJoin(createKey(), createWaiter()));
+        inFlight.complete();
+        coalescer.onRedispatch();
+
+        final Map<String, Object> stats =
+                XContentHelper.convertToMap(XContentType.JSON.xContent(), Strings.toString(coalescer), false);
+        assertEquals(1, stats.get("executed_count"));
+        assertEquals(1, stats.get("joined_count"));
+        assertEquals(1, stats.get("redispatched_count"));
+        assertEquals(0, stats.get("in_flight"));
+    }
+
+    private SearchCoalescer.Key createKey(final String... headers) {
+        final ThreadContext.StoredContext context = threadContext.newStoredContext(false);
+        try {
+            for (int i = 0; i < headers.length; i += 2) {
+                threadContext.putHeader(headers[i], headers[i + 1]);
+            }
+            return coalescer.createKey("test", createRequest(), threadContext, scriptInfo, 100);
+        } finally {
+            context.restore();
+        }
+    }
+
+    private SearchCoalescer.Waiter createWaiter() {
+        return new SearchCoalescer.Waiter(createRequest(), null, 0, 10, System.nanoTime(),
+                ActionListener.<SearchResponse> wrap(r -> {}, e -> {}), threadContext.newStoredContext(false), null);
+    }
+
+    private SearchRequest createRequest() {
+        return new SearchRequest("test").source(new SearchSourceBuilder().query(QueryBuilders.matchQuery("title", "dynarank")).size(100));
+    }
+}
@@ -0,0 +1,484 @@
+package org.codelibs.elasticsearch.dynarank.script.bucket.impl;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+
+import org.codelibs.elasticsearch.dynarank.ranker.RetrySearchException;
+import org.codelibs.elasticsearch.dynarank.script.bucket.BucketFactory;
+import org.codelibs.elasticsearch.dynarank.script.bucket.Buckets;
+import org.elasticsearch.common.bytes.BytesArray;
+import org.elasticsearch.common.bytes.BytesReference;
+import org.elasticsearch.common.document.DocumentField;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.search.SearchHit;
+import org.elasticsearch.xcontent.XContentBuilder;
+import org.elasticsearch.xcontent.XContentFactory;
+import org.junit.Test;
+
+/**
+ * Differential test of {@link Buckets} implementations against
+ * {@link ReferenceBuckets}. Random windows are generated with various value
+ * distributions, missing fields, ignored objects, thresholds and multiple
+ * fields, and every candidate has to return the same order, or fail with a
+ * retry in the same cases. A failing case is shrunk before it is reported.
+ * Run with -Dtests.seed=... to reproduce a failure, and add a faster
+ * implementation to {@link #CANDIDATES} to verify it.
+ */
+public class BucketsDifferentialTest {
+
+    private static final long SEED = Long.getLong("tests.seed", System.nanoTime());
+
+    private static final int ITERATIONS = Integer.getInteger("tests.iterations", 500);
+
+    private static final int MAX_SHRINK_STEPS = 1000;
+
+    private static final Candidate[] CANDIDATES = { //
+            new Candidate("standard", new StandardBucketFactory(Settings.EMPTY), false), //
+            new Candidate("minhash", new MinhashBucketFactory(Settings.EMPTY), true), //
+    };
+
+    private enum Kind {
+        KEYWORD, INTEGER, LONG, FLOAT, DOUBLE, MIXED_NUMBER, MIXED, MINHASH_BYTES, MINHASH_STRING;
+    }
+
+    @Test
+    public void sameOrderAsReference() {
+        final Random random = new Random(SEED);
+        for (int i = 0; i < ITERATIONS; i++) {
+            final Case c = randomCase(random);
+            for (final Candidate candidate : CANDIDATES) {
+                if (!candidate.matches(c)) {
+                    final Case shrunk = shrink(candidate, c);
+                    fail(String.format(Locale.ROOT, "%s differs from the reference (seed: %d, iteration: %d)%n%s%nexpected: %s%nactual: %s",
+                            candidate.name, SEED, i, shrunk, candidate.expected(shrunk), candidate.actual(shrunk)));
+                }
+            }
+        }
+    }
+
+    @Test
+    public void shrinkFailingCase() {
+        // swaps the first two hits of a window with four or more hits
+        final Candidate broken = new Candidate("broken", new StandardBucketFactory(Settings.EMPTY), false) {
+            @Override
+            Buckets create(final Map<String, Object> params) {
+                final Buckets buckets = super.create(params);
+                return searchHits -> {
+                    final SearchHit[] hits = buckets.getHits(searchHits);
+                    if (hits.length >= 4) {
+                        final SearchHit hit = hits[0];
+                        hits[0] = hits[1];
+                        hits[1] = hit;
+                    }
+                    return hits;
+                };
+            }
+        };
+        final Random random = new Random(SEED);
+        Case failure = null;
+        while (failure == null) {
+            final Case c = randomCase(random);
+            if (!broken.matches(c)) {
+                failure = c;
+            }
+        }
+        final Case shrunk = shrink(broken, failure);
+        assertEquals(shrunk.toString(), 4, shrunk.docs.size());
+        assertEquals(shrunk.toString(), 1, shrunk.fields.length);
+        assertFalse(shrunk.toString(), broken.matches(shrunk));
+    }
+
+    private static Case randomCase(final Random random) {
+        final Case c = new Case();
+        final int numOfFields = 1 + random.nextInt(3);
+        final Kind[] kinds = new Kind[numOfFields];
+        final Object[][] vocabularies = new Object[numOfFields][];
+        c.fields = new String[numOfFields];
+        c.thresholds = new String[numOfFields];
+        for (int i = 0; i < numOfFields; i++) {
+            c.fields[i] = "f" + i;
+            kinds[i] = Kind.values()[random.nextInt(Kind.values().length)];
+            vocabularies[i] = randomVocabulary(random, kinds[i]);
+            c.thresholds[i] = randomThreshold(random, kinds[i]);
+            if (kinds[i] == Kind.MINHASH_BYTES || kinds[i] == Kind.MINHASH_STRING) {
+                c.minhashFields.add(c.fields[i]);
+            }
+            if (random.nextInt(4) == 0) {
+                final String[] ignored = new String[1 + random.nextInt(2)];
+                for (int j = 0; j < ignored.length; j++) {
+                    ignored[j] = String.valueOf(vocabularies[i][random.nextInt(vocabularies[i].length)]);
+                }
+                c.ignoredObjects.put(c.fields[i], ignored);
+            }
+            if (random.nextBoolean() && isSourceSafe(kinds[i], vocabularies[i])) {
+                c.sourceFields.add(c.fields[i]);
+            }
+        }
+
+        final int size = random.nextInt(10) == 0 ? random.nextInt(200) : random.nextInt(50);
+        final boolean skewed = random.nextBoolean();
+        for (int i = 0; i < size; i++) {
+            final Map<String, Object> doc = new LinkedHashMap<>();
+            for (int j = 0; j < numOfFields; j++) {
+                final Object[] vocabulary = vocabularies[j];
+                final int n = skewed ? random.nextInt(random.nextInt(vocabulary.length) + 1) : random.nextInt(vocabulary.length);
+                doc.put(c.fields[j], vocabulary[n]);
+            }
+            c.docs.add(doc);
+        }
+        if (size > 0 && random.nextInt(10) == 0) {
+            c.docs.get(random.nextInt(size)).remove(c.fields[random.nextInt(numOfFields)]);
+        }
+
+        if (random.nextInt(5) == 0) {
+            c.minBucketThreshold = String.valueOf(1 + random.nextInt(10));
+        }
+        if (random.nextInt(5) == 0) {
+            c.maxBucketThreshold = String.valueOf(1 + random.nextInt(10));
+        }
+        c.shuffle = random.nextBoolean();
+        return c;
+    }
+
+    private static Object[] randomVocabulary(final Random random, final Kind kind) {
+        final Object[] values = new Object[1 + random.nextInt(random.nextBoolean() ? 5 : 40)];
+        final double scale = new double[] { 1, 0.1, 1000, 1e15, 1e17 }[random.nextInt(5)];
+        final byte[][] clusters = new byte[1 + random.nextInt(4)][16];
+        for (final byte[] cluster : clusters) {
+            random.nextBytes(cluster);
+        }
+        for (int i = 0; i < values.length; i++) {
+            switch (kind) {
+            case KEYWORD:
+                values[i] = "v" + i;
+                break;
+            case INTEGER:
+                values[i] = random.nextInt(100) - 50;
+                break;
+            case LONG:
+                values[i] = (long) ((random.nextDouble() - 0.5) * scale);
+                break;
+            case FLOAT:
+                values[i] = randomSpecial(random, (float) ((random.nextDouble() - 0.5) * scale));
+                break;
+            case DOUBLE:
+                values[i] = randomSpecial(random, (random.nextDouble() - 0.5) * scale);
+                break;
+            case MIXED_NUMBER:
+                values[i] = i % 3 == 0 ? (Object) i : i % 3 == 1 ? (Object) (long) i : (Object) (double) i;
+                break;
+            case MIXED:
+                values[i] = i % 2 == 0 ? (Object) ("v" + i) : (Object) i;
+                break;
+            case MINHASH_BYTES:
+            case MINHASH_STRING:
+                final byte[] bits = clusters[random.nextInt(clusters.length)].clone();
+                for (int j = random.nextInt(20); j > 0; j--) {
+                    final int bit = random.nextInt(bits.length * 8);
+                    bits[bit / 8] ^= 1 << (bit % 8);
+                }
+                values[i] = kind == Kind.MINHASH_BYTES ? bits : Base64.getEncoder().encodeToString(bits);
+                break;
+            default:
+                throw new IllegalArgumentException(kind.name());
+            }
+        }
+        return values;
+    }
+
+    private static Number randomSpecial(final Random random, final Number value) {
+        if (random.nextInt(20) != 0) {
+            return value;
+        }
+        final double special = new double[] { Double.NaN, Double.POSITIVE_INFINITY, Double.NEGATIVE_INFINITY, -0.0 }[random.nextInt(4)];
+        return value instanceof Float ? (Number) (float) special : (Number) special;
+    }
+
+    private static String randomThreshold(final Random random, final Kind kind) {
+        if (kind == Kind.MINHASH_BYTES || kind == Kind.MINHASH_STRING) {
+            return new String[] { "0", "0.5", "0.75", "0.9", "1" }[random.nextInt(5)];
+        }
+        return new String[] { "0", "0.001", "0.5", "1", "2.5", "10", "100", "1e16" }[random.nextInt(8)];
+    }
+
+    private static boolean isSourceSafe(final Kind kind, final Object[] vocabulary) {
+        if (kind == Kind.KEYWORD || kind == Kind.INTEGER || kind == Kind.LONG || kind == Kind.MIXED || kind == Kind.MINHASH_STRING) {
+            return true;
+        }
+        if (kind == Kind.DOUBLE) {
+            for (final Object value : vocabulary) {
+                if (Double.isNaN((Double) value) || Double.isInfinite((Double) value)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Removes fields, hits, options and distinct values while the candidate
+     * still differs from the reference.
+     */
+    private static Case shrink(final Candidate candidate, final Case failure) {
+        Case current = failure;
+        int steps = 0;
+        boolean shrunk = true;
+        while (shrunk && steps < MAX_SHRINK_STEPS) {
+            shrunk = false;
+            for (final Case smaller : current.smaller()) {
+                steps++;
+                if (!candidate.matches(smaller)) {
+                    current = smaller;
+                    shrunk = true;
+                    break;
+                }
+            }
+        }
+        return current;
+    }
+
+    private static class Candidate {
+        final String name;
+
+        final BucketFactory bucketFactory;
+
+        final boolean minhash;
+
+        Candidate(final String name, final BucketFactory bucketFactory, final boolean minhash) {
+            this.name = name;
+            this.bucketFactory = bucketFactory;
+            this.minhash = minhash;
+        }
+
+        Buckets create(final Map<String, Object> params) {
+            return bucketFactory.createBucketList(params);
+        }
+
+        boolean matches(final Case c) {
+            return expected(c).equals(actual(c));
+        }
+
+        String expected(final Case c) {
+            final Map<String, Object> params = c.toParams();
+            return run(new ReferenceBuckets(params, minhash ? c.minhashFields : Collections.<String> emptySet()), c.toHits());
+        }
+
+        String actual(final Case c) {
+            return run(create(c.toParams()), c.toHits());
+        }
+
+        private static String run(final Buckets buckets, final SearchHit[] hits) {
+            try {
+                final SearchHit[] reordered = buckets.getHits(hits);
+                final StringBuilder buf = new StringBuilder();
+                for (final SearchHit hit : reordered) {
+                    if (buf.length() > 0) {
+                        buf.append(',');
+                    }
+                    buf.append(hit == null ? "null" : hit.getId());
+                }
+                return "[" + buf + "]";
+            } catch (final RetrySearchException e) {
+                return "retry";
+            } catch (final RuntimeException e) {
+                return e.getClass().getSimpleName() + ": " + e.getMessage();
+            }
+        }
+    }
+
+    private static class Case {
+        String[] fields;
+
+        String[] thresholds;
+
+        final Map<String, String[]> ignoredObjects = new HashMap<>();
+
+        final Set<String> minhashFields = new HashSet<>();
+
+        final Set<String> sourceFields = new HashSet<>();
+
+        final List<Map<String, Object>> docs = new ArrayList<>();
+
+        String minBucketThreshold;
+
+        String maxBucketThreshold;
+
+        boolean shuffle;
+
+        Case copy() {
+            final Case c = new Case();
+            c.fields = fields.clone();
+            c.thresholds = thresholds.clone();
+            c.ignoredObjects.putAll(ignoredObjects);
+            c.minhashFields.addAll(minhashFields);
+            c.sourceFields.addAll(sourceFields);
+            for (final Map<String, Object> doc : docs) {
+                c.docs.add(new LinkedHashMap<>(doc));
+            }
+            c.minBucketThreshold = minBucketThreshold;
+            c.maxBucketThreshold = maxBucketThreshold;
+            c.shuffle = shuffle;
+            return c;
+        }
+
+        List<Case> smaller() {
+            final List<Case> cases = new ArrayList<>();
+            for (int i = 0; i < fields.length && fields.length > 1; i++) {
+                final Case c = copy();
+                final List<String> names = new ArrayList<>(Arrays.asList(fields));
+                final List<String> values = new ArrayList<>(Arrays.asList(thresholds));
+                final String removed = names.remove(i);
+                values.remove(i);
+                for (final Map<String, Object> doc : c.docs) {
+                    doc.remove(removed);
+                }
+                c.ignoredObjects.remove(removed);
+                c.minhashFields.remove(removed);
+                c.sourceFields.remove(removed);
+                c.fields = names.toArray(new String[names.size()]);
+                c.thresholds = values.toArray(new String[values.size()]);
+                cases.add(c);
+            }
+            for (int chunk = docs.size() / 2; chunk >= 1; chunk /= 2) {
+                for (int start = 0; start + chunk <= docs.size(); start += chunk) {
+                    final Case c = copy();
+                    c.docs.subList(start, start + chunk).clear();
+                    cases.add(c);
+                }
+            }
+            if (!ignoredObjects.isEmpty()) {
+                final Case c = copy();
+                c.ignoredObjects.clear();
+                cases.add(c);
+            }
+            if (minBucketThreshold != null || maxBucketThreshold != null || shuffle) {
+                final Case c = copy();
+                c.minBucketThreshold = null;
+                c.maxBucketThreshold = null;
+                c.shuffle = false;
+                cases.add(c);
+            }
+            if (!sourceFields.isEmpty()) {
+                final Case c = copy();
+                c.sourceFields.clear();
+                cases.add(c);
+            }
+            // fewer distinct values
+            for (int i = 1; i < docs.size(); i++) {
+                for (final String field : fields) {
+                    final Object first = docs.get(0).get(field);
+                    final Object value = docs.get(i).get(field);
+                    if (first != null && value != null && !valueEquals(first, value)) {
+                        final Case c = copy();
+                        c.docs.get(i).put(field, first);
+                        cases.add(c);
+                    }
+                }
+            }
+            return cases;
+        }
+
+        private static boolean valueEquals(final Object o1, final Object o2) {
+            if (o1 instanceof byte[] && o2 instanceof byte[]) {
+                return Arrays.equals((byte[]) o1, (byte[]) o2);
+            }
+            return o1.equals(o2);
+        }
+
+        Map<String, Object> toParams() {
+            final Map<String, Object> params = new HashMap<>();
+            params.put("diversity_fields", fields);
+            params.put("diversity_thresholds", thresholds);
+            for (final Map.Entry<String, String[]> entry : ignoredObjects.entrySet()) {
+                params.put(entry.getKey() + "_ignored_objects", entry.getValue());
+            }
+            final Map<String, Object> properties = new HashMap<>();
+            for (final String field : minhashFields) {
+                properties.put(field, Collections.singletonMap("type", "minhash"));
+            }
+            params.put("source_as_map", Collections.singletonMap("properties", properties));
+            if (minBucketThreshold != null) {
+                params.put("min_bucket_threshold", minBucketThreshold);
+            }
+            if (maxBucketThreshold != null) {
+                params.put("max_bucket_threshold", maxBucketThreshold);
+            }
+            if (shuffle) {
+                params.put("shuffle_seed", "1");
+            }
+            return params;
+        }
+
+        SearchHit[] toHits() {
+            final SearchHit[] hits = new SearchHit[docs.size()];
+            for (int i = 0; i < hits.length; i++) {
+                final Map<String, DocumentField> documentFields = new HashMap<>();
+                final Map<String, Object> source = new HashMap<>();
+                for (final Map.Entry<String, Object> entry : docs.get(i).entrySet()) {
+                    final Object value = entry.getValue();
+                    if (sourceFields.contains(entry.getKey())) {
+                        source.put(entry.getKey(), value);
+                    } else {
+                        documentFields.put(entry.getKey(), new DocumentField(entry.getKey(),
+                                Collections.singletonList(value instanceof byte[] ? new BytesArray((byte[]) value) : value)));
+                    }
+                }
+                hits[i] = new SearchHit(i, Integer.toString(i), null, documentFields, new HashMap<String, DocumentField>());
+                hits[i].score(hits.length - i);
+                try (XContentBuilder builder = XContentFactory.jsonBuilder()) {
+                    hits[i].sourceRef(BytesReference.bytes(builder.map(source)));
+                } catch (final IOException e) {
+                    throw new IllegalStateException(e);
+                }
+            }
+            return hits;
+        }
+
+        @Override
+        public String toString() {
+            final StringBuilder buf = new StringBuilder();
+            buf.append("fields: ").append(Arrays.toString(fields));
+            buf.append(", thresholds: ").append(Arrays.toString(thresholds));
+            for (final Map.Entry<String, String[]> entry : ignoredObjects.entrySet()) {
+                buf.append(", ").append(entry.getKey()).append("_ignored_objects: ").append(Arrays.toString(entry.getValue()));
+            }
+            buf.append(", minhash_fields: ").append(minhashFields);
+            buf.append(", source_fields: ").append(sourceFields);
+            buf.append(", min_bucket_threshold: ").append(minBucketThreshold);
+            buf.append(", max_bucket_threshold: ").append(maxBucketThreshold);
+            buf.append(", shuffle: ").append(shuffle);
+            for (int i = 0; i < docs.size(); i++) {
+                buf.append("\n  ").append(i).append(": {");
+                boolean first = true;
+                for (final Map.Entry<String, Object> entry : docs.get(i).entrySet()) {
+                    if (!first) {
+                        buf.append(", ");
+                    }
+                    first = false;
+                    final Object value = entry.getValue();
+                    buf.append(entry.getKey()).append('=');
+                    buf.append(value instanceof byte[] ? Arrays.toString((byte[]) value)
+                            : value.getClass().getSimpleName() + "(" + value + ")");
+                }
+                buf.append('}');
+            }
+            return buf.toString();
+        }
+    }
+}
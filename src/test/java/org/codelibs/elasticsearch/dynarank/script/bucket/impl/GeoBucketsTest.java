@@ -0,0 +1,180 @@
+package org.codelibs.elasticsearch.dynarank.script.bucket.impl;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.fail;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Random;
+
+import org.elasticsearch.ElasticsearchException;
+import org.elasticsearch.common.bytes.BytesArray;
+import org.elasticsearch.common.geo.GeoUtils;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.search.SearchHit;
+import org.junit.Test;
+
+/**
+ * Behaviour of {@link GeoBuckets}. With a radius, random windows are
+ * compared with a linear scan that puts a hit into the first bucket whose
+ * first hit is within the radius, for radiuses larger than cells and points
+ * near the poles and the antimeridian. Run with -Dtests.seed=... to
+ * reproduce a failure.
+ */
+public class GeoBucketsTest {
+
+    private static final long SEED = Long.getLong("tests.seed", System.nanoTime());
+
+    private static final int ITERATIONS = Integer.getInteger("tests.iterations", 300);
+
+    private final GeoBucketFactory bucketFactory = new GeoBucketFactory(Settings.EMPTY);
+
+    @Test
+    public void sameOrderAsLinearScan() {
+        final Random random = new Random(SEED);
+        for (int i = 0; i < ITERATIONS; i++) {
+            final String grid = random.nextBoolean() ? "geohash" : "geotile";
+            final String precision = "geohash".equals(grid) ? Integer.toString(1 + random.nextInt(8))
+                    : Integer.toString(random.nextInt(20));
+            final String radius = new String[] { "1m", "500m", "5km", "10km", "100km", "2000km" }[random.nextInt(6)];
+            final double[][] centers = new double[1 + random.nextInt(4)][];
+            for (int c = 0; c < centers.length; c++) {
+                // near a pole, the antimeridian or anywhere
+                final double lat = random.nextInt(3) == 0 ? (random.nextBoolean() ? 89.9 : -89.9) : random.nextDouble() * 160 - 80;
+                final double lon = random.nextInt(3) == 0 ? 179.99 : random.nextDouble() * 360 - 180;
+                centers[c] = new double[] { lat, lon };
+            }
+            final double spread = new double[] { 0.001, 0.05, 0.5, 5 }[random.nextInt(4)];
+            final SearchHit[] hits = new SearchHit[random.nextInt(60)];
+            for (int j = 0; j < hits.length; j++) {
+                final double[] center = centers[random.nextInt(centers.length)];
+                final double lat = Math.max(-90, Math.min(90, center[0] + (random.nextDouble() - 0.5) * spread));
+                final double lon = GeoUtils.normalizeLon(center[1] + (random.nextDouble() - 0.5) * spread);
+                hits[j] = hit(j, lat, lon);
+            }
+            final Map<String, Object> params = params(grid, precision, radius);
+            final String expected = ids(linearScan(hits, parseMeters(radius)));
+            final String actual = ids(bucketFactory.createBucketList(params).getHits(hits.clone()));
+            assertEquals(String.format(Locale.ROOT, "seed: %d, iteration: %d, grid: %s, precision: %s, radius: %s", SEED, i, grid,
+                    precision, radius), expected, actual);
+        }
+    }
+
+    @Test
+    public void radiusLargerThanCells() {
+        // about 8 km apart on a latitude, which are not neighboring cells of geohash precision 5
+        final SearchHit[] hits = { hit(0, 35.68, 139.70), hit(1, 35.68, 139.78), hit(2, 34.69, 135.50), hit(3, 35.68, 139.74) };
+        assertEquals("[0, 2, 1, 3]", ids(bucketFactory.createBucketList(params("geohash", null, "10km")).getHits(hits)));
+        assertEquals("[0, 1, 2, 3]", ids(bucketFactory.createBucketList(params("geohash", null, "1km")).getHits(hits)));
+    }
+
+    @Test
+    public void nearPole() {
+        // 1 km apart across many geotile columns
+        final SearchHit[] hits = { hit(0, 89.999, 0), hit(1, 89.999, 90), hit(2, 0, 0), hit(3, 89.999, -170) };
+        assertEquals("[0, 2, 1, 3]", ids(bucketFactory.createBucketList(params("geotile", "12", "1km")).getHits(hits)));
+    }
+
+    @Test
+    public void cellsWithoutRadius() {
+        final SearchHit[] hits = { hit(0, 35.660, 139.690), hit(1, 35.661, 139.691), hit(2, 34.69, 135.50), hit(3, 35.662, 139.692) };
+        assertEquals("[0, 2, 1, 3]", ids(bucketFactory.createBucketList(params("geohash", "5", null)).getHits(hits)));
+        assertEquals("[0, 1, 2, 3]", ids(bucketFactory.createBucketList(params("geohash", "1", null)).getHits(hits)));
+    }
+
+    @Test
+    public void missingPoint() {
+        final SearchHit hit = new SearchHit(9, "9", null, null, null);
+        hit.sourceRef(new BytesArray("{}".getBytes(StandardCharsets.UTF_8)));
+        final SearchHit[] hits = { hit(0, 0, 0), hit, hit(2, 1, 1) };
+        assertSame(hits, bucketFactory.createBucketList(params("geohash", null, "1km")).getHits(hits));
+    }
+
+    @Test
+    public void invalidParams() {
+        final SearchHit[] hits = { hit(0, 0, 0), hit(1, 1, 1) };
+        for (final String[] values : new String[][] { { "geohash", "0", null }, { "geohash", "13", null }, { "geotile", "30", null },
+                { "h3", null, null }, { "geohash", null, "abc" } }) {
+            try {
+                bucketFactory.createBucketList(params(values[0], values[1], values[2])).getHits(hits);
+                fail(Arrays.toString(values));
+            } catch (final ElasticsearchException e) {
+                // expected
+            }
+        }
+    }
+
+    private static double parseMeters(final String radius) {
+        return radius.endsWith("km") ? Double.parseDouble(radius.substring(0, radius.length() - 2)) * 1000
+                : Double.parseDouble(radius.substring(0, radius.length() - 1));
+    }
+
+    private static SearchHit[] linearScan(final SearchHit[] hits, final double radius) {
+        final List<double[]> representatives = new ArrayList<>();
+        final List<Queue<SearchHit>> buckets = new ArrayList<>();
+        for (final SearchHit hit : hits) {
+            final double lat = ((Number) hit.getSourceAsMap().get("lat")).doubleValue();
+            final double lon = ((Number) hit.getSourceAsMap().get("lon")).doubleValue();
+            int bucketId = -1;
+            for (int b = 0; b < representatives.size() && bucketId == -1; b++) {
+                if (GeoUtils.arcDistance(lat, lon, representatives.get(b)[0], representatives.get(b)[1]) <= radius) {
+                    bucketId = b;
+                }
+            }
+            if (bucketId == -1) {
+                bucketId = buckets.size();
+                representatives.add(new double[] { lat, lon });
+                buckets.add(new LinkedList<SearchHit>());
+            }
+            buckets.get(bucketId).add(hit);
+        }
+        final SearchHit[] newHits = new SearchHit[hits.length];
+        int pos = 0;
+        while (pos < hits.length) {
+            for (final Queue<SearchHit> bucket : buckets) {
+                final SearchHit hit = bucket.poll();
+                if (hit != null) {
+                    newHits[pos++] = hit;
+                }
+            }
+        }
+        return newHits;
+    }
+
+    private static Map<String, Object> params(final String grid, final String precision, final String radius) {
+        final Map<String, Object> params = new HashMap<>();
+        params.put("diversity_fields", new String[] { "location" });
+        params.put("geo_grid", new String[] { grid });
+        if (precision != null) {
+            params.put("geo_precision", new String[] { precision });
+        }
+        if (radius != null) {
+            params.put("diversity_thresholds", new String[] { radius });
+        }
+        return params;
+    }
+
+    private static SearchHit hit(final int id, final double lat, final double lon) {
+        final SearchHit hit = new SearchHit(id, Integer.toString(id), null, null, null);
+        final String source = String.format(Locale.ROOT, "{\"location\":{\"lat\":%s,\"lon\":%s},\"lat\":%s,\"lon\":%s}", lat, lon, lat,
+                lon);
+        hit.sourceRef(new BytesArray(source.getBytes(StandardCharsets.UTF_8)));
+        return hit;
+    }
+
+    private static String ids(final SearchHit[] hits) {
+        final String[] ids = new String[hits.length];
+        for (int i = 0; i < hits.length; i++) {
+            ids[i] = hits[i].getId();
+        }
+        return Arrays.toString(ids);
+    }
+}
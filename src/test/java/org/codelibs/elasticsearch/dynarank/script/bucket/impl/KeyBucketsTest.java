@@ -0,0 +1,134 @@
+package org.codelibs.elasticsearch.dynarank.script.bucket.impl;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.codelibs.elasticsearch.dynarank.script.bucket.Bucket;
+import org.elasticsearch.ElasticsearchException;
+import org.elasticsearch.common.bytes.BytesArray;
+import org.elasticsearch.common.document.DocumentField;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.search.SearchHit;
+import org.junit.Test;
+
+/**
+ * Behaviour of {@link KeyBuckets}: hits with the same long key, such as the
+ * one written by the dynarank_diversity_key ingest processor, are
+ * interleaved in the order of their first hits.
+ */
+public class KeyBucketsTest {
+
+    private final KeyBucketFactory bucketFactory = new KeyBucketFactory(Settings.EMPTY);
+
+    @Test
+    public void interleave() {
+        // keys over the range of an int are not merged by truncation
+        final long key1 = Long.MIN_VALUE;
+        final long key2 = 1L << 32;
+        final long key3 = -1L;
+        final SearchHit[] hits = { hit(0, key1), hit(1, key1), hit(2, key2), hit(3, key1), hit(4, key3), hit(5, key2), hit(6, 0L) };
+        assertEquals("[0, 2, 4, 6, 1, 5, 3]", ids(bucketFactory.createBucketList(params()).getHits(hits)));
+    }
+
+    @Test
+    public void intAndLongKeys() {
+        // _source gives an Integer for a small key
+        final SearchHit[] hits = { hit(0, 1), hit(1, 1L), hit(2, 2), hit(3, 1) };
+        assertEquals("[0, 2, 1, 3]", ids(bucketFactory.createBucketList(params()).getHits(hits)));
+    }
+
+    @Test
+    public void multipleFields() {
+        // the last field is applied first
+        final String[] fields = { "shop", "key" };
+        final SearchHit[] hits = { hit(0, fields, 1L, 10L), hit(1, fields, 1L, 10L), hit(2, fields, 2L, 10L), hit(3, fields, 1L, 20L) };
+        final Map<String, Object> params = new HashMap<>();
+        params.put("diversity_fields", fields);
+        assertEquals("[0, 2, 3, 1]", ids(bucketFactory.createBucketList(params).getHits(hits)));
+    }
+
+    @Test
+    public void ignoredKeys() {
+        final long key = Long.MAX_VALUE;
+        final SearchHit[] hits = { hit(0, key), hit(1, key), hit(2, 1L), hit(3, key), hit(4, 1L) };
+        final Map<String, Object> params = params();
+        params.put("key_ignored_objects", new String[] { Long.toString(key) });
+        // each ignored key has its own bucket
+        assertEquals("[0, 1, 2, 3, 4]", ids(bucketFactory.createBucketList(params).getHits(hits)));
+
+        params.put("key_ignored_objects", new String[] { "1", "-5" });
+        assertEquals("[0, 2, 4, 1, 3]", ids(bucketFactory.createBucketList(params).getHits(hits)));
+
+        params.put("key_ignored_objects", new String[0]);
+        assertEquals("[0, 2, 1, 4, 3]", ids(bucketFactory.createBucketList(params).getHits(hits)));
+
+        params.put("key_ignored_objects", new String[] { "abc" });
+        try {
+            bucketFactory.createBucketList(params).getHits(hits);
+            fail();
+        } catch (final ElasticsearchException e) {
+            assertEquals("Invalid value of key_ignored_objects: abc", e.getMessage());
+        }
+    }
+
+    @Test
+    public void missingKey() {
+        final SearchHit[] hits = { hit(0, 1L), hit(1, "abc"), hit(2, 1L) };
+        assertSame(hits, bucketFactory.createBucketList(params()).getHits(hits));
+        // neither a field nor _source has the key
+        final SearchHit noFieldHit = hit(1, new String[] { "other" }, 1L);
+        noFieldHit.sourceRef(new BytesArray("{\"other\":1}"));
+        final SearchHit[] noFieldHits = { hit(0, 1L), noFieldHit, hit(2, 1L) };
+        assertSame(noFieldHits, bucketFactory.createBucketList(params()).getHits(noFieldHits));
+    }
+
+    @Test
+    public void noDiversityFields() {
+        try {
+            bucketFactory.createBucketList(new HashMap<String, Object>()).getHits(new SearchHit[] { hit(0, 1L) });
+            fail();
+        } catch (final ElasticsearchException e) {
+            assertEquals("diversity_fields is null.", e.getMessage());
+        }
+    }
+
+    @Test
+    public void factory() {
+        assertTrue(bucketFactory.createBucketList(params()) instanceof KeyBuckets);
+        final SearchHit hit = hit(0, 1L);
+        final Bucket bucket = bucketFactory.createBucket(hit, 1L);
+        assertTrue(bucket instanceof StandardBucket);
+        assertSame(hit, bucket.get());
+        assertEquals(1, bucket.size());
+        assertEquals(0, new KeyBuckets(bucketFactory, params()).getHits(new SearchHit[0]).length);
+    }
+
+    private static Map<String, Object> params() {
+        final Map<String, Object> params = new HashMap<>();
+        params.put("diversity_fields", new String[] { "key" });
+        return params;
+    }
+
+    private static SearchHit hit(final int id, final Object value) {
+        return hit(id, new String[] { "key" }, value);
+    }
+
+    private static SearchHit hit(final int id, final String[] names, final Object... values) {
+        final Map<String, DocumentField> fields = new HashMap<>();
+        for (int i = 0; i < names.length; i++) {
+            fields.put(names[i], new DocumentField(names[i], Collections.singletonList(values[i])));
+        }
+        return new SearchHit(id, Integer.toString(id), null, fields, Collections.<String, DocumentField> emptyMap());
+    }
+
+    private static String ids(final SearchHit[] hits) {
+        return Arrays.toString(Arrays.stream(hits).map(SearchHit::getId).toArray());
+    }
+}
@@ -0,0 +1,119 @@
+package org.codelibs.elasticsearch.dynarank.script.bucket.impl;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.fail;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.elasticsearch.ElasticsearchException;
+import org.elasticsearch.common.bytes.BytesArray;
+import org.elasticsearch.common.document.DocumentField;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.search.SearchHit;
+import org.junit.Test;
+
+/**
+ * Behaviour of {@link MmrBuckets} for windows whose vectors are read from
+ * _source and fetched fields.
+ */
+public class MmrBucketsTest {
+
+    private final MmrBucketFactory bucketFactory = new MmrBucketFactory(Settings.EMPTY);
+
+    @Test
+    public void relevanceOnly() {
+        final SearchHit[] hits = { sourceHit(0, 3f, "[1,0]"), sourceHit(1, 2f, "[1,0]"), sourceHit(2, 1f, "[0,1]") };
+        assertEquals("[0, 1, 2]", ids(bucketFactory.createBucketList(params("1")).getHits(hits)));
+    }
+
+    @Test
+    public void nearDuplicateIsMovedDown() {
+        // 1 is a duplicate of 0, and 2 is orthogonal to 0 with a slightly lower score
+        final SearchHit[] hits = { sourceHit(0, 3f, "[1,0]"), sourceHit(1, 2.9f, "[2,0]"), sourceHit(2, 2.8f, "[0,1]"),
+                sourceHit(3, 1f, "[1,1]") };
+        assertEquals("[0, 2, 1, 3]", ids(bucketFactory.createBucketList(params("0.5")).getHits(hits)));
+    }
+
+    @Test
+    public void diversityOnly() {
+        // the first hit is the most relevant one, then the least similar ones
+        final SearchHit[] hits = { sourceHit(0, 4f, "[1,0]"), sourceHit(1, 3f, "[1,0.1]"), sourceHit(2, 2f, "[1,1]"),
+                sourceHit(3, 1f, "[0,1]") };
+        assertEquals("[0, 3, 2, 1]", ids(bucketFactory.createBucketList(params("0")).getHits(hits)));
+    }
+
+    @Test
+    public void unscoredHits() {
+        // the original order is the relevance if hits are not scored
+        final SearchHit[] hits = { sourceHit(0, Float.NaN, "[1,0]"), sourceHit(1, Float.NaN, "[1,0]"),
+                sourceHit(2, Float.NaN, "[0,1]") };
+        assertEquals("[0, 2, 1]", ids(bucketFactory.createBucketList(params("0.5")).getHits(hits)));
+    }
+
+    @Test
+    public void fetchedVectors() {
+        final SearchHit[] hits = { fieldHit(0, 3f, 1f, 0f), fieldHit(1, 2.9f, 1f, 0f), fieldHit(2, 2.8f, 0f, 1f) };
+        assertEquals("[0, 2, 1]", ids(bucketFactory.createBucketList(params("0.5")).getHits(hits)));
+    }
+
+    @Test
+    public void differentDims() {
+        final SearchHit[] hits = { sourceHit(0, 3f, "[1,0]"), sourceHit(1, 2.9f, "[1,0,0]"), sourceHit(2, 2.8f, "[0,1]") };
+        assertSame(hits, bucketFactory.createBucketList(params("0.5")).getHits(hits));
+    }
+
+    @Test
+    public void missingVector() {
+        final SearchHit[] hits = { sourceHit(0, 3f, "[1,0]"), sourceHit(1, 2.9f, null), sourceHit(2, 2.8f, "[0,1]") };
+        assertSame(hits, bucketFactory.createBucketList(params("0.5")).getHits(hits));
+    }
+
+    @Test
+    public void invalidLambda() {
+        final SearchHit[] hits = { sourceHit(0, 3f, "[1,0]"), sourceHit(1, 2f, "[0,1]") };
+        for (final String lambda : new String[] { "-0.1", "1.5", "abc" }) {
+            try {
+                bucketFactory.createBucketList(params(lambda)).getHits(hits);
+                fail(lambda);
+            } catch (final ElasticsearchException e) {
+                assertEquals("mmr_lambda must be between 0 and 1: " + lambda, e.getMessage());
+            }
+        }
+    }
+
+    private static Map<String, Object> params(final String lambda) {
+        final Map<String, Object> params = new HashMap<>();
+        params.put("diversity_fields", new String[] { "vector" });
+        params.put("mmr_lambda", new String[] { lambda });
+        return params;
+    }
+
+    private static SearchHit sourceHit(final int id, final float score, final String vector) {
+        final SearchHit hit = new SearchHit(id, Integer.toString(id), null, null, null);
+        hit.score(score);
+        final String source = vector == null ? "{}" : "{\"vector\":" + vector + "}";
+        hit.sourceRef(new BytesArray(source.getBytes(StandardCharsets.UTF_8)));
+        return hit;
+    }
+
+    private static SearchHit fieldHit(final int id, final float score, final Object... vector) {
+        final Map<String, DocumentField> fields = new HashMap<>();
+        fields.put("vector", new DocumentField("vector", Arrays.asList(vector)));
+        final SearchHit hit = new SearchHit(id, Integer.toString(id), null, fields, Collections.<String, DocumentField> emptyMap());
+        hit.score(score);
+        return hit;
+    }
+
+    private static String ids(final SearchHit[] hits) {
+        final String[] ids = new String[hits.length];
+        for (int i = 0; i < hits.length; i++) {
+            ids[i] = hits[i].getId();
+        }
+        return Arrays.toString(ids);
+    }
+}
@@ -0,0 +1,176 @@
+package org.codelibs.elasticsearch.dynarank.script.bucket.impl;
+
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+
+import org.codelibs.elasticsearch.dynarank.ranker.RetrySearchException;
+import org.codelibs.elasticsearch.dynarank.script.bucket.Buckets;
+import org.codelibs.minhash.MinHash;
+import org.elasticsearch.common.bytes.BytesArray;
+import org.elasticsearch.common.bytes.BytesReference;
+import org.elasticsearch.common.document.DocumentField;
+import org.elasticsearch.search.SearchHit;
+import org.elasticsearch.search.builder.SearchSourceBuilder;
+
+/**
+ * Frozen copy of the diversity sort of {@link StandardBuckets} and
+ * {@link MinhashBuckets} before they were optimized: a value joins the first
+ * bucket whose first value contains it, and the buckets are interleaved
+ * round-robin. Do not change it to follow an implementation; it is the
+ * oracle of {@link BucketsDifferentialTest}.
+ */
+public class ReferenceBuckets implements Buckets {
+
+    private final Map<String, Object> params;
+
+    private final Set<String> minhashFields;
+
+    /**
+     * @param minhashFields fields whose string values are compared as
+     *        minhash values
+     */
+    public ReferenceBuckets(final Map<String, Object> params, final Set<String> minhashFields) {
+        this.params = params;
+        this.minhashFields = minhashFields;
+    }
+
+    @Override
+    public SearchHit[] getHits(final SearchHit[] searchHits) {
+        SearchHit[] hits = searchHits;
+        final int length = hits.length;
+        final String[] diversityFields = (String[]) params.get("diversity_fields");
+        final String[] thresholds = (String[]) params.get("diversity_thresholds");
+        int maxNumOfBuckets = 0;
+        int minNumOfBuckets = Integer.MAX_VALUE;
+        for (int i = diversityFields.length - 1; i >= 0; i--) {
+            final String diversityField = diversityFields[i];
+            final float diversityThreshold = Float.parseFloat(thresholds[i]);
+            final boolean isMinhash = minhashFields.contains(diversityField);
+            final String[] ignoredObjs = (String[]) params.get(diversityField + "_ignored_objects");
+            final List<ReferenceBucket> bucketList = new ArrayList<>();
+            for (int j = 0; j < length; j++) {
+                final SearchHit hit = hits[j];
+                final Object value = getFieldValue(hit, diversityField);
+                if (value == null) {
+                    return hits;
+                }
+                boolean insert = false;
+                if (ignoredObjs != null) {
+                    for (final String ignoredObj : ignoredObjs) {
+                        if (ignoredObj.equals(value)) {
+                            bucketList.add(new ReferenceBucket(hit, value, diversityThreshold, isMinhash));
+                            insert = true;
+                            break;
+                        }
+                    }
+                }
+                if (!insert) {
+                    for (final ReferenceBucket bucket : bucketList) {
+                        if (bucket.contains(value)) {
+                            bucket.queue.add(hit);
+                            insert = true;
+                            break;
+                        }
+                    }
+                    if (!insert) {
+                        bucketList.add(new ReferenceBucket(hit, value, diversityThreshold, isMinhash));
+                    }
+                }
+            }
+            maxNumOfBuckets = Math.max(maxNumOfBuckets, bucketList.size());
+            minNumOfBuckets = Math.min(minNumOfBuckets, bucketList.size());
+
+            int pos = 0;
+            final SearchHit[] newSearchHits = new SearchHit[length];
+            while (pos < length) {
+                for (final ReferenceBucket bucket : bucketList) {
+                    final SearchHit hit = bucket.queue.poll();
+                    if (hit != null) {
+                        newSearchHits[pos++] = hit;
+                    }
+                }
+            }
+            hits = newSearchHits;
+        }
+
+        final int minBucketThreshold = getInt("min_bucket_threshold");
+        final int maxBucketThreshold = getInt("max_bucket_threshold");
+        if (((minBucketThreshold > 0 && minBucketThreshold >= minNumOfBuckets)
+                || (maxBucketThreshold > 0 && maxBucketThreshold >= maxNumOfBuckets)) && params.get("shuffle_seed") != null) {
+            throw new RetrySearchException(new RetrySearchException.QueryRewriter() {
+                private static final long serialVersionUID = 1L;
+
+                @Override
+                public SearchSourceBuilder rewrite(final SearchSourceBuilder source) {
+                    return source;
+                }
+            });
+        }
+        return hits;
+    }
+
+    private int getInt(final String name) {
+        final Object value = params.get(name);
+        if (value instanceof String) {
+            return Integer.parseInt(value.toString());
+        } else if (value instanceof Number) {
+            return ((Number) value).intValue();
+        }
+        return 0;
+    }
+
+    private static Object getFieldValue(final SearchHit hit, final String fieldName) {
+        final DocumentField field = hit.getFields().get(fieldName);
+        if (field == null) {
+            final Object object = hit.getSourceAsMap().get(fieldName);
+            return object instanceof String || object instanceof Number ? object : null;
+        }
+        final Object object = field.getValue();
+        if (object instanceof BytesReference) {
+            return BytesReference.toBytes((BytesReference) object);
+        } else if (object instanceof String || object instanceof Number) {
+            return object;
+        } else if (object instanceof BytesArray) {
+            return ((BytesArray) object).array();
+        }
+        return null;
+    }
+
+    private static class ReferenceBucket {
+        private final Queue<SearchHit> queue = new LinkedList<>();
+
+        private final Object hash;
+
+        private final float threshold;
+
+        private final boolean isMinhash;
+
+        ReferenceBucket(final SearchHit hit, final Object hash, final float threshold, final boolean isMinhash) {
+            this.hash = hash;
+            this.threshold = threshold;
+            this.isMinhash = isMinhash;
+            queue.add(hit);
+        }
+
+        boolean contains(final Object value) {
+            if (!hash.getClass().equals(value.getClass())) {
+                return false;
+            }
+            if (value instanceof String) {
+                if (isMinhash) {
+                    return MinHash.compare(hash.toString(), value.toString()) >= threshold;
+                }
+                return value.equals(hash);
+            } else if (value instanceof Number) {
+                return Math.abs(((Number) value).doubleValue() - ((Number) hash).doubleValue()) < threshold;
+            } else if (value instanceof byte[]) {
+                return MinHash.compare((byte[]) hash, (byte[]) value) >= threshold;
+            }
+            return false;
+        }
+    }
+}
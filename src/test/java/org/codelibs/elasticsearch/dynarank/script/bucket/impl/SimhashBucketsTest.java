@@ -0,0 +1,196 @@
+package org.codelibs.elasticsearch.dynarank.script.bucket.impl;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Random;
+
+import org.elasticsearch.ElasticsearchException;
+import org.elasticsearch.common.document.DocumentField;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.search.SearchHit;
+import org.junit.Test;
+
+/**
+ * Behaviour of {@link SimhashBuckets}. Random windows are compared with a
+ * linear scan that puts a hit into the first bucket whose first fingerprint
+ * is within the hamming distance, as {@link StandardBuckets} does for other
+ * values. Run with -Dtests.seed=... to reproduce a failure.
+ */
+public class SimhashBucketsTest {
+
+    private static final long SEED = Long.getLong("tests.seed", System.nanoTime());
+
+    private static final int ITERATIONS = Integer.getInteger("tests.iterations", 500);
+
+    private final SimhashBucketFactory bucketFactory = new SimhashBucketFactory(Settings.EMPTY);
+
+    @Test
+    public void sameOrderAsLinearScan() {
+        final Random random = new Random(SEED);
+        for (int i = 0; i < ITERATIONS; i++) {
+            final int numOfFields = 1 + random.nextInt(2);
+            final String[] fields = new String[numOfFields];
+            final String[] thresholds = new String[numOfFields];
+            final long[][] values = new long[numOfFields][];
+            final Map<String, Object> params = new HashMap<>();
+            for (int f = 0; f < numOfFields; f++) {
+                fields[f] = "f" + f;
+                thresholds[f] = Integer.toString(new int[] { 0, 1, 3, 8, 20, 63 }[random.nextInt(6)]);
+                final long[] clusters = new long[1 + random.nextInt(5)];
+                for (int c = 0; c < clusters.length; c++) {
+                    clusters[c] = random.nextLong();
+                }
+                final int size = random.nextInt(60);
+                values[f] = new long[size];
+                for (int j = 0; j < size; j++) {
+                    long value = clusters[random.nextInt(clusters.length)];
+                    for (int k = random.nextInt(12); k > 0; k--) {
+                        value ^= 1L << random.nextInt(64);
+                    }
+                    values[f][j] = value;
+                }
+                if (size > 0 && random.nextInt(3) == 0) {
+                    params.put(fields[f] + "_ignored_objects", new String[] { Long.toString(values[f][random.nextInt(size)]) });
+                }
+            }
+            final int size = values[0].length;
+            final SearchHit[] hits = new SearchHit[size];
+            for (int j = 0; j < size; j++) {
+                final Object[] hitValues = new Object[numOfFields];
+                for (int f = 0; f < numOfFields; f++) {
+                    hitValues[f] = j < values[f].length ? values[f][j] : 0L;
+                }
+                hits[j] = hit(j, fields, hitValues);
+            }
+            params.put("diversity_fields", fields);
+            params.put("diversity_thresholds", thresholds);
+            final String expected = ids(linearScan(hits, params));
+            final String actual = ids(bucketFactory.createBucketList(params).getHits(hits.clone()));
+            assertEquals(String.format(Locale.ROOT, "seed: %d, iteration: %d, thresholds: %s", SEED, i, Arrays.toString(thresholds)),
+                    expected, actual);
+        }
+    }
+
+    @Test
+    public void nearDuplicatesAreInterleaved() {
+        final SearchHit[] hits = { hit(0, 0b0000L), hit(1, 0b0001L), hit(2, 0xff00L), hit(3, 0b0011L), hit(4, 0xff01L) };
+        assertEquals("[0, 2, 3, 1, 4]", ids(bucketFactory.createBucketList(params("1")).getHits(hits)));
+        assertEquals("[0, 2, 1, 4, 3]", ids(bucketFactory.createBucketList(params("2")).getHits(hits)));
+        assertEquals("[0, 1, 2, 3, 4]", ids(bucketFactory.createBucketList(params("0")).getHits(hits)));
+    }
+
+    @Test
+    public void ignoredObjectCanBeJoined() {
+        // 1 is ignored and has its own bucket, and 2 joins the bucket of 1
+        final SearchHit[] hits = { hit(0, 0xff00L), hit(1, 0b0000L), hit(2, 0b0001L), hit(3, 0b0000L) };
+        final Map<String, Object> params = params("1");
+        params.put("simhash_ignored_objects", new String[] { "0" });
+        assertEquals("[0, 1, 3, 2]", ids(bucketFactory.createBucketList(params).getHits(hits)));
+    }
+
+    @Test
+    public void missingValue() {
+        final SearchHit[] hits = { hit(0, 0L), hit(1, "abc"), hit(2, 1L) };
+        assertSame(hits, bucketFactory.createBucketList(params("1")).getHits(hits));
+    }
+
+    @Test
+    public void invalidThresholds() {
+        final SearchHit[] hits = { hit(0, 0L), hit(1, 1L) };
+        for (final String threshold : new String[] { "-1", "64", "0.5" }) {
+            try {
+                bucketFactory.createBucketList(params(threshold)).getHits(hits);
+                fail(threshold);
+            } catch (final ElasticsearchException e) {
+                // expected
+            }
+        }
+        final Map<String, Object> params = params("1");
+        params.put("simhash_ignored_objects", new String[] { "abc" });
+        try {
+            bucketFactory.createBucketList(params).getHits(hits);
+            fail();
+        } catch (final ElasticsearchException e) {
+            assertEquals("Invalid value of simhash_ignored_objects: abc", e.getMessage());
+        }
+    }
+
+    private static SearchHit[] linearScan(final SearchHit[] searchHits, final Map<String, Object> params) {
+        SearchHit[] hits = searchHits;
+        final String[] fields = (String[]) params.get("diversity_fields");
+        final String[] thresholds = (String[]) params.get("diversity_thresholds");
+        for (int i = fields.length - 1; i >= 0; i--) {
+            final int distance = Integer.parseInt(thresholds[i]);
+            final String[] ignored = (String[]) params.get(fields[i] + "_ignored_objects");
+            final List<Long> representatives = new ArrayList<>();
+            final List<Queue<SearchHit>> buckets = new ArrayList<>();
+            for (final SearchHit hit : hits) {
+                final long value = ((Number) hit.getFields().get(fields[i]).getValue()).longValue();
+                int bucketId = -1;
+                if (ignored == null || !Long.toString(value).equals(ignored[0])) {
+                    for (int b = 0; b < representatives.size() && bucketId == -1; b++) {
+                        if (Long.bitCount(value ^ representatives.get(b)) <= distance) {
+                            bucketId = b;
+                        }
+                    }
+                }
+                if (bucketId == -1) {
+                    bucketId = buckets.size();
+                    representatives.add(value);
+                    buckets.add(new LinkedList<SearchHit>());
+                }
+                buckets.get(bucketId).add(hit);
+            }
+            final SearchHit[] newHits = new SearchHit[hits.length];
+            int pos = 0;
+            while (pos < hits.length) {
+                for (final Queue<SearchHit> bucket : buckets) {
+                    final SearchHit hit = bucket.poll();
+                    if (hit != null) {
+                        newHits[pos++] = hit;
+                    }
+                }
+            }
+            hits = newHits;
+        }
+        return hits;
+    }
+
+    private static Map<String, Object> params(final String threshold) {
+        final Map<String, Object> params = new HashMap<>();
+        params.put("diversity_fields", new String[] { "simhash" });
+        params.put("diversity_thresholds", new String[] { threshold });
+        return params;
+    }
+
+    private static SearchHit hit(final int id, final Object value) {
+        return hit(id, new String[] { "simhash" }, new Object[] { value });
+    }
+
+    private static SearchHit hit(final int id, final String[] names, final Object[] values) {
+        final Map<String, DocumentField> fields = new HashMap<>();
+        for (int i = 0; i < names.length; i++) {
+            fields.put(names[i], new DocumentField(names[i], Collections.singletonList(values[i])));
+        }
+        return new SearchHit(id, Integer.toString(id), null, fields, Collections.<String, DocumentField> emptyMap());
+    }
+
+    private static String ids(final SearchHit[] hits) {
+        final String[] ids = new String[hits.length];
+        for (int i = 0; i < hits.length; i++) {
+            ids[i] = hits[i].getId();
+        }
+        return Arrays.toString(ids);
+    }
+}
@@ -0,0 +1,149 @@
+package org.codelibs.elasticsearch.dynarank.script.bucket.impl;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.codelibs.elasticsearch.dynarank.script.bucket.Bucket;
+import org.elasticsearch.common.document.DocumentField;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.search.SearchHit;
+import org.junit.Test;
+
+/**
+ * Numeric bucketing of {@link StandardBuckets} by cells of the threshold,
+ * and the bucket list used for other values and for factory subclasses.
+ */
+public class StandardBucketsTest {
+
+    private final StandardBucketFactory bucketFactory = new StandardBucketFactory(Settings.EMPTY);
+
+    @Test
+    public void emptyWindow() {
+        final StandardBuckets buckets = new StandardBuckets(bucketFactory, params("1"));
+        assertEquals(-1, buckets.bucketNumbers(new Object[0], 1f, new int[0]));
+        assertEquals(0, buckets.getHits(new SearchHit[0]).length);
+    }
+
+    @Test
+    public void mixedIntegerAndDouble() {
+        final StandardBuckets buckets = new StandardBuckets(bucketFactory, params("1"));
+        assertEquals(-1, buckets.bucketNumbers(new Object[] { 1, 1.0, 2 }, 1f, new int[3]));
+        // the bucket list does not join values of different types
+        final SearchHit[] hits = { hit(0, 1), hit(1, 1.0), hit(2, 1), hit(3, 1.5) };
+        assertEquals("[0, 1, 2, 3]", ids(buckets.getHits(hits)));
+        final SearchHit[] sameTypeHits = { hit(0, 1.0), hit(1, 1.0), hit(2, 3.0), hit(3, 1.5) };
+        assertEquals("[0, 2, 1, 3]", ids(buckets.getHits(sameTypeHits)));
+    }
+
+    @Test
+    public void cellBoundaries() {
+        final StandardBuckets buckets = new StandardBuckets(bucketFactory, params("1"));
+        // a distance equal to the threshold is another bucket
+        assertBuckets(buckets, 1f, new int[] { 0, 1, 0, 2 }, 0.0, 1.0, 0.999, -1.0);
+        // leaders in the next cells on both sides
+        assertBuckets(buckets, 1f, new int[] { 0, 0, 0, 1, 2 }, 2.5, 1.6, 3.4, 3.6, 1.4);
+        // the first bucket wins when two leaders are close enough
+        assertBuckets(buckets, 1f, new int[] { 0, 1, 0 }, 0.0, 1.5, 0.8);
+        // across zero
+        assertBuckets(buckets, 1f, new int[] { 0, 0, 1 }, -0.5, 0.4, 0.5);
+        assertBuckets(buckets, 2.5f, new int[] { 0, 0, 1, 1 }, 5L, 7L, 8L, 10L);
+        // a zero threshold never joins, and NaN and infinities have their own buckets
+        assertBuckets(buckets, 0f, new int[] { 0, 1 }, 1.0, 1.0);
+        assertBuckets(buckets, 1f, new int[] { 0, 1, 2, 3 }, Double.NaN, Double.NaN, Double.POSITIVE_INFINITY, 0.0);
+        // a cell out of the range of long falls back to the bucket list
+        assertEquals(-1, buckets.bucketNumbers(new Object[] { 0.0, 1e300 }, 1f, new int[2]));
+        assertEquals(-1, buckets.bucketNumbers(new Object[] { 0.0, (double) (1L << 52) }, 1f, new int[2]));
+    }
+
+    @Test
+    public void sameOrderAsBucketList() {
+        final Object[][] windows = { { 0.0, 1.0, 0.999, -1.0, 0.5, 2.0 }, { 2.5, 1.6, 3.4, 3.6, 1.4, 2.5 }, { 5L, 7L, 8L, 10L, 12L },
+                { 3, 1, 2, 5, 4, 3, 0 } };
+        for (final String threshold : new String[] { "0", "1", "2.5" }) {
+            for (final Object[] values : windows) {
+                final SearchHit[] hits = new SearchHit[values.length];
+                for (int i = 0; i < values.length; i++) {
+                    hits[i] = hit(i, values[i]);
+                }
+                final String expected = ids(new StandardBuckets(new CountingBucketFactory(), params(threshold)).getHits(hits.clone()));
+                assertEquals(threshold + " " + Arrays.toString(values), expected,
+                        ids(new StandardBuckets(bucketFactory, params(threshold)).getHits(hits.clone())));
+            }
+        }
+    }
+
+    @Test
+    public void factorySubclass() {
+        // a subclass may change buckets, so it takes the bucket list
+        final CountingBucketFactory subclass = new CountingBucketFactory();
+        final SearchHit[] hits = { hit(0, 1L), hit(1, 1L), hit(2, 5L), hit(3, 1L) };
+        assertEquals("[0, 2, 1, 3]", ids(subclass.createBucketList(params("1")).getHits(hits)));
+        assertEquals(2, subclass.count);
+        assertTrue(subclass.createBucketList(params("1")) instanceof StandardBuckets);
+    }
+
+    @Test
+    public void longIntHashMap() {
+        final LongIntHashMap map = new LongIntHashMap(2);
+        assertEquals(-1, map.get(Long.MIN_VALUE, -1));
+        for (int i = 0; i < 100; i++) {
+            assertEquals(-1, map.put(i * (1L << 40) - 50, i, -1));
+        }
+        assertEquals(100, map.size());
+        assertEquals(7, map.put(7 * (1L << 40) - 50, 70, -1));
+        assertEquals(70, map.get(7 * (1L << 40) - 50, -1));
+        assertEquals(3, map.putIfAbsent(3 * (1L << 40) - 50, 30));
+        assertEquals(30, map.putIfAbsent(Long.MAX_VALUE, 30));
+        assertEquals(30, map.get(Long.MAX_VALUE, -1));
+        assertEquals(-1, map.get(0L, -1));
+        map.clear();
+        assertEquals(0, map.size());
+        assertEquals(-1, map.get(Long.MAX_VALUE, -1));
+    }
+
+    private static void assertBuckets(final StandardBuckets buckets, final float threshold, final int[] expected,
+            final Object... values) {
+        final int[] bucketIds = new int[values.length];
+        final int numOfBuckets = buckets.bucketNumbers(values, threshold, bucketIds);
+        assertArrayEquals(Arrays.toString(values), expected, bucketIds);
+        assertEquals(Arrays.stream(expected).max().getAsInt() + 1, numOfBuckets);
+    }
+
+    private static class CountingBucketFactory extends StandardBucketFactory {
+
+        private int count;
+
+        CountingBucketFactory() {
+            super(Settings.EMPTY);
+        }
+
+        @Override
+        public Bucket createBucket(final Object... args) {
+            count++;
+            return super.createBucket(args);
+        }
+    }
+
+    private static Map<String, Object> params(final String threshold) {
+        final Map<String, Object> params = new HashMap<>();
+        params.put("diversity_fields", new String[] { "value" });
+        params.put("diversity_thresholds", new String[] { threshold });
+        return params;
+    }
+
+    private static SearchHit hit(final int id, final Object value) {
+        final Map<String, DocumentField> fields =
+                Collections.singletonMap("value", new DocumentField("value", Collections.singletonList(value)));
+        return new SearchHit(id, Integer.toString(id), null, fields, Collections.<String, DocumentField> emptyMap());
+    }
+
+    private static String ids(final SearchHit[] hits) {
+        return Arrays.toString(Arrays.stream(hits).map(SearchHit::getId).toArray());
+    }
+}
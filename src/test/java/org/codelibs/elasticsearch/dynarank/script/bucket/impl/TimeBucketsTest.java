@@ -0,0 +1,130 @@
+package org.codelibs.elasticsearch.dynarank.script.bucket.impl;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.fail;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.elasticsearch.ElasticsearchException;
+import org.elasticsearch.common.bytes.BytesArray;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.search.SearchHit;
+import org.junit.Test;
+
+/**
+ * Behaviour of {@link TimeBuckets} for calendar and fixed intervals, time
+ * zones and the order of buckets.
+ */
+public class TimeBucketsTest {
+
+    private final TimeBucketFactory bucketFactory = new TimeBucketFactory(Settings.EMPTY);
+
+    @Test
+    public void dayInTimeZone() {
+        final SearchHit[] hits = { hit(0, "\"2021-01-01T14:00:00Z\""), hit(1, "\"2021-01-01T10:00:00Z\""),
+                hit(2, "\"2021-01-01T16:00:00Z\""), hit(3, "\"2021-01-01T01:00:00Z\"") };
+        assertEquals("[0, 1, 2, 3]", ids(getHits(hits, "day", null, null)));
+        // 2 is on the next day in Tokyo (+09:00)
+        assertEquals("[0, 2, 1, 3]", ids(getHits(hits, "day", "Asia/Tokyo", null)));
+    }
+
+    @Test
+    public void datesWithoutOffsetInTimeZone() {
+        // 0 is a local time, 1 is 00:10 of the same day in Tokyo, and 2 is 21:00 of the previous day in Tokyo
+        final SearchHit[] hits = { hit(0, "\"2021-01-02T00:30:00\""), hit(1, "\"2021-01-01T15:10:00Z\""),
+                hit(2, "\"2021-01-01T12:00:00Z\"") };
+        assertEquals("[0, 2, 1]", ids(getHits(hits, "day", "Asia/Tokyo", null)));
+        assertEquals("[0, 1, 2]", ids(getHits(hits, "day", null, null)));
+    }
+
+    @Test
+    public void daylightSavingTime() {
+        // 2021-03-28 has 23 hours in Berlin: 00:30 CET and 23:30 CEST of the day, and 00:30 CEST of the next day
+        final SearchHit[] hits = { hit(0, "\"2021-03-27T23:30:00Z\""), hit(1, "\"2021-03-28T21:30:00Z\""),
+                hit(2, "\"2021-03-28T22:30:00Z\"") };
+        assertEquals("[0, 2, 1]", ids(getHits(hits, "day", "Europe/Berlin", null)));
+        assertEquals("[0, 1, 2]", ids(getHits(hits, "day", null, null)));
+    }
+
+    @Test
+    public void month() {
+        final SearchHit[] hits = { hit(0, "\"2021-02-01T00:00:00Z\""), hit(1, "\"2021-02-28T23:00:00Z\""),
+                hit(2, "\"2021-03-01T01:00:00Z\"") };
+        assertEquals("[0, 2, 1]", ids(getHits(hits, "month", null, null)));
+        // 30 days from the epoch do not follow months
+        assertEquals("[0, 1, 2]", ids(getHits(hits, "30d", null, null)));
+    }
+
+    @Test
+    public void fixedIntervalOfEpochMillis() {
+        final long hour = 60 * 60 * 1000L;
+        final SearchHit[] hits = { hit(0, "0"), hit(1, Long.toString(hour)), hit(2, Long.toString(7 * hour)),
+                hit(3, Long.toString(5 * hour)) };
+        assertEquals("[0, 2, 1, 3]", ids(getHits(hits, "6h", null, null)));
+    }
+
+    @Test
+    public void newest() {
+        final SearchHit[] hits = { hit(0, "\"2021-01-01\""), hit(1, "\"2021-01-03\""), hit(2, "\"2021-01-01\""), hit(3, "\"2021-01-02\""),
+                hit(4, "\"2021-01-03\"") };
+        assertEquals("[0, 1, 3, 2, 4]", ids(getHits(hits, "day", null, "score")));
+        assertEquals("[1, 3, 0, 4, 2]", ids(getHits(hits, "day", null, "newest")));
+        assertEquals("[1, 3, 0, 4, 2]", ids(getHits(hits, "day", null, "NEWEST")));
+    }
+
+    @Test
+    public void missingOrInvalidDate() {
+        final SearchHit[] missing = { hit(0, "\"2021-01-01\""), hit(1, null), hit(2, "\"2021-01-02\"") };
+        assertSame(missing, getHits(missing, "day", null, null));
+        final SearchHit[] invalid = { hit(0, "\"2021-01-01\""), hit(1, "\"yesterday\""), hit(2, "\"2021-01-02\"") };
+        assertSame(invalid, getHits(invalid, "day", null, null));
+    }
+
+    @Test
+    public void invalidParams() {
+        final SearchHit[] hits = { hit(0, "\"2021-01-01\""), hit(1, "\"2021-01-02\"") };
+        for (final String[] values : new String[][] { { null, null, null }, { "fortnight", null, null }, { "day", "Mars/Olympus", null },
+                { "day", null, "oldest" } }) {
+            try {
+                getHits(hits, values[0], values[1], values[2]);
+                fail(Arrays.toString(values));
+            } catch (final ElasticsearchException e) {
+                // expected
+            }
+        }
+    }
+
+    private SearchHit[] getHits(final SearchHit[] hits, final String interval, final String zone, final String order) {
+        final Map<String, Object> params = new HashMap<>();
+        params.put("diversity_fields", new String[] { "published_at" });
+        if (interval != null) {
+            params.put("time_interval", new String[] { interval });
+        }
+        if (zone != null) {
+            params.put("time_zone", new String[] { zone });
+        }
+        if (order != null) {
+            params.put("time_order", new String[] { order });
+        }
+        return bucketFactory.createBucketList(params).getHits(hits);
+    }
+
+    private static SearchHit hit(final int id, final String value) {
+        final SearchHit hit = new SearchHit(id, Integer.toString(id), null, null, null);
+        final String source = value == null ? "{}" : "{\"published_at\":" + value + "}";
+        hit.sourceRef(new BytesArray(source.getBytes(StandardCharsets.UTF_8)));
+        return hit;
+    }
+
+    private static String ids(final SearchHit[] hits) {
+        final String[] ids = new String[hits.length];
+        for (int i = 0; i < hits.length; i++) {
+            ids[i] = hits[i].getId();
+        }
+        return Arrays.toString(ids);
+    }
+}